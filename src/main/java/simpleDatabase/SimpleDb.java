@@ -19,7 +19,7 @@ public class SimpleDb {
         // convert a file
         if (args[0].equals("convert")) {
             try {
-                if (args.length < 3 || args.length > 5) {
+                if (args.length < 3 || args.length > 7) {
                     System.err.println("Unexpected number of arguments to convert ");
                     return;
                 }
@@ -50,11 +50,32 @@ public class SimpleDb {
                             return;
                         }
                     }
-                    if (args.length == 5)
+                    if (args.length >= 5)
                         fieldSeparator = args[4].charAt(0);
                 }
 
-                HeapFileEncoder.convert(sourceTxtFile, targetDatFile, BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                // 后面的参数可以是 pax (输出列存格式)、slotted (变长记录，字符串不截断) 和 pagesize=N
+                boolean pax = false, slotted = false;
+                int pageSize = BufferPool.getPageSize();
+                for (int i = 5; i < args.length; i++) {
+                    String option = args[i].toLowerCase();
+                    if (option.equals("pax"))
+                        pax = true;
+                    else if (option.equals("slotted"))
+                        slotted = true;
+                    else if (option.startsWith("pagesize="))
+                        pageSize = Integer.parseInt(option.substring("pagesize=".length()));
+                    else {
+                        System.err.println("Unknown option " + args[i]);
+                        return;
+                    }
+                }
+                if (pax)
+                    HeapFileEncoder.convertToPax(sourceTxtFile, targetDatFile, pageSize, numOfAttributes, ts, fieldSeparator);
+                else if (slotted)
+                    HeapFileEncoder.convertToSlotted(sourceTxtFile, targetDatFile, pageSize, numOfAttributes, ts, fieldSeparator);
+                else
+                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile, pageSize, numOfAttributes, ts, fieldSeparator);
 
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -1,8 +1,13 @@
 package simpleDatabase.basic;
 
+import simpleDatabase.cache.BufferPool;
 import simpleDatabase.cache.DbFile;
 import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.PaxFile;
 import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.index.SecondaryIndex;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -33,6 +38,10 @@ public class Catalog {
 
     private HashMap<String /** table name **/, Integer /** tableId **/> name2id;
 
+    private HashMap<Integer /** tableId **/, Integer /** page size **/> id2pageSize;
+
+    private HashMap<Integer /** tableId **/, List<SecondaryIndex> /** secondary indexes **/> id2indexes;
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -42,6 +51,8 @@ public class Catalog {
         id2priKey = new HashMap<>();
         id2name = new HashMap<>();
         name2id = new HashMap<>();
+        id2pageSize = new HashMap<>();
+        id2indexes = new HashMap<>();
     }
 
     /**
@@ -66,6 +77,7 @@ public class Catalog {
         id2name.put(tableId, name);
         id2priKey.put(tableId, pkeyField);
         name2id.put(name, tableId);
+        id2pageSize.put(tableId, file.getPageSize());
     }
 
     public void addTable(DbFile file, String name) {
@@ -114,6 +126,98 @@ public class Catalog {
         return id2file.get(tableid);
     }
 
+    /**
+     * Returns the size in bytes of the pages of the specified table.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public int getPageSize(int tableid) throws NoSuchElementException {
+        if (!isIdValid(tableid, id2pageSize)) throw new NoSuchElementException();
+        return id2pageSize.get(tableid);
+    }
+
+    /**
+     * Build a secondary index on a field of a table and register it, like CREATE INDEX.
+     * The table must be stored in a HeapFile or PaxFile.
+     * @param tableName the name of the table to index
+     * @param fieldName the name of the field to index
+     * @param indexFile the file to store the index in; it is overwritten
+     * @return the new index
+     * @throws NoSuchElementException if the table or the field doesn't exist
+     */
+    public SecondaryIndex createIndex(String tableName, String fieldName, File indexFile)
+            throws IOException, DbException, TransactionAbortedException {
+        return createIndex(tableName, fieldName, new String[0], indexFile);
+    }
+
+    /**
+     * Build a secondary index on a field of a table that also carries the values of some
+     * other fields, like CREATE INDEX ... INCLUDE (...), and register it. Queries reading
+     * only the indexed field and the included fields can be answered from the index alone.
+     * @param tableName the name of the table to index
+     * @param fieldName the name of the field to index
+     * @param includeNames the names of the fields to include in the entries of the index
+     * @param indexFile the file to store the index in; it is overwritten
+     * @return the new index
+     * @throws NoSuchElementException if the table or a field doesn't exist
+     * @throws IllegalArgumentException if the table cannot be indexed or a field is
+     *         included twice, see {@link SecondaryIndex#SecondaryIndex(int, int, int[], File)}
+     */
+    public SecondaryIndex createIndex(String tableName, String fieldName, String[] includeNames, File indexFile)
+            throws IOException, DbException, TransactionAbortedException {
+        int tableId = getTableId(tableName);
+        TupleDesc td = getTupleDesc(tableId);
+        int[] include = new int[includeNames.length];
+        for (int i = 0; i < include.length; i++)
+            include[i] = td.fieldNameToIndex(includeNames[i]);
+        SecondaryIndex index = new SecondaryIndex(tableId, td.fieldNameToIndex(fieldName), include, indexFile);
+        // 先登记索引文件，建好之后才开始维护
+        addIndexFile(index);
+        index.build();
+        addIndex(index);
+        return index;
+    }
+
+    /**
+     * Register a secondary index. From now on BufferPool.insertTuple/deleteTuple keep it
+     * up to date with its table.
+     * @param index the index; its table must be in the catalog
+     */
+    public void addIndex(SecondaryIndex index) {
+        int tableId = index.getTableId();
+        if (!isIdValid(tableId, id2file)) throw new NoSuchElementException();
+        addIndexFile(index);
+        // 换一个新的list，正在遍历旧list的线程不受影响
+        List<SecondaryIndex> indexes = new ArrayList<>(getIndexes(tableId));
+        indexes.add(index);
+        id2indexes.put(tableId, indexes);
+    }
+
+    private void addIndexFile(SecondaryIndex index) {
+        // 索引文件也要能按id找到，BufferPool读页时用；它不是一张表，不放进name2id
+        DbFile file = index.getFile();
+        id2file.put(file.getId(), file);
+        id2pageSize.put(file.getId(), file.getPageSize());
+    }
+
+    /**
+     * @return the secondary indexes on the specified table, empty if it has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = id2indexes.get(tableid);
+        return indexes == null ? Collections.<SecondaryIndex>emptyList() : Collections.unmodifiableList(indexes);
+    }
+
+    /**
+     * @return the secondary index on field of the specified table, null if there is none
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid))
+            if (index.getField() == field) return index;
+        return null;
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
         if (!isIdValid(tableid, id2priKey)) throw new NoSuchElementException();
@@ -138,6 +242,8 @@ public class Catalog {
         id2priKey.clear();
         id2file.clear();
         name2id.clear();
+        id2pageSize.clear();
+        id2indexes.clear();
     }
     
     /**
@@ -179,11 +285,33 @@ public class Catalog {
                         }
                     }
                 }
+                // 括号后面可以跟页格式、compressed 和页大小，例如 "name (a int, b string) slotted compressed pagesize=32768"
+                String[] options = line.substring(line.indexOf(")") + 1).trim().toLowerCase().split("\\s+");
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 // TODO: 按照这句话的意思，表格的数据.dat文件必须是放在与catalog文件的同一个文件夹下
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile.PageFormat format = HeapFile.PageFormat.FIXED;
+                boolean pax = false, compressed = false;
+                int pageSize = BufferPool.getPageSize();
+                for (String option : options) {
+                    if (option.equals("slotted"))
+                        format = HeapFile.PageFormat.SLOTTED;
+                    else if (option.equals("pax"))
+                        pax = true;
+                    else if (option.equals("compressed"))
+                        compressed = true;
+                    else if (option.startsWith("pagesize="))
+                        pageSize = Integer.parseInt(option.substring("pagesize=".length()));
+                    else if (!option.isEmpty() && !option.equals("fixed")) {
+                        System.out.println("Unknown page format " + option);
+                        System.exit(0);
+                        return;
+                    }
+                }
+                DbFile tabHf = pax ? new PaxFile(dataFile, t, pageSize)
+                        : new HeapFile(dataFile, t, format, compressed, pageSize);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -75,6 +75,23 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Create a new buffer pool of the given size, keeping the page data off
+     * the Java heap if offHeap is true, and return it
+     *
+     * @see BufferPool#BufferPool(int, boolean)
+     */
+    public static BufferPool resetBufferPool(int pages, boolean offHeap) {
+        try {
+            java.lang.reflect.Field bufferPoolF = Database.class.getDeclaredField("_bufferpool");
+            bufferPoolF.setAccessible(true);
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, offHeap));
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        return _instance.get()._bufferpool;
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
@@ -7,6 +7,7 @@ import simpleDatabase.field.StringField;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 /**
@@ -30,6 +31,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -43,11 +49,24 @@ public enum Type implements Serializable {
                 byte bs[] = new byte[strLen];
                 dis.read(bs);
                 dis.skipBytes(STRING_LEN - strLen); // 读有用的数据，跳过空数据
-                return new StringField(new String(bs), STRING_LEN);
+                return new StringField(new String(bs));
             } catch (IOException e) {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            if (buf.hasArray())
+                return new StringField(new String(buf.array(), buf.arrayOffset() + offset + 4, strLen));
+            // 堆外的页没有数组，整段拷出来
+            byte bs[] = new byte[strLen];
+            ByteBuffer src = buf.duplicate();
+            src.position(offset + 4);
+            src.get(bs);
+            return new StringField(new String(bs));
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -66,4 +85,12 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * Decode a field of this type in place, without moving the position of buf.
+   * The bytes at offset must have the layout written by {@link Field#serialize}.
+   * @param buf the buffer holding the field
+   * @param offset absolute offset of the first byte of the field in buf
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
@@ -4,13 +4,18 @@ import simpleDatabase.basic.Permissions;
 import simpleDatabase.exception.DbException;
 import simpleDatabase.exception.TransactionAbortedException;
 import simpleDatabase.basic.Database;
+import simpleDatabase.index.SecondaryIndex;
 import simpleDatabase.tx.LockManager;
 import simpleDatabase.tx.TransactionId;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -39,9 +44,18 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     /**
-     * 页的最大数量
+     * 页的最大数量, 按默认页大小计算, 可以通过resize在运行时修改
      */
-    public final int PAGES_NUM;
+    private volatile int numPages;
+
+    /** Number of clean pages evicted at a time while the pool shrinks */
+    static final int SHRINK_STEP = 16;
+
+    /* 两次逐步淘汰之间的间隔(毫秒)，让事务有机会拿到缓存的锁 */
+    static final long SHRINK_PAUSE = 1;
+
+    /* 每次resize加一，旧的缩小线程看到后就退出 */
+    private final AtomicLong resizes = new AtomicLong();
 
     private PageLruCache pageCache; // lru
 
@@ -49,20 +63,126 @@ public class BufferPool {
 
     private final long SLEEP_TIME; // 事务竞争锁需要等待的时间
 
+    /* 堆外模式下页帧的来源，堆内模式为null */
+    private final FramePool framePool;
+
+    /* 刷盘的次数，预热时用来判断读到的页是否已经过时 */
+    private volatile long flushCount;
+
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages of the default
+     * page size. The pool is budgeted in bytes, numPages * {@link #getPageSize()},
+     * and each cached page takes the page size of its table, so it holds fewer
+     * pages of tables with larger pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
+     * @see simpleDatabase.basic.Catalog#getPageSize
      */
     public BufferPool(int numPages) {
+        this(numPages, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages of the default
+     * page size. If offHeap is true, cached HeapPages and PaxPages keep their
+     * bytes in direct memory frames taken from a {@link FramePool}, so a large
+     * pool does not grow the Java heap.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param offHeap whether pages keep their data outside the Java heap
+     */
+    public BufferPool(int numPages, boolean offHeap) {
         // some code goes here
-        PAGES_NUM = numPages;
-        pageCache = new PageLruCache(PAGES_NUM);
+        this.numPages = numPages;
+        framePool = offHeap ? new FramePool((long) numPages * getPageSize()) : null;
+        pageCache = new PageLruCache((long) numPages * getPageSize(), framePool);
         lockManager = new LockManager();
         SLEEP_TIME = 300; /* use loop to try to get the lock, if too small, then cost lots of computer resources */
     }
     
+    /**
+     * @return the maximum number of pages of the default page size this pool holds
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of bytes of pages this pool holds; tables whose page
+     *         size is not the default fit more or fewer of their pages in it
+     */
+    public long getCapacityBytes() {
+        return (long) numPages * getPageSize();
+    }
+
+    /**
+     * Change the size of this pool to numPages pages of the default page size,
+     * keeping the cached pages and without blocking transactions.
+     * <p>
+     * Growing takes effect at once. When the pool shrinks, pages are not
+     * dropped all at once: a background thread evicts the least recently used
+     * clean pages {@link #SHRINK_STEP} at a time until the pool fits in its new
+     * size, and meanwhile the pool does not grow past what it holds. Dirty
+     * pages are never evicted (NO STEAL), so they are waited for until their
+     * transactions commit or abort.
+     *
+     * @param numPages the new maximum number of pages in this buffer pool
+     */
+    public void resize(int numPages) {
+        if (numPages <= 0) throw new IllegalArgumentException("buffer pool needs at least one page");
+        this.numPages = numPages;
+        final long resize = resizes.incrementAndGet();
+        if (framePool != null) framePool.setCapacity((long) numPages * getPageSize());
+        if (pageCache.setCapacity((long) numPages * getPageSize())) return;
+
+        Thread shrinker = new Thread("buffer-pool-shrink") {
+            @Override
+            public void run() {
+                // 有更新的resize时，交给新的线程处理
+                while (resizes.get() == resize && !pageCache.shrink(SHRINK_STEP)) {
+                    try {
+                        Thread.sleep(SHRINK_PAUSE);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        shrinker.setDaemon(true);
+        shrinker.start();
+    }
+
+    /**
+     * @return the pool page frames come from, or null if pages live on the heap
+     */
+    public FramePool getFramePool() {
+        return framePool;
+    }
+
+    /**
+     * Copy all bytes of src into dst, without touching their positions.
+     */
+    static void copy(ByteBuffer src, ByteBuffer dst) {
+        ByteBuffer from = src.duplicate(), to = dst.duplicate();
+        from.clear();
+        to.clear();
+        to.put(from);
+    }
+
+    /**
+     * @return a heap copy of all bytes of frame
+     */
+    static byte[] toArray(ByteBuffer frame) {
+        if (frame.hasArray() && frame.arrayOffset() == 0 && frame.array().length == frame.capacity())
+            return frame.array().clone();
+        byte[] out = new byte[frame.capacity()];
+        ByteBuffer from = frame.duplicate();
+        from.clear();
+        from.get(out);
+        return out;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -94,6 +214,97 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException, InterruptedException {
+        acquireLock(tid, pid, perm);
+
+        Page page = pageCache.getOrPut(pid, null);
+        if (page != null) return page;
+        // 未命中
+        DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+        // 被换出的都是干净页，和磁盘上一致，不需要刷盘
+        // 读盘期间可能有别的线程已经把这个页放进来了，用已缓存的那个
+        return pageCache.getOrPut(pid, table.readPage(pid));
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage}, and pin its frame so
+     * that it is not evicted until {@link #unpinPage} is called. Every call must
+     * be matched by one unpinPage, usually in a finally block.
+     * <p>
+     * While the page is pinned, {@link #getLatch} gives the latch threads take
+     * around reading (shared) or changing (exclusive) the page. Transaction
+     * locks keep other transactions away from the page; latches keep threads
+     * working for the same transaction from seeing a half-changed page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException, InterruptedException {
+        acquireLock(tid, pid, perm);
+
+        Page page = pageCache.pin(pid, null);
+        if (page != null) return page;
+        DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+        // 读盘期间可能有别的线程已经把这个页放进来了，pin会用已缓存的那个
+        return pageCache.pin(pid, table.readPage(pid));
+    }
+
+    /**
+     * Pin the specified page like {@link #pinPage} without taking any lock on
+     * it, for readers that only hold its latch while they read it and validate
+     * what they read themselves (see BTreeFile optimistic lookups). Other
+     * transactions may change the page as soon as the latch is let go, and an
+     * abort may replace it with a fresh copy.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page pinPageUnlocked(PageId pid) throws DbException {
+        Page page = pageCache.pin(pid, null);
+        if (page != null) return page;
+        DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+        return pageCache.pin(pid, table.readPage(pid));
+    }
+
+    /**
+     * @return true if page is the copy of its page held by the buffer pool,
+     *         false if it was evicted, discarded or reverted since it was read
+     */
+    public boolean isResident(Page page) {
+        return pageCache.contains(page);
+    }
+
+    /**
+     * Release a pin taken by {@link #pinPage}.
+     *
+     * @throws IllegalStateException if the page is not pinned
+     */
+    public void unpinPage(PageId pid) {
+        pageCache.unpin(pid);
+    }
+
+    /**
+     * @return the latch of the frame of a page pinned by {@link #pinPage}
+     * @throws IllegalStateException if the page is not pinned
+     */
+    public ReadWriteLock getLatch(PageId pid) {
+        return pageCache.latch(pid);
+    }
+
+    /**
+     * @return the number of pins on the page, 0 if it is not cached
+     */
+    public int getPinCount(PageId pid) {
+        return pageCache.pinCount(pid);
+    }
+
+    /**
+     * Wait until tid holds the lock perm asks for on pid.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, InterruptedException {
         // 如果当前page被其他事务占有，那么无法获取该page 必须while等待
         boolean tryAcquire = (perm == Permissions.READ_ONLY) ? lockManager.grantSLock(tid, pid)
                 : lockManager.grantXLock(tid, pid); /* 根据所需要的锁类型来分配不同的锁 */
@@ -105,20 +316,6 @@ public class BufferPool {
             tryAcquire = (perm == Permissions.READ_ONLY) ? lockManager.grantSLock(tid, pid)
                     : lockManager.grantXLock(tid, pid); /* 再次判断是否能获取锁 */
         }
-
-        if (pageCache.isCached(pid)) return pageCache.get(pid);
-        // 未命中
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
-        HeapPage newPage = (HeapPage) table.readPage(pid); // WARN
-        Page removedPage = pageCache.put(pid, newPage);
-        if (removedPage != null) { /* 不等于null 表示删除了一个老的缓存 */
-            try {
-                flushPage(removedPage);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return newPage;
     }
 
     /**
@@ -172,11 +369,15 @@ public class BufferPool {
      */
     public synchronized void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        lockManager.releaseAllLocksByTid(tid);
-        if (commit)
-            flushPages(tid);
-        else
-            revertTransactionAction(tid);
+        // 先刷盘或回滚再放锁，否则别的事务可能在这之间改了这些page
+        try {
+            if (commit)
+                flushPages(tid);
+            else
+                revertTransactionAction(tid);
+        } finally {
+            lockManager.releaseAllLocksByTid(tid);
+        }
     }
 
     /**
@@ -196,9 +397,11 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        DbFile table = Database.getCatalog().getDbFile(tableId);
         ArrayList<Page> dirtyPages = table.insertTuple(tid, t);
         for (Page p : dirtyPages) p.markDirty(true, tid);
+        // 二级索引和表在同一个事务里修改，一起提交或回滚
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) index.insert(tid, t);
     }
 
     /**
@@ -217,7 +420,9 @@ public class BufferPool {
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         int tableId = t.getRecordId().getPageId().getTableId();
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        DbFile table = Database.getCatalog().getDbFile(tableId);
+        // 删除之后元组就没有RecordId了，先删索引项
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) index.delete(tid, t);
         Page dirtyPage = table.deleteTuple(tid, t);
         dirtyPage.markDirty(true, tid);
     }
@@ -245,9 +450,7 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for lab1
-        // TODO
+        pageCache.remove(pid);
     }
 
     /**
@@ -257,10 +460,51 @@ public class BufferPool {
      */
     private synchronized  void flushPage(Page page) throws IOException {
         // some code goes here
-        HeapPage dirtyPage = (HeapPage) page;
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(page.getId().getTableId());
-        table.writePage(dirtyPage); /* 使用table把脏页数据写到磁盘上，然后标记为干净页 */
-        dirtyPage.markDirty(false, null);
+        DbFile table = Database.getCatalog().getDbFile(page.getId().getTableId());
+        table.writePage(page); /* 使用table把脏页数据写到磁盘上，然后标记为干净页 */
+        page.markDirty(false, null);
+        flushCount++;
+    }
+
+    /**
+     * @return the ids of the pages in this buffer pool, most recently used
+     *         first; dumped by {@link PageWarmer} so a restart can load them back
+     */
+    public List<PageId> getResidentPageIds() {
+        return pageCache.keys();
+    }
+
+    /**
+     * @return a stamp that changes whenever a page is written to disk, to be
+     *         passed to {@link #warm} along with pages read after taking it
+     */
+    long getFlushStamp() {
+        return flushCount;
+    }
+
+    /**
+     * Add pages read from disk by the warm-up, without locks and without
+     * evicting anything. Pages that are already cached are skipped. If some
+     * page was flushed since stamp was taken, the given images may be stale,
+     * and each page is read again instead.
+     *
+     * @return the number of pages that are now cached, counted from the
+     *         start of pages; fewer than pages.size() if the pool filled up
+     */
+    synchronized int warm(List<Page> pages, long stamp) {
+        int n = 0;
+        for (Page p : pages) {
+            PageId pid = p.getId();
+            if (pageCache.isCached(pid)) {
+                n++;
+                continue;
+            }
+            // 读的时候有页被刷盘，磁盘上的内容可能更新了
+            if (stamp != flushCount) p = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+            if (!pageCache.putIfRoom(pid, p)) break;
+            n++;
+        }
+        return n;
     }
 
     /**
@@ -0,0 +1,21 @@
+package simpleDatabase.cache;
+
+/**
+ * A DbFile that can read a run of consecutive pages with one large sequential
+ * read, instead of one random read per page. Used to warm up the BufferPool.
+ *
+ * 可以一次顺序读入连续多个页的DbFile
+ *
+ * @see PageWarmer
+ */
+public interface BulkReadDbFile extends DbFile {
+
+    /**
+     * Read pages firstPgNo, firstPgNo + 1, ... firstPgNo + count - 1 from
+     * disk. Like {@link #readPage}, this should only be called by the
+     * BufferPool.
+     *
+     * @return the pages in page number order
+     */
+    public Page[] readPages(int firstPgNo, int count);
+}
@@ -0,0 +1,195 @@
+package simpleDatabase.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CompressedPageStore keeps the pages of a compressed HeapFile. Every page is
+ * compressed with {@link PageCompressor} on write, so pages take a different
+ * number of bytes on disk and are located through a page-offset map.
+ * <p>
+ * The map is a sidecar file (the data file name plus ".map") with one entry per
+ * page:
+ * <pre>
+ *   [offset:long][length:int][capacity:int]
+ * </pre>
+ * A page is rewritten in place when its new image fits in its capacity, and is
+ * otherwise moved to a free extent or the end of the data file with some slack,
+ * so a page that grows by a few bytes does not move again. Pages that do not
+ * compress are stored raw, with length equal to the page size.
+ * <p>
+ * The extents left behind by moved pages are kept in memory and reused; when the
+ * file is opened they are found again as the gaps between the pages in the map.
+ *
+ * 压缩页的存储，页在数据文件中的位置记录在 .map 文件里
+ */
+class CompressedPageStore {
+
+    private static final int ENTRY_SIZE = 16;
+
+    /* 新分配的空间按这个粒度向上取整，留一些余量 */
+    private static final int ALIGNMENT = 256;
+
+    private final File dataFile;
+
+    private final File mapFile;
+
+    private long[] offsets;
+
+    private int[] lengths;
+
+    private int[] capacities;
+
+    private int numPages;
+
+    /* 数据文件的末尾，新的页从这里追加 */
+    private long end;
+
+    /* 没有页使用的区间，起始位置 -> 长度，相邻的区间会合并 */
+    private final TreeMap<Long, Integer> freeExtents = new TreeMap<>();
+
+    CompressedPageStore(File dataFile) {
+        this.dataFile = dataFile;
+        this.mapFile = new File(dataFile.getPath() + ".map");
+        numPages = (int) (mapFile.length() / ENTRY_SIZE);
+        offsets = new long[Math.max(numPages, 16)];
+        lengths = new int[offsets.length];
+        capacities = new int[offsets.length];
+        if (numPages == 0) return;
+        try (RandomAccessFile raf = new RandomAccessFile(mapFile, "r")) {
+            for (int i = 0; i < numPages; i++) {
+                offsets[i] = raf.readLong();
+                lengths[i] = raf.readInt();
+                capacities[i] = raf.readInt();
+                end = Math.max(end, offsets[i] + capacities[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot read page map " + mapFile, e);
+        }
+        // 页之间的空隙就是空闲区间
+        Integer[] byOffset = new Integer[numPages];
+        for (int i = 0; i < numPages; i++) byOffset[i] = i;
+        Arrays.sort(byOffset, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(offsets[a], offsets[b]);
+            }
+        });
+        long pos = 0;
+        for (int i : byOffset) {
+            if (capacities[i] == 0) continue;
+            if (offsets[i] > pos) release(pos, (int) (offsets[i] - pos));
+            pos = offsets[i] + capacities[i];
+        }
+    }
+
+    synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the uncompressed image of page pgNo
+     */
+    synchronized byte[] read(int pgNo, int pageSize) throws IOException {
+        byte[] page = new byte[pageSize];
+        if (pgNo >= numPages || lengths[pgNo] == 0) return page; /* 还没写过的页是空页 */
+        byte[] stored = new byte[lengths[pgNo]];
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+            raf.seek(offsets[pgNo]);
+            raf.readFully(stored);
+        }
+        if (stored.length == pageSize) return stored;
+        if (PageCompressor.decompress(stored, stored.length, page) != pageSize)
+            throw new IOException("corrupted compressed page " + pgNo + " in " + dataFile);
+        return page;
+    }
+
+    /**
+     * Compress and store the image of page pgNo, adding it to the map if it is new.
+     */
+    synchronized void write(int pgNo, byte[] page) throws IOException {
+        byte[] stored = PageCompressor.compress(page, page.length);
+        if (stored.length >= page.length) stored = page; /* 压缩不了就存原样 */
+
+        if (pgNo >= numPages) {
+            ensureCapacity(pgNo + 1);
+            numPages = pgNo + 1;
+        }
+        long offset = offsets[pgNo];
+        int capacity = capacities[pgNo];
+        boolean moved = stored.length > capacity;
+        if (moved) {
+            // 至少扩大一半，反复增长的页不会每次都搬家
+            int size = Math.max(stored.length, capacity + capacity / 2);
+            capacity = Math.min((size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT, page.length);
+            // 旧的位置等新的map写完才释放，不会被这次写入覆盖
+            offset = allocate(capacity);
+        }
+
+        // 先写数据再写map，写数据时旧的位置上的页还是完整的
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+                raf.seek(offset);
+                raf.write(stored);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(mapFile, "rw")) {
+                raf.seek((long) pgNo * ENTRY_SIZE);
+                raf.writeLong(offset);
+                raf.writeInt(stored.length);
+                raf.writeInt(capacity);
+            }
+        } catch (IOException e) {
+            if (moved) release(offset, capacity);
+            throw e;
+        }
+        if (moved && capacities[pgNo] > 0) release(offsets[pgNo], capacities[pgNo]);
+        offsets[pgNo] = offset;
+        lengths[pgNo] = stored.length;
+        capacities[pgNo] = capacity;
+    }
+
+    /**
+     * @return the offset of a free extent of size bytes, taken from the free
+     *         extents if one is large enough, otherwise from the end of the file
+     */
+    private long allocate(int size) {
+        for (Map.Entry<Long, Integer> e : freeExtents.entrySet()) {
+            long offset = e.getKey();
+            int free = e.getValue();
+            if (free < size) continue;
+            freeExtents.remove(offset);
+            if (free > size) freeExtents.put(offset + size, free - size);
+            return offset;
+        }
+        long offset = end;
+        end += size;
+        return offset;
+    }
+
+    private void release(long offset, int size) {
+        Map.Entry<Long, Integer> next = freeExtents.ceilingEntry(offset);
+        if (next != null && next.getKey() == offset + size) {
+            freeExtents.remove(next.getKey());
+            size += next.getValue();
+        }
+        Map.Entry<Long, Integer> prev = freeExtents.lowerEntry(offset);
+        if (prev != null && prev.getKey() + prev.getValue() == offset) {
+            offset = prev.getKey();
+            size += prev.getValue();
+        }
+        freeExtents.put(offset, size);
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= offsets.length) return;
+        int size = Math.max(n, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, size);
+        lengths = Arrays.copyOf(lengths, size);
+        capacities = Arrays.copyOf(capacities, size);
+    }
+}
@@ -99,4 +99,18 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of pages in this DbFile, used by the optimizer to
+     * estimate the cost of a scan.
+     */
+    public int numPages();
+
+    /**
+     * Returns the size in bytes of the pages of this DbFile. Tables may use
+     * different page sizes, the BufferPool charges each cached page its size.
+     *
+     * @see Catalog#getPageSize
+     */
+    public int getPageSize();
 }
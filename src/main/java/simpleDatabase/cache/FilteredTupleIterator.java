@@ -0,0 +1,120 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.field.Field;
+import simpleDatabase.operator.Predicate;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the used slots of a page that decodes fields straight from the
+ * page bytes. The fields referenced by the filters are decoded first; a Tuple is
+ * only built for rows that pass every filter, and only the requested fields (plus
+ * the ones the filters already decoded) are set in it.
+ *
+ * 先解码过滤条件用到的field，通过之后才创建Tuple，并且只解码需要的列
+ */
+abstract class FilteredTupleIterator implements Iterator<Tuple> {
+
+    private final HeapPageId pid;
+
+    private final TupleDesc td;
+
+    private final List<Predicate> filters;
+
+    private final int[] fields;
+
+    /* 过滤时已经解码的field，避免投影时再解码一次 */
+    private final Field[] decoded;
+
+    private int slot = 0;
+
+    private Tuple next;
+
+    FilteredTupleIterator(HeapPageId pid, TupleDesc td, List<Predicate> filters, int[] fields) {
+        this.pid = pid;
+        this.td = td;
+        this.filters = filters;
+        this.fields = fields;
+        this.decoded = new Field[td.numFields()];
+    }
+
+    /**
+     * @return the first used slot at or after from, or -1 if there is none
+     */
+    abstract int nextUsedSlot(int from);
+
+    /**
+     * Called once for a used slot before any of its fields are decoded.
+     */
+    void seek(int slot) {
+    }
+
+    abstract Field decodeField(int slot, int field);
+
+    /**
+     * @return whether f, decoded from the page, satisfies p
+     */
+    boolean matches(Predicate p, Field f) {
+        return f.compare(p.getOp(), p.getOperand());
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && slot != -1) {
+            int s = nextUsedSlot(slot);
+            slot = s == -1 ? -1 : s + 1;
+            if (s != -1) next = readSlot(s);
+        }
+        return next != null;
+    }
+
+    @Override
+    public Tuple next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the tuple in slot s, or null if it is rejected by a filter
+     */
+    private Tuple readSlot(int s) {
+        seek(s);
+        boolean pass = true;
+        if (filters != null) {
+            for (int i = 0; i < filters.size() && pass; ++i) {
+                Predicate p = filters.get(i);
+                Field f = decoded[p.getIdx()];
+                if (f == null) f = decoded[p.getIdx()] = decodeField(s, p.getIdx());
+                pass = matches(p, f);
+            }
+        }
+        Tuple t = null;
+        if (pass) {
+            t = new Tuple(td);
+            if (fields == null) {
+                for (int i = 0; i < td.numFields(); ++i) t.setField(i, field(s, i));
+            } else {
+                for (int i : fields) t.setField(i, field(s, i));
+                // 过滤用到的列已经解码了，一并放进去
+                for (int i = 0; i < decoded.length; ++i)
+                    if (decoded[i] != null) t.setField(i, decoded[i]);
+            }
+            t.setRecordId(new RecordId(pid, s));
+        }
+        for (int i = 0; i < decoded.length; ++i) decoded[i] = null;
+        return t;
+    }
+
+    private Field field(int s, int i) {
+        return decoded[i] != null ? decoded[i] : decodeField(s, i);
+    }
+}
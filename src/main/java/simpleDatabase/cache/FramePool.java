@@ -0,0 +1,126 @@
+package simpleDatabase.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * FramePool hands out page frames carved from large slabs of direct memory, so
+ * the bytes of cached pages live outside the Java heap. A page that uses a
+ * frame is only a small object on the heap, and the heap no longer grows with
+ * the size of the BufferPool.
+ * <p>
+ * Frames belong to the frames of the BufferPool: a page is moved into a frame
+ * when it is cached and the frame is given back when the page is evicted,
+ * discarded or replaced, see {@link FramedPage}. Freed frames are kept per size
+ * and reused by pages of the same size. Each size carves its own slabs, so the
+ * end of a slab is never left unused when a page of another size comes along.
+ * <p>
+ * The pool never reserves more than its capacity, the byte capacity of the
+ * BufferPool; a page that gets no frame simply stays on the heap.
+ *
+ * 堆外的页帧，和缓存的帧一一对应，页离开缓存时帧立刻回收
+ *
+ * @see BufferPool#BufferPool(int, boolean)
+ */
+public class FramePool {
+
+    /** Size of the direct buffers frames are carved from */
+    static final int SLAB_SIZE = 16 << 20;
+
+    /* 每种帧大小各自的slab，剩下的空间留给同样大小的帧 */
+    private final HashMap<Integer, ByteBuffer> slabs = new HashMap<>();
+
+    /* 按帧大小分类的空闲帧 */
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+
+    private long capacity;
+
+    private long reservedBytes;
+
+    private int framesInUse;
+
+    /**
+     * @param capacity the number of bytes of direct memory this pool may reserve
+     */
+    public FramePool(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Change the number of bytes this pool may reserve. Memory already reserved
+     * is kept, the pool just stops growing until it fits again.
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return a frame of size bytes, or null if the pool is at its capacity and
+     *         has no free frame of that size; its content is undefined
+     */
+    public synchronized ByteBuffer allocate(int size) {
+        ArrayDeque<ByteBuffer> frames = free.get(size);
+        ByteBuffer frame = frames == null ? null : frames.poll();
+        if (frame == null) frame = carve(size);
+        if (frame != null) framesInUse++;
+        return frame;
+    }
+
+    /**
+     * Give a frame from {@link #allocate} back to the pool.
+     */
+    public synchronized void release(ByteBuffer frame) {
+        ArrayDeque<ByteBuffer> frames = free.get(frame.capacity());
+        if (frames == null) free.put(frame.capacity(), frames = new ArrayDeque<>());
+        frames.push(frame);
+        framesInUse--;
+    }
+
+    /**
+     * Move page into a frame of size bytes, if one is left.
+     */
+    void attach(FramedPage page, int size) {
+        ByteBuffer frame = allocate(size);
+        if (frame != null) page.moveTo(frame);
+    }
+
+    /**
+     * Move page back to the heap and give its frame back.
+     */
+    void detach(FramedPage page) {
+        ByteBuffer frame = page.moveToHeap();
+        if (frame != null) release(frame);
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved by this pool
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @return the number of frames handed out and not released yet
+     */
+    public synchronized int numFramesInUse() {
+        return framesInUse;
+    }
+
+    private ByteBuffer carve(int size) {
+        ByteBuffer slab = slabs.get(size);
+        if (slab == null || slab.remaining() < size) {
+            // slab的大小是帧大小的整数倍，不会剩下零头
+            long slabSize = Math.min(Math.max(SLAB_SIZE / size, 1) * (long) size,
+                    (capacity - reservedBytes) / size * size);
+            if (slabSize < size) return null;
+            slab = ByteBuffer.allocateDirect((int) slabSize);
+            slabs.put(size, slab);
+            reservedBytes += slabSize;
+        }
+        ByteBuffer frame = slab.duplicate();
+        frame.limit(slab.position() + size);
+        slab.position(slab.position() + size);
+        return frame.slice();
+    }
+}
@@ -0,0 +1,27 @@
+package simpleDatabase.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A page whose bytes can live in a frame of the {@link FramePool} while it is
+ * cached. A page starts on the heap; the BufferPool moves it into a direct frame
+ * when it caches the page and back to the heap when the page leaves the cache,
+ * so the page object stays usable after it was evicted.
+ *
+ * 被缓存时页的字节放在堆外的帧里，离开缓存时拷回堆上
+ *
+ * @see PageLruCache
+ */
+interface FramedPage extends Page {
+
+    /**
+     * Copy the bytes of this page into frame, which holds the page from now on.
+     */
+    void moveTo(ByteBuffer frame);
+
+    /**
+     * Copy the bytes of this page back to the heap.
+     * @return the frame the page was in, null if it was on the heap already
+     */
+    ByteBuffer moveToHeap();
+}
@@ -4,15 +4,18 @@ import simpleDatabase.basic.Database;
 import simpleDatabase.basic.Permissions;
 import simpleDatabase.exception.DbException;
 import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.StringField;
 import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
 import simpleDatabase.tx.TransactionId;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
 
 /**
  * finished
@@ -28,14 +31,40 @@ import java.util.NoSuchElementException;
  *
  * tuples存储在pages中， HeapFile则是HeapPages的集合
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements PushdownDbFile, BulkReadDbFile, LookupDbFile {
+
+    /**
+     * How the pages of a HeapFile lay out their tuples.
+     * FIXED uses {@link HeapPage}, SLOTTED uses {@link SlottedHeapPage}.
+     */
+    public enum PageFormat { FIXED, SLOTTED }
 
     private File file;
 
-    private int numPage;
+    private final PageFormat format;
+
+    /* SLOTTED格式下存放长字符串的溢出页文件, FIXED格式为null */
+    private final OverflowFile overflow;
+
+    /* 页压缩存放时的页存储，不压缩为null */
+    private final CompressedPageStore compressed;
+
+    /* 不压缩时页存放在这些段文件里 */
+    private final SegmentedFile segments;
+
+    private volatile int numPage;
+
+    /* 这张表每页的字节数 */
+    private final int pageSize;
 
     private TupleDesc tupleDesc;
 
+    /* 每页int列的最小最大值，用来在过滤扫描中跳页 */
+    private final ZoneMap zoneMap;
+
+    /* 同时进行的扫描共享读盘 */
+    private final ScanGroup scanGroup = new ScanGroup(this);
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -43,11 +72,72 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
-        // some code goes here
+        this(f, td, PageFormat.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages use the
+     * given format.
+     */
+    public HeapFile(File f, TupleDesc td, PageFormat format) {
+        this(f, td, format, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages use the
+     * given format. If compress is true, pages are compressed when they are
+     * written and located through a page-offset map, see {@link CompressedPageStore}.
+     */
+    public HeapFile(File f, TupleDesc td, PageFormat format, boolean compress) {
+        this(f, td, format, compress, BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages use the
+     * given format and are pageSize bytes long. Large pages suit tables that
+     * are mostly scanned, small pages tables that are updated row by row.
+     *
+     * @throws IllegalArgumentException if a page of pageSize bytes cannot hold
+     *         a tuple, or pageSize is too large for the SLOTTED format
+     */
+    public HeapFile(File f, TupleDesc td, PageFormat format, boolean compress, int pageSize) {
+        if (pageSize * 8 < td.getSize() * 8 + 1)
+            throw new IllegalArgumentException("page size " + pageSize + " cannot hold a tuple of " + td);
+        // slotted页的目录用u16记录偏移
+        if (format == PageFormat.SLOTTED && pageSize > SlottedHeapPage.MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("slotted pages cannot exceed " + SlottedHeapPage.MAX_PAGE_SIZE + " bytes");
         file = f;
-        // 根据偏移量计算对应的页数
-        numPage = (int) (file.length() / BufferPool.DEFAULT_PAGE_SIZE);
+        this.pageSize = pageSize;
+        compressed = compress ? new CompressedPageStore(f) : null;
+        segments = compress ? null : new SegmentedFile(f, pageSize);
+        // 根据所有段文件的长度计算对应的页数
+        numPage = compress ? compressed.numPages() : segments.numPages();
         tupleDesc = td;
+        this.format = format;
+        zoneMap = new ZoneMap(td);
+        overflow = format == PageFormat.SLOTTED ? new OverflowFile(new File(f.getPath() + ".ovf"), getId(), pageSize) : null;
+    }
+
+    /**
+     * @return the page format of this file
+     */
+    public PageFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return true if the pages of this file are stored compressed
+     */
+    public boolean isCompressed() {
+        return compressed != null;
+    }
+
+    /**
+     * Build a page of this file's format from raw page bytes.
+     */
+    private TuplePage createPage(HeapPageId pid, byte[] data) throws IOException {
+        if (format == PageFormat.SLOTTED) return new SlottedHeapPage(pid, data);
+        return new HeapPage(pid, data);
     }
 
     /**
@@ -93,35 +183,63 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         // some code goes here
         if (pid.getTableId() != getId()) throw new IllegalArgumentException();
+        if (pid instanceof OverflowPageId) return overflow.readPage((OverflowPageId) pid);
 
         Page page = null;
-        byte[] data = new byte[BufferPool.DEFAULT_PAGE_SIZE];
-
-        // RandomAccessFile 可以随机读取
-        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r")) {
-            int pos = pid.getPageNumber() * BufferPool.DEFAULT_PAGE_SIZE;
-            raf.seek(pos);
-            raf.read(data, 0, data.length);
-            page = new HeapPage((HeapPageId) pid, data);
-            raf.close();
+        if (compressed != null) {
+            try {
+                return createPage((HeapPageId) pid, compressed.read(pid.getPageNumber(), pageSize));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+        byte[] data = new byte[pageSize];
+
+        try {
+            segments.read(pid.getPageNumber(), data);
+            page = createPage((HeapPageId) pid, data);
         } catch (IOException e) {
             e.printStackTrace();
         }
         return page;
     }
 
+    // see BulkReadDbFile.java for javaDocs
+    public Page[] readPages(int firstPgNo, int count) {
+        Page[] pages = new Page[count];
+        if (compressed != null) { /* 压缩页长短不一，只能逐页读 */
+            for (int i = 0; i < count; i++) pages[i] = readPage(new HeapPageId(getId(), firstPgNo + i));
+            return pages;
+        }
+        byte[] data = new byte[count * pageSize];
+        try {
+            segments.read(firstPgNo, count, data);
+            for (int i = 0; i < count; i++)
+                pages[i] = createPage(new HeapPageId(getId(), firstPgNo + i),
+                        Arrays.copyOfRange(data, i * pageSize, (i + 1) * pageSize));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return pages;
+    }
+
     // see DbFile.java for javaDocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.seek(page.getId().getPageNumber() * BufferPool.DEFAULT_PAGE_SIZE);
-            byte[] data = page.getPageData();
-            raf.write(data);
-            raf.close();
+        if (page.getId() instanceof OverflowPageId) {
+            overflow.writePage(page);
+            return;
+        }
+        try {
+            if (compressed != null) compressed.write(page.getId().getPageNumber(), page.getPageData());
+            else segments.write(page.getId().getPageNumber(), page.getPageData());
         } catch (IOException e) {
             e.printStackTrace();
         }
+        // 写回磁盘的页都是已提交的内容，可以算出准确的范围
+        zoneMap.reset((TuplePage) page);
     }
 
     /**
@@ -132,58 +250,157 @@ public class HeapFile implements DbFile {
         return numPage;
     }
 
+    // see DbFile.java for javaDocs
+    public int getPageSize() {
+        return pageSize;
+    }
+
     // see DbFile.java for javaDocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // TODO about transaction
         ArrayList<Page> dirtyPages = new ArrayList<>();
-        for (int i = 0; i < numPages(); ++i) {
-            HeapPageId hPId = new HeapPageId(getId(), i);
-            HeapPage heapPage = null;
-            try {
-                heapPage = (HeapPage) Database.getBufferPool().getPage(tid, hPId, Permissions.READ_WRITE);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            if (heapPage.getNumEmptySlots() != 0) {
-                heapPage.insertTuple(t); /* 还有空的位置能放入 */
-                heapPage.markDirty(true, tid);
-                dirtyPages.add(heapPage);
-                break;
+        Tuple stored = overflow == null ? t : spillLongStrings(tid, t, dirtyPages);
+        TuplePage target = null;
+        for (int i = 0; i < numPages() && target == null; ++i)
+            target = insertInto(tid, new HeapPageId(getId(), i), stored); /* 还有空的位置能放入 */
+        // 说明pages已经满了；新页可能先被别的线程填满，那就再加一页
+        while (target == null) target = insertInto(tid, appendPage(), stored);
+        dirtyPages.add(target);
+        t.setRecordId(stored.getRecordId());
+        return dirtyPages;
+    }
+
+    /**
+     * Add an empty page at the end of the file. The page is on disk before
+     * numPages() counts it, and threads appending at the same time get
+     * different pages.
+     * @return the id of the new page
+     */
+    private synchronized HeapPageId appendPage() throws IOException {
+        HeapPageId newPid = new HeapPageId(getId(), numPage);
+        writePage(createPage(newPid, HeapPage.createEmptyPageData(pageSize)));
+        numPage++;
+        return newPid;
+    }
+
+    /**
+     * Insert t into page pid if it has room, with the page pinned and its latch
+     * held exclusively, so the check and the insert see the same page.
+     * @return the page, or null if it has no room for t
+     */
+    private TuplePage insertInto(TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        TuplePage page = (TuplePage) pinPage(tid, pid, Permissions.READ_WRITE);
+        Lock latch = pool.getLatch(pid).writeLock();
+        latch.lock();
+        try {
+            if (!page.hasRoomFor(t)) return null;
+            page.insertTuple(t);
+            page.markDirty(true, tid);
+            zoneMap.add(pid.getPageNumber(), t);
+            return page;
+        } finally {
+            latch.unlock();
+            pool.unpinPage(pid);
+        }
+    }
+
+    // see LookupDbFile.java for javaDocs
+    public Tuple getTuple(TransactionId tid, RecordId rid) throws DbException, TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        if (!(pid instanceof HeapPageId) || pid.getTableId() != getId() || pid.getPageNumber() >= numPages())
+            return null;
+        BufferPool pool = Database.getBufferPool();
+        TuplePage page = (TuplePage) pinPage(tid, (HeapPageId) pid, Permissions.READ_ONLY);
+        Lock latch = pool.getLatch(pid).readLock();
+        latch.lock();
+        Tuple t;
+        try {
+            t = page.getTuple(rid.getTupleNumber());
+        } catch (NoSuchElementException e) {
+            return null;
+        } finally {
+            latch.unlock();
+            pool.unpinPage(pid);
+        }
+        return readLongStrings(tid, t);
+    }
+
+    private Page pinPage(TransactionId tid, HeapPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        try {
+            return Database.getBufferPool().pinPage(tid, pid, perm);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Move the strings of t that are too long to stay inline into overflow chains.
+     * @return t itself if nothing had to move, otherwise a copy of t whose long
+     *         strings are replaced by OverflowStringFields
+     */
+    private Tuple spillLongStrings(TransactionId tid, Tuple t, ArrayList<Page> dirtyPages)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple stored = t;
+        for (int i = 0; i < tupleDesc.numFields(); ++i) {
+            if (!(t.getField(i) instanceof StringField)) continue;
+            String s = ((StringField) t.getField(i)).getValue();
+            if (s.length() <= SlottedHeapPage.INLINE_STRING_LEN) continue;
+            if (stored == t) {
+                stored = new Tuple(tupleDesc);
+                for (int j = 0; j < tupleDesc.numFields(); ++j) stored.setField(j, t.getField(j));
             }
+            int firstPage = overflow.write(tid, s, dirtyPages);
+            stored.setField(i, new OverflowStringField(s.substring(0, SlottedHeapPage.OVERFLOW_PREFIX_LEN), s.length(), firstPage));
         }
-        if (dirtyPages.size() == 0) { /* 说明pages已经满了 */
-            HeapPageId newPid = new HeapPageId(getId(), numPages());
-            HeapPage blankPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
-            numPage++;
-            writePage(blankPage);
-            HeapPage newPage = null;
-            try {
-                newPage = (HeapPage) Database.getBufferPool().getPage(tid, newPid, Permissions.READ_WRITE);
-            } catch (InterruptedException e) { e.printStackTrace(); }
-            newPage.insertTuple(t);
-            newPage.markDirty(true, tid);
-            dirtyPages.add(newPage);
+        return stored;
+    }
+
+    /**
+     * Replace the OverflowStringFields of a tuple read from a page by the full strings.
+     */
+    private Tuple readLongStrings(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        if (overflow == null) return t;
+        for (int i = 0; i < tupleDesc.numFields(); ++i) {
+            if (t.getField(i) instanceof OverflowStringField) {
+                OverflowStringField f = (OverflowStringField) t.getField(i);
+                String s = overflow.read(tid, f.getFirstPage(), f.getTotalLength());
+                t.setField(i, new StringField(s));
+            }
         }
-        return dirtyPages;
+        return t;
     }
 
     // see DbFile.java for javaDocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         // some code goes here
         PageId pid = t.getRecordId().getPageId();
-        HeapPage dirtyPage = null;
+        TuplePage dirtyPage = null;
         for (int i = 0; i < numPages(); ++i) {
             if (i == pid.getPageNumber()) {
+                BufferPool pool = Database.getBufferPool();
+                dirtyPage = (TuplePage) pinPage(tid, (HeapPageId) pid, Permissions.READ_WRITE);
+                Lock latch = pool.getLatch(pid).writeLock();
+                latch.lock();
+                Tuple stored;
                 try {
-                    dirtyPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    stored = overflow == null ? null
+                            : ((SlottedHeapPage) dirtyPage).getTuple(t.getRecordId().getTupleNumber());
+                    dirtyPage.deleteTuple(t);
+                    dirtyPage.markDirty(true, tid);
+                } finally {
+                    latch.unlock();
+                    pool.unpinPage(pid);
                 }
-                dirtyPage.deleteTuple(t);
-                dirtyPage.markDirty(true, tid);
+                // 被删除的长字符串所占的溢出页放回空闲链表
+                for (int j = 0; stored != null && j < tupleDesc.numFields(); ++j)
+                    if (stored.getField(j) instanceof OverflowStringField)
+                        overflow.free(tid, ((OverflowStringField) stored.getField(j)).getFirstPage());
             }
         }
         if (dirtyPage == null) throw new DbException("tuple " + t + " is not int the table");
@@ -194,53 +411,102 @@ public class HeapFile implements DbFile {
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
 
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, null, null);
+    }
+
+    // see PushdownDbFile.java for javaDocs
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> filters, int[] fields) {
+        for (Predicate p : filters)
+            if (p.getIdx() < 0 || p.getIdx() >= tupleDesc.numFields())
+                throw new IllegalArgumentException("no field " + p.getIdx() + " in " + tupleDesc);
+        return new HeapFileIterator(tid, filters, fields);
     }
 
     private class HeapFileIterator implements DbFileIterator {
 
-        private int pagePos;
+        /* 给出要读的页号，从扫描组当前的位置开始 */
+        private ScanGroup.Cursor pages;
 
-        private Iterator<Tuple> tuplesInPage;
+        /* 当前页的元组，页在读完之前一直pin着 */
+        private PinnedPageIterator tuplesInPage;
+
+        private Tuple nextTuple;
 
         private TransactionId tid;
 
-        public HeapFileIterator(TransactionId tid) {
+        private final List<Predicate> filters;
+
+        private final int[] fields;
+
+        public HeapFileIterator(TransactionId tid, List<Predicate> filters, int[] fields) {
             this.tid = tid;
+            this.filters = filters;
+            this.fields = fields;
         }
 
-        public Iterator<Tuple> getTuplesInPage(HeapPageId pid) throws TransactionAbortedException, DbException {
-            HeapPage page = null;
+        /**
+         * Iterate over the tuples of a page that pass the filters. The page stays
+         * pinned, so it is not evicted, until its tuples are all read, and they
+         * are decoded one at a time with the page latched shared.
+         */
+        public PinnedPageIterator getTuplesInPage(HeapPageId pid) throws TransactionAbortedException, DbException {
+            BufferPool pool = Database.getBufferPool();
+            TuplePage page = (TuplePage) pinPage(tid, pid, Permissions.READ_ONLY);
+            Lock latch = pool.getLatch(pid).readLock();
+            latch.lock();
             try {
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                // 没有被修改过的页和磁盘上的一致，顺便算出它的范围
+                if (page.isDirty() == null && zoneMap.isUnknown(pid.getPageNumber())) zoneMap.reset(page);
+            } catch (RuntimeException e) {
+                pool.unpinPage(pid);
+                throw e;
+            } finally {
+                latch.unlock();
             }
-            return page.iterator();
+            return new PinnedPageIterator(pid, page.iterator(filters, fields));
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            pagePos = 0;
-            HeapPageId pid = new HeapPageId(getId(), pagePos);
-            tuplesInPage = getTuplesInPage(pid);
+            close();
+            pages = scanGroup.join();
         }
 
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
-            if (tuplesInPage == null) return false; /* 已经关闭了 */
-            if (tuplesInPage.hasNext()) return true; /* 表示当前页还有没有被遍历玩的 */
-            if (pagePos < numPages() - 1) {
-                HeapPageId pid = new HeapPageId(getId(), ++pagePos);
-                tuplesInPage = getTuplesInPage(pid);
-                return tuplesInPage.hasNext();
-            } else return false;
+            if (pages == null) return false; /* 已经关闭了 */
+            while (nextTuple == null) {
+                if (tuplesInPage != null && tuplesInPage.hasNext()) { /* 表示当前页还有没有被遍历玩的 */
+                    Tuple t = readLongStrings(tid, tuplesInPage.next());
+                    if (passes(t)) nextTuple = t;
+                } else { /* 被过滤掉的页可能一个都不剩，继续下一页 */
+                    int pgNo = pages.next();
+                    if (pgNo < 0) return false;
+                    // 范围不满足过滤条件的页不用从BufferPool取出来
+                    if (!zoneMap.mayMatch(pgNo, filters)) continue;
+                    tuplesInPage = getTuplesInPage(new HeapPageId(getId(), pgNo));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Pages can only judge the inline prefix of a long string, so the filters
+         * are checked again once the overflowed strings are read back.
+         */
+        private boolean passes(Tuple t) {
+            if (overflow == null || filters == null) return true;
+            for (Predicate p : filters)
+                if (!p.filter(t)) return false;
+            return true;
         }
 
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
             if (!hasNext()) throw new NoSuchElementException("no tuple left");
-            return tuplesInPage.next();
+            Tuple t = nextTuple;
+            nextTuple = null;
+            return t;
         }
 
         @Override
@@ -250,9 +516,12 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
-            pagePos = 0;
+            if (pages != null) pages.close();
+            pages = null;
+            if (tuplesInPage != null) tuplesInPage.close();
             tuplesInPage = null;
+            nextTuple = null;
         }
     }
 
-}
\ No newline at end of file
+}
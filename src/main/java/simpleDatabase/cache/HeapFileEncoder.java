@@ -2,9 +2,14 @@ package simpleDatabase.cache;
 
 import simpleDatabase.basic.Type;
 import simpleDatabase.basic.Utility;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -107,7 +112,8 @@ public class HeapFileEncoder {
     int nheaderbits = nheaderbytes * 8;
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
+    // 按段写出，超过一个段大小的表会写到 outFile.1, outFile.2 ...
+    OutputStream os = new BufferedOutputStream(new SegmentedFile(outFile, npagebytes).openForWrite());
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -169,6 +175,9 @@ public class HeapFileEncoder {
             done = true;
             
         } else {
+            // 长字符串放不下就把缓冲区加倍，写到定长页时再截断
+            if (curpos == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
             buf[curpos++] = (char)c;
             continue;
         }
@@ -225,4 +234,118 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Convert the specified input text file into a binary page file laid out
+   * as SlottedHeapPages, see {@link #convert(File, File, int, int, Type[], char)}
+   * for the format of the input file.
+   * <p>
+   * Unlike the fixed layout, strings are kept whole. The ones too long to stay in
+   * the record are written as overflow chains into outFile.ovf, the way
+   * {@link HeapFile#insertTuple} stores them.
+   *
+   * @see SlottedHeapPage
+   * @see OverflowFile
+   */
+  public static void convertToSlotted(File inFile, File outFile, int npagebytes,
+                                      int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      TupleDesc td = new TupleDesc(typeAr);
+      // 表不进catalog，页里不存表id，随便给一个
+      int tableId = 0;
+      Pattern separator = Pattern.compile(Pattern.quote(String.valueOf(fieldSeparator)));
+
+      try (BufferedReader br = new BufferedReader(new FileReader(inFile));
+           OutputStream os = new BufferedOutputStream(new SegmentedFile(outFile, npagebytes).openForWrite());
+           OutputStream ovf = new BufferedOutputStream(
+                   new SegmentedFile(new File(outFile.getPath() + ".ovf"), npagebytes).openForWrite())) {
+          // 溢出文件的第0页是空闲链表的表头，链从第1页开始往后写
+          ovf.write(new byte[npagebytes]);
+          int ovfPages = 1;
+          int npages = 0;
+          SlottedHeapPage page = new SlottedHeapPage(new HeapPageId(tableId, npages), new byte[npagebytes], td, npagebytes);
+          String line;
+          while ((line = br.readLine()) != null) {
+              if (line.isEmpty())
+                  continue;
+              String[] values = separator.split(line, -1);
+              if (values.length < numFields)
+                  throw new IOException("BAD LINE : " + line);
+              Tuple t = new Tuple(td);
+              for (int i = 0; i < numFields; i++) {
+                  String s = values[i].trim();
+                  if (typeAr[i] == Type.INT_TYPE) {
+                      try {
+                          t.setField(i, new IntField(Integer.parseInt(s)));
+                      } catch (NumberFormatException e) {
+                          throw new IOException("BAD LINE : " + line);
+                      }
+                  } else if (s.length() <= SlottedHeapPage.INLINE_STRING_LEN) {
+                      t.setField(i, new StringField(s));
+                  } else {
+                      t.setField(i, new OverflowStringField(s.substring(0, SlottedHeapPage.OVERFLOW_PREFIX_LEN),
+                              s.length(), ovfPages));
+                      ovfPages = writeOverflowChain(ovf, tableId, ovfPages, s, npagebytes);
+                  }
+              }
+              if (!page.hasRoomFor(t)) {
+                  os.write(page.getPageData());
+                  page = new SlottedHeapPage(new HeapPageId(tableId, ++npages), new byte[npagebytes], td, npagebytes);
+              }
+              page.insertTuple(t);
+          }
+          os.write(page.getPageData());
+      } catch (DbException e) {
+          throw new IOException(e);
+      }
+  }
+
+  /**
+   * Write s as a chain of OverflowPages, the first of which is page first of the
+   * overflow file.
+   * @return the number of the page after the chain
+   */
+  private static int writeOverflowChain(OutputStream ovf, int tableId, int first, String s, int npagebytes)
+      throws IOException {
+      byte[] bytes = new byte[s.length()];
+      for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) s.charAt(i);
+      int capacity = OverflowPage.capacity(npagebytes);
+      int pageNo = first;
+      for (int off = 0; off < bytes.length; off += capacity, pageNo++) {
+          OverflowPage page = new OverflowPage(new OverflowPageId(tableId, pageNo), new byte[npagebytes]);
+          page.setPayload(bytes, off, Math.min(capacity, bytes.length - off));
+          page.setNext(off + capacity < bytes.length ? pageNo + 1 : 0);
+          ovf.write(page.getPageData());
+      }
+      return pageNo;
+  }
+
+  /** Convert the specified input text file into a binary page file laid out
+   * as PaxPages, see {@link #convert(File, File, int, int, Type[], char)} for the
+   * format of the input file.
+   * <p>
+   * The pages are written as HeapPages first and then transcoded one by one,
+   * the number of tuples per page is the same in both layouts.
+   *
+   * @see PaxPage
+   * @see PaxFile
+   */
+  public static void convertToPax(File inFile, File outFile, int npagebytes,
+                                  int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      File tempHeap = File.createTempFile("tempTable", ".dat");
+      tempHeap.deleteOnExit();
+      convert(inFile, tempHeap, npagebytes, numFields, typeAr, fieldSeparator);
+
+      TupleDesc td = new TupleDesc(typeAr);
+      byte[] page = new byte[npagebytes];
+      SegmentedFile heap = new SegmentedFile(tempHeap, npagebytes);
+      try (OutputStream os = new BufferedOutputStream(new SegmentedFile(outFile, npagebytes).openForWrite())) {
+          int npages = heap.numPages();
+          for (int i = 0; i < npages; i++) {
+              heap.read(i, page);
+              os.write(PaxPage.fromHeapPageData(page, td));
+          }
+      }
+      heap.delete();
+  }
 }
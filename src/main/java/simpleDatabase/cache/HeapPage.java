@@ -4,9 +4,11 @@ import simpleDatabase.basic.Catalog;
 import simpleDatabase.basic.Database;
 import simpleDatabase.exception.DbException;
 import simpleDatabase.field.Field;
+import simpleDatabase.operator.Predicate;
 import simpleDatabase.tx.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -24,22 +26,31 @@ import java.util.NoSuchElementException;
  *
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage, FramedPage {
 
     final HeapPageId pid;
 
     final TupleDesc td;
 
-    final byte header[];
+    /* page的原始字节，header和所有slot都直接在这里读写，field按需解码；堆外模式下缓存着的页是一块direct内存 */
+    private volatile ByteBuffer buf;
 
-    final Tuple tuples[];
+    private final int pageSize;
+
+    private final int headerSize;
+
+    /* header的位图，和data里的header同步更新 */
+    private final SlotBitmap slots;
+
+    /* 每个field在一条记录里的偏移 */
+    private final int[] fieldOffsets;
 
     private int numSlots;
 
     private TransactionId lastDirtyOperation;
 
-    /* 保存之前村吃的数据，该page改动前的数据 */
-    byte[] oldData;
+    /* 保存之前村吃的数据，该page改动前的数据；null表示上次setBeforeImage之后还没改过，buf就是改动前的数据 */
+    ByteBuffer oldData;
 
     private final Byte oldDataLock = new Byte((byte)0);
 
@@ -48,38 +59,38 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps data as its backing store and does not parse the tuples
+     * up front; fields are decoded when a tuple is read. The page size is the
+     * one of the table, see {@link Catalog#getPageSize}. If the BufferPool is
+     * off-heap, the page moves into a direct frame while it is cached.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#getPageSize()
+     * @see Catalog#getPageSize
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        int pageSize = Database.getCatalog().getPageSize(id.getTableId());
+        if (data.length != pageSize)
+            throw new IOException("page data must be " + pageSize + " bytes");
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            // page有个头部信息
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.numSlots = getNumTuples(pageSize);
+        this.headerSize = getHeaderSize();
+        this.pageSize = pageSize;
+        this.buf = ByteBuffer.wrap(data);
+        this.slots = new SlotBitmap(numSlots);
+        slots.load(buf, 0);
+
+        fieldOffsets = new int[td.numFields()];
+        for (int i = 1; i < fieldOffsets.length; i++)
+            fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
 
         setBeforeImage();
     }
@@ -87,12 +98,10 @@ public class HeapPage implements Page {
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
-    private int getNumTuples() {        
+    private int getNumTuples(int pageSize) {
         // some code goes here
-        if (numSlots != 0) return numSlots;
         // 每个tupleDesc需要占用1bit的二进制来表示是否存储，只是我暂时的猜想，不确定
-        numSlots = (BufferPool.DEFAULT_PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
-        return numSlots;
+        return (pageSize * 8) / (td.getSize() * 8 + 1);
     }
 
     /**
@@ -101,7 +110,7 @@ public class HeapPage implements Page {
      */
     private int getHeaderSize() {
         // some code goes here
-        return (int) Math.ceil(getNumTuples() / 8.0);
+        return (int) Math.ceil(numSlots / 8.0);
     }
     
     /** TODO Return a view of this page before it was modified
@@ -112,7 +121,11 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage(){
         try {
-            return new HeapPage(pid, oldData);
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = BufferPool.toArray(oldData == null ? buf : oldData);
+            }
+            return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -125,8 +138,22 @@ public class HeapPage implements Page {
 
     /**
      * 设置这个page修改前的数据
+     * The current bytes of the page become its before image. They are only
+     * copied when the page is changed next, so clean pages hold no second copy
+     * of their bytes on the heap.
      */
-    public void setBeforeImage() { oldData = getPageData().clone(); }
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /* 第一次改页之前才把 before image 拷出来 */
+    private void copyBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) oldData = ByteBuffer.wrap(BufferPool.toArray(buf));
+        }
+    }
 
     /**
      * @return the PageId associated with this page.
@@ -137,35 +164,17 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the first byte of slot i in the page
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-        return t;
+    /**
+     * Decode one field of the tuple in slot i straight from the page bytes.
+     */
+    Field getField(int i, int field) {
+        return td.getFieldType(field).parse(buf, slotOffset(i) + fieldOffsets[field]);
     }
 
     /**
@@ -180,56 +189,24 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize(); //4096
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]); // 把bit表示是否使用第i个tuple写入文件头中
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        // header和记录在插入删除时已经写进buf了
+        return BufferPool.toArray(buf);
+    }
 
-        // padding, 剩下的填充0
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) { e.printStackTrace(); }
+    @Override
+    public void moveTo(ByteBuffer frame) {
+        BufferPool.copy(buf, frame);
+        buf = frame;
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) { e.printStackTrace(); }
-        return baos.toByteArray();
+    @Override
+    public ByteBuffer moveToHeap() {
+        ByteBuffer frame = buf;
+        if (!frame.isDirect()) return null;
+        ByteBuffer heap = ByteBuffer.allocate(pageSize);
+        BufferPool.copy(frame, heap);
+        buf = heap;
+        return frame;
     }
 
     /**
@@ -242,8 +219,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * @return an empty page of pageSize bytes, for tables that do not use the
+     *         default page size
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -255,11 +239,15 @@ public class HeapPage implements Page {
      */
     public void deleteTuple(Tuple t) throws DbException {
         RecordId tid = t.getRecordId();
-        HeapPageId hpid = (HeapPageId) tid.getPageId();
-        if (!hpid.equals(pid) || isSlotUsed(tid.getTupleNumber()))
+        if (tid == null || !pid.equals(tid.getPageId()))
+            throw new DbException("this tuple is not on the page, or slot is empty");
+        int i = tid.getTupleNumber();
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
             throw new DbException("this tuple is not on the page, or slot is empty");
-        tuples[tid.getTupleNumber()] = null;
-        markSlotUsed(tid.getTupleNumber(), false);
+        copyBeforeImage();
+        for (int k = slotOffset(i); k < slotOffset(i + 1); k++) buf.put(k, (byte) 0);
+        markSlotUsed(i, false);
+        t.setRecordId(null);
     }
 
     /**
@@ -272,15 +260,22 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         if (!td.equals(t.getTupleDesc())) throw new DbException("tuple Description is mismatch");
 
-        for (int i = 0; i < getNumTuples(); ++i) {
-            if (!isSlotUsed(i)) {
-                tuples[i] = t;
-                t.setRecordId(new RecordId(pid, i));
-                markSlotUsed(i, true);
-                return;
-            }
-        }
-        throw new DbException("the page is full, cannot insert more tuples");
+        int i = slots.nextClearBit(0);
+        if (i == -1) throw new DbException("the page is full, cannot insert more tuples");
+        copyBeforeImage();
+        writeTuple(t, slotOffset(i));
+        t.setRecordId(new RecordId(pid, i));
+        markSlotUsed(i, true);
+    }
+
+    private void writeTuple(Tuple t, int offset) {
+        buf.position(offset);
+        for (int j = 0; j < td.numFields(); j++)
+            t.getField(j).serialize(buf);
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
     }
 
     /**
@@ -303,27 +298,23 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int re = 0;
-        for (int i = 0; i < getNumTuples(); ++i)
-            if (!isSlotUsed(i)) re++;
-        return re;
+        return numSlots - slots.cardinality();
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        int byteNum = i / 8, pos = i % 8; // 从右边往左边计算
-        // JVM使用 big-endian，例如 11110011 表示第 0，1，4，5，6，7位被使用
-        return ((header[byteNum] >> pos) & 1) == 1;
+        // 例如 header 11110011 表示第 0，1，4，5，6，7位被使用
+        return slots.get(i);
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        int byteNum = i / 8, pos = i % 8;
-        header[byteNum] |= ((value == true ? 1 : 0) << pos);
+        slots.set(i, value);
+        buf.put(i / 8, slots.getByte(i / 8));
     }
 
     public static void main(String[] args) {
@@ -345,38 +336,35 @@ public class HeapPage implements Page {
         System.out.println(l);
     }
 
+    public Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new NoSuchElementException("slot " + slot + " is empty");
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); ++i) t.setField(i, getField(slot, i));
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        return new UsedTupleIterator();
+        return iterator(null, null);
     }
 
-    private class UsedTupleIterator implements Iterator<Tuple> {
-
-        private int pos = 0;
-        private int idx = 0;
-        private int usedTupleNum = getNumTuples() - getNumEmptySlots();
-
-        @Override
-        public boolean hasNext() {
-            return idx < getNumTuples() && pos < usedTupleNum;
-        }
-
-        @Override
-        public Tuple next() {
-            if (!hasNext()) throw new NoSuchElementException();
-            for (; !isSlotUsed(idx); ++idx) {}
-            pos++;
-            return tuples[idx++];
-        }
-
-        @Override
-        public void remove() {
+    public Iterator<Tuple> iterator(List<Predicate> filters, int[] fields) {
+        return new FilteredTupleIterator(pid, td, filters, fields) {
+            @Override
+            int nextUsedSlot(int from) {
+                return slots.nextSetBit(from);
+            }
 
-        }
+            @Override
+            Field decodeField(int slot, int field) {
+                return getField(slot, field);
+            }
+        };
     }
 
 }
-
@@ -57,7 +57,8 @@ public class HeapPageId implements PageId {
     public boolean equals(Object o) {
         // some code goes here
         if (o == this) return true;
-        if (o instanceof PageId) {
+        // 溢出页等其他类型的PageId可能有相同的表号和页号，不能算相等
+        if (o instanceof HeapPageId) {
             PageId another = (PageId) o;
             return this.pageNum == another.getPageNumber()
                     && this.tableId == another.getTableId();
@@ -0,0 +1,23 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.tx.TransactionId;
+
+/**
+ * A DbFile that can read a single tuple by its RecordId, without scanning the
+ * page it is on. Used by secondary indexes to fetch the tuples they point to.
+ *
+ * 可以按RecordId直接取出一条记录的DbFile
+ *
+ * @see simpleDatabase.index.SecondaryIndex
+ */
+public interface LookupDbFile extends DbFile {
+
+    /**
+     * Read the tuple stored at rid, locking its page READ_ONLY for tid.
+     *
+     * @return the tuple, or null if rid is not in this file or its slot is empty
+     */
+    public Tuple getTuple(TransactionId tid, RecordId rid) throws DbException, TransactionAbortedException;
+}
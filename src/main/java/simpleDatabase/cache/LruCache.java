@@ -13,6 +13,7 @@ public class LruCache<K, V> {
         Node prev, ne;
         K key;
         V val;
+        long weight; /* 占用的容量 */
 
         Node (K k, V v) {
             this.key = k;
@@ -22,7 +23,10 @@ public class LruCache<K, V> {
 
     protected HashMap<K, Node> cache;
 
-    protected int capacity;
+    /* 容量和已用容量，默认每个元素占1 */
+    protected long capacity;
+
+    protected long used;
 
     protected Node head, tail;
 
@@ -32,10 +36,28 @@ public class LruCache<K, V> {
         head = new Node(null, null);
     }
 
+    /**
+     * Create a cache whose entries are weighed by {@link #weigh}, holding up to
+     * capacity in total weight.
+     */
+    protected LruCache(long capacity) {
+        this.capacity = capacity;
+        cache = new HashMap<>();
+        head = new Node(null, null);
+    }
+
+    /**
+     * @return how much of the capacity an entry takes, 1 unless overridden
+     */
+    protected long weigh(K k, V v) {
+        return 1;
+    }
 
     public void delNode(Node node) {
-        if (node.ne == null) node.prev.ne = null;
-        else {
+        if (node.ne == null) {
+            node.prev.ne = null;
+            tail = node.prev == head ? null : node.prev;
+        } else {
             node.prev.ne = node.ne;
             node.ne.prev = node.prev;
         }
@@ -50,6 +72,17 @@ public class LruCache<K, V> {
         else first.prev = node;
     }
 
+    public void addLast(Node node) {
+        if (tail == null) {
+            addFirst(node);
+            return;
+        }
+        tail.ne = node;
+        node.prev = tail;
+        node.ne = null;
+        tail = node;
+    }
+
     public Node removeLast() {
         Node nTail = tail.prev;
         tail.prev = null;
@@ -81,13 +114,18 @@ public class LruCache<K, V> {
             return null;
         } else {
             V del = null;
-            if (cache.size() == capacity) {
-                del = cache.remove(tail.key).val;
-                removeLast();
-            }
             Node node = new Node(k, v);
+            node.weight = weigh(k, v);
+            while (tail != null && used + node.weight > capacity) {
+                Node last = tail;
+                cache.remove(last.key);
+                used -= last.weight;
+                delNode(last);
+                del = last.val;
+            }
             addFirst(node);
             cache.put(k, node);
+            used += node.weight;
             return del;
         }
     }
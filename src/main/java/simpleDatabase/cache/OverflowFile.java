@@ -0,0 +1,186 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * OverflowFile keeps the strings of a SLOTTED HeapFile that are too long to be
+ * stored inline. It is a side file next to the table ("table.dat.ovf") made of
+ * OverflowPages; a long string is stored as a chain of pages and the record on
+ * the heap page only keeps a short prefix plus the number of the first page.
+ * <p>
+ * Page 0 is a header whose next pointer is the head of the free page list.
+ * Chains of deleted tuples are pushed onto that list and reused by later inserts.
+ * Inserts only lock the header when the free list looks non-empty; otherwise
+ * they append new pages, so inserts of long strings do not all wait on page 0.
+ * All pages are read and written through the BufferPool, under the transaction
+ * that reads or writes the owning tuple.
+ *
+ * @see OverflowPage
+ * @see SlottedHeapPage
+ */
+class OverflowFile {
+
+    private final SegmentedFile segments;
+
+    private final int tableId;
+
+    /* 追加新页时加this的锁 */
+    private int numPage;
+
+    /* 和所属的HeapFile相同的页大小 */
+    private final int pageSize;
+
+    OverflowFile(File file, int tableId, int pageSize) {
+        this.segments = new SegmentedFile(file, pageSize);
+        this.tableId = tableId;
+        this.pageSize = pageSize;
+        this.numPage = segments.numPages();
+    }
+
+    Page readPage(OverflowPageId pid) {
+        byte[] data = new byte[pageSize];
+        try {
+            segments.read(pid.getPageNumber(), data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new OverflowPage(pid, data);
+    }
+
+    void writePage(Page page) throws IOException {
+        segments.write(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    /**
+     * Store value in a new chain of pages.
+     * @return the page number of the first page of the chain
+     */
+    int write(TransactionId tid, String value, ArrayList<Page> dirtyPages)
+            throws DbException, IOException, TransactionAbortedException {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; ++i) bytes[i] = (byte) value.charAt(i);
+
+        int capacity = OverflowPage.capacity(pageSize);
+        int pages = (bytes.length + capacity - 1) / capacity;
+        // 从后往前写，这样每一页都已经知道下一页的页号
+        int next = 0;
+        for (int i = pages - 1; i >= 0; --i) {
+            OverflowPage page = allocate(tid, dirtyPages);
+            int off = i * capacity;
+            page.setPayload(bytes, off, Math.min(capacity, bytes.length - off));
+            page.setNext(next);
+            next = page.getId().getPageNumber();
+        }
+        return next;
+    }
+
+    /**
+     * Read back the string stored in the chain starting at firstPage.
+     */
+    String read(TransactionId tid, int firstPage, int length)
+            throws DbException, TransactionAbortedException {
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        for (int p = firstPage; p != 0 && pos < length; ) {
+            OverflowPage page = getPage(tid, p, Permissions.READ_ONLY);
+            page.readPayload(bytes, pos);
+            pos += page.getLength();
+            p = page.getNext();
+        }
+        return new String(bytes, 0, pos);
+    }
+
+    /**
+     * Put every page of the chain starting at firstPage on the free list.
+     */
+    void free(TransactionId tid, int firstPage)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> dirtyPages = new ArrayList<>();
+        OverflowPage header = getHeader(tid, dirtyPages);
+        OverflowPage last = getPage(tid, firstPage, Permissions.READ_WRITE);
+        while (last.getNext() != 0) last = getPage(tid, last.getNext(), Permissions.READ_WRITE);
+        last.setNext(header.getNext());
+        header.setNext(firstPage);
+        addDirty(tid, last, dirtyPages);
+    }
+
+    private OverflowPage allocate(TransactionId tid, ArrayList<Page> dirtyPages)
+            throws DbException, IOException, TransactionAbortedException {
+        OverflowPage page;
+        if (mayHaveFreePages(tid)) {
+            OverflowPage header = getHeader(tid, dirtyPages);
+            if (header.getNext() != 0) { /* 优先复用空闲页 */
+                page = getPage(tid, header.getNext(), Permissions.READ_WRITE);
+                header.setNext(page.getNext());
+                addDirty(tid, page, dirtyPages);
+                return page;
+            }
+        }
+        page = getPage(tid, appendPage(), Permissions.READ_WRITE);
+        addDirty(tid, page, dirtyPages);
+        return page;
+    }
+
+    /**
+     * Look at the header without locking it. Appending a page never touches the
+     * header, so a stale answer only costs a free page that is not reused yet.
+     * @return false if the free list is empty and no other transaction is changing it
+     */
+    private boolean mayHaveFreePages(TransactionId tid) throws DbException, IOException {
+        ensureHeader();
+        BufferPool bp = Database.getBufferPool();
+        OverflowPageId pid = new OverflowPageId(tableId, 0);
+        OverflowPage header = (OverflowPage) bp.pinPageUnlocked(pid);
+        try {
+            TransactionId dirtier = header.isDirty();
+            return header.getNext() != 0 || (dirtier != null && !dirtier.equals(tid));
+        } finally {
+            bp.unpinPage(pid);
+        }
+    }
+
+    private OverflowPage getHeader(TransactionId tid, ArrayList<Page> dirtyPages)
+            throws DbException, IOException, TransactionAbortedException {
+        ensureHeader();
+        OverflowPage header = getPage(tid, 0, Permissions.READ_WRITE);
+        addDirty(tid, header, dirtyPages);
+        return header;
+    }
+
+    /* 空文件先写一个空闲链表为空的表头 */
+    private synchronized void ensureHeader() throws IOException {
+        if (numPage == 0) appendPage();
+    }
+
+    /**
+     * Write an empty page at the end of the file.
+     * @return its page number
+     */
+    private synchronized int appendPage() throws IOException {
+        OverflowPageId pid = new OverflowPageId(tableId, numPage);
+        writePage(new OverflowPage(pid, new byte[pageSize]));
+        return numPage++;
+    }
+
+    private OverflowPage getPage(TransactionId tid, int pageNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        try {
+            return (OverflowPage) Database.getBufferPool().getPage(tid, new OverflowPageId(tableId, pageNo), perm);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    private static void addDirty(TransactionId tid, Page page, ArrayList<Page> dirtyPages) {
+        page.markDirty(true, tid);
+        if (!dirtyPages.contains(page)) dirtyPages.add(page);
+    }
+}
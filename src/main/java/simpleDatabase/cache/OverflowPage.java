@@ -0,0 +1,121 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.tx.TransactionId;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One page of a chain holding a string that is too long to stay inside a
+ * SlottedHeapPage record.
+ * <pre>
+ *   [next:int][length:int][length bytes of payload]
+ * </pre>
+ * next is the page number of the following page of the chain, or 0 at the end
+ * (page 0 is the header page of the overflow file and never part of a chain).
+ * On the header page next is the head of the list of free pages.
+ *
+ * @see OverflowFile
+ */
+public class OverflowPage implements Page {
+
+    static final int HEADER_SIZE = 8;
+
+    private final OverflowPageId pid;
+
+    private int next;
+
+    private int length;
+
+    private final byte[] payload;
+
+    private TransactionId lastDirtyOperation;
+
+    byte[] oldData;
+
+    private final Object oldDataLock = new Object();
+
+    public OverflowPage(OverflowPageId id, byte[] data) {
+        this.pid = id;
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        next = buf.getInt();
+        length = buf.getInt();
+        payload = new byte[data.length - HEADER_SIZE];
+        buf.get(payload);
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of payload bytes a page of the given size can hold
+     */
+    static int capacity(int pageSize) {
+        return pageSize - HEADER_SIZE;
+    }
+
+    public OverflowPageId getId() {
+        return pid;
+    }
+
+    public int getNext() {
+        return next;
+    }
+
+    public void setNext(int next) {
+        this.next = next;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Copy len bytes of src starting at off into this page, replacing its payload.
+     */
+    public void setPayload(byte[] src, int off, int len) {
+        if (len > payload.length) throw new IllegalArgumentException("payload does not fit in one page");
+        System.arraycopy(src, off, payload, 0, len);
+        for (int i = len; i < length; ++i) payload[i] = 0;
+        length = len;
+    }
+
+    /**
+     * Copy the payload of this page into dst at off.
+     */
+    public void readPayload(byte[] dst, int off) {
+        System.arraycopy(payload, 0, dst, off, length);
+    }
+
+    public byte[] getPageData() {
+        byte[] data = new byte[HEADER_SIZE + payload.length];
+        writePageData(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    private void writePageData(ByteBuffer buf) {
+        buf.putInt(next);
+        buf.putInt(length);
+        buf.put(payload);
+    }
+
+    public OverflowPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData.clone();
+        }
+        return new OverflowPage(pid, oldDataRef);
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) oldData = new byte[HEADER_SIZE + payload.length];
+            writePageData(ByteBuffer.wrap(oldData));
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastDirtyOperation = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return lastDirtyOperation;
+    }
+}
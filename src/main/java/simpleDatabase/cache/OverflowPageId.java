@@ -0,0 +1,45 @@
+package simpleDatabase.cache;
+
+/**
+ * Unique identifier for OverflowPage objects. Overflow pages live in a side file
+ * owned by the HeapFile, so they share its table id but never compare equal to a
+ * HeapPageId with the same page number.
+ */
+public class OverflowPageId implements PageId {
+
+    private final int tableId;
+
+    private final int pageNum;
+
+    public OverflowPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pageNum = pgNo;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    public int getPageNumber() {
+        return pageNum;
+    }
+
+    public int hashCode() {
+        return ~(31 * tableId + pageNum);
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof OverflowPageId)) return false;
+        OverflowPageId another = (OverflowPageId) o;
+        return pageNum == another.pageNum && tableId == another.tableId;
+    }
+
+    public int[] serialize() {
+        return new int[]{tableId, pageNum};
+    }
+
+    public String toString() {
+        return "overflow(" + tableId + ", " + pageNum + ")";
+    }
+}
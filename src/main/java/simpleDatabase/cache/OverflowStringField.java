@@ -0,0 +1,32 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.field.StringField;
+
+/**
+ * The stored form of a string that was moved to an overflow chain: the first
+ * characters of the value plus a pointer to the chain. It only exists between
+ * a SlottedHeapPage and its HeapFile, which swaps it for the full StringField
+ * before a tuple leaves the file.
+ */
+class OverflowStringField extends StringField {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int totalLength;
+
+    private final int firstPage;
+
+    OverflowStringField(String prefix, int totalLength, int firstPage) {
+        super(prefix, prefix.length());
+        this.totalLength = totalLength;
+        this.firstPage = firstPage;
+    }
+
+    int getTotalLength() {
+        return totalLength;
+    }
+
+    int getFirstPage() {
+        return firstPage;
+    }
+}
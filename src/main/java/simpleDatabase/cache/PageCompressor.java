@@ -0,0 +1,128 @@
+package simpleDatabase.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * PageCompressor is a small LZ77 codec for page images, in the spirit of LZ4.
+ * Pages of fixed-width rows are mostly zero padding and repeated values, which
+ * turn into a few back references.
+ * <p>
+ * The compressed data is a list of sequences:
+ * <pre>
+ *   [token][extra literal length][literals][offset:u16][extra match length]
+ * </pre>
+ * The high 4 bits of the token are the number of literals and the low 4 bits are
+ * the match length minus {@link #MIN_MATCH}; a nibble of 15 is followed by extra
+ * length bytes, each 255 meaning "more follows". The last sequence only has
+ * literals and ends the input.
+ *
+ * 页压缩用的LZ77编码，零填充和重复的值都变成回溯引用
+ */
+public class PageCompressor {
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int HASH_BITS = 12;
+
+    private PageCompressor() {
+    }
+
+    /**
+     * @return the compressed form of the first len bytes of src
+     */
+    public static byte[] compress(byte[] src, int len) {
+        byte[] out = new byte[len + len / 255 + 16];
+        int[] table = new int[1 << HASH_BITS]; /* 4字节前缀 -> 位置+1, 0表示没有 */
+        int ip = 0, anchor = 0, op = 0;
+        while (ip + MIN_MATCH <= len) {
+            int h = hash(src, ip);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || !startsWith(src, ref, ip)) {
+                ip++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < len && src[ref + matchLen] == src[ip + matchLen]) matchLen++;
+            op = writeSequence(out, op, src, anchor, ip - anchor, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+        op = writeSequence(out, op, src, anchor, len - anchor, 0, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    /**
+     * Decompress srcLen bytes of src into dst.
+     * @return the number of bytes written into dst
+     * @throws IOException if src is not valid compressed data or does not fit in dst
+     */
+    public static int decompress(byte[] src, int srcLen, byte[] dst) throws IOException {
+        int ip = 0, op = 0;
+        try {
+            while (ip < srcLen) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do { b = src[ip++] & 0xFF; literals += b; } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == srcLen) break; /* 最后一个序列只有字面量 */
+
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int matchLen = token & 15;
+                if (matchLen == 15) {
+                    int b;
+                    do { b = src[ip++] & 0xFF; matchLen += b; } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0 || op + matchLen > dst.length)
+                    throw new IOException("corrupted compressed page");
+                // 引用可能和输出重叠，只能逐字节复制
+                for (int i = 0; i < matchLen; i++) dst[op++] = dst[ref++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupted compressed page");
+        }
+        return op;
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] src, int from, int literals, int offset, int matchLen) {
+        int matchCode = matchLen == 0 ? 0 : matchLen - MIN_MATCH;
+        out[op++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+        if (literals >= 15) op = writeLength(out, op, literals - 15);
+        System.arraycopy(src, from, out, op, literals);
+        op += literals;
+        if (matchLen == 0) return op;
+        out[op++] = (byte) offset;
+        out[op++] = (byte) (offset >>> 8);
+        if (matchCode >= 15) op = writeLength(out, op, matchCode - 15);
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int rest) {
+        while (rest >= 255) {
+            out[op++] = (byte) 255;
+            rest -= 255;
+        }
+        out[op++] = (byte) rest;
+        return op;
+    }
+
+    private static int hash(byte[] b, int i) {
+        int v = (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static boolean startsWith(byte[] b, int ref, int i) {
+        return b[ref] == b[i] && b[ref + 1] == b[i + 1] && b[ref + 2] == b[i + 2] && b[ref + 3] == b[i + 3];
+    }
+}
@@ -3,73 +3,291 @@ package simpleDatabase.cache;
 import simpleDatabase.basic.Database;
 import simpleDatabase.exception.CacheException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The page cache of the BufferPool. Its capacity is in bytes and every page
+ * takes the page size of its table, so tables with different page sizes share
+ * one budget.
+ * <p>
+ * Every cached page sits in a {@link Frame} with a pin count and a latch.
+ * Pinned frames are never evicted, and the latch of a frame is only handed
+ * out while the frame is pinned, so it stays the same object.
+ * <p>
+ * With a {@link FramePool}, a page that is cached is moved into a direct frame,
+ * and the frame goes back to the pool as soon as the page is evicted, removed or
+ * replaced.
+ */
 public class PageLruCache extends LruCache<PageId, Page> {
 
-    public PageLruCache(int c) {super(c);}
+    /**
+     * @param capacityBytes the total size of the pages the cache may hold
+     */
+    public PageLruCache(long capacityBytes) {
+        this(capacityBytes, null);
+    }
+
+    /**
+     * @param capacityBytes the total size of the pages the cache may hold
+     * @param frames where the cached pages keep their bytes, null to keep them on the heap
+     */
+    public PageLruCache(long capacityBytes, FramePool frames) {
+        super(capacityBytes);
+        target = capacityBytes;
+        this.frames = frames;
+    }
+
+    private final FramePool frames;
+
+    /* 缩小时最终要达到的容量，capacity会逐步降到这个值 */
+    private long target;
+
+    /**
+     * A buffer frame: a cached page, the number of threads using it right now,
+     * and a short-term latch that protects the page structure. Unlike the locks
+     * of the LockManager, pins and latches are held for the duration of one
+     * operation on the page, not until the transaction ends.
+     */
+    class Frame extends Node {
+        int pins;
+        final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+        Frame(PageId k, Page v) {
+            super(k, v);
+        }
+    }
+
+    /* 干净且没有被pin住的页才能被换出 */
+    private static boolean evictable(Node n) {
+        return n.val.isDirty() == null && ((Frame) n).pins == 0;
+    }
+
+    @Override
+    protected long weigh(PageId k, Page v) {
+        return Database.getCatalog().getPageSize(k.getTableId());
+    }
+
+    /* 页进入缓存时搬进堆外的帧 */
+    private void cached(Node n) {
+        if (frames != null && n.val instanceof FramedPage) frames.attach((FramedPage) n.val, (int) n.weight);
+    }
+
+    /* 页离开缓存时把帧还回去，页对象拷回堆上，还拿着它的人可以继续读 */
+    private void dropped(Page p) {
+        if (frames != null && p instanceof FramedPage) frames.detach((FramedPage) p);
+    }
 
+    /**
+     * Cache a page, evicting the least recently used clean pages until it fits.
+     * Dirty pages (NO STEAL) and pinned pages are never evicted.
+     * @return the last page evicted, null if none; evicted pages are clean
+     * @throws CacheException if the page does not fit even after evicting every
+     *         clean, unpinned page
+     */
     @Override
     public synchronized Page put(PageId k, Page v) throws CacheException {
         if (k == null || v == null) throw new IllegalArgumentException();
         if (isCached(k)) {
             Node node = cache.get(k);
+            Page old = node.val;
             node.val = v; // update its value and then put it back to the cache
+            if (old != v) {
+                dropped(old);
+                cached(node);
+            }
             delNode(node);
             addFirst(node);
             return null;
         } else {
             Page del = null;
-            if (cache.size() == capacity) {
-                Page toDelete = null;
-                Node n = tail;
-                while ((toDelete = n.val).isDirty() != null) {
-                    n = n.prev;
-                    if (n == head) throw new CacheException("" +
-                            "Page Cache is full and all pages are dirty");
+            Node node = new Frame(k, v);
+            node.weight = weigh(k, v);
+            // 从尾部往前找能换出的页，直到腾出足够的空间
+            Node n = tail;
+            while (n != null && n != head && used + node.weight > capacity) {
+                Node prev = n.prev;
+                if (evictable(n)) {
+                    // delete the node in the linkedlist and in the cache
+                    delNode(n);
+                    cache.remove(n.key);
+                    used -= n.weight;
+                    del = n.val;
+                    dropped(del);
                 }
-                // delete the node in the linkedlist and in the cache
-                delPage(toDelete.getId());
-                del = cache.remove(toDelete.getId()).val;
+                n = prev;
             }
-            Node node = new Node(k, v);
+            // 一个比整个缓存还大的页也要能放进空的缓存
+            if (used + node.weight > capacity && !cache.isEmpty())
+                throw new CacheException("Page Cache is full and all pages are dirty or pinned");
             addFirst(node);
             cache.put(k, node);
+            used += node.weight;
+            cached(node);
             return del;
         }
     }
 
-    private void delPage(PageId id) {
-        if (!isCached(id)) throw new IllegalArgumentException();
-        Node toDelete = head;
-        // 从头开始遍历，如果没找到，则啥也不做
-        while (!(toDelete = toDelete.ne).key.equals(id));
-        if (toDelete == tail) removeLast();
-        else {
-            toDelete.ne.prev = toDelete.prev;
-            toDelete.prev.ne = toDelete.ne;
+    /**
+     * Change the capacity to capacityBytes. If the cache holds more than that,
+     * nothing is evicted here: the capacity drops to what the cache holds, so
+     * it stops growing, and {@link #shrink} evicts down to capacityBytes.
+     * @return true if the cached pages fit in capacityBytes already
+     */
+    public synchronized boolean setCapacity(long capacityBytes) {
+        target = capacityBytes;
+        capacity = Math.max(capacityBytes, used);
+        return used <= capacityBytes;
+    }
+
+    /**
+     * Evict up to maxPages least recently used clean, unpinned pages while the cache
+     * holds more than the capacity given to {@link #setCapacity}.
+     * @return true once the cached pages fit in that capacity
+     */
+    public synchronized boolean shrink(int maxPages) {
+        Node n = tail;
+        while (n != null && n != head && used > target && maxPages > 0) {
+            Node prev = n.prev;
+            if (evictable(n)) {
+                delNode(n);
+                cache.remove(n.key);
+                used -= n.weight;
+                dropped(n.val);
+                maxPages--;
+            }
+            n = prev;
         }
+        capacity = Math.max(target, used);
+        return used <= target;
+    }
+
+    /**
+     * Cache a page that no one has asked for yet, e.g. one read back by the
+     * warm-up, without evicting anything. It goes to the least recently used
+     * end, so pages used since the start stay hotter.
+     * @return false if the page is already cached or does not fit
+     */
+    public synchronized boolean putIfRoom(PageId k, Page v) {
+        if (k == null || v == null) throw new IllegalArgumentException();
+        if (isCached(k)) return false;
+        Node node = new Frame(k, v);
+        node.weight = weigh(k, v);
+        if (used + node.weight > capacity) return false;
+        addLast(node);
+        cache.put(k, node);
+        used += node.weight;
+        cached(node);
+        return true;
+    }
+
+    /**
+     * Get page k, caching loaded first if k is not cached yet. Like
+     * {@link #putIfRoom}, a page already cached for k is never replaced: another
+     * thread may have cached k while loaded was read, and may be using it.
+     * @return the cached page, null if k is not cached and loaded is null
+     * @throws CacheException if loaded does not fit
+     */
+    public synchronized Page getOrPut(PageId k, Page loaded) throws CacheException {
+        Page cached = get(k);
+        if (cached != null || loaded == null) return cached;
+        put(k, loaded);
+        return loaded;
+    }
+
+    /**
+     * Drop page k from the cache without writing it, whether it is dirty or not.
+     * @return the dropped page, null if k was not cached
+     * @throws IllegalStateException if the frame of k is pinned
+     */
+    public synchronized Page remove(PageId k) {
+        Node n = cache.get(k);
+        if (n == null) return null;
+        if (((Frame) n).pins > 0) throw new IllegalStateException("page " + k + " is pinned");
+        delNode(n);
+        cache.remove(k);
+        used -= n.weight;
+        dropped(n.val);
+        return n.val;
+    }
+
+    /**
+     * @return the ids of the cached pages, most recently used first
+     */
+    public synchronized List<PageId> keys() {
+        List<PageId> keys = new ArrayList<>(cache.size());
+        for (Node n = head.ne; n != null; n = n.ne) keys.add(n.key);
+        return keys;
+    }
+
+    /**
+     * @return true if p itself is the page cached for its id, false if its id is
+     *         not cached or the cache holds another copy of it
+     */
+    public synchronized boolean contains(Page p) {
+        Node n = cache.get(p.getId());
+        return n != null && n.val == p;
+    }
+
+    /**
+     * Pin the frame of page k, caching loaded first if k is not cached yet.
+     * @return the cached page, null if k is not cached and loaded is null
+     * @throws CacheException if loaded does not fit
+     */
+    public synchronized Page pin(PageId k, Page loaded) throws CacheException {
+        Frame f = (Frame) cache.get(k);
+        if (f == null) {
+            if (loaded == null) return null;
+            put(k, loaded);
+            f = (Frame) cache.get(k);
+        }
+        f.pins++;
+        return f.val;
+    }
+
+    /**
+     * Release one pin on the frame of page k.
+     */
+    public synchronized void unpin(PageId k) {
+        pinned(k).pins--;
+    }
+
+    /**
+     * @return the latch of the frame of page k, which must be pinned
+     */
+    public synchronized ReentrantReadWriteLock latch(PageId k) {
+        return pinned(k).latch;
+    }
+
+    /**
+     * @return the number of pins on the frame of page k, 0 if it is not cached
+     */
+    public synchronized int pinCount(PageId k) {
+        Frame f = (Frame) cache.get(k);
+        return f == null ? 0 : f.pins;
+    }
+
+    private Frame pinned(PageId k) {
+        Frame f = (Frame) cache.get(k);
+        if (f == null || f.pins == 0) throw new IllegalStateException("page " + k + " is not pinned");
+        return f;
     }
 
     /**
-     * 从磁盘恢复该page的状态
+     * 从磁盘恢复该page的状态，帧本身(位置、pin计数和latch)保持不变
      * @param pid
      */
     public synchronized void reCachePage(PageId pid) {
         if (!isCached(pid)) throw new IllegalArgumentException();
 
         // load this page from the disk
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
-        HeapPage oriPage = (HeapPage) table.readPage(pid);
-        Node node = new Node(pid, oriPage);
-        cache.put(pid, node);
-        Node toDelete = head;
-        while(!(toDelete = toDelete.ne).key.equals(pid)) ;
-        node.prev = toDelete.prev;
-        node.ne = toDelete.ne;
-        toDelete.prev.ne = node;
-
-        // 看是否重新缓存当是否是tail节点， 需要修改tail指针当
-        if (toDelete.ne != null) toDelete.ne.prev = node;
-        else tail = node;
+        DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+        Node n = cache.get(pid);
+        Page old = n.val;
+        n.val = table.readPage(pid);
+        dropped(old);
+        cached(n);
     }
 
 }
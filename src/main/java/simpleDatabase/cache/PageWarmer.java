@@ -0,0 +1,287 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * PageWarmer saves the set of pages resident in a BufferPool to a dump file, and
+ * loads them back after a restart, so the pool does not have to refill through
+ * one random read per page while serving queries.
+ * <p>
+ * The dump lists the page ids, most recently used first:
+ * <pre>
+ *   [count:int] ([id class name:utf][n:int][id:int]*n)*count
+ * </pre>
+ * the same way {@link simpleDatabase.basic.LogFile} records page ids. The loader
+ * keeps the hottest pages that fit in the pool, sorts them by table and page
+ * number, and reads runs of nearby pages of a {@link BulkReadDbFile} with one
+ * sequential read. Pages are added to the pool without locks and without
+ * evicting anything, so they never push out pages queries have used since the
+ * start, and loading stops once the pool is full.
+ *
+ * 把缓冲池中的页号保存下来，重启后在后台按文件顺序读回缓冲池
+ */
+public class PageWarmer {
+
+    /** The largest read the loader issues for a run of pages */
+    static final int RUN_BYTES = 1 << 20;
+
+    /* 一段连续读中可以夹带的不需要的页数，比拆成两次随机读划算 */
+    static final int MAX_GAP = 8;
+
+    private final BufferPool pool;
+
+    private final File dumpFile;
+
+    private Thread loader;
+
+    private Timer dumper;
+
+    private Thread shutdownHook;
+
+    private volatile boolean stopped;
+
+    private volatile int pagesLoaded;
+
+    public PageWarmer(BufferPool pool, File dumpFile) {
+        this.pool = pool;
+        this.dumpFile = dumpFile;
+    }
+
+    /**
+     * Load the pages of the last dump in the background, then dump the resident
+     * pages every dumpIntervalMillis and when the JVM shuts down.
+     */
+    public synchronized void start(long dumpIntervalMillis) {
+        loader = new Thread("page-warmer") {
+            @Override
+            public void run() {
+                try {
+                    load();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+
+        dumper = new Timer("page-dump", true);
+        dumper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                dumpIfLoaded();
+            }
+        }, dumpIntervalMillis, dumpIntervalMillis);
+
+        shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                dumpIfLoaded();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Stop loading and dumping, and write a last dump.
+     */
+    public synchronized void stop() throws IOException {
+        stopped = true;
+        if (dumper != null) dumper.cancel();
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM已经在关闭了，钩子会自己写dump
+            }
+        }
+        if (loader != null) {
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dump();
+    }
+
+    /**
+     * @return the number of pages of the dump that are in the pool, so far
+     */
+    public int getPagesLoaded() {
+        return pagesLoaded;
+    }
+
+    /**
+     * @return true while the background loader is running
+     */
+    public boolean isLoading() {
+        return loader != null && loader.isAlive();
+    }
+
+    /* 加载还没结束时，缓冲池里只有上次dump的一部分，不要覆盖它 */
+    private void dumpIfLoaded() {
+        if (isLoading()) return;
+        try {
+            dump();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the ids of the pages resident in the pool to the dump file. The new
+     * dump replaces the old one only once it is complete. The timer, stop() and
+     * the shutdown hook may all dump at once; they share the .tmp file, so dumps
+     * run one at a time.
+     */
+    public synchronized void dump() throws IOException {
+        List<PageId> ids = pool.getResidentPageIds();
+        File tmp = new File(dumpFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(ids.size());
+            for (PageId pid : ids) {
+                int[] data = pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(data.length);
+                for (int v : data) out.writeInt(v);
+            }
+        }
+        Files.move(tmp.toPath(), dumpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the page ids in the dump file, most recently used first; empty
+     *         if there is no dump
+     */
+    public static List<PageId> readDump(File dumpFile) throws IOException {
+        List<PageId> ids = new ArrayList<>();
+        if (!dumpFile.exists()) return ids;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dumpFile)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String className = in.readUTF();
+                int n = in.readInt();
+                Object[] args = new Object[n];
+                Class<?>[] types = new Class<?>[n];
+                for (int j = 0; j < n; j++) {
+                    args[j] = in.readInt();
+                    types[j] = int.class;
+                }
+                try {
+                    Constructor<?> c = Class.forName(className).getConstructor(types);
+                    ids.add((PageId) c.newInstance(args));
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IOException("bad page id " + className + " in " + dumpFile, e);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Read the pages of the dump file into the pool, in file order, until the
+     * pool is full. Pages of tables that are no longer in the catalog are
+     * skipped.
+     */
+    public void load() throws IOException {
+        List<PageId> ids = hottestThatFit(readDump(dumpFile));
+        Collections.sort(ids, new Comparator<PageId>() {
+            @Override
+            public int compare(PageId a, PageId b) {
+                if (a.getTableId() != b.getTableId()) return Integer.compare(a.getTableId(), b.getTableId());
+                int c = a.getClass().getName().compareTo(b.getClass().getName());
+                return c != 0 ? c : Integer.compare(a.getPageNumber(), b.getPageNumber());
+            }
+        });
+
+        int i = 0;
+        while (i < ids.size() && !stopped) {
+            PageId first = ids.get(i);
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDbFile(first.getTableId());
+            } catch (NoSuchElementException e) {
+                i++;
+                continue;
+            }
+            List<Page> pages = new ArrayList<>();
+            long stamp = pool.getFlushStamp();
+            if (first instanceof HeapPageId && file instanceof BulkReadDbFile) {
+                // 把距离足够近的页合并成一次顺序读
+                int maxPages = Math.max(1, RUN_BYTES / file.getPageSize());
+                int start = first.getPageNumber(), end = start;
+                int j = i;
+                while (j < ids.size() && sameRun(first, ids.get(j))) {
+                    int pgNo = ids.get(j).getPageNumber();
+                    if (pgNo >= file.numPages() || pgNo - start >= maxPages || pgNo - end > MAX_GAP) break;
+                    end = pgNo;
+                    j++;
+                }
+                if (j == i) { /* 这一页已经不存在了 */
+                    i++;
+                    continue;
+                }
+                Page[] read = ((BulkReadDbFile) file).readPages(start, end - start + 1);
+                for (; i < j; i++) {
+                    Page p = read[ids.get(i).getPageNumber() - start];
+                    if (p != null) pages.add(p);
+                }
+            } else {
+                try {
+                    Page p = file.readPage(first);
+                    if (p != null) pages.add(p);
+                } catch (RuntimeException e) {
+                    // 页已经不存在了
+                }
+                i++;
+            }
+            int warmed = pool.warm(pages, stamp);
+            pagesLoaded += warmed;
+            if (warmed < pages.size()) break; /* 缓冲池满了 */
+        }
+    }
+
+    private static boolean sameRun(PageId first, PageId pid) {
+        return pid.getTableId() == first.getTableId() && pid.getClass() == first.getClass();
+    }
+
+    /**
+     * @return the first ids whose pages fit in the pool together
+     */
+    private List<PageId> hottestThatFit(List<PageId> ids) {
+        long room = pool.getCapacityBytes();
+        List<PageId> fit = new ArrayList<>();
+        for (PageId pid : ids) {
+            int size;
+            try {
+                size = Database.getCatalog().getPageSize(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            if (size > room) break;
+            room -= size;
+            fit.add(pid);
+        }
+        return fit;
+    }
+}
@@ -0,0 +1,290 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * PaxFile is a DbFile that stores a collection of tuples in no particular order,
+ * like {@link HeapFile}, but lays out each page column by column (see
+ * {@link PaxPage}). Scans through {@link #iterator(TransactionId, List, int[])}
+ * only decode the columns the query references, which makes it a good fit for
+ * wide tables that are scanned for a few columns.
+ * <p>
+ * A PaxFile is registered in the Catalog like any other DbFile, e.g. by giving
+ * "pax" after the schema in the catalog file, and can be produced from a text
+ * file with the "pax" option of the convert command.
+ *
+ * 列存格式(PAX)的表文件
+ *
+ * @see PaxPage
+ */
+public class PaxFile implements PushdownDbFile, BulkReadDbFile, LookupDbFile {
+
+    private final File file;
+
+    private final TupleDesc tupleDesc;
+
+    private volatile int numPage;
+
+    private final int pageSize;
+
+    private final SegmentedFile segments;
+
+    /* 同时进行的扫描共享读盘 */
+    private final ScanGroup scanGroup = new ScanGroup(this);
+
+    public PaxFile(File f, TupleDesc td) {
+        this(f, td, BufferPool.getPageSize());
+    }
+
+    public PaxFile(File f, TupleDesc td, int pageSize) {
+        if (pageSize * 8 < td.getSize() * 8 + 1)
+            throw new IllegalArgumentException("page size " + pageSize + " cannot hold a tuple of " + td);
+        this.file = f;
+        this.tupleDesc = td;
+        this.pageSize = pageSize;
+        this.segments = new SegmentedFile(f, pageSize);
+        numPage = segments.numPages();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return an ID uniquely identifying this PaxFile, the hash of the absolute file name
+     */
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    // see DbFile.java for javaDocs
+    public Page readPage(PageId pid) {
+        if (pid.getTableId() != getId()) throw new IllegalArgumentException();
+        byte[] data = new byte[pageSize];
+        try {
+            segments.read(pid.getPageNumber(), data);
+            return new PaxPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // see BulkReadDbFile.java for javaDocs
+    public Page[] readPages(int firstPgNo, int count) {
+        Page[] pages = new Page[count];
+        byte[] data = new byte[count * pageSize];
+        try {
+            segments.read(firstPgNo, count, data);
+            for (int i = 0; i < count; i++)
+                pages[i] = new PaxPage(new HeapPageId(getId(), firstPgNo + i),
+                        Arrays.copyOfRange(data, i * pageSize, (i + 1) * pageSize));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return pages;
+    }
+
+    // see DbFile.java for javaDocs
+    public void writePage(Page page) throws IOException {
+        segments.write(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    public int numPages() {
+        return numPage;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    // see DbFile.java for javaDocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        PaxPage target = null;
+        for (int i = 0; i < numPages() && target == null; ++i)
+            target = insertInto(tid, new HeapPageId(getId(), i), t);
+        // 新页可能先被别的线程填满，那就再加一页
+        while (target == null) target = insertInto(tid, appendPage(), t);
+        ArrayList<Page> dirtyPages = new ArrayList<>();
+        dirtyPages.add(target);
+        return dirtyPages;
+    }
+
+    /**
+     * Add an empty page at the end of the file, see HeapFile#appendPage.
+     * @return the id of the new page
+     */
+    private synchronized HeapPageId appendPage() throws IOException {
+        HeapPageId newPid = new HeapPageId(getId(), numPage);
+        writePage(new PaxPage(newPid, HeapPage.createEmptyPageData(pageSize)));
+        numPage++;
+        return newPid;
+    }
+
+    /**
+     * Insert t into page pid if it has room, with the page pinned and its latch
+     * held exclusively.
+     * @return the page, or null if it has no room for t
+     */
+    private PaxPage insertInto(TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        PaxPage page = pinPage(tid, pid, Permissions.READ_WRITE);
+        Lock latch = pool.getLatch(pid).writeLock();
+        latch.lock();
+        try {
+            if (!page.hasRoomFor(t)) return null;
+            page.insertTuple(t);
+            page.markDirty(true, tid);
+            return page;
+        } finally {
+            latch.unlock();
+            pool.unpinPage(pid);
+        }
+    }
+
+    // see DbFile.java for javaDocs
+    public Page deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId() || rid.getPageId().getPageNumber() >= numPages())
+            throw new DbException("tuple " + t + " is not in the table");
+        BufferPool pool = Database.getBufferPool();
+        HeapPageId pid = (HeapPageId) rid.getPageId();
+        PaxPage page = pinPage(tid, pid, Permissions.READ_WRITE);
+        Lock latch = pool.getLatch(pid).writeLock();
+        latch.lock();
+        try {
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+        } finally {
+            latch.unlock();
+            pool.unpinPage(pid);
+        }
+        return page;
+    }
+
+    private PaxPage pinPage(TransactionId tid, HeapPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        try {
+            return (PaxPage) Database.getBufferPool().pinPage(tid, pid, perm);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    // see LookupDbFile.java for javaDocs
+    public Tuple getTuple(TransactionId tid, RecordId rid) throws DbException, TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        if (!(pid instanceof HeapPageId) || pid.getTableId() != getId() || pid.getPageNumber() >= numPages())
+            return null;
+        BufferPool pool = Database.getBufferPool();
+        PaxPage page = pinPage(tid, (HeapPageId) pid, Permissions.READ_ONLY);
+        Lock latch = pool.getLatch(pid).readLock();
+        latch.lock();
+        try {
+            return page.getTuple(rid.getTupleNumber());
+        } catch (NoSuchElementException e) {
+            return null;
+        } finally {
+            latch.unlock();
+            pool.unpinPage(pid);
+        }
+    }
+
+    /**
+     * @return the tuples of page pid that pass the filters, decoded one at a time
+     *         while the page stays pinned
+     */
+    private PinnedPageIterator tuplesInPage(TransactionId tid, HeapPageId pid, List<Predicate> filters, int[] fields)
+            throws DbException, TransactionAbortedException {
+        PaxPage page = pinPage(tid, pid, Permissions.READ_ONLY);
+        return new PinnedPageIterator(pid, page.iterator(filters, fields));
+    }
+
+    // see DbFile.java for javaDocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new PaxFileIterator(tid, null, null);
+    }
+
+    // see PushdownDbFile.java for javaDocs
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> filters, int[] fields) {
+        for (Predicate p : filters)
+            if (p.getIdx() < 0 || p.getIdx() >= tupleDesc.numFields())
+                throw new IllegalArgumentException("no field " + p.getIdx() + " in " + tupleDesc);
+        return new PaxFileIterator(tid, filters, fields);
+    }
+
+    private class PaxFileIterator implements DbFileIterator {
+
+        private final TransactionId tid;
+
+        private final List<Predicate> filters;
+
+        private final int[] fields;
+
+        private ScanGroup.Cursor pages;
+
+        private PinnedPageIterator tuplesInPage;
+
+        PaxFileIterator(TransactionId tid, List<Predicate> filters, int[] fields) {
+            this.tid = tid;
+            this.filters = filters;
+            this.fields = fields;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            close();
+            pages = scanGroup.join();
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (pages == null) return false;
+            while (tuplesInPage == null || !tuplesInPage.hasNext()) {
+                int pgNo = pages.next();
+                if (pgNo < 0) return false;
+                tuplesInPage = tuplesInPage(tid, new HeapPageId(getId(), pgNo), filters, fields);
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) throw new NoSuchElementException("no tuple left");
+            return tuplesInPage.next();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        @Override
+        public void close() {
+            if (pages != null) pages.close();
+            pages = null;
+            if (tuplesInPage != null) tuplesInPage.close();
+            tuplesInPage = null;
+        }
+    }
+}
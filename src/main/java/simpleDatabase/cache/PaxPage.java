@@ -0,0 +1,254 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.Field;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * PaxPage stores one page of a {@link PaxFile} in PAX layout: the slots are the
+ * same as in a {@link HeapPage}, but the values of each column are kept together
+ * in a minipage instead of being interleaved row by row.
+ * <pre>
+ *   [header bitmap][column 0: numSlots values][column 1: numSlots values] ...
+ * </pre>
+ * The number of slots and the header are exactly those of a HeapPage of the same
+ * table, so a HeapPage can be turned into a PaxPage by moving bytes around, see
+ * {@link #fromHeapPageData}.
+ * <p>
+ * A scan that reads a few columns only touches their minipages, and the values
+ * it decodes sit next to each other in memory.
+ *
+ * 列存的页，每一列的值连续存放在自己的minipage里，只解码需要的列
+ *
+ * @see PaxFile
+ */
+public class PaxPage implements TuplePage, FramedPage {
+
+    final HeapPageId pid;
+
+    final TupleDesc td;
+
+    /* 堆外模式下缓存着的页是一块direct内存 */
+    private volatile ByteBuffer buf;
+
+    private final int pageSize;
+
+    private final int numSlots;
+
+    private final SlotBitmap slots;
+
+    /* 每一列minipage的起始位置 */
+    private final int[] columnOffsets;
+
+    private TransactionId lastDirtyOperation;
+
+    /* 改动前的数据，null表示上次setBeforeImage之后还没改过 */
+    ByteBuffer oldData;
+
+    private final Object oldDataLock = new Object();
+
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        int pageSize = Database.getCatalog().getPageSize(id.getTableId());
+        if (data.length != pageSize)
+            throw new IOException("page data must be " + pageSize + " bytes");
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples(td, data.length);
+        this.pageSize = pageSize;
+        this.buf = ByteBuffer.wrap(data);
+        this.slots = new SlotBitmap(numSlots);
+        slots.load(buf, 0);
+        this.columnOffsets = columnOffsets(td, numSlots);
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of slots of a page of pageSize bytes, the same as for a HeapPage
+     */
+    static int getNumTuples(TupleDesc td, int pageSize) {
+        return (pageSize * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private static int[] columnOffsets(TupleDesc td, int numSlots) {
+        int[] offsets = new int[td.numFields()];
+        int pos = SlotBitmap.byteSize(numSlots);
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = pos;
+            pos += numSlots * td.getFieldType(i).getLen();
+        }
+        return offsets;
+    }
+
+    /**
+     * Rearrange the bytes of a HeapPage of the table described by td into a PaxPage.
+     * Used by the converter, which writes HeapPages first.
+     */
+    public static byte[] fromHeapPageData(byte[] heapData, TupleDesc td) {
+        int numSlots = getNumTuples(td, heapData.length);
+        int headerSize = SlotBitmap.byteSize(numSlots);
+        int[] columns = columnOffsets(td, numSlots);
+        byte[] pax = new byte[heapData.length];
+        System.arraycopy(heapData, 0, pax, 0, headerSize);
+        int fieldOffset = 0;
+        for (int c = 0; c < td.numFields(); c++) {
+            int len = td.getFieldType(c).getLen();
+            for (int s = 0; s < numSlots; s++)
+                System.arraycopy(heapData, headerSize + s * td.getSize() + fieldOffset, pax, columns[c] + s * len, len);
+            fieldOffset += len;
+        }
+        return pax;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = BufferPool.toArray(oldData == null ? buf : oldData);
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * The current bytes of the page become its before image; like in HeapPage
+     * they are copied only when the page is changed next.
+     */
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /* 第一次改页之前才把 before image 拷出来 */
+    private void copyBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) oldData = ByteBuffer.wrap(BufferPool.toArray(buf));
+        }
+    }
+
+    public byte[] getPageData() {
+        return BufferPool.toArray(buf);
+    }
+
+    @Override
+    public void moveTo(ByteBuffer frame) {
+        BufferPool.copy(buf, frame);
+        buf = frame;
+    }
+
+    @Override
+    public ByteBuffer moveToHeap() {
+        ByteBuffer frame = buf;
+        if (!frame.isDirect()) return null;
+        ByteBuffer heap = ByteBuffer.allocate(pageSize);
+        BufferPool.copy(frame, heap);
+        buf = heap;
+        return frame;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastDirtyOperation = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return lastDirtyOperation;
+    }
+
+    /**
+     * Decode column field of the tuple in slot i.
+     */
+    Field getField(int i, int field) {
+        return td.getFieldType(field).parse(buf, columnOffsets[field] + i * td.getFieldType(field).getLen());
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tuple Description is mismatch");
+
+        int i = slots.nextClearBit(0);
+        if (i == -1) throw new DbException("the page is full, cannot insert more tuples");
+        copyBeforeImage();
+        for (int j = 0; j < td.numFields(); j++) {
+            buf.position(columnOffsets[j] + i * td.getFieldType(j).getLen());
+            t.getField(j).serialize(buf);
+        }
+        t.setRecordId(new RecordId(pid, i));
+        markSlotUsed(i, true);
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("this tuple is not on the page, or slot is empty");
+        int i = rid.getTupleNumber();
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            throw new DbException("this tuple is not on the page, or slot is empty");
+        copyBeforeImage();
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            for (int k = 0; k < len; k++) buf.put(columnOffsets[j] + i * len + k, (byte) 0);
+        }
+        markSlotUsed(i, false);
+        t.setRecordId(null);
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    public int getNumEmptySlots() {
+        return numSlots - slots.cardinality();
+    }
+
+    public boolean isSlotUsed(int i) {
+        return slots.get(i);
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        slots.set(i, value);
+        buf.put(i / 8, slots.getByte(i / 8));
+    }
+
+    public Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new NoSuchElementException("slot " + slot + " is empty");
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); ++i) t.setField(i, getField(slot, i));
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return iterator(null, null);
+    }
+
+    public Iterator<Tuple> iterator(List<Predicate> filters, int[] fields) {
+        return new FilteredTupleIterator(pid, td, filters, fields) {
+            @Override
+            int nextUsedSlot(int from) {
+                return slots.nextSetBit(from);
+            }
+
+            @Override
+            Field decodeField(int slot, int field) {
+                return getField(slot, field);
+            }
+        };
+    }
+}
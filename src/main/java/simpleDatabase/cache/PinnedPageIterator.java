@@ -0,0 +1,75 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Database;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Iterator over the tuples of a page pinned by {@link BufferPool#pinPage}. The page
+ * stays pinned while it is read, so the tuples are decoded lazily from the cached
+ * page, and the latch of the page is held shared only while the next tuple is
+ * decoded. The page is unpinned once the iterator is exhausted or closed.
+ *
+ * 扫描时页一直pin着，每取一个元组才加一次共享latch，不用先把整页解码出来
+ */
+class PinnedPageIterator implements Iterator<Tuple> {
+
+    private final PageId pid;
+
+    private final Iterator<Tuple> tuples;
+
+    private final Lock latch;
+
+    private boolean pinned = true;
+
+    /**
+     * @param pid the page, pinned by the caller; the pin is handed over to this iterator
+     * @param tuples an iterator over the tuples of the page that decodes them as it goes
+     */
+    PinnedPageIterator(PageId pid, Iterator<Tuple> tuples) {
+        this.pid = pid;
+        this.tuples = tuples;
+        this.latch = Database.getBufferPool().getLatch(pid).readLock();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!pinned) return false;
+        boolean more;
+        latch.lock();
+        try {
+            more = tuples.hasNext();
+        } finally {
+            latch.unlock();
+        }
+        if (!more) close();
+        return more;
+    }
+
+    @Override
+    public Tuple next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        latch.lock();
+        try {
+            return tuples.next();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Unpin the page, if this iterator still has it pinned.
+     */
+    void close() {
+        if (!pinned) return;
+        pinned = false;
+        Database.getBufferPool().unpinPage(pid);
+    }
+}
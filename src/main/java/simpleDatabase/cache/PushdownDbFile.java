@@ -0,0 +1,27 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.util.List;
+
+/**
+ * A DbFile whose scans can evaluate predicates and skip columns while reading
+ * the pages, so rows that are filtered out never become Tuples.
+ *
+ * 支持把过滤条件和投影下推到扫描中的DbFile
+ *
+ * @see simpleDatabase.iterator.SeqScan#pushDown
+ */
+public interface PushdownDbFile extends DbFile {
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all filters.
+     *
+     * @param filters predicates on the fields of this file, may be empty
+     * @param fields indexes of the fields the caller reads; the other fields of
+     *               the returned tuples may be null. null means all fields.
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> filters, int[] fields);
+}
@@ -0,0 +1,113 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Database;
+
+/**
+ * ScanGroup lets concurrent full scans of one file share their page reads.
+ * Every scan reports the page it moves to; a scan that starts while others are
+ * running starts at the page the group reached last instead of page 0, reads
+ * to the end of the file and wraps around to the pages it skipped. Scans that
+ * run together then ask for the same pages at about the same time, the first
+ * one reads a page from disk and the others find it in the BufferPool, so N
+ * scans cost about as much I/O as one.
+ * <p>
+ * Only files larger than 1/{@link #MIN_POOL_FRACTION} of the BufferPool take
+ * part. Smaller files stay cached anyway, and their scans keep returning
+ * tuples in page order.
+ *
+ * 同一张表的多个全表扫描从当前扫描到的位置开始，到末尾后绕回开头，一起共享读盘
+ */
+class ScanGroup {
+
+    /** Files smaller than the pool size divided by this are always scanned from page 0 */
+    static final int MIN_POOL_FRACTION = 4;
+
+    private final DbFile file;
+
+    /* 正在进行的扫描数 */
+    private int scans;
+
+    /* 组里最近一次读到的页 */
+    private int position;
+
+    ScanGroup(DbFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Start a scan of the file.
+     * @return the cursor giving the pages of the scan in order
+     */
+    Cursor join() {
+        int start = 0;
+        synchronized (this) {
+            scans++;
+            if (scans > 1 && isLarge() && position < file.numPages()) start = position;
+        }
+        return new Cursor(start);
+    }
+
+    private synchronized void report(int pgNo) {
+        position = pgNo;
+    }
+
+    private synchronized void leave() {
+        scans--;
+    }
+
+    private boolean isLarge() {
+        // 按表自己的页大小算字节数，和缓冲池的容量比
+        long tableBytes = (long) file.numPages() * file.getPageSize();
+        return tableBytes > Database.getBufferPool().getCapacityBytes() / MIN_POOL_FRACTION;
+    }
+
+    /**
+     * The pages of one scan: from the start page to the end of the file,
+     * including pages added while scanning, then from page 0 to the page
+     * before the start page.
+     */
+    class Cursor {
+
+        private final int start;
+
+        private int pgNo;
+
+        private boolean wrapped;
+
+        private boolean done;
+
+        private Cursor(int start) {
+            this.start = start;
+            this.pgNo = start - 1;
+        }
+
+        /**
+         * @return the number of the next page to read, or -1 once every page
+         *         has been returned; the scan then leaves the group
+         */
+        int next() {
+            if (done) return -1;
+            int end = wrapped ? start : file.numPages();
+            if (pgNo + 1 < end) {
+                report(++pgNo);
+                return pgNo;
+            }
+            if (!wrapped && start > 0) { /* 绕回开头 */
+                wrapped = true;
+                pgNo = -1;
+                return next();
+            }
+            close();
+            return -1;
+        }
+
+        /**
+         * Leave the group without reading the remaining pages.
+         */
+        void close() {
+            if (done) return;
+            done = true;
+            leave();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package simpleDatabase.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * SegmentedFile stores the pages of a table in a list of fixed-size segment
+ * files, so a table is not limited by the size of a single file. The first
+ * segment is the table file itself, segment i &gt; 0 is the table file name
+ * followed by "." and i:
+ * <pre>
+ *   orders.dat  orders.dat.1  orders.dat.2 ...
+ * </pre>
+ * Every segment but the last holds exactly {@link #getSegmentSize()} bytes,
+ * rounded down to whole pages. Offsets inside a segment are 64 bit, and since
+ * every read or write opens its own file handle, different segments (and
+ * different pages of the same segment) can be read in parallel.
+ * <p>
+ * Files produced before segments existed are a valid first segment as long as
+ * they are smaller than the segment size.
+ *
+ * 把一张表的页分散存放在多个固定大小的段文件里
+ */
+public class SegmentedFile {
+
+    /** Default size of a segment, 1 GB */
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private static long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private final File file;
+
+    private final int pageSize;
+
+    private final int pagesPerSegment;
+
+    public SegmentedFile(File file, int pageSize) {
+        this.file = file;
+        this.pageSize = pageSize;
+        this.pagesPerSegment = pagesPerSegment(pageSize);
+    }
+
+    public static long getSegmentSize() {
+        return segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    // 段大小改变后，已有的表文件就不能正确读取了
+    public static void setSegmentSize(long size) {
+        segmentSize = size;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSegmentSize() {
+        segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    private static int pagesPerSegment(int pageSize) {
+        return (int) Math.max(1, segmentSize / pageSize);
+    }
+
+    /**
+     * @return the file of segment i
+     */
+    public File segment(int i) {
+        return i == 0 ? file : new File(file.getPath() + "." + i);
+    }
+
+    /**
+     * @return the number of whole pages stored in all segments
+     */
+    public int numPages() {
+        int seg = 0;
+        while (segment(seg + 1).exists()) seg++;
+        return seg * pagesPerSegment + (int) (segment(seg).length() / pageSize);
+    }
+
+    /**
+     * Read page pgNo into data. Bytes past the end of the segment are left as
+     * they are, i.e. a page that was never written reads as zeros.
+     */
+    public void read(int pgNo, byte[] data) throws IOException {
+        File seg = segment(pgNo / pagesPerSegment);
+        if (!seg.exists()) return;
+        try (RandomAccessFile raf = new RandomAccessFile(seg, "r")) {
+            raf.seek((long) (pgNo % pagesPerSegment) * pageSize);
+            raf.read(data, 0, pageSize);
+        }
+    }
+
+    /**
+     * Read count consecutive pages starting at pgNo into data, with one large
+     * read per segment they touch. Like {@link #read(int, byte[])}, bytes past
+     * the end of a segment are left as they are.
+     */
+    public void read(int pgNo, int count, byte[] data) throws IOException {
+        int off = 0;
+        while (count > 0) {
+            int n = Math.min(count, pagesPerSegment - pgNo % pagesPerSegment); /* 不跨段 */
+            File seg = segment(pgNo / pagesPerSegment);
+            if (seg.exists()) {
+                try (RandomAccessFile raf = new RandomAccessFile(seg, "r")) {
+                    raf.seek((long) (pgNo % pagesPerSegment) * pageSize);
+                    int len = n * pageSize, done = 0, r;
+                    while (done < len && (r = raf.read(data, off + done, len - done)) > 0) done += r;
+                }
+            }
+            pgNo += n;
+            count -= n;
+            off += n * pageSize;
+        }
+    }
+
+    /**
+     * Write page pgNo, creating its segment if needed.
+     */
+    public void write(int pgNo, byte[] data) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(segment(pgNo / pagesPerSegment), "rw")) {
+            raf.seek((long) (pgNo % pagesPerSegment) * pageSize);
+            raf.write(data, 0, pageSize);
+        }
+    }
+
+    /**
+     * Delete all segments.
+     */
+    public void delete() {
+        for (int i = 0; segment(i).exists(); i++) segment(i).delete();
+    }
+
+    /**
+     * @return a stream that writes pages sequentially from page 0, moving on to
+     *         the next segment whenever one is full; used by the converters.
+     *         Existing segments are deleted first.
+     */
+    public OutputStream openForWrite() throws IOException {
+        delete();
+        return new OutputStream() {
+
+            private final long bytesPerSegment = (long) pagesPerSegment * pageSize;
+
+            private int seg = 0;
+
+            private long written = 0;
+
+            private OutputStream os = new FileOutputStream(segment(0));
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (written == bytesPerSegment) {
+                        os.close();
+                        os = new FileOutputStream(segment(++seg));
+                        written = 0;
+                    }
+                    int n = (int) Math.min(len, bytesPerSegment - written);
+                    os.write(b, off, n);
+                    written += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                os.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                os.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,159 @@
+package simpleDatabase.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * SlotBitmap keeps the "slot used" bits of a page header in long words, so that
+ * counting the used slots and finding the next used or empty slot take a few
+ * word operations instead of a loop over every slot.
+ * <p>
+ * On disk the header is still the byte array described in {@link HeapPage}: bit
+ * i%8 of byte i/8 is set iff slot i is used. {@link #load} and {@link #store}
+ * convert between the two.
+ *
+ * 用long数组保存页头的slot位图，用popcount和numberOfTrailingZeros加速查找
+ */
+public class SlotBitmap {
+
+    private final int numSlots;
+
+    private final long[] words;
+
+    /* 已使用的slot数，随set更新 */
+    private int used;
+
+    public SlotBitmap(int numSlots) {
+        this.numSlots = numSlots;
+        this.words = new long[(numSlots + 63) >>> 6];
+    }
+
+    /**
+     * @return the number of header bytes needed for numSlots slots
+     */
+    public static int byteSize(int numSlots) {
+        return (numSlots + 7) >>> 3;
+    }
+
+    /**
+     * Read the header bytes starting at offset in buf.
+     */
+    public void load(ByteBuffer buf, int offset) {
+        Arrays.fill(words, 0L);
+        int bytes = byteSize(numSlots);
+        for (int i = 0; i < bytes; i++)
+            words[i >>> 3] |= (buf.get(offset + i) & 0xFFL) << ((i & 7) << 3);
+        // 页头最后一个字节里超出numSlots的位不算
+        if ((numSlots & 63) != 0) words[words.length - 1] &= (1L << (numSlots & 63)) - 1;
+        used = 0;
+        for (long w : words) used += Long.bitCount(w);
+    }
+
+    /**
+     * Write the header bytes into buf starting at offset.
+     */
+    public void store(ByteBuffer buf, int offset) {
+        int bytes = byteSize(numSlots);
+        for (int i = 0; i < bytes; i++)
+            buf.put(offset + i, getByte(i));
+    }
+
+    /**
+     * @return header byte i, as it is laid out on disk
+     */
+    public byte getByte(int i) {
+        return (byte) (words[i >>> 3] >>> ((i & 7) << 3));
+    }
+
+    public int numSlots() {
+        return numSlots;
+    }
+
+    /**
+     * @return the number of used slots
+     */
+    public int cardinality() {
+        return used;
+    }
+
+    public boolean get(int i) {
+        return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public void set(int i, boolean value) {
+        if (get(i) == value) return;
+        if (value) {
+            words[i >>> 6] |= 1L << i;
+            used++;
+        } else {
+            words[i >>> 6] &= ~(1L << i);
+            used--;
+        }
+    }
+
+    /**
+     * @return the first used slot at or after from, or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        if (from < 0) from = 0;
+        if (from >= numSlots) return -1;
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                return i < numSlots ? i : -1;
+            }
+            if (++w == words.length) return -1;
+            word = words[w];
+        }
+    }
+
+    /**
+     * @return the first empty slot at or after from, or -1 if there is none
+     */
+    public int nextClearBit(int from) {
+        if (from < 0) from = 0;
+        if (from >= numSlots) return -1;
+        int w = from >>> 6;
+        long word = ~words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                return i < numSlots ? i : -1;
+            }
+            if (++w == words.length) return -1;
+            word = ~words[w];
+        }
+    }
+
+    /**
+     * @return the last used slot at or before from, or -1 if there is none
+     */
+    public int previousSetBit(int from) {
+        if (from >= numSlots) from = numSlots - 1;
+        if (from < 0) return -1;
+        int w = from >>> 6;
+        long word = words[w] & (-1L >>> (63 - (from & 63)));
+        while (true) {
+            if (word != 0) return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+            if (w-- == 0) return -1;
+            word = words[w];
+        }
+    }
+
+    /**
+     * @return the last empty slot at or before from, or -1 if there is none
+     */
+    public int previousClearBit(int from) {
+        if (from >= numSlots) from = numSlots - 1;
+        if (from < 0) return -1;
+        int w = from >>> 6;
+        long word = ~words[w] & (-1L >>> (63 - (from & 63)));
+        while (true) {
+            if (word != 0) return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+            if (w-- == 0) return -1;
+            word = ~words[w];
+        }
+    }
+}
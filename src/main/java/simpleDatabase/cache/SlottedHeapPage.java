@@ -0,0 +1,350 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * SlottedHeapPage stores variable-length tuples for HeapFiles created with
+ * {@link HeapFile.PageFormat#SLOTTED}.
+ * <p>
+ * The page starts with a slot directory and the records are packed against the
+ * end of the page:
+ * <pre>
+ *   [numSlots:u16][offset:u16 length:u16] * numSlots ... free space ... [records]
+ * </pre>
+ * A slot with length 0 is empty and is reused by the next insert. Int fields take
+ * 4 bytes, string fields take a 2 byte length plus the characters actually used,
+ * so short strings no longer pay for {@link Type#STRING_LEN} bytes.
+ * <p>
+ * Strings longer than {@link #INLINE_STRING_LEN} are moved to an overflow chain
+ * by the HeapFile. Their length word then has the high bit set and is followed by
+ * the first {@link #OVERFLOW_PREFIX_LEN} characters, the full length (int) and the
+ * first overflow page number (int).
+ * <p>
+ * Deleting a tuple slides the records in front of it towards the end of the page,
+ * so the free space is always one hole between the directory and the records.
+ * Slot numbers never move, so RecordIds stay valid across compaction.
+ *
+ * 变长记录的页，slot目录在前，记录从页尾往前放，删除时压缩
+ */
+public class SlottedHeapPage implements TuplePage {
+
+    /** Strings longer than this are stored in an overflow chain */
+    static final int INLINE_STRING_LEN = 64;
+
+    /** Number of characters of an overflowed string kept in the record */
+    static final int OVERFLOW_PREFIX_LEN = 16;
+
+    private static final int OVERFLOW_FLAG = 0x8000;
+
+    private static final int DIRECTORY_HEADER_SIZE = 2;
+
+    private static final int SLOT_SIZE = 4;
+
+    /** Offsets and lengths in the slot directory are u16 */
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    final HeapPageId pid;
+
+    final TupleDesc td;
+
+    private final byte[] data;
+
+    private final ByteBuffer buf;
+
+    private int numSlots;
+
+    /* 记录区的起始位置，[freeEnd, pageSize) 全是记录 */
+    private int freeEnd;
+
+    private TransactionId lastDirtyOperation;
+
+    byte[] oldData;
+
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * An all-zero array is a valid empty page.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()),
+                Database.getCatalog().getPageSize(id.getTableId()));
+    }
+
+    /**
+     * Create a SlottedHeapPage of a table that is not in the Catalog, see
+     * {@link HeapFileEncoder#convertToSlotted}.
+     */
+    SlottedHeapPage(HeapPageId id, byte[] data, TupleDesc td, int pageSize) throws IOException {
+        if (data.length != pageSize)
+            throw new IOException("page data must be " + pageSize + " bytes");
+        this.pid = id;
+        this.td = td;
+        this.data = data;
+        this.buf = ByteBuffer.wrap(data);
+        this.numSlots = buf.getShort(0) & 0xFFFF;
+
+        freeEnd = data.length;
+        for (int i = 0; i < numSlots; ++i)
+            if (isSlotUsed(i)) freeEnd = Math.min(freeEnd, slotOffset(i));
+        if (freeEnd < directorySize(numSlots))
+            throw new IOException("corrupted slotted page " + id.getPageNumber());
+
+        setBeforeImage();
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData.clone();
+            }
+            return new SlottedHeapPage(pid, oldDataRef, td, oldDataRef.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) oldData = new byte[data.length];
+            System.arraycopy(data, 0, oldData, 0, data.length);
+        }
+    }
+
+    /**
+     * The directory and the records are kept up to date on every change, so the
+     * page image is simply a copy of the backing array.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastDirtyOperation = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return lastDirtyOperation;
+    }
+
+    /**
+     * @return the number of bytes between the slot directory and the records
+     */
+    public int getFreeSpace() {
+        return freeEnd - directorySize(numSlots);
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        int need = encodedSize(t);
+        if (firstEmptySlot() == -1) need += SLOT_SIZE;
+        return need <= getFreeSpace();
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tuple Description is mismatch");
+
+        int len = encodedSize(t);
+        int slot = firstEmptySlot();
+        int need = slot == -1 ? len + SLOT_SIZE : len;
+        if (need > getFreeSpace())
+            throw new DbException("the page is full, cannot insert a tuple of " + len + " bytes");
+
+        if (slot == -1) {
+            slot = numSlots++;
+            buf.putShort(0, (short) numSlots);
+        }
+        freeEnd -= len;
+        writeRecord(t, freeEnd);
+        setSlot(slot, freeEnd, len);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("this tuple is not on the page");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tuple slot " + slot + " is already empty");
+
+        int off = slotOffset(slot), len = slotLength(slot);
+        // 把在它前面的记录整体往后挪len个字节，填上空洞
+        System.arraycopy(data, freeEnd, data, freeEnd + len, off - freeEnd);
+        for (int i = 0; i < numSlots; ++i)
+            if (isSlotUsed(i) && slotOffset(i) < off) setSlot(i, slotOffset(i) + len, slotLength(i));
+        for (int i = freeEnd; i < freeEnd + len; ++i) data[i] = 0;
+        freeEnd += len;
+        setSlot(slot, 0, 0);
+
+        // 末尾的空slot可以直接回收
+        while (numSlots > 0 && !isSlotUsed(numSlots - 1)) setSlot(--numSlots, 0, 0);
+        buf.putShort(0, (short) numSlots);
+        t.setRecordId(null);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i < numSlots && slotLength(i) != 0;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return iterator(null, null);
+    }
+
+    private int firstEmptySlot() {
+        for (int i = 0; i < numSlots; ++i)
+            if (!isSlotUsed(i)) return i;
+        return -1;
+    }
+
+    private static int directorySize(int slots) {
+        return DIRECTORY_HEADER_SIZE + slots * SLOT_SIZE;
+    }
+
+    private int slotOffset(int i) {
+        return buf.getShort(directorySize(i)) & 0xFFFF;
+    }
+
+    private int slotLength(int i) {
+        return buf.getShort(directorySize(i) + 2) & 0xFFFF;
+    }
+
+    private void setSlot(int i, int offset, int length) {
+        buf.putShort(directorySize(i), (short) offset);
+        buf.putShort(directorySize(i) + 2, (short) length);
+    }
+
+    /**
+     * @return the number of bytes t takes in this format
+     */
+    private int encodedSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); ++i) {
+            if (td.getFieldType(i) == Type.INT_TYPE) size += Type.INT_TYPE.getLen();
+            else size += 2 + ((StringField) t.getField(i)).getValue().length();
+            if (t.getField(i) instanceof OverflowStringField) size += 8;
+        }
+        return size;
+    }
+
+    private void writeRecord(Tuple t, int offset) {
+        int pos = offset;
+        for (int i = 0; i < td.numFields(); ++i) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                buf.putInt(pos, ((IntField) f).getValue());
+                pos += 4;
+            } else {
+                String s = ((StringField) f).getValue();
+                boolean overflow = f instanceof OverflowStringField;
+                buf.putShort(pos, (short) (overflow ? s.length() | OVERFLOW_FLAG : s.length()));
+                pos += 2;
+                for (int j = 0; j < s.length(); ++j) data[pos++] = (byte) s.charAt(j);
+                if (overflow) {
+                    buf.putInt(pos, ((OverflowStringField) f).getTotalLength());
+                    buf.putInt(pos + 4, ((OverflowStringField) f).getFirstPage());
+                    pos += 8;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the tuple stored in slot as it is laid out on the page, i.e. long
+     *         strings are still OverflowStringFields
+     */
+    public Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot)) throw new NoSuchElementException("slot " + slot + " is empty");
+        return readRecord(slot);
+    }
+
+    private Tuple readRecord(int slot) {
+        Tuple t = new Tuple(td);
+        int pos = slotOffset(slot);
+        for (int i = 0; i < td.numFields(); ++i) {
+            t.setField(i, readField(i, pos));
+            pos = skipField(i, pos);
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    /**
+     * @return the position right after field i, which starts at pos
+     */
+    private int skipField(int i, int pos) {
+        if (td.getFieldType(i) == Type.INT_TYPE) return pos + 4;
+        int len = buf.getShort(pos) & 0xFFFF;
+        if ((len & OVERFLOW_FLAG) != 0) return pos + 2 + (len & ~OVERFLOW_FLAG) + 8;
+        return pos + 2 + len;
+    }
+
+    private Field readField(int i, int pos) {
+        if (td.getFieldType(i) == Type.INT_TYPE) return new IntField(buf.getInt(pos));
+        int len = buf.getShort(pos) & 0xFFFF;
+        if ((len & OVERFLOW_FLAG) != 0) {
+            len &= ~OVERFLOW_FLAG;
+            String prefix = new String(data, pos + 2, len);
+            return new OverflowStringField(prefix, buf.getInt(pos + 2 + len), buf.getInt(pos + 6 + len));
+        }
+        return new StringField(new String(data, pos + 2, len));
+    }
+
+    public Iterator<Tuple> iterator(List<Predicate> filters, int[] fields) {
+        return new FilteredTupleIterator(pid, td, filters, fields) {
+
+            /* 当前记录每个field的起始位置，变长记录只能从头走一遍 */
+            private final int[] fieldPos = new int[td.numFields()];
+
+            @Override
+            int nextUsedSlot(int from) {
+                for (int i = from; i < numSlots; ++i)
+                    if (isSlotUsed(i)) return i;
+                return -1;
+            }
+
+            @Override
+            void seek(int slot) {
+                int pos = slotOffset(slot);
+                for (int i = 0; i < fieldPos.length; ++i) {
+                    fieldPos[i] = pos;
+                    pos = skipField(i, pos);
+                }
+            }
+
+            @Override
+            Field decodeField(int slot, int field) {
+                return readField(field, fieldPos[field]);
+            }
+
+            @Override
+            boolean matches(Predicate p, Field f) {
+                // 页上只有长字符串的前缀，交给HeapFile读出全文后再判断
+                return f instanceof OverflowStringField || super.matches(p, f);
+            }
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.exception.DbException;
+import simpleDatabase.operator.Predicate;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * TuplePage is the part of a page that HeapFile needs to store and scan tuples,
+ * independent of how the page lays them out on disk.
+ *
+ * HeapFile 通过这个接口操作page，不关心page内部是定长slot还是变长记录
+ *
+ * @see HeapPage
+ * @see SlottedHeapPage
+ */
+public interface TuplePage extends Page {
+
+    HeapPageId getId();
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to reflect
+     * that it is now stored on this page.
+     * @throws DbException if the page has no room for the tuple or the tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Delete the specified tuple from the page.
+     * @throws DbException if this tuple is not on this page, or its slot is already empty.
+     */
+    void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return true if {@link #insertTuple} would succeed for t
+     */
+    boolean hasRoomFor(Tuple t);
+
+    /**
+     * @return the tuple stored in slot; for pages with overflow chains, long
+     *         strings are still OverflowStringFields
+     * @throws NoSuchElementException if the slot is empty
+     */
+    Tuple getTuple(int slot);
+
+    /**
+     * @return an iterator over all tuples stored on this page
+     */
+    Iterator<Tuple> iterator();
+
+    /**
+     * Scan the page without building Tuples for rows that are filtered out.
+     * The fields a filter looks at are decoded first, and a Tuple is only created
+     * once all filters pass.
+     * @param filters predicates every returned tuple satisfies, may be empty
+     * @param fields indexes of the fields to decode; fields that are neither
+     *               listed nor used by a filter are left null in the returned
+     *               tuples. null means all fields.
+     * @return an iterator over the matching tuples stored on this page
+     */
+    Iterator<Tuple> iterator(List<Predicate> filters, int[] fields);
+}
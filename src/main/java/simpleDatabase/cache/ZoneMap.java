@@ -0,0 +1,132 @@
+package simpleDatabase.cache;
+
+import simpleDatabase.basic.Type;
+import simpleDatabase.field.IntField;
+import simpleDatabase.operator.Predicate;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ZoneMap keeps the smallest and the largest value of every int column on every
+ * page of a HeapFile, so a filtered scan can skip the pages whose ranges cannot
+ * satisfy its predicates without fetching them from the BufferPool.
+ * <p>
+ * The ranges only have to contain every value on the page, not be exact:
+ * <ul>
+ * <li>inserting a tuple widens the range of its page right away, so scans never
+ *     miss uncommitted tuples of their own transaction;</li>
+ * <li>deleting a tuple leaves the range as it is, since the delete may still be
+ *     rolled back;</li>
+ * <li>a page gets its exact range again when it is written to disk or read
+ *     clean by a scan.</li>
+ * </ul>
+ * Pages that have not been seen since the file was opened have no range and are
+ * never skipped.
+ *
+ * 每页每个int列的最小最大值，扫描时跳过不可能满足条件的页
+ */
+class ZoneMap {
+
+    /* int列的下标 */
+    private final int[] columns;
+
+    /* 第p页第c个int列的范围为 [min[p][c], max[p][c]]，null表示还不知道 */
+    private int[][] min = new int[0][];
+
+    private int[][] max = new int[0][];
+
+    ZoneMap(TupleDesc td) {
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            if (td.getFieldType(i) == Type.INT_TYPE) n++;
+        columns = new int[n];
+        n = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            if (td.getFieldType(i) == Type.INT_TYPE) columns[n++] = i;
+    }
+
+    /**
+     * Recompute the ranges of a page from its content.
+     */
+    synchronized void reset(TuplePage page) {
+        int pgNo = page.getId().getPageNumber();
+        ensureCapacity(pgNo);
+        int[] lo = new int[columns.length], hi = new int[columns.length];
+        Arrays.fill(lo, Integer.MAX_VALUE);
+        Arrays.fill(hi, Integer.MIN_VALUE);
+        Iterator<Tuple> it = page.iterator(null, columns);
+        while (it.hasNext()) widen(lo, hi, it.next());
+        min[pgNo] = lo;
+        max[pgNo] = hi;
+    }
+
+    /**
+     * Widen the ranges of page pgNo so that they contain the values of t.
+     */
+    synchronized void add(int pgNo, Tuple t) {
+        if (pgNo >= min.length || min[pgNo] == null) return;
+        widen(min[pgNo], max[pgNo], t);
+    }
+
+    private void widen(int[] lo, int[] hi, Tuple t) {
+        for (int c = 0; c < columns.length; c++) {
+            int v = ((IntField) t.getField(columns[c])).getValue();
+            if (v < lo[c]) lo[c] = v;
+            if (v > hi[c]) hi[c] = v;
+        }
+    }
+
+    /**
+     * @return true if page pgNo has no range yet
+     */
+    synchronized boolean isUnknown(int pgNo) {
+        return pgNo >= min.length || min[pgNo] == null;
+    }
+
+    /**
+     * @return false only if no tuple on page pgNo can satisfy all filters
+     */
+    synchronized boolean mayMatch(int pgNo, List<Predicate> filters) {
+        if (filters == null || isUnknown(pgNo)) return true;
+        for (Predicate p : filters) {
+            int c = Arrays.binarySearch(columns, p.getIdx());
+            if (c < 0 || !(p.getOperand() instanceof IntField)) continue;
+            if (!mayMatch(p.getOp(), ((IntField) p.getOperand()).getValue(), min[pgNo][c], max[pgNo][c]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if some v in [lo, hi] satisfies "v op operand"
+     */
+    private static boolean mayMatch(Predicate.Op op, int operand, int lo, int hi) {
+        if (lo > hi) return false; /* 空页 */
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return lo <= operand && operand <= hi;
+            case GREATER_THAN:
+                return hi > operand;
+            case GREATER_THAN_OR_EQ:
+                return hi >= operand;
+            case LESS_THAN:
+                return lo < operand;
+            case LESS_THAN_OR_EQ:
+                return lo <= operand;
+            case NOT_EQUALS:
+                return lo != operand || hi != operand;
+            default:
+                return true;
+        }
+    }
+
+    private void ensureCapacity(int pgNo) {
+        if (pgNo < min.length) return;
+        int size = Math.max(pgNo + 1, min.length * 2);
+        min = Arrays.copyOf(min, size);
+        max = Arrays.copyOf(max, size);
+    }
+}
@@ -0,0 +1,144 @@
+package simpleDatabase.field;
+
+import simpleDatabase.basic.Type;
+import simpleDatabase.operator.Predicate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, the key of a B+ tree
+ * keyed on more than one field, e.g. (tenant_id, created_at).
+ * <p>
+ * Composite fields compare lexicographically, component by component. A composite
+ * field with fewer components than the other, or a plain Field, is compared as a
+ * prefix: only the components both have are compared, so the prefix (5) is equal
+ * to every key whose first component is 5.
+ *
+ * 组合键：按字典序比较，短的当前缀比较
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields the components of this field, at least one
+     */
+    public CompositeField(Field[] fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one component");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of components of this field
+     */
+    public int size() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th component of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the first n components of this field, as a composite field
+     */
+    public CompositeField prefix(int n) {
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    /**
+     * Write the components one after the other; each has the fixed length of its type.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    public void serialize(ByteBuffer buf) {
+        for (Field f : fields)
+            f.serialize(buf);
+    }
+
+    /**
+     * Compare the components this field and val have in common, in order.
+     *
+     * @return a negative number, zero or a positive number as this field is less
+     *         than, equal to or greater than val on those components
+     */
+    public int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[]{val};
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (!fields[i].compare(Predicate.Op.EQUALS, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, lexicographically and
+     * as a prefix, see the class comment. LIKE is EQUALS.
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int cmp = compareTo(val);
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of the first component; the length of a composite field is
+     * the sum of the lengths of the types of its components.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
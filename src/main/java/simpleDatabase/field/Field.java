@@ -7,6 +7,7 @@ import simpleDatabase.basic.Type;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in
@@ -20,6 +21,13 @@ public interface Field extends Serializable{
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write the same bytes as {@link #serialize(DataOutputStream)} at the current
+     * position of buf, advancing it. Used by pages that serialize in place.
+     * @param buf The buffer to write to; must have {@link Type#getLen} bytes remaining.
+     */
+    void serialize(ByteBuffer buf);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
@@ -5,6 +5,7 @@ import simpleDatabase.operator.Predicate;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -39,6 +40,17 @@ public class StringField implements Field {
 			value = s;
 	}
 
+	/**
+	 * Constructor for a value that is kept whole. Only writing it to a fixed width
+	 * record cuts it to Type.STRING_LEN; SLOTTED heap files store it in full.
+	 *
+	 * @param s
+	 *            The value of this field.
+	 */
+	public StringField(String s) {
+		this(s, s.length());
+	}
+
 	public String toString() {
 		return value;
 	}
@@ -52,9 +64,11 @@ public class StringField implements Field {
 	}
 
 	/**
-	 * Write this string to dos. Always writes maxSize + 4 bytes to the passed
-	 * in dos. First four bytes are string length, next bytes are string, with
-	 * remainder padded with 0 to maxSize.
+	 * Write this string to dos. Always writes Type.STRING_LEN + 4 bytes to the
+	 * passed in dos, the fixed width {@link Type#parse} expects. First four bytes
+	 * are string length, next bytes are string, with remainder padded with 0 to
+	 * Type.STRING_LEN. Longer values are truncated; SLOTTED heap files keep them
+	 * whole in overflow pages instead.
 	 * 
 	 * @param dos
 	 *            Where the string is written
@@ -62,9 +76,9 @@ public class StringField implements Field {
 	 */
 	public void serialize(DataOutputStream dos) throws IOException {
 		String s = value;
-		int overflow = maxSize - s.length();
+		int overflow = Type.STRING_LEN - s.length();
 		if (overflow < 0) {
-			String news = s.substring(0, maxSize);
+			String news = s.substring(0, Type.STRING_LEN);
 			s = news;
 		}
 		dos.writeInt(s.length());
@@ -73,6 +87,19 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Same layout as {@link #serialize(DataOutputStream)}, written straight into
+	 * buf without any temporary arrays.
+	 */
+	public void serialize(ByteBuffer buf) {
+		int len = Math.min(value.length(), Type.STRING_LEN);
+		buf.putInt(len);
+		for (int i = 0; i < len; i++)
+			buf.put((byte) value.charAt(i));
+		for (int i = len; i < Type.STRING_LEN; i++)
+			buf.put((byte) 0);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -1,12 +1,31 @@
 package simpleDatabase.index;
 
-import Predicate.Op;
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Debug;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.CompositeField;
+import simpleDatabase.field.Field;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate.Op;
+import simpleDatabase.others.AbstractDbFileIterator;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
 
 /**
  * BTreeFile is an implementation of a DbFile that stores a B+ tree.
@@ -23,10 +42,13 @@ import java.util.NoSuchElementException;
  */
 public class BTreeFile implements DbFile {
 
+	/** Optimistic descents tried by findLeafPageOptimistic before it falls back to locking */
+	static final int MAX_OPTIMISTIC_RESTARTS = 3;
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private int keyField;
+	private final int[] keyFields;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -37,9 +59,27 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields, e.g. (tenant_id, created_at).
+	 * The tuples are kept in the lexicographic order of the key fields, and the keys in
+	 * the internal pages are {@link simpleDatabase.field.CompositeField}s of the key
+	 * fields.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs a key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
 		this.td = td;
 	}
 
@@ -116,11 +156,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -172,46 +212,72 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * B+ tree pages always use the default page size of the BufferPool.
+	 */
+	public int getPageSize() {
+		return BufferPool.getPageSize();
+	}
+
+	/**
+	 * Returns the index of the field that this B+ tree is keyed on, the first one
+	 * if it is keyed on several
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of tuple t in this B+ tree: its key field, or a CompositeField
+	 * of its key fields
+	 */
+	public Field keyOf(Tuple t) {
+		return BTreePage.keyOf(t, keyFields);
 	}
 
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
-	 * 
+	 * leaf node with permission perm. Like every lock, these stay until the transaction
+	 * completes; lookups and inserts only come here when findLeafPageOptimistic keeps failing.
+	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
-	 * 
+	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
-	 * 
+	 *
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                                 Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, childFor(page, f), perm, f);
 	}
-	
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
 	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
-	 * 
+	 *
 	 * @param tid - the transaction id
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
-	 * 
+	 *
 	 */
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
                                         Field f)
@@ -219,10 +285,199 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Returns the child of an internal page on the path to the left-most leaf possibly
+	 * containing the key field f, or to the left-most leaf if f is null.
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		BTreeEntry e = null;
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + page.getId().getPageNumber() + " has no entries");
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Finds the left-most leaf page possibly containing the key field f and locks it with
+	 * permission perm, like findLeafPage, but without locking the root pointer and the
+	 * internal pages on the way down.
+	 *
+	 * The descent crabs on latches, which are not transaction locks and are only held
+	 * while a page is read: the root pointer and every internal page on the way down are
+	 * pinned and their latch is held shared while the child is picked, and the child is
+	 * latched before the latch of its parent is let go. Writers hold the latch of every
+	 * page they change exclusively until their operation ends (see getPage), so the
+	 * descent never sees a page while it is being changed. It does not go through pages
+	 * that another transaction has changed and not committed yet either: if that
+	 * transaction aborts, its pages stay as they are until the BufferPool puts back their
+	 * copies from disk, half changed if the abort came in the middle of a split. The
+	 * descent never waits: if a latch is taken or a page is dirty, it lets go of the path
+	 * and restarts from the root pointer.
+	 *
+	 * The leaf is locked after every latch is let go, as the lock may have to wait for
+	 * another transaction. Then every page on the path is checked again: it must have the
+	 * same version and still be the copy held by the BufferPool (an abort replaces a page
+	 * with a fresh copy from disk). If any check fails, the leaf may not be the right one
+	 * any more and the descent restarts; the lock on that leaf stays, like every lock,
+	 * until the transaction completes.
+	 *
+	 * After MAX_OPTIMISTIC_RESTARTS failed attempts, the leaf is found with locks by
+	 * findLeafPage, so lookups and inserts still finish when writers keep changing the path.
+	 *
+	 * 乐观读：向下查找时不加事务锁，只用latch蟹行并记下每个页的版本号，锁住叶子之后
+	 * 再校验整条路径，有冲突就重来，多次失败后退回加锁的findLeafPage
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @return the left-most leaf page possibly containing the key field f, locked with perm
+	 *
+	 * @see BTreeInternalPage#getVersion()
+	 */
+	BTreeLeafPage findLeafPageOptimistic(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
+                                         Field f)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		for(int attempt = 0; attempt < MAX_OPTIMISTIC_RESTARTS; attempt++) {
+			List<Page> path = new ArrayList<Page>();
+			List<Long> versions = new ArrayList<Long>();
+			BTreePageId leafId = descend(tid, f, path, versions);
+			if(leafId == null) {
+				// 路径上的页正被别的事务改着，让它先做完
+				Thread.yield();
+				continue;
+			}
+
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, leafId, perm);
+			boolean valid = true;
+			for(int i = 0; i < path.size() && valid; i++) {
+				Page page = path.get(i);
+				valid = versionOf(page) == versions.get(i) && bp.isResident(page);
+			}
+			if(valid) {
+				return leaf;
+			}
+		}
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f);
+	}
+
+	/**
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
+	 * Used by the BTreeFile iterator.
+	 * @see #findLeafPageOptimistic(TransactionId, HashMap, Permissions, Field)
+	 */
+	BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPageOptimistic(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, f);
+	}
+
+	/**
+	 * Crab with shared latches from the root pointer down to the parent of the leaf
+	 * possibly containing f, adding every page read and its version to path and versions.
+	 *
+	 * @return the id of the leaf, or null if a latch on the way down was taken, a page on
+	 *         the way down is dirty by another transaction or the tree has no root yet
+	 */
+	private BTreePageId descend(TransactionId tid, Field f, List<Page> path, List<Long> versions)
+			throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		Page page = bp.pinPageUnlocked(pid);
+		Lock latch = bp.getLatch(pid).readLock();
+		if(!latch.tryLock()) {
+			bp.unpinPage(pid);
+			return null;
+		}
+		try {
+			while(true) {
+				// 别的事务还没提交的改动可能被回滚，操作中途出错时页甚至是改了一半的
+				if(page.isDirty() != null && !page.isDirty().equals(tid)) {
+					return null;
+				}
+				path.add(page);
+				versions.add(versionOf(page));
+				BTreePageId childId = page instanceof BTreeRootPtrPage
+						? ((BTreeRootPtrPage) page).getRootId() : childFor((BTreeInternalPage) page, f);
+				if(childId == null || childId.pgcateg() == BTreePageId.LEAF) {
+					return childId;
+				}
+
+				// latch crabbing: latch the child first, then let go of the parent
+				Page child = bp.pinPageUnlocked(childId);
+				Lock childLatch = bp.getLatch(childId).readLock();
+				if(!childLatch.tryLock()) {
+					bp.unpinPage(childId);
+					return null;
+				}
+				latch.unlock();
+				bp.unpinPage(pid);
+				pid = childId;
+				page = child;
+				latch = childLatch;
+			}
+		} finally {
+			latch.unlock();
+			bp.unpinPage(pid);
+		}
+	}
+
+	private static long versionOf(Page page) {
+		if(page instanceof BTreeRootPtrPage) {
+			return ((BTreeRootPtrPage) page).getVersion();
+		}
+		return ((BTreeInternalPage) page).getVersion();
+	}
+
+	/**
+	 * Let go of the latches and the pins getPage took on the pages an operation fetched
+	 * with READ_WRITE permission. Their locks stay until the transaction completes.
+	 *
+	 * @param dirtypages - the pages fetched with READ_WRITE permission by the operation
+	 */
+	static void releaseLatches(HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			unlatchExclusive(pid);
+		}
+	}
+
+	private static void unlatchExclusive(PageId pid) {
+		BufferPool bp = Database.getBufferPool();
+		bp.getLatch(pid).writeLock().unlock();
+		bp.unpinPage(pid);
+	}
+
+	/**
+	 * Mark pages of this operation dirty right before changing them. The pages must have
+	 * been fetched with READ_WRITE permission. Marking an internal or root pointer page
+	 * dirty also changes its version, which tells optimistic readers that went through
+	 * the page that the path they took may have changed.
+	 *
+	 * @param tid - the transaction id
+	 * @param pages - the pages about to be changed
+	 * @see #findLeafPageOptimistic(TransactionId, HashMap, Permissions, Field)
+	 */
+	static void markDirty(TransactionId tid, Page... pages) {
+		for(Page p : pages) {
+			p.markDirty(true, tid);
+		}
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
-	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
-	 * of the first tuple in the right-hand page (the key is "copied up"), and child pointers 
+	 * as needed to accommodate a new entry. The new entry should have a key separating the key
+	 * fields of the last tuple in the left-hand page and the first tuple in the right-hand page,
+	 * as short as possible (see {@link BTreePage#separator}), and child pointers 
 	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
 	 * pointers as needed.  
 	 * 
@@ -242,16 +497,41 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page on the right
+		markDirty(tid, page, newPage);
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		int numMoved = page.getNumTuples() / 2;
+		while(it.hasNext() && moved.size() < numMoved) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in between the page and its right sibling
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			markDirty(tid, rightSibling);
+			rightSibling.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the shortest key between the two pages up into the parent
+		Field midKey = BTreePage.separator(keyOf(page.reverseIterator().next()), keyOf(newPage.iterator().next()));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		markDirty(tid, parent);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		updateParentPointer(tid, dirtypages, parent.getId(), page.getId());
+		updateParentPointer(tid, dirtypages, parent.getId(), newPage.getId());
+
+		return field.compare(Op.GREATER_THAN, midKey) ? newPage : page;
 	}
 	
 	/**
@@ -279,16 +559,83 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
                                                            BTreeInternalPage page, Field field)
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		return splitInternalPage(tid, dirtypages, page, field, null);
+	}
+
+	/**
+	 * Split an internal page like above; if keep is not null, it is an entry of the page that
+	 * must not be pushed up, so that its two children stay on the same page, and the page
+	 * holding it is returned.
+	 * @see #getParentWithRoomForUpdate(TransactionId, HashMap, BTreeInternalPage, BTreeEntry)
+	 */
+	private BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+                                                BTreeInternalPage page, Field field, BTreeEntry keep)
+					throws DbException, IOException, TransactionAbortedException {
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// the upper entries move to the new page until it holds half of the bytes,
+		// the entry below them is pushed up into the parent
+		markDirty(tid, page, newPage);
+		boolean keepMoved = false;
+		BTreeEntry mid = page.reverseIterator().next();
+		while(newPage.getEntryBytes() < page.getEntryBytes() - page.getMaxEntrySize()
+				|| (keep != null && mid.getLeftChild().equals(keep.getLeftChild()))) {
+			keepMoved |= keep != null && mid.getLeftChild().equals(keep.getLeftChild());
+			page.deleteKeyAndRightChild(mid);
+			newPage.insertEntry(mid);
+			mid = page.reverseIterator().next();
+		}
+		page.deleteKeyAndRightChild(mid);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		markDirty(tid, parent);
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(keep != null) {
+			return keepMoved ? newPage : page;
+		}
+		return field.compare(Op.GREATER_THAN, mid.getKey()) ? newPage : page;
+	}
+
+	/**
+	 * Make sure the key of entry, an entry of parent, can be replaced by another key. The
+	 * keys on a compressed internal page take as many bytes as they need, so a longer key
+	 * may not fit on a page that is almost full; such a page is split first, keeping the
+	 * entry and its two children together.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parent - the page holding entry
+	 * @param entry - the entry whose key will be replaced; its record id is updated if it moves
+	 * @return the page holding entry
+	 * @see BTreeInternalPage#hasRoomForUpdate()
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeInternalPage getParentWithRoomForUpdate(TransactionId tid, HashMap<PageId, Page> dirtypages,
+                                                         BTreeInternalPage parent, BTreeEntry entry)
+					throws DbException, IOException, TransactionAbortedException {
+		if(parent.hasRoomForUpdate()) {
+			return parent;
+		}
+		BTreeInternalPage page = splitInternalPage(tid, dirtypages, parent, entry.getKey(), entry);
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getLeftChild().equals(entry.getLeftChild())) {
+				entry.setRecordId(e.getRecordId());
+				return page;
+			}
+		}
+		throw new DbException("lost the entry of page " + entry.getLeftChild().getPageNumber()
+				+ " while splitting page " + parent.getId().getPageNumber());
 	}
 	
 	/**
@@ -322,10 +669,12 @@ public class BTreeFile implements DbFile {
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
 					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
+			markDirty(tid, rootPtr);
 			rootPtr.setRootId(parent.getId());
 
 			// update the previous root to now point to this new root.
 			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
+			markDirty(tid, prevRootPage);
 			prevRootPage.setParentId(parent.getId());
 		}
 		else { 
@@ -361,6 +710,7 @@ public class BTreeFile implements DbFile {
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+			markDirty(tid, p);
 			p.setParentId(pid);
 		}
 
@@ -402,6 +752,11 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * A page fetched with read-write permission is pinned and its latch is held exclusively
+	 * until the operation ends with releaseLatches, so it is not evicted as a clean page while
+	 * the operation changes it. It is not marked dirty here: every change marks the page
+	 * dirty right before it is made, see markDirty.
+	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -418,10 +773,21 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
-			if(perm == Permissions.READ_WRITE) {
-				dirtypages.put(pid, p);
+			BufferPool bp = Database.getBufferPool();
+			Page p;
+			try {
+				if(perm == Permissions.READ_WRITE) {
+					p = bp.pinPage(tid, pid, perm);
+				}
+				else {
+					return bp.getPage(tid, pid, perm);
+				}
+			} catch (InterruptedException e) {
+				throw new TransactionAbortedException();
 			}
+			// 写操作结束之前一直pin着，不会被当成干净页换出
+			bp.getLatch(pid).writeLock().lock();
+			dirtypages.put(pid, p);
 			return p;
 		}
 	}
@@ -439,30 +805,41 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			// the root pointer is only locked when the root is missing, an insert that
+			// held a lock on it would make every root split wait for its transaction
+			if(!hasRoot(tid)) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				if(rootPtr.getRootId() == null) { // the root has just been created, so set the root pointer to point to it
+					BTreePageId rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+					markDirty(tid, rootPtr);
+					rootPtr.setRootId(rootId);
+				}
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_WRITE, keyOf(t));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+			// insert the tuple into the leaf page
+			markDirty(tid, leafPage);
+			leafPage.insertTuple(t);
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			// only the pages this operation changed, not every page it locked READ_WRITE
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			for(Page p : dirtypages.values()) {
+				if(p.isDirty() != null) {
+					dirtyPagesArr.add(p);
+				}
+			}
+			return dirtyPagesArr;
+		} finally {
+			releaseLatches(dirtypages);
 		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 	
 	/**
@@ -548,6 +925,8 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
+				parent = getParentWithRoomForUpdate(tid, dirtypages, parent, leftEntry);
+				markDirty(tid, page, leftSibling, parent);
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
 			}
 		}
@@ -559,6 +938,8 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
+				parent = getParentWithRoomForUpdate(tid, dirtypages, parent, rightEntry);
+				markDirty(tid, page, rightSibling, parent);
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
 			}
 		}
@@ -566,8 +947,8 @@ public class BTreeFile implements DbFile {
 	
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
-	 * half full.  Update the parent's entry so that the key matches the key field of the first
-	 * tuple in the right-hand page.
+	 * half full.  Update the parent's entry so that the key separates the key fields of the last
+	 * tuple in the left-hand page and the first tuple in the right-hand page.
 	 * 
 	 * @param page - the leaf page which is less than half full
 	 * @param sibling - the sibling which has tuples to spare
@@ -579,11 +960,23 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
                                      BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// take the tuples next to the page: the smallest of a right sibling,
+		// the largest of a left sibling
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		int numMoved = (sibling.getNumTuples() - page.getNumTuples()) / 2;
+		while(it.hasNext() && moved.size() < numMoved) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(BTreePage.separator(keyOf(left.reverseIterator().next()), keyOf(right.iterator().next())));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -618,10 +1011,11 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots && fitsMerged(leftSibling, page)) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
+				parent = getParentWithRoomForUpdate(tid, dirtypages, parent, leftEntry);
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
 			}
 		}
@@ -629,14 +1023,24 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots && fitsMerged(page, rightSibling)) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
+				parent = getParentWithRoomForUpdate(tid, dirtypages, parent, rightEntry);
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 		}
 	}
+
+	/**
+	 * @return true if the entries of the right page and the key pulled down from the parent
+	 *         fit on the left page. Always true for pages at minimum occupancy, unless they
+	 *         are compressed and their keys take very different numbers of bytes.
+	 */
+	private static boolean fitsMerged(BTreeInternalPage left, BTreeInternalPage right) {
+		return right.getEntryBytes() + left.getMaxEntrySize() <= left.getFreeBytes();
+	}
 	
 	/**
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
@@ -659,11 +1063,20 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
                                              BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
                                              BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// every entry rotates through the parent: the parent key comes down in front
+		// of the page, the last key of the left sibling goes up, until both pages
+		// hold about as many bytes
+		markDirty(tid, page, leftSibling, parent);
+		while(leftSibling.getEntryBytes() - page.getEntryBytes() > leftSibling.getMaxEntrySize()
+				&& page.getNumEmptySlots() > 0) {
+			BTreeEntry e = leftSibling.reverseIterator().next();
+			BTreePageId firstChild = page.iterator().next().getLeftChild();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), firstChild));
+			leftSibling.deleteKeyAndRightChild(e);
+			parentEntry.setKey(e.getKey());
+			parent.updateEntry(parentEntry);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -687,11 +1100,19 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
                                               BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
                                               BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// the parent key comes down behind the page, the first key of the
+		// right sibling goes up, until both pages hold about as many bytes
+		markDirty(tid, page, rightSibling, parent);
+		while(rightSibling.getEntryBytes() - page.getEntryBytes() > rightSibling.getMaxEntrySize()
+				&& page.getNumEmptySlots() > 0) {
+			BTreeEntry e = rightSibling.iterator().next();
+			BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, e.getLeftChild()));
+			rightSibling.deleteKeyAndLeftChild(e);
+			parentEntry.setKey(e.getKey());
+			parent.updateEntry(parentEntry);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -715,13 +1136,27 @@ public class BTreeFile implements DbFile {
 	protected void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages,
                                   BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry)
 					throws DbException, IOException, TransactionAbortedException {
+		markDirty(tid, leftPage, rightPage);
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			markDirty(tid, rightSibling);
+			rightSibling.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -747,14 +1182,25 @@ public class BTreeFile implements DbFile {
 	protected void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages,
                                       BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry)
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the parent key down between the children of the two pages
+		markDirty(tid, leftPage, rightPage);
+		BTreePageId lastChild = leftPage.reverseIterator().next().getRightChild();
+		BTreePageId firstChild = rightPage.iterator().next().getLeftChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, firstChild));
+
+		ArrayList<BTreeEntry> moved = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(BTreeEntry e : moved) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -782,9 +1228,10 @@ public class BTreeFile implements DbFile {
 		// delete the entry in the parent.  If
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
+		markDirty(tid, parent);
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -793,6 +1240,7 @@ public class BTreeFile implements DbFile {
 				throw new DbException("attempting to delete a non-root node");
 			}
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			markDirty(tid, leftPage, rootPtr);
 			leftPage.setParentId(rootPtrId);
 			rootPtr.setRootId(leftPage.getId());
 
@@ -811,29 +1259,32 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
-	 * @return a list of all pages that were dirtied by this operation. Could include
-	 * many pages since parent pointers will need to be updated when an internal node merges.
+	 * @return the leaf page the tuple was deleted from. Every other page this operation
+	 * dirtied, e.g. siblings and parents of merged pages, is marked dirty as well.
 	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
 	 */
-	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+	public Page deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			markDirty(tid, page);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			// every page changed on the way was marked dirty before it was changed
+			return page;
+		} finally {
+			releaseLatches(dirtypages);
 		}
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 
 	/**
@@ -848,23 +1299,53 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createIfEmpty() throws IOException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			bw.write(emptyRootPtrData);
+			bw.write(emptyLeafData);
+			bw.close();
+		}
+	}
+
+	/**
+	 * Check under the latch of the root pointer page, without locking it, whether the
+	 * tree has a root that no other transaction is changing. Creates the root pointer
+	 * page and the root page if necessary.
+	 *
+	 * @param tid - the transaction id
+	 * @return false if the root pointer has no root yet or another transaction has
+	 *         changed it and not committed, in which case the caller has to lock it
+	 */
+	private boolean hasRoot(TransactionId tid) throws DbException, IOException {
+		createIfEmpty();
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.pinPageUnlocked(pid);
+		Lock latch = bp.getLatch(pid).readLock();
+		latch.lock();
+		try {
+			TransactionId dirtier = rootPtr.isDirty();
+			return rootPtr.getRootId() != null && (dirtier == null || dirtier.equals(tid));
+		} finally {
+			latch.unlock();
+			bp.unpinPage(pid);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -902,6 +1383,7 @@ public class BTreeFile implements DbFile {
 			// if headerPage is not null, it must have an empty slot
 			if(headerPage != null) {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				markDirty(tid, headerPage);
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
 				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
@@ -953,9 +1435,12 @@ public class BTreeFile implements DbFile {
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
+		// make sure the page is not in the buffer pool	or in the local cache; this operation
+		// may have freed the page itself and still hold it
+		if(dirtypages.remove(newPageId) != null) {
+			unlatchExclusive(newPageId);
+		}
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1010,6 +1495,7 @@ public class BTreeFile implements DbFile {
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
 			headerId = headerPage.getId();
+			markDirty(tid, headerPage, rootPtr);
 			headerPage.init();
 			rootPtr.setHeaderId(headerId);
 		}
@@ -1031,6 +1517,7 @@ public class BTreeFile implements DbFile {
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
 			headerId = headerPage.getId();
+			markDirty(tid, headerPage, prevPage);
 			headerPage.init();
 			headerPage.setPrevPageId(prevId);
 			prevPage.setNextPageId(headerId);
@@ -1043,6 +1530,7 @@ public class BTreeFile implements DbFile {
 		// emptyPageNo
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+		markDirty(tid, headerPage);
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
@@ -1052,6 +1540,12 @@ public class BTreeFile implements DbFile {
 	 * the affected pages of the file, and may block until the lock can be
 	 * acquired.
 	 * 
+	 * On a tree keyed on several fields, the value of ipred may be a CompositeField of
+	 * the first few key fields, which selects the keys equal to it on all but the last
+	 * of them and satisfying the operator on the last; a plain field is compared with
+	 * the first key field. Either way only the range of the tree holding the matching
+	 * keys is read.
+	 * 
 	 * @param tid - the transaction id
 	 * @param ipred - the index predicate value to filter on
 	 * @return an iterator for the filtered tuples
@@ -1099,10 +1593,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPageOptimistic(tid, null);
 		it = curp.iterator();
 	}
 
@@ -1123,7 +1614,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				curp = (BTreeLeafPage) f.getPage(tid, new HashMap<PageId, Page>(),
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
 				if (!it.hasNext())
@@ -1157,6 +1648,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
  * B+ Tree File
+ * <p>
+ * The predicate is turned into a range of keys, and the tuples are read from the
+ * left-most leaf possibly holding its lower bound until a key is past its upper bound.
+ * On a tree keyed on several fields the value of the predicate may be a CompositeField
+ * of the first few key fields: all its components but the last must be equal, and the
+ * operator applies to the last one, e.g. (5, x) with GREATER_THAN reads the keys
+ * (5, y, ...) with y &gt; x, and (5) with EQUALS reads the keys (5, ...).
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
@@ -1167,6 +1665,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	BTreeFile f;
 	IndexPredicate ipred;
 
+	// 谓词对应的键范围，null 表示这一端没有界
+	Field lower = null, upper = null;
+	boolean lowerInclusive = true, upperInclusive = true;
+	// NOT_EQUALS 和 LIKE 不是一个范围，从头到尾逐个检查
+	boolean bounded = true;
+
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
@@ -1177,6 +1681,44 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+
+		Field v = ipred.getField();
+		Field prefix = null;
+		if(v instanceof CompositeField) {
+			CompositeField c = (CompositeField) v;
+			if(c.size() == 1) {
+				v = c.getField(0);
+			}
+			else {
+				// 前面的分量相等，比较只作用在最后一个分量上
+				prefix = c.prefix(c.size() - 1);
+			}
+		}
+		switch(ipred.getOp()) {
+		case EQUALS:
+			lower = upper = v;
+			break;
+		case GREATER_THAN:
+			lower = v;
+			lowerInclusive = false;
+			upper = prefix;
+			break;
+		case GREATER_THAN_OR_EQ:
+			lower = v;
+			upper = prefix;
+			break;
+		case LESS_THAN:
+			lower = prefix;
+			upper = v;
+			upperInclusive = false;
+			break;
+		case LESS_THAN_OR_EQ:
+			lower = prefix;
+			upper = v;
+			break;
+		default:
+			bounded = false;
+		}
 	}
 
 	/**
@@ -1184,16 +1726,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		}
+		curp = f.findLeafPageOptimistic(tid, lower);
 		it = curp.iterator();
 	}
 
@@ -1210,19 +1743,19 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
+				Field key = f.keyOf(t);
+				if (!bounded) {
+					if (key.compare(ipred.getOp(), ipred.getField())) {
+						return t;
+					}
+					continue;
 				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
+				if (upper != null && !key.compare(upperInclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, upper)) {
+					// past the upper bound, we have reached the end
 					return null;
 				}
-				else if(ipred.getOp() == Op.EQUALS &&
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
+				if (lower == null || key.compare(lowerInclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN, lower)) {
+					return t;
 				}
 			}
 
@@ -1232,7 +1765,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				curp = (BTreeLeafPage) f.getPage(tid, new HashMap<PageId, Page>(),
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
 			}
@@ -1,13 +1,26 @@
 package simpleDatabase.index;
 
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.basic.Utility;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.Field;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate.Op;
+import simpleDatabase.tx.Transaction;
 import simpleDatabase.tx.TransactionId;
-import Predicate.Op;
 
 import java.io.*;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 
 /**
  * BTreeFileEncoder reads a comma delimited text file and converts it to
@@ -17,6 +30,9 @@ import java.util.Iterator;
 
 public class BTreeFileEncoder {
 
+	/** Default fraction of each page filled by the bulk load */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
 	/**
 	 * Encode the file using the BTreeFile's Insert method.
 	 * 
@@ -74,7 +90,7 @@ public class BTreeFileEncoder {
 
 		try {
 			TransactionId tid = new TransactionId();
-			DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
+			DbFileIterator it = Database.getCatalog().getDbFile(heapf.getId()).iterator(tid);
 			it.open();
 			int count = 0;
 			Transaction t = new Transaction();
@@ -115,7 +131,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
+		private int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -123,7 +139,17 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] {keyField});
+		}
+
+		/** 
+		 * Construct a TupleComparator for a composite key, comparing the key fields
+		 * in order
+		 * 
+		 * @param keyFields - the indexes of the fields the tuples are keyed on
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields;
 		}
 
 		/**
@@ -132,11 +158,13 @@ public class BTreeFileEncoder {
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
+			Field k1 = BTreePage.keyOf(t1, keyFields);
+			Field k2 = BTreePage.keyOf(t2, keyFields);
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -185,7 +213,33 @@ public class BTreeFileEncoder {
 	}
 
 	/** 
-	 * Faster method to encode the B+ tree file
+	 * Faster method to encode the B+ tree file, with full pages
+	 * 
+	 * @see #convert(File, File, File, int, int, Type[], char, int, double)
+	 */
+	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
+                                    int numFields, Type[] typeAr, char fieldSeparator, int keyField)
+					throws IOException, DbException, TransactionAbortedException {
+		return convert(inFile, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator, keyField,
+				DEFAULT_FILL_FACTOR);
+	}
+
+	/** 
+	 * Faster method to encode the B+ tree file: a bulk load that builds the tree bottom-up
+	 * instead of inserting the tuples one at a time.
+	 * 
+	 * The tuples are sorted on the keyField by an external merge sort, so the table does not
+	 * have to fit in memory: runs are sorted by all cores and merged while the pages are
+	 * written. Once the tuples are counted, the shape of the leaf level is known. Leaf pages
+	 * come first in the file, then the internal pages level by level, and the root last, so
+	 * every page is written in file order. How many keys fit on an internal page is only
+	 * known once the leaves are written (on compressed pages it depends on the longest
+	 * separator), so the parent pointers of the leaves and the root pointer are filled in
+	 * at the end.
+	 * 
+	 * Every page but the last two of a level holds fillFactor of the entries it has room for;
+	 * the last two share what is left so that no page is less than half full. A fill factor
+	 * below 1.0 leaves room for later inserts without splits.
 	 * 
 	 * @param inFile - the file containing the raw data
 	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
@@ -195,305 +249,336 @@ public class BTreeFileEncoder {
 	 * @param typeAr - array containing the types of the tuples
 	 * @param fieldSeparator - character separating fields in the raw data file
 	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1.0
 	 * @return the B+ tree file
 	 * @throws IOException
 	 * @throws DbException
 	 * @throws TransactionAbortedException
 	 */
 	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
-                                    int numFields, Type[] typeAr, char fieldSeparator, int keyField)
+                                    int numFields, Type[] typeAr, char fieldSeparator, int keyField,
+                                    double fillFactor)
 					throws IOException, DbException, TransactionAbortedException {
+		checkFillFactor(fillFactor);
+
 		// convert the inFile to HeapFile first.
 		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
-		// read all the tuples from the heap file and sort them on the keyField
-		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-		TransactionId tid = new TransactionId();
-		DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-		it.open();
-		while (it.hasNext()) {
-			Tuple tup = it.next();
-			tuples.add(tup);
+		// sort the tuples of the heap file on the keyField, in runs on disk
+		TupleSorter sorter = newSorter(heapf.getTupleDesc(), keyField);
+		try {
+			TransactionId tid = new TransactionId();
+			DbFileIterator it = Database.getCatalog().getDbFile(heapf.getId()).iterator(tid);
+			it.open();
+			while (it.hasNext()) {
+				sorter.add(it.next());
+			}
+			it.close();
+			Database.getBufferPool().transactionComplete(tid);
+
+			BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+			bulkLoad(bf, sorter, npagebytes, fillFactor);
+			Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+			return bf;
+		} finally {
+			sorter.close();
 		}
-		it.close();
-		Collections.sort(tuples, new TupleComparator(keyField));
+	}
 
-		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
-		Type keyType = typeAr[keyField];
-		int tableid = bf.getId();
+	/**
+	 * @return a sorter for tuples of td in the order of a B+ tree keyed on keyField, using
+	 *         every core
+	 */
+	static TupleSorter newSorter(TupleDesc td, int keyField) {
+		return newSorter(td, new int[] {keyField});
+	}
 
-		int nrecbytes = 0;
+	/**
+	 * @return a sorter for tuples of td in the order of a B+ tree keyed on keyFields, using
+	 *         every core
+	 */
+	static TupleSorter newSorter(TupleDesc td, int[] keyFields) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		return new TupleSorter(td, new TupleComparator(keyFields), runTuples(td, threads), threads);
+	}
+
+	/**
+	 * Write the tuples added to sorter as the B+ tree file bf, replacing whatever bf held.
+	 * The pages of bf must not be in the BufferPool.
+	 * 
+	 * @param bf - the BTreeFile to write
+	 * @param sorter - the tuples of the tree, from {@link #newSorter} for bf
+	 * @param npagebytes - number of bytes per page
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1.0
+	 */
+	static void bulkLoad(BTreeFile bf, TupleSorter sorter, int npagebytes, double fillFactor)
+			throws IOException, DbException {
+		checkFillFactor(fillFactor);
+		TupleDesc td = bf.getTupleDesc();
+		int numFields = td.numFields();
+		Type[] typeAr = new Type[numFields];
 		for (int i = 0; i < numFields ; i++) {
-			nrecbytes += typeAr[i].getLen();
+			typeAr[i] = td.getFieldType(i);
 		}
+		int[] keyFields = bf.keyFields();
+
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
-		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (td.getSize() * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
-		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
-
-		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
-
-		// first add some bytes for the root pointer page
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
-				BTreeRootPtrPage.createEmptyPageData()));
-
-		// next iterate through all the tuples and write out leaf pages
-		// and internal pages as they fill up.
-		// We wait until we have two full pages of tuples before writing out the first page
-		// so that we will not end up with any pages containing less than nrecords/2 tuples
-		// (unless it's the only page)
-		ArrayList<Tuple> page1 = new ArrayList<Tuple>();
-		ArrayList<Tuple> page2 = new ArrayList<Tuple>();
-		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
-			if(page1.size() < nrecords) {
-				page1.add(tup);
-			}
-			else if(page2.size() < nrecords) {
-				page2.add(tup);
-			}
-			else {
-				// write out a page of records
-				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
-				leafPage.setLeftSiblingId(leftSiblingId);
-				bf.writePage(leafPage);
-				leftSiblingId = leafPid;
-
-				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
-				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
-
-				page1 = page2;
-				page2 = new ArrayList<Tuple>();
-				page2.add(tup);
-			}
-		}
+		// lay out the leaves; the internal levels are laid out once the leaves are written
+		Level leaves = new Level(sorter.size(), nrecords, (nrecords + 1) / 2, fillFactor, 1);
+		writeTree(bf, sorter.sort(), leaves, npagebytes, fillFactor, numFields, typeAr, keyFields);
+	}
 
-		// now we need to deal with the end cases. There are two options:
-		// 1. We have less than or equal to a full page of records. Because of the way the code
-		//    was written above, we know this must be the only page
-		// 2. We have somewhere between one and two pages of records remaining.
-		// For case (1), we write out the page 
-		// For case (2), we divide the remaining records equally between the last two pages,
-		// write them out, and update the parent's child pointers.
-		BTreePageId lastPid = null;
-		if(page2.size() == 0) {
-			// write out a page of records - this is the root page
-			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(lastPage);
-		}
-		else {
-			// split the remaining tuples in half
-			int remainingTuples = page1.size() + page2.size();
-			ArrayList<Tuple> secondToLastPg = new ArrayList<Tuple>();
-			ArrayList<Tuple> lastPg = new ArrayList<Tuple>();
-			secondToLastPg.addAll(page1.subList(0, remainingTuples/2));
-			lastPg.addAll(page1.subList(remainingTuples/2, page1.size()));
-			lastPg.addAll(page2);
-
-			// write out the last two pages of records
-			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyField);
-			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
-			secondToLastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(secondToLastPage);
-
-			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(secondToLastPid);
-			bf.writePage(lastPage);
-
-			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
-			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
+	/**
+	 * @return the levels of the tree: leaves, then each level of internal pages up to the
+	 *         root, with nentries entries on a full internal page
+	 */
+	private static ArrayList<Level> layOut(Level leaves, int nentries, double fillFactor) {
+		ArrayList<Level> levels = new ArrayList<Level>();
+		levels.add(leaves);
+		while(levels.get(levels.size() - 1).pages > 1) {
+			Level below = levels.get(levels.size() - 1);
+			levels.add(new Level(below.pages, nentries + 1, nentries / 2 + 1, fillFactor,
+					below.firstPgNo + below.pages));
 		}
+		return levels;
+	}
 
-		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
-
-		// update the root pointer to point to the last page of the file
-		int root = bf.numPages();
-		int rootCategory = (root > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
-		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
-
-		// set all the parent and sibling pointers
-		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
-		setRightSiblingPtrs(bf, lastPid, null);
+	/**
+	 * @return the number of entries on a full internal page of a tree keyed on keyFields,
+	 *         where compressed keys take at most maxSeparatorBytes
+	 */
+	private static int maxEntries(TupleDesc td, int[] keyFields, int npagebytes, int maxSeparatorBytes) {
+		if(BTreeInternalPage.isCompressed(td, keyFields)) {
+			// 压缩的内部页按字节放key，按叶子之间最长的分隔key算
+			return BTreeInternalPage.getMaxEntries(td, keyFields, maxSeparatorBytes, npagebytes);
+		}
+		int nentrybytes = BTreePage.keySize(td, keyFields) + BTreeInternalPage.INDEX_SIZE;
+		// pointerbytes: one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		return (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+	}
 
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
+	private static void checkFillFactor(double fillFactor) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1.0");
+		}
 	}
 
 	/**
-	 * Set all the right sibling pointers by following the left sibling pointers
-	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - the id of the page to update with the right sibling pointer
-	 * @param rightSiblingId - the id of the page's right sibling
-	 * @throws IOException
-	 * @throws DbException
+	 * Number of tuples one thread sorts in memory, so that the runs being sorted take about a
+	 * quarter of the heap. A tuple object takes a few times its size on disk.
 	 */
-	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
-			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
-		}
+	private static int runTuples(TupleDesc td, int threads) {
+		long tupleBytes = 3L * td.getSize() + 32L * td.numFields() + 64;
+		long n = Runtime.getRuntime().maxMemory() / 4 / (threads + 1) / tupleBytes;
+		return (int) Math.max(1024, Math.min(n, 1 << 24));
 	}
 
 	/**
-	 * Recursive function to set all the parent pointers
-	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - id of the page to update with the parent pointer
-	 * @param parent - the id of the page's parent
-	 * @throws IOException
-	 * @throws DbException
+	 * The shape of one level of the tree: how many pages it has and which items of the
+	 * level below (tuples for the leaves, child pages for internal pages) go on each page.
+	 * Pages are filled to target, and the last two share the rest evenly, or the last one
+	 * takes it all if it fits.
 	 */
-	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent) 
-			throws IOException, DbException {
-		if(pid.pgcateg() == BTreePageId.INTERNAL) {
-			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
-			page.setParentId(parent);
-
-			Iterator<BTreeEntry> it = page.iterator();
-			BTreeEntry e = null;
-			while(it.hasNext()) {
-				e = it.next();
-				setParents(bf, e.getLeftChild(), pid);
+	private static class Level {
+		final long items;
+		final int target;
+		final long firstPgNo;
+		final long pages;
+		// pages filled to target, and the sizes of the one or two pages after them
+		private final long full;
+		private final long tail1;
+		private final long tail2;
+
+		Level(long items, int capacity, int min, double fillFactor, long firstPgNo) {
+			this.items = items;
+			this.target = Math.max(Math.max(min, 1), (int) (capacity * fillFactor));
+			this.firstPgNo = firstPgNo;
+			if(items <= capacity) {
+				full = 0;
+				tail1 = items;
+				tail2 = 0;
 			}
-			if(e != null) {
-				setParents(bf, e.getRightChild(), pid);
+			else {
+				long n = (items + target - 1) / target;
+				long tail = items - (n - 2) * target;
+				full = n - 2;
+				tail1 = (tail <= capacity ? tail : tail / 2);
+				tail2 = tail - tail1;
 			}
-			bf.writePage(page);
+			this.pages = full + 1 + (tail2 > 0 ? 1 : 0);
+		}
+
+		/** number of items on page i of this level */
+		long size(long i) {
+			if(i < full) return target;
+			return i == full ? tail1 : tail2;
 		}
-		else { // pid.pgcateg() == BTreePageId.LEAF
-			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-			page.setParentId(parent);
-			bf.writePage(page);
+
+		/** the page of this level item j of the level below goes on */
+		long pageOf(long j) {
+			if(j < full * target) return j / target;
+			return j < full * target + tail1 ? full : full + 1;
 		}
 	}
 
 	/**
-	 * Write out any remaining entries and update the parent pointers.
-	 * 
-	 * @param entries - the list of remaining entries
-	 * @param bf - the BTreeFile
-	 * @param nentries - number of entries per page
-	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
-	 * @throws IOException
+	 * Write all the pages of the tree in file order: the root pointer, the leaves, and the
+	 * internal pages bottom-up. The key separating every leaf from the one before it (see
+	 * {@link BTreePage#separator}) is written to a temporary file, in order; the level above
+	 * reads it back as its entries, and so on for every level. The internal levels are laid
+	 * out after the leaves are written, then the parent pointers of the leaves and the root
+	 * pointer are written in place.
 	 */
-	private static void cleanUpEntries(ArrayList<ArrayList<BTreeEntry>> entries,
-                                       BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid,
-                                       int keyField) throws IOException {
-		// As with the leaf pages, there are two options:
-		// 1. We have less than or equal to a full page of entries. Because of the way the code
-		//    was written, we know this must be the root page
-		// 2. We have somewhere between one and two pages of entries remaining.
-		// For case (1), we write out the page 
-		// For case (2), we divide the remaining entries equally between the last two pages,
-		// write them out, and update the parent's child pointers.
-		for(int i = 0; i < entries.size(); i++) {
-			int childPageCategory = (i == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
-			int size = entries.get(i).size();
-			if(size <= nentries) {
-				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+	private static void writeTree(BTreeFile bf, TupleSorter.SortedStream tuples, Level leaves,
+			int npagebytes, double fillFactor, int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException, DbException {
+		int tableid = bf.getId();
+		TupleDesc td = bf.getTupleDesc();
+		int keySize = BTreePage.keySize(td, keyFields);
+		boolean compressed = BTreeInternalPage.isCompressed(td, keyFields);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		ArrayList<Level> levels;
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(bf.getFile()), 64 * npagebytes);
+		File keyFile = null;
+		try {
+			// 根指针页先占位，最后再写
+			out.write(new byte[BTreeRootPtrPage.getPageSize()]);
+
+			// leaves, with their parent pointers left for later
+			int maxSeparatorBytes = 0;
+			keyFile = newKeyFile();
+			DataOutputStream keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keyFile)));
+			try {
+				Tuple last = null;
+				for(long i = 0; i < leaves.pages; i++) {
+					ArrayList<Tuple> pageTuples = new ArrayList<Tuple>();
+					for(long n = leaves.size(i); n > 0; n--) {
+						pageTuples.add(tuples.next());
+					}
+					if(i > 0) {
+						Field separator = BTreePage.separator(BTreePage.keyOf(last, keyFields),
+								BTreePage.keyOf(pageTuples.get(0), keyFields));
+						if(compressed) {
+							maxSeparatorBytes = Math.max(maxSeparatorBytes,
+									BTreeInternalPage.keyBytes(td, keyFields, separator, null));
+						}
+						separator.serialize(keysOut);
+					}
+					last = pageTuples.get(pageTuples.size() - 1);
+					BTreePageId pid = new BTreePageId(tableid, (int) (leaves.firstPgNo + i), BTreePageId.LEAF);
+					BTreeLeafPage page = new BTreeLeafPage(pid,
+							convertToLeafPage(pageTuples, npagebytes, numFields, typeAr, keyFields), keyFields);
+					if(i > 0) {
+						page.setLeftSiblingId(new BTreePageId(tableid, pid.getPageNumber() - 1, BTreePageId.LEAF));
+					}
+					if(i < leaves.pages - 1) {
+						page.setRightSiblingId(new BTreePageId(tableid, pid.getPageNumber() + 1, BTreePageId.LEAF));
+					}
+					out.write(page.getPageData());
+				}
+			} finally {
+				keysOut.close();
+				tuples.close();
 			}
-			else {
-				// split the remaining entries in half
-				ArrayList<BTreeEntry> secondToLastPg = new ArrayList<BTreeEntry>();
-				ArrayList<BTreeEntry> lastPg = new ArrayList<BTreeEntry>();
-				secondToLastPg.addAll(entries.get(i).subList(0, size/2));
-				lastPg.addAll(entries.get(i).subList(size/2 + 1, size));
-
-				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
-
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
-
-				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
-				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+			levels = layOut(leaves, maxEntries(td, keyFields, npagebytes, maxSeparatorBytes), fillFactor);
+
+			// internal pages, one level at a time
+			for(int level = 1; level < levels.size(); level++) {
+				Level below = levels.get(level - 1);
+				Level cur = levels.get(level);
+				int childCategory = (level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+				File nextKeyFile = newKeyFile();
+				DataInputStream keysIn = new DataInputStream(new BufferedInputStream(new FileInputStream(keyFile)));
+				keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(nextKeyFile)));
+				try {
+					long child = 0;
+					for(long i = 0; i < cur.pages; i++) {
+						long n = cur.size(i);
+						if(child > 0) {
+							// the key between this page and the one before goes up a level
+							readKey(keysIn, td, keyFields).serialize(keysOut);
+						}
+						ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+						for(long c = child + 1; c < child + n; c++) {
+							entries.add(new BTreeEntry(readKey(keysIn, td, keyFields),
+									new BTreePageId(tableid, (int) (below.firstPgNo + c - 1), childCategory),
+									new BTreePageId(tableid, (int) (below.firstPgNo + c), childCategory)));
+						}
+						child += n;
+						BTreePageId pid = new BTreePageId(tableid, (int) (cur.firstPgNo + i), BTreePageId.INTERNAL);
+						BTreeInternalPage page;
+						if(compressed) {
+							page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), keyFields);
+							for(BTreeEntry e : entries) {
+								page.insertEntry(e);
+							}
+						}
+						else {
+							page = new BTreeInternalPage(pid,
+									convertToInternalPage(entries, npagebytes, keySize, childCategory), keyFields);
+						}
+						page.setParentId(parentOf(levels, level, i, rootPtrId));
+						out.write(page.getPageData());
+					}
+				} finally {
+					keysIn.close();
+					keysOut.close();
+				}
+				keyFile.delete();
+				keyFile = nextKeyFile;
+			}
+		} finally {
+			out.close();
+			if(keyFile != null) {
+				keyFile.delete();
 			}
+		}
 
+		Level root = levels.get(levels.size() - 1);
+		int rootCategory = (levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+		RandomAccessFile raf = new RandomAccessFile(bf.getFile(), "rw");
+		try {
+			raf.write(new BTreeRootPtrPage(rootPtrId,
+					convertToRootPtrPage((int) root.firstPgNo, rootCategory, 0)).getPageData());
+			if(levels.size() > 1) {
+				// 叶子页的第一个int是父指针，见 BTreeLeafPage#writePageData
+				for(long i = 0; i < leaves.pages; i++) {
+					raf.seek(BTreeRootPtrPage.getPageSize() + (leaves.firstPgNo + i - 1) * npagebytes);
+					raf.writeInt(parentOf(levels, 0, i, rootPtrId).getPageNumber());
+				}
+			}
+		} finally {
+			raf.close();
 		}
 	}
 
-	/**
-	 * Recursive function to update the entries by adding a new Entry at a particular level
-	 * 
-	 * @param entries - the list of entries
-	 * @param bf - the BTreefile
-	 * @param e - the new entry 
-	 * @param level - the level of the new entry (0 is closest to the leaf pages)
-	 * @param nentries - number of entries per page
-	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
-	 * @throws IOException
-	 */
-	private static void updateEntries(ArrayList<ArrayList<BTreeEntry>> entries, 
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType,
-			int tableid, int keyField) throws IOException {
-		while(entries.size() <= level) {
-			entries.add(new ArrayList<BTreeEntry>());
+	private static BTreePageId parentOf(ArrayList<Level> levels, int level, long i, BTreePageId rootPtrId) {
+		if(level == levels.size() - 1) {
+			return rootPtrId;
 		}
+		Level above = levels.get(level + 1);
+		return new BTreePageId(rootPtrId.getTableId(), (int) (above.firstPgNo + above.pageOf(i)),
+				BTreePageId.INTERNAL);
+	}
 
-		int childPageCategory = (level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
-		int size = entries.get(level).size();
-
-		if(size > 0) {
-			BTreeEntry prev = entries.get(level).get(size-1);
-			entries.get(level).set(size-1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), e.getLeftChild()));
-			if(size == nentries * 2 + 1) {
-				// write out a page of entries
-				ArrayList<BTreeEntry> pageEntries = new ArrayList<BTreeEntry>();
-				pageEntries.addAll(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
-
-				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
-				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
-				ArrayList<BTreeEntry> remainingEntries = new ArrayList<BTreeEntry>();
-				remainingEntries.addAll(entries.get(level).subList(nentries+1, size));
-				entries.get(level).clear();
-				entries.get(level).addAll(remainingEntries);
-			}
+	private static Field readKey(DataInputStream in, TupleDesc td, int[] keyFields) throws IOException {
+		try {
+			return BTreePage.readKey(td, keyFields, in);
+		} catch(ParseException e) {
+			throw new IOException("corrupt key file", e);
 		}
-		entries.get(level).add(e);
+	}
+
+	private static File newKeyFile() throws IOException {
+		File f = File.createTempFile("btreeKeys", ".dat");
+		f.deleteOnExit();
+		return f;
 	}
 
 	/**
@@ -510,6 +595,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
                                            int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] {keyField});
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage of a
+	 * B+ tree keyed on several fields
+	 * 
+	 * @param tuples - the set of tuples
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields in each tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, in order
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+                                           int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -558,7 +661,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		Collections.sort(tuples, new TupleComparator(keyField));
+		Collections.sort(tuples, new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -628,7 +731,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
                                                Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, keyType.getLen(), childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage whose
+	 * keys take keySize bytes, e.g. the sum of the sizes of the fields of a composite key
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keySize - the number of bytes of a key
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+                                               int keySize, int childPageCategory)
+					throws IOException {
+		int nentrybytes = keySize + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -677,7 +797,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keySize; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -1,5 +1,12 @@
 package simpleDatabase.index;
 
+import simpleDatabase.basic.Debug;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.IntField;
 import simpleDatabase.tx.TransactionId;
 
 import java.io.*;
@@ -1,24 +1,55 @@
 package simpleDatabase.index;
 
-import Predicate.Op;
+import simpleDatabase.basic.Debug;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.RecordId;
+import simpleDatabase.cache.SlotBitmap;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.CompositeField;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.StringField;
+import simpleDatabase.operator.Predicate.Op;
+import simpleDatabase.tx.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The pages of a tree keyed on a string field are compressed: a string takes the
+ * bytes it needs instead of Type.STRING_LEN, and shares its prefix with the key
+ * before it on the page (prefix compression), so only the rest of it is stored.
+ * Together with the short separator keys chosen on splits (see
+ * {@link BTreePage#separator}) many more entries fit on a page. How many depends on
+ * the keys, so the capacity of these pages is counted in bytes: the number of empty
+ * slots is the number of entries of the longest possible key that still fit.
  *
  * @see BTreeFile
  * @see BufferPool
  *
  */
 public class BTreeInternalPage extends BTreePage {
-	private final byte header[];
+	private final SlotBitmap header;
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	// 有字符串键时用变长的压缩格式
+	private final boolean compressed;
+	// 压缩页上 entry 占的字节数，插入、删除、改 key 时跟着改，不用每次从头算
+	private int entryBytes;
+
+	/** Bytes before the entries of a compressed page: parent, child category, number of slots used, first child */
+	static final int COMPRESSED_HEADER_SIZE = 2 * INDEX_SIZE + 3;
+
+	// bumped every time the page is marked dirty, i.e. before every change to it
+	private volatile long version = 0;
 	
 	private int childCategory; // either leaf or internal
 
@@ -38,7 +69,13 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			if (compressed) {
+				// 按字节平衡，允许差一两个 entry
+				assert (getEntryBytes() + 2 * getMaxEntrySize() >= getEntryCapacity() / 2);
+			}
+			else {
+				assert (getNumEntries() >= getMaxEntries() / 2);
+			}
 		}
 	}
 	
@@ -58,6 +95,15 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A compressed page (keyed on a string field) instead holds the parent pointer,
+	 * the child page category, the number of slots used (a short), the first child
+	 * pointer, and then every entry in order as its child pointer and its key. An
+	 * integer in the key takes its usual 4 bytes; a string takes one byte for the length
+	 * of the prefix it shares with the same field of the key before it, one byte for
+	 * the length of the rest, and the rest. A string shares no prefix unless the fields
+	 * before it are equal to those of the key before it, so that a key put in between
+	 * never makes the key after it longer.
+	 * 
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,271 +113,407 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on several fields, see above; the
+	 * key size is the sum of the sizes of the key fields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.compressed = isCompressed(td, keyFields);
+		// 压缩页的 slot 数按最短的 entry 算
+		this.numSlots = compressed ? getEntryCapacity() / minEntrySize(td, keyFields) + 1 : getMaxEntries() + 1;
+		ByteBuffer buf = ByteBuffer.wrap(data);
 
 		// Read the parent pointer
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = buf.getInt(0);
 
 		// read the child page category
-		childCategory = (int) dis.readByte();
-
-		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		childCategory = (int) buf.get(INDEX_SIZE);
 
+		header = new SlotBitmap(numSlots);
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		Arrays.fill(children, -1);
+		if (compressed) {
+			readCompressed(buf);
+			setBeforeImage(data);
+			return;
 		}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		// read the header slots of this page
+		header.load(buf, INDEX_SIZE + 1);
+
+		int keySize = keySize(td, keyFields);
+		int offset = INDEX_SIZE + 1 + getHeaderSize();
+		// read the keys of this page
+		// start from 1 because the first key slot is not used
+		// since a node with m keys has m+1 pointers
+		keys[0] = null;
+		for (int i=1; i<keys.length; i++) {
+			keys[i] = isSlotUsed(i) ? parseKey(td, keyFields, buf, offset) : null;
+			offset += keySize;
 		}
-		dis.close();
 
-		setBeforeImage();
+		// read the child pointers of this page
+		for (int i=0; i<children.length; i++) {
+			children[i] = isSlotUsed(i) ? buf.getInt(offset) : -1;
+			offset += INDEX_SIZE;
+		}
+
+		setBeforeImage(data);
+	}
+
+	/**
+	 * Read the slots of a compressed page; they are laid out from slot 0 on.
+	 */
+	private void readCompressed(ByteBuffer buf) {
+		int used = buf.getShort(INDEX_SIZE + 1);
+		buf.position(INDEX_SIZE + 3);
+		Field prev = null;
+		for (int i=0; i<used; i++) {
+			markSlotUsed(i, true);
+			children[i] = buf.getInt();
+			if (i > 0) {
+				keys[i] = readKey(buf, prev);
+				prev = keys[i];
+			}
+		}
+		entryBytes = used == 0 ? 0 : buf.position() - COMPRESSED_HEADER_SIZE;
+	}
+
+	/**
+	 * Read a compressed key at the position of buf, whose strings share their prefix
+	 * with the key prev before it.
+	 */
+	private Field readKey(ByteBuffer buf, Field prev) {
+		Field[] fields = new Field[keyFields.length];
+		for (int i=0; i<fields.length; i++) {
+			Type type = td.getFieldType(keyFields[i]);
+			if (type == Type.STRING_TYPE) {
+				int shared = buf.get() & 0xff;
+				int len = buf.get() & 0xff;
+				StringBuilder sb = new StringBuilder(shared + len);
+				if (shared > 0) {
+					sb.append(stored(component(prev, i)), 0, shared);
+				}
+				for (int j=0; j<len; j++) {
+					sb.append((char) (buf.get() & 0xff));
+				}
+				fields[i] = new StringField(sb.toString(), Type.STRING_LEN);
+			}
+			else {
+				fields[i] = type.parse(buf, buf.position());
+				buf.position(buf.position() + type.getLen());
+			}
+		}
+		return fields.length == 1 ? fields[0] : new CompositeField(fields);
+	}
+
+	/**
+	 * Write key at the position of buf, compressed against the key prev before it.
+	 */
+	private void writeKey(ByteBuffer buf, Field key, Field prev) {
+		boolean same = prev != null;
+		for (int i=0; i<keyFields.length; i++) {
+			Field f = component(key, i);
+			if (td.getFieldType(keyFields[i]) == Type.STRING_TYPE) {
+				String str = stored(f);
+				int shared = same ? sharedPrefix(stored(component(prev, i)), str) : 0;
+				buf.put((byte) shared);
+				buf.put((byte) (str.length() - shared));
+				// 和 StringField.serialize 一样每个字符写一个字节
+				for (int j=shared; j<str.length(); j++) {
+					buf.put((byte) str.charAt(j));
+				}
+			}
+			else {
+				f.serialize(buf);
+			}
+			same = same && sameStored(f, component(prev, i));
+		}
+	}
+
+	/**
+	 * @return the number of bytes key takes on a compressed page of a tree keyed on
+	 *         keyFields, after the key prev, or by itself if prev is null
+	 */
+	static int keyBytes(TupleDesc td, int[] keyFields, Field key, Field prev) {
+		int size = 0;
+		boolean same = prev != null;
+		for (int i=0; i<keyFields.length; i++) {
+			Type type = td.getFieldType(keyFields[i]);
+			if (type == Type.STRING_TYPE) {
+				String str = stored(component(key, i));
+				size += 2 + str.length() - (same ? sharedPrefix(stored(component(prev, i)), str) : 0);
+			}
+			else {
+				size += type.getLen();
+			}
+			same = same && sameStored(component(key, i), component(prev, i));
+		}
+		return size;
+	}
+
+	/**
+	 * @return true if the internal pages of a tree keyed on keyFields are compressed,
+	 *         i.e. one of the key fields is a string
+	 */
+	static boolean isCompressed(TupleDesc td, int[] keyFields) {
+		for (int f : keyFields) {
+			if (td.getFieldType(f) == Type.STRING_TYPE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of entries whose keys take at most keyBytes bytes each that
+	 *         fit on a compressed page of pageSize bytes of a tree keyed on keyFields
+	 */
+	static int getMaxEntries(TupleDesc td, int[] keyFields, int keyBytes, int pageSize) {
+		int capacity = pageSize - COMPRESSED_HEADER_SIZE;
+		return capacity / Math.max(INDEX_SIZE + keyBytes, minEntrySize(td, keyFields));
+	}
+
+	private static int minEntrySize(TupleDesc td, int[] keyFields) {
+		int size = INDEX_SIZE;
+		for (int f : keyFields) {
+			size += td.getFieldType(f) == Type.STRING_TYPE ? 2 : td.getFieldType(f).getLen();
+		}
+		return size;
+	}
+
+	private static Field component(Field key, int i) {
+		return key instanceof CompositeField ? ((CompositeField) key).getField(i) : key;
+	}
+
+	// 和 StringField.serialize 一样，超过 STRING_LEN 的部分不存
+	private static String stored(Field f) {
+		String str = ((StringField) f).getValue();
+		return str.length() > Type.STRING_LEN ? str.substring(0, Type.STRING_LEN) : str;
+	}
+
+	private static boolean sameStored(Field a, Field b) {
+		return a instanceof StringField ? stored(a).equals(stored(b)) : a.equals(b);
+	}
+
+	private static int sharedPrefix(String a, String b) {
+		int n = 0;
+		while (n < a.length() && n < b.length() && a.charAt(n) == b.charAt(n)) {
+			n++;
+		}
+		return n;
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * A compressed page holds at least this many, more if the keys are shorter than
+	 * the longest possible key.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (compressed) {
+			return getEntryCapacity() / getMaxEntrySize();
+		}
+		int keySize = keySize(td, keyFields);
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		int entriesPerPage = (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
 	/**
-	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
-	 * @return the number of bytes in the header
+	 * @return the number of bytes the entries (keys and child pointers but the first)
+	 *         on this page take
 	 */
-	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
-		int hb = (slotsPerPage / 8);
-		if (hb * 8 < slotsPerPage) hb++;
+	public int getEntryBytes() {
+		if (!compressed) {
+			return getNumEntries() * getMaxEntrySize();
+		}
+		return entryBytes;
+	}
 
-		return hb;
+	private int entrySize(Field key, Field prev) {
+		return INDEX_SIZE + keyBytes(td, keyFields, key, prev);
 	}
 
-	/** Return a view of this page before it was modified
-        -- used by recovery */
-	public BTreeInternalPage getBeforeImage(){
-		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
-		} catch (IOException e) {
-			e.printStackTrace();
-			//should never happen -- we parsed it OK before!
-			System.exit(1);
+	/**
+	 * @return the change in the bytes the entries of a compressed page take when the
+	 *         key between the keys prev and next goes from oldKey to newKey. A null key
+	 *         stands for no entry, i.e. an inserted or deleted one, or for no key
+	 *         before or after it.
+	 */
+	private int entryBytesChange(Field prev, Field oldKey, Field newKey, Field next) {
+		int change = 0;
+		if (oldKey != null) {
+			change -= entrySize(oldKey, prev);
 		}
-		return null;
+		if (newKey != null) {
+			change += entrySize(newKey, prev);
+		}
+		if (next != null) {
+			// 后面那个 key 改成跟新的前一个 key 共享前缀
+			change += entrySize(next, newKey != null ? newKey : prev) - entrySize(next, oldKey != null ? oldKey : prev);
+		}
+		return change;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
+	/**
+	 * @return the key of the closest used slot before slot i, or null if there is none
+	 */
+	private Field keyBefore(int i) {
+		int prev = header.previousSetBit(i - 1);
+		return prev > 0 ? keys[prev] : null;
 	}
 
 	/**
-	 * Read keys from the source file.
+	 * @return the key of the closest used slot after slot i, or null if there is none
 	 */
-	private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next key, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty key");
-				}
-			}
-			return null;
-		}
+	private Field keyAfter(int i) {
+		int next = header.nextSetBit(i + 1);
+		return next != -1 ? keys[next] : null;
+	}
 
-		// read the key field
-		Field f = null;
-		try {
-			f = td.getFieldType(keyField).parse(dis);
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+	/**
+	 * @return the number of bytes an entry with the longest possible key takes; adding
+	 *         an entry never takes more than this
+	 */
+	public int getMaxEntrySize() {
+		if (!compressed) {
+			return keySize(td, keyFields) + INDEX_SIZE;
 		}
+		int size = INDEX_SIZE;
+		for (int f : keyFields) {
+			size += td.getFieldType(f) == Type.STRING_TYPE ? 2 + Type.STRING_LEN : td.getFieldType(f).getLen();
+		}
+		return size;
+	}
 
-		return f;
+	/**
+	 * @return the number of bytes left for entries on this page
+	 */
+	public int getFreeBytes() {
+		return getEntryCapacity() - getEntryBytes();
 	}
 
 	/**
-	 * Read child pointers from the source file.
+	 * @return true if the key of any entry on this page can be replaced by any other
+	 *         key. On a compressed page a longer key, and the key after it that then
+	 *         shares less of its prefix, take more bytes.
 	 */
-	private int readNextChild(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next child pointer, and
-		// return -1.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<INDEX_SIZE; i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty child pointer");
-				}
-			}
-			return -1;
-		}
+	public boolean hasRoomForUpdate() {
+		return !compressed || getFreeBytes() >= 2 * getMaxEntrySize();
+	}
 
-		// read child pointer
-		int child = -1;
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			child = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+	private int getEntryCapacity() {
+		if (compressed) {
+			return pageSize - COMPRESSED_HEADER_SIZE;
 		}
-
-		return child;
+		return getMaxEntries() * getMaxEntrySize();
 	}
 
 	/**
-	 * Generates a byte array representing the contents of this page.
-	 * Used to serialize this page to disk.
-	 * <p>
-	 * The invariant here is that it should be possible to pass the byte
-	 * array generated by getPageData to the BTreeInternalPage constructor and
-	 * have it produce an identical BTreeInternalPage object.
-	 *
-	 * @see #BTreeInternalPage
-	 * @return A byte array correspond to the bytes of this page.
+	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
+	 * @return the number of bytes in the header
 	 */
-	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+	private int getHeaderSize() {        
+		int slotsPerPage = getMaxEntries() + 1;
+		int hb = (slotsPerPage / 8);
+		if (hb * 8 < slotsPerPage) hb++;
 
-		// write out the parent pointer
-		try {
-			dos.writeInt(parent);
+		return hb;
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Marks this page as dirty/not dirty, and moves the version of the page on
+	 * when it becomes dirty
+	 */
+	@Override
+	public void markDirty(boolean dirty, TransactionId tid) {
+		super.markDirty(dirty, tid);
+		if (dirty) version++;
+	}
 
-		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
+	/**
+	 * Returns the version of this page. Readers that look at the page without a lock
+	 * skip it while another transaction has it dirty, hold its latch while reading it and
+	 * check later that its version did not change;
+	 * every writer marks the page dirty before changing it.
+	 * @see BTreeFile#findLeafPageOptimistic(TransactionId, Field)
+	 */
+	public long getVersion() {
+		return version;
+	}
 
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public BTreeInternalPage getBeforeImage(){
+		try {
+			return new BTreeInternalPage(pid,getBeforeImageData(),keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
 		}
+		return null;
+	}
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
+	/**
+	 * Write the parent pointer, child category, header, keys and child pointers
+	 * into buf. Empty slots are left as they are, i.e. zero.
+	 *
+	 * @see #BTreeInternalPage
+	 */
+	protected void writePageData(ByteBuffer buf) {
+		// write out the parent pointer and the child page category
+		buf.putInt(0, parent);
+		buf.put(INDEX_SIZE, (byte) childCategory);
+		if (compressed) {
+			// 空的 slot 不写，读回来时从 slot 0 开始连续放
+			buf.putShort(INDEX_SIZE + 1, (short) header.cardinality());
+			buf.position(INDEX_SIZE + 3);
+			Field prev = null;
+			for (int i=0; i<numSlots; i++) {
+				if (isSlotUsed(i)) {
+					buf.putInt(children[i]);
+					if (i > 0) {
+						writeKey(buf, keys[i], prev);
+						prev = keys[i];
+					}
+				}
 			}
+			return;
 		}
+		header.store(buf, INDEX_SIZE + 1);
 
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
+		int keySize = keySize(td, keyFields);
+		int offset = INDEX_SIZE + 1 + getHeaderSize();
 		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (isSlotUsed(i)) {
+				buf.position(offset);
+				keys[i].serialize(buf);
 			}
-
+			offset += keySize;
 		}
 
 		// create the child pointers
 		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length +
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
+			if (isSlotUsed(i))
+				buf.putInt(offset, children[i]);
+			offset += INDEX_SIZE;
 		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -353,6 +535,10 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		if(compressed) {
+			int slot = rid.getTupleNumber();
+			entryBytes += entryBytesChange(keyBefore(slot), keys[slot], null, keyAfter(slot));
+		}
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -399,8 +585,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * record id.
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
-	 *         already empty, or updating this key would put the entry out of 
-	 *         order on the page
+	 *         already empty, updating this key would put the entry out of 
+	 *         order on the page, or the key does not fit on a compressed page
+	 * @see #hasRoomForUpdate()
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
@@ -420,9 +607,19 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		Field oldKey = keys[rid.getTupleNumber()];
+		int change = 0;
+		if(compressed) {
+			int slot = rid.getTupleNumber();
+			change = entryBytesChange(keyBefore(slot), oldKey, e.getKey(), keyAfter(slot));
+			if(change > getFreeBytes())
+				throw new DbException("no room for key " + e.getKey() + " on page " + pid.getPageNumber());
+		}
+		keys[rid.getTupleNumber()] = e.getKey();
 		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
 			if(isSlotUsed(i)) {
 				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+					keys[rid.getTupleNumber()] = oldKey;
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be greater than or equal to keys on the left");
 				}
@@ -432,17 +629,19 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		entryBytes += change;
 	}
 
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
 	 * reflect that it is now stored on this page.
 	 * @throws DbException if the page is full (no empty slots) or key field type,
-	 *         table id, or child page category is a mismatch, or the entry is invalid
+	 *         table id, or child page category is a mismatch, or the entry is invalid,
+	 *         or the entry does not fit on a compressed page
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -458,30 +657,28 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			if(compressed) {
+				entryBytes = entrySize(e.getKey(), null);
+			}
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
 
 		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
+		int emptySlot = header.nextClearBit(1);
 
-		if (emptySlot == -1)
+		if (emptySlot == -1 || getNumEmptySlots() == 0)
 			throw new DbException("called insertEntry on page with no empty slots.");
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
+		int nextKey = -1;
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
 				if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
@@ -494,9 +691,6 @@ public class BTreeInternalPage extends BTreePage {
 								" left and right keys");
 					}
 					lessOrEqKey = i;
-					if(children[i] == e.getRightChild().getPageNumber()) {
-						children[i] = e.getLeftChild().getPageNumber();
-					}
 				}
 				else if(lessOrEqKey != -1) {
 					// validate that the next key is greater than or equal to the one we are inserting
@@ -508,6 +702,7 @@ public class BTreeInternalPage extends BTreePage {
 								" and this key must be correctly ordered in between that child's" +
 								" left and right keys");
 					}
+					nextKey = i;
 					break;
 				}
 			}
@@ -522,6 +717,18 @@ public class BTreeInternalPage extends BTreePage {
 					" left and right keys");
 		}
 
+		int change = 0;
+		if(compressed) {
+			// 后面那个 key 改成跟新 key 共享前缀，先把两个一起算上看放不放得下
+			change = entryBytesChange(lessOrEqKey > 0 ? keys[lessOrEqKey] : null, null, e.getKey(),
+					nextKey != -1 ? keys[nextKey] : null);
+			if(change > getFreeBytes())
+				throw new DbException("no room for entry with key " + e.getKey() + " on page " + pid.getPageNumber());
+		}
+		if(children[lessOrEqKey] == e.getRightChild().getPageNumber()) {
+			children[lessOrEqKey] = e.getLeftChild().getPageNumber();
+		}
+
 		// shift entries back or forward to fill empty slot and make room for new entry
 		// while keeping entries in sorted order
 		int goodSlot = -1;
@@ -543,6 +750,7 @@ public class BTreeInternalPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
+		entryBytes += change;
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -563,43 +771,57 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		// start from 1 because the first key slot is not used
+		// since a node with m keys has m+1 pointers
+		return header.cardinality() - (isSlotUsed(0) ? 1 : 0);
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compressed page, the number
+	 * of entries with the longest possible key that still fit.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		int empty = numSlots - 1 - getNumEntries();
+		if (compressed) {
+			empty = Math.min(empty, getFreeBytes() / getMaxEntrySize());
+		}
+		return empty;
+	}
+
+	/**
+	 * Returns the number of slots of this page, including the one of the first child
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Returns the first used slot at or after slot i, or -1 if there is none
+	 */
+	int nextUsedSlot(int i) {
+		return header.nextSetBit(i);
+	}
+
+	/**
+	 * Returns the last used slot at or before slot i, or -1 if there is none
+	 */
+	int previousUsedSlot(int i) {
+		return header.previousSetBit(i);
 	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return header.get(i);
 	}
 
 	/**
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		header.set(i, value);
 	}
 
 	/**
@@ -694,17 +916,18 @@ class BTreeInternalPageIterator implements Iterator<BTreeEntry> {
 					return false;
 				}
 			}
-			while (true) {
-				int entry = curEntry++;
-				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry);
-				if(key != null && childId != null) {
-					nextToReturn = new BTreeEntry(key, prevChildId, childId);
-					nextToReturn.setRecordId(new RecordId(p.pid, entry));
-					prevChildId = childId;
-					return true;
-				}
+			// 直接跳到下一个用了的 slot
+			int entry = p.nextUsedSlot(curEntry);
+			if(entry == -1) {
+				return false;
 			}
+			curEntry = entry + 1;
+			Field key = p.getKey(entry);
+			BTreePageId childId = p.getChildId(entry);
+			nextToReturn = new BTreeEntry(key, prevChildId, childId);
+			nextToReturn.setRecordId(new RecordId(p.pid, entry));
+			prevChildId = childId;
+			return true;
 		} catch(NoSuchElementException e) {
 			return false;
 		}
@@ -742,10 +965,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
-		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
-			--curEntry;
-		}
+		this.curEntry = Math.max(p.previousUsedSlot(p.getNumSlots() - 1), 0);
 	}
 
 	public boolean hasNext() {
@@ -762,8 +982,10 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the closest used slot before this one
+					curEntry = Math.max(p.previousUsedSlot(curEntry), 0);
+					BTreePageId childId = p.getChildId(curEntry);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
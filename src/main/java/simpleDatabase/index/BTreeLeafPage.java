@@ -1,6 +1,16 @@
 package simpleDatabase.index;
 
+import simpleDatabase.basic.Debug;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.RecordId;
+import simpleDatabase.cache.SlotBitmap;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.Field;
+import simpleDatabase.operator.Predicate;
+
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -13,7 +23,7 @@ import java.util.NoSuchElementException;
  *
  */
 public class BTreeLeafPage extends BTreePage {
-	private final byte header[];
+	private final SlotBitmap header;
 	private final Tuple tuples[];
 	private final int numSlots;
 	
@@ -27,8 +37,8 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, keyOf(t)));
+			prev = keyOf(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -63,48 +73,37 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree keyed on several fields, see above.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		ByteBuffer buf = ByteBuffer.wrap(data);
 
 		// Read the parent and sibling pointers
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.leftSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.rightSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = buf.getInt(0);
+		this.leftSibling = buf.getInt(INDEX_SIZE);
+		this.rightSibling = buf.getInt(2 * INDEX_SIZE);
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		header = new SlotBitmap(numSlots);
+		header.load(buf, 3 * INDEX_SIZE);
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
-		dis.close();
+		// allocate and read the actual records of this page
+		int offset = 3 * INDEX_SIZE + getHeaderSize();
+		for (int i=0; i<tuples.length; i++)
+			tuples[i] = readTuple(buf, offset + i * td.getSize(), i);
 
-		setBeforeImage();
+		setBeforeImage(data);
 	}
 
 	/** 
@@ -114,7 +113,7 @@ public class BTreeLeafPage extends BTreePage {
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
-		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
+		int tuplesPerPage = (pageSize*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
 
@@ -133,12 +132,7 @@ public class BTreeLeafPage extends BTreePage {
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,getBeforeImageData(),keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -147,137 +141,45 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
-	 * Read tuples from the source file.
+	 * Read the tuple in slot slotId, which starts at offset, or return null if
+	 * the slot is empty.
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
+	private Tuple readTuple(ByteBuffer buf, int offset, int slotId) {
+		if (!isSlotUsed(slotId))
 			return null;
-		}
 
 		// read fields in the tuple
 		Tuple t = new Tuple(td);
 		RecordId rid = new RecordId(pid, slotId);
 		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+		for (int j=0; j<td.numFields(); j++) {
+			t.setField(j, td.getFieldType(j).parse(buf, offset));
+			offset += td.getFieldType(j).getLen();
 		}
-
 		return t;
 	}
 
 	/**
-	 * Generates a byte array representing the contents of this page.
-	 * Used to serialize this page to disk.
-	 * <p>
-	 * The invariant here is that it should be possible to pass the byte
-	 * array generated by getPageData to the BTreeLeafPage constructor and
-	 * have it produce an identical BTreeLeafPage object.
+	 * Write the parent and sibling pointers, the header and the tuples into buf.
+	 * Empty slots are left as they are, i.e. zero.
 	 *
 	 * @see #BTreeLeafPage
-	 * @return A byte array corresponding to the bytes of this page.
 	 */
-	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
-		}
+	protected void writePageData(ByteBuffer buf) {
+		buf.putInt(0, parent);
+		buf.putInt(INDEX_SIZE, leftSibling);
+		buf.putInt(2 * INDEX_SIZE, rightSibling);
+		header.store(buf, 3 * INDEX_SIZE);
 
-		// create the tuples
+		int offset = 3 * INDEX_SIZE + getHeaderSize();
 		for (int i=0; i<tuples.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
+			if (!isSlotUsed(i))
 				continue;
-			}
-
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+			buf.position(offset + i * td.getSize());
+			for (int j=0; j<td.numFields(); j++)
+				tuples[i].getField(j).serialize(buf);
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -311,29 +213,20 @@ public class BTreeLeafPage extends BTreePage {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
-
-		if (emptySlot == -1)
+		if (header.cardinality() == numSlots)
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = header.previousSetBit(upperBound(keyOf(t)) - 1);
+
+		// use the empty slot closest to that position, so that as few records as
+		// possible have to be shifted
+		int right = header.nextClearBit(lessOrEqKey + 1);
+		int left = header.previousClearBit(lessOrEqKey);
+		int emptySlot;
+		if (left == -1) emptySlot = right;
+		else if (right == -1) emptySlot = left;
+		else emptySlot = (lessOrEqKey - left) < (right - lessOrEqKey) ? left : right;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -359,6 +252,28 @@ public class BTreeLeafPage extends BTreePage {
 		tuples[goodSlot] = t;
 	}
 
+	/**
+	 * Binary search over the slots. Used slots hold their tuples in key order but
+	 * may have empty slots between them, so every probe jumps to the next used
+	 * slot through the header bitmap.
+	 * @return the first slot such that every used slot before it has a key less
+	 *         than or equal to key, and every used slot from it on has a greater key
+	 */
+	private int upperBound(Field key) {
+		int lo = 0, hi = numSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int s = header.nextSetBit(mid);
+			if (s == -1 || s >= hi)
+				hi = mid; // [mid, hi) is empty
+			else if (keyOf(tuples[s]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				lo = s + 1;
+			else
+				hi = s;
+		}
+		return lo;
+	}
+
 	/**
 	 * Move a record from one slot to another slot, and update the corresponding
 	 * headers and RecordId
@@ -446,34 +361,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - header.cardinality();
 	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return header.get(i);
 	}
 
 	/**
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		header.set(i, value);
 	}
 
 	/**
@@ -492,6 +395,20 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return the first used slot at or after i, or -1 if there is none
+	 */
+	int nextUsedSlot(int i) {
+		return header.nextSetBit(i);
+	}
+
+	/**
+	 * @return the last used slot at or before i, or -1 if there is none
+	 */
+	int previousUsedSlot(int i) {
+		return header.previousSetBit(i);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -534,15 +451,13 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (true) {
-				nextToReturn = p.getTuple(curTuple++);
-				if(nextToReturn != null)
-					return true;
-			}
-		} catch(NoSuchElementException e) {
+		if (curTuple == -1)
 			return false;
-		}
+		curTuple = p.nextUsedSlot(curTuple);
+		if (curTuple == -1)
+			return false;
+		nextToReturn = p.getTuple(curTuple++);
+		return true;
 	}
 
 	public Tuple next() {
@@ -583,16 +498,13 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (curTuple >= 0) {
-				nextToReturn = p.getTuple(curTuple--);
-				if(nextToReturn != null)
-					return true;
-			}
+		if (curTuple < 0)
 			return false;
-		} catch(NoSuchElementException e) {
+		curTuple = p.previousUsedSlot(curTuple);
+		if (curTuple == -1)
 			return false;
-		}
+		nextToReturn = p.getTuple(curTuple--);
+		return true;
 	}
 
 	public Tuple next() {
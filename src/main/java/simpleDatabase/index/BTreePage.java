@@ -1,8 +1,23 @@
 package simpleDatabase.index;
 
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.CompositeField;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.StringField;
+import simpleDatabase.operator.Predicate.Op;
 import simpleDatabase.tx.TransactionId;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -20,11 +35,16 @@ public abstract class BTreePage implements Page {
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
+	// the page size of the table, see Catalog#getPageSize
+	protected final int pageSize;
+	// 最近一次序列化出来的页，之后没有再标脏的话 setBeforeImage 直接整块拷贝它
+	private byte[] image;
+	private volatile boolean imageCurrent = false;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -51,9 +71,141 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in order
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.pageSize = Database.getCatalog().getPageSize(id.getTableId());
+	}
+
+	/**
+	 * @return the key of tuple t in a B+ tree keyed on keyFields: the field itself if
+	 *         there is one, or a CompositeField of the fields in order
+	 */
+	static Field keyOf(Tuple t, int[] keyFields) {
+		if(keyFields.length == 1) {
+			return t.getField(keyFields[0]);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the number of bytes a key of a B+ tree keyed on keyFields takes on disk
+	 */
+	static int keySize(TupleDesc td, int[] keyFields) {
+		int size = 0;
+		for(int f : keyFields) {
+			size += td.getFieldType(f).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * Read a key of a B+ tree keyed on keyFields, stored at offset.
+	 */
+	static Field parseKey(TupleDesc td, int[] keyFields, ByteBuffer buf, int offset) {
+		if(keyFields.length == 1) {
+			return td.getFieldType(keyFields[0]).parse(buf, offset);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = td.getFieldType(keyFields[i]).parse(buf, offset);
+			offset += td.getFieldType(keyFields[i]).getLen();
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Read a key of a B+ tree keyed on keyFields from a stream.
+	 */
+	static Field readKey(TupleDesc td, int[] keyFields, DataInputStream dis) throws ParseException {
+		if(keyFields.length == 1) {
+			return td.getFieldType(keyFields[0]).parse(dis);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Returns a key to separate the keys left and right of it in the B+ tree, i.e. a key
+	 * s with left &lt; s &lt;= right, as short as possible (suffix truncation). For string
+	 * keys this is the shortest prefix of right greater than left, e.g. "blu" between
+	 * "blackberry" and "blueberry"; a composite key truncates the first component that
+	 * differs and keeps the others. Other keys, and equal keys, are separated by right.
+	 *
+	 * 分裂时往上放的分隔键只要能把左右两边分开就行，字符串截到最短
+	 *
+	 * @param left - the largest key on the left, or null
+	 * @param right - the smallest key on the right
+	 */
+	static Field separator(Field left, Field right) {
+		if(left == null || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		if(left instanceof StringField && right instanceof StringField) {
+			String l = ((StringField) left).getValue();
+			String r = ((StringField) right).getValue();
+			int n = 0;
+			while(n < l.length() && n < r.length() && l.charAt(n) == r.charAt(n)) {
+				n++;
+			}
+			return n < r.length() ? new StringField(r.substring(0, n + 1), Type.STRING_LEN) : right;
+		}
+		if(left instanceof CompositeField && right instanceof CompositeField) {
+			CompositeField l = (CompositeField) left;
+			CompositeField r = (CompositeField) right;
+			Field[] fields = new Field[r.size()];
+			boolean differ = false;
+			for(int i = 0; i < fields.length; i++) {
+				fields[i] = r.getField(i);
+				if(!differ && !l.getField(i).equals(r.getField(i))) {
+					fields[i] = separator(l.getField(i), r.getField(i));
+					differ = true;
+				}
+			}
+			return new CompositeField(fields);
+		}
+		return right;
+	}
+
+	/**
+	 * @return the key of tuple t in the B+ tree of this page
+	 */
+	protected Field keyOf(Tuple t) {
+		return keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return true if f is a key of the B+ tree of this page, i.e. has the type of the
+	 *         key field, or is a CompositeField of the types of the key fields
+	 */
+	protected boolean isKey(Field f) {
+		if(keyFields.length == 1) {
+			return f.getType().equals(td.getFieldType(keyFields[0]));
+		}
+		if(!(f instanceof CompositeField) || ((CompositeField) f).size() != keyFields.length) {
+			return false;
+		}
+		for(int i = 0; i < keyFields.length; i++) {
+			if(!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i]))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -77,6 +229,71 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the constructor of the concrete page
+	 * class and have it produce an identical page object.
+	 * <p>
+	 * The array is as long as the pages of the table and belongs to the caller.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public synchronized byte[] getPageData() {
+		serialize();
+		return image.clone();
+	}
+
+	/* 把页写进 image，调用者持有 this */
+	private void serialize() {
+		if (image == null) image = new byte[pageSize];
+		else Arrays.fill(image, (byte) 0);
+		writePageData(ByteBuffer.wrap(image));
+		imageCurrent = true;
+	}
+
+	/**
+	 * Copy the current contents of this page into oldData. The array is reused
+	 * across calls, so taking a before image does not allocate. The BufferPool
+	 * takes the before image right after writing the page, so the bytes
+	 * getPageData just serialized are copied as they are, unless the page was
+	 * marked dirty since.
+	 */
+	public synchronized void setBeforeImage() {
+		if (!imageCurrent) serialize();
+		setBeforeImage(image);
+	}
+
+	/**
+	 * Copy the page image data, e.g. the bytes the page was just read from, into
+	 * oldData without serializing the page again.
+	 */
+	protected void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null) oldData = data.clone();
+			else System.arraycopy(data, 0, oldData, 0, oldData.length);
+		}
+	}
+
+	/**
+	 * @return a copy of the page data saved by the last {@link #setBeforeImage}
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData.clone();
+		}
+	}
+
+	/**
+	 * Write the page image into buf, starting at position 0. The bytes of buf
+	 * that are not part of the image are expected to be zero.
+	 */
+	protected abstract void writePageData(ByteBuffer buf);
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
@@ -117,7 +334,11 @@ public abstract class BTreePage implements Page {
 	 */
 	public void markDirty(boolean dirty, TransactionId tid) {
 		this.dirty = dirty;
-		if (dirty) this.dirtier = tid;
+		if (dirty) {
+			this.dirtier = tid;
+			// 标脏之后页就要改了，serialize 出来的 image 不能再当 before image 用
+			imageCurrent = false;
+		}
 	}
 
 	/**
@@ -1,5 +1,7 @@
 package simpleDatabase.index;
 
+import simpleDatabase.cache.PageId;
+
 /** Unique identifier for BTreeInternalPage, BTreeLeafPage, BTreeHeaderPage
  *  and BTreeRootPtrPage objects. 
  */
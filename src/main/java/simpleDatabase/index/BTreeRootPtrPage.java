@@ -1,5 +1,7 @@
 package simpleDatabase.index;
 
+import simpleDatabase.cache.Page;
+import simpleDatabase.exception.DbException;
 import simpleDatabase.tx.TransactionId;
 
 import java.io.*;
@@ -14,8 +16,11 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
-	private boolean dirty = false;
-	private TransactionId dirtier = null;
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	// bumped every time the page is marked dirty, see BTreeInternalPage#getVersion
+	private volatile long version = 0;
 
 	private BTreePageId pid;
 	private DataInputStream dis;
@@ -130,7 +135,18 @@ public class BTreeRootPtrPage implements Page {
 
 	public void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
-		if (dirty) this.dirtier = tid;
+		if (dirty) {
+			this.dirtier = tid;
+			version++;
+		}
+	}
+
+	/**
+	 * Returns the version of this page, which changes whenever the page is marked dirty
+	 * @see BTreeInternalPage#getVersion()
+	 */
+	public long getVersion() {
+		return version;
 	}
 
 	public TransactionId isDirty() {
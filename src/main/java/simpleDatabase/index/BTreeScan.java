@@ -1,12 +1,22 @@
 package simpleDatabase.index;
 
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.iterator.OpIterator;
+import simpleDatabase.others.IndexPredicate;
 import simpleDatabase.tx.TransactionId;
 
 import java.util.NoSuchElementException;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, either from a table stored in a BTreeFile or
+ * through a SecondaryIndex on a field of a HeapFile or PaxFile table
  */
 public class BTreeScan implements OpIterator {
 
@@ -19,6 +29,10 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
+	private int keyField;
+	private transient SecondaryIndex index;
+	private boolean indexOnly = false;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -45,6 +59,50 @@ public class BTreeScan implements OpIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a scan of the table a secondary index is on, reading the tuples
+	 * in the order of the indexed field.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read the tuples through.
+	 * @param tableAlias
+	 *            the alias of the table, as in the constructor above.
+	 * @param ipred
+	 * 			  The index predicate on the indexed field. If null, the scan will
+	 *            return all tuples in the order of the indexed field
+	 */
+	public BTreeScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(tid, index, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a scan of the table a secondary index is on, reading the tuples
+	 * in the order of the indexed field.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read the tuples through.
+	 * @param tableAlias
+	 *            the alias of the table, as in the constructor above.
+	 * @param ipred
+	 * 			  The index predicate on the indexed field, or null.
+	 * @param indexOnly
+	 *            if true, the tuples are built from the entries of the index
+	 *            without reading the table; only the indexed field and the fields
+	 *            included in the index are set, see {@link SecondaryIndex#lookupCovering}
+	 */
+	public BTreeScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+			boolean indexOnly) {
+		this.tid = tid;
+		this.ipred = ipred;
+		this.index = index;
+		this.indexOnly = indexOnly;
+		reset(index.getTableId(), tableAlias);
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -62,6 +120,36 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index predicate of this scan, or null if it reads every tuple
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * @return the index of the field the tuples are read in the order of, i.e. the
+	 *         key of the BTreeFile or the field the secondary index is on
+	 */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * @return true if this scan reads the tuples through a secondary index
+	 */
+	public boolean isSecondary() {
+		return index != null;
+	}
+
+	/**
+	 * @return true if this scan reads only the entries of a secondary index, not
+	 *         the table
+	 */
+	public boolean isIndexOnly() {
+		return indexOnly;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -76,13 +164,25 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		if(index != null) {
+			if(index.getTableId() != tableid) {
+				throw new IllegalArgumentException("the index is not on table " + tableid);
+			}
+			this.keyField = index.getField();
+			this.it = probe(ipred);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			BTreeFile file = (BTreeFile) Database.getCatalog().getDbFile(tableid);
+			this.keyField = file.keyField();
+			if(ipred == null) {
+				this.it = file.iterator(tid);
+			}
+			else {
+				this.it = file.indexIterator(tid, ipred);
+			}
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
@@ -101,6 +201,23 @@ public class BTreeScan implements OpIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	/**
+	 * Returns an iterator over the tuples of the scanned table whose key field
+	 * satisfies ipred, read through the same B+ tree as this scan but independently
+	 * of it, and ignoring the index predicate of the scan. Used to probe the table
+	 * once per outer tuple by {@link simpleDatabase.operator.join.IndexNestedLoopJoin}.
+	 * An index-only scan returns the tuples built from the index entries.
+	 *
+	 * @param ipred
+	 *            the predicate on the key field
+	 */
+	public DbFileIterator probe(IndexPredicate ipred) {
+		if(index != null) {
+			return indexOnly ? index.lookupCovering(tid, ipred) : index.lookup(tid, ipred);
+		}
+		return ((BTreeFile) Database.getCatalog().getDbFile(tableid)).indexIterator(tid, ipred);
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one OpIterator.");
@@ -1,8 +1,20 @@
 package simpleDatabase.index;
 
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.basic.Utility;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.RecordId;
 import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.IntField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate.Op;
+import simpleDatabase.others.IndexPredicate;
 import simpleDatabase.tx.TransactionId;
-import Predicate.Op;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
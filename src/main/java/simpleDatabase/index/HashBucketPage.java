@@ -0,0 +1,209 @@
+package simpleDatabase.index;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.RecordId;
+import simpleDatabase.cache.SlotBitmap;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * HashBucketPage stores the tuples of one bucket of a HashFile, in no particular
+ * order. A bucket that overflows without being split gets more bucket pages,
+ * chained through their next pointers; only the first page of the chain is in the
+ * directory, and its local depth is the depth of the bucket.
+ *
+ * @see HashFile
+ */
+public class HashBucketPage extends HashPage {
+	private final TupleDesc td;
+	private final SlotBitmap header;
+	private final Tuple tuples[];
+	private final int numSlots;
+
+	private int localDepth;
+	private int nextPage; // next page of the bucket or 0
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the local depth of the bucket, the page
+	 * number of the next page of the bucket, a set of header bytes indicating the
+	 * slots of the page that are in use, and some number of tuple slots.
+	 *  Specifically, the number of tuples is equal to: <p>
+	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) {
+		super(id);
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		ByteBuffer buf = ByteBuffer.wrap(data);
+
+		this.localDepth = buf.getInt(0);
+		this.nextPage = buf.getInt(INDEX_SIZE);
+
+		header = new SlotBitmap(numSlots);
+		header.load(buf, 2 * INDEX_SIZE);
+
+		tuples = new Tuple[numSlots];
+		int offset = 2 * INDEX_SIZE + SlotBitmap.byteSize(numSlots);
+		for (int i=0; i<tuples.length; i++)
+			tuples[i] = readTuple(buf, offset + i * td.getSize(), i);
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: local depth, next page pointer
+		int extraBits = 2 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		return new HashBucketPage(pid, getBeforeImageData());
+	}
+
+	private Tuple readTuple(ByteBuffer buf, int offset, int slotId) {
+		if (!isSlotUsed(slotId))
+			return null;
+
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		for (int j=0; j<td.numFields(); j++) {
+			t.setField(j, td.getFieldType(j).parse(buf, offset));
+			offset += td.getFieldType(j).getLen();
+		}
+		return t;
+	}
+
+	protected void writePageData(ByteBuffer buf) {
+		buf.putInt(0, localDepth);
+		buf.putInt(INDEX_SIZE, nextPage);
+		header.store(buf, 2 * INDEX_SIZE);
+
+		int offset = 2 * INDEX_SIZE + SlotBitmap.byteSize(numSlots);
+		for (int i=0; i<tuples.length; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			buf.position(offset + i * td.getSize());
+			for (int j=0; j<td.numFields(); j++)
+				tuples[i].getField(j).serialize(buf);
+		}
+	}
+
+	/**
+	 * Add the tuple to the first empty slot of the page and set its RecordId.
+	 * @throws DbException if the page is full or the tupledesc is mismatch
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in insertTuple");
+		int slot = header.nextClearBit(0);
+		if (slot == -1)
+			throw new DbException("called insertTuple on page with no empty slots.");
+		header.set(slot, true);
+		t.setRecordId(new RecordId(pid, slot));
+		tuples[slot] = t;
+	}
+
+	/**
+	 * Delete the tuple from the page and clear its RecordId.
+	 * @throws DbException if this tuple is not on this page, or its slot is empty
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if ((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.getTupleNumber()))
+			throw new DbException("tried to delete null tuple.");
+		header.set(rid.getTupleNumber(), false);
+		tuples[rid.getTupleNumber()] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * @return the local depth of the bucket: its keys agree in that many low bits
+	 *         of their hash. Only meaningful on the first page of a bucket.
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	public void setLocalDepth(int depth) {
+		this.localDepth = depth;
+	}
+
+	/**
+	 * @return the id of the next page of the bucket, or null if this is the last one
+	 */
+	public HashPageId getNextId() {
+		if (nextPage == 0)
+			return null;
+		return new HashPageId(pid.getTableId(), nextPage, HashPageId.BUCKET);
+	}
+
+	public void setNextId(HashPageId id) {
+		nextPage = id == null ? 0 : id.getPageNumber();
+	}
+
+	/**
+	 * Returns the number of tuples currently stored on this page
+	 */
+	public int getNumTuples() {
+		return header.cardinality();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		return numSlots - header.cardinality();
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return header.get(i);
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		return new Iterator<Tuple>() {
+			private int slot = header.nextSetBit(0);
+
+			public boolean hasNext() {
+				return slot != -1;
+			}
+
+			public Tuple next() {
+				if (slot == -1)
+					throw new NoSuchElementException();
+				Tuple t = tuples[slot];
+				slot = header.nextSetBit(slot + 1);
+				return t;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
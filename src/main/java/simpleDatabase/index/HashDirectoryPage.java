@@ -0,0 +1,66 @@
+package simpleDatabase.index;
+
+import simpleDatabase.cache.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HashDirectoryPage holds a slice of the directory of a HashFile: the page numbers
+ * of the buckets of getNumEntries() consecutive directory entries. Entry i of the
+ * directory is entry i % getNumEntries() of directory page i / getNumEntries().
+ *
+ * @see HashFile
+ */
+public class HashDirectoryPage extends HashPage {
+
+	private final int[] buckets;
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of a HashDirectoryPage is the page numbers of the buckets of its
+	 * entries, ints; 0 for entries not in use.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) {
+		super(id);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		this.buckets = new int[getNumEntries()];
+		for (int i=0; i<buckets.length; i++)
+			buckets[i] = buf.getInt(i * INDEX_SIZE);
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of directory entries on a page
+	 */
+	public static int getNumEntries() {
+		return BufferPool.getPageSize() / INDEX_SIZE;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		return new HashDirectoryPage(pid, getBeforeImageData());
+	}
+
+	protected void writePageData(ByteBuffer buf) {
+		for (int i=0; i<buckets.length; i++)
+			buf.putInt(i * INDEX_SIZE, buckets[i]);
+	}
+
+	/**
+	 * @return the id of the bucket of entry i of this page, or null if the entry
+	 *         is not in use
+	 */
+	public HashPageId getBucketId(int i) {
+		if (buckets[i] == 0)
+			return null;
+		return new HashPageId(pid.getTableId(), buckets[i], HashPageId.BUCKET);
+	}
+
+	public void setBucketId(int i, HashPageId id) {
+		buckets[i] = id.getPageNumber();
+	}
+}
@@ -0,0 +1,724 @@
+package simpleDatabase.index;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Debug;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.RecordId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.Field;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate.Op;
+import simpleDatabase.others.AbstractDbFileIterator;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * HashFile is an implementation of a DbFile that stores its tuples in an extendible
+ * hash table on one field. A lookup of a key reads the header page and one directory
+ * page, which stay in the buffer pool, and the bucket of the key, i.e. about one I/O,
+ * however many tuples the file holds; a B+ tree reads a leaf and every internal node
+ * above it. The tuples are in no particular order, so only equality predicates are
+ * answered from the index.
+ * <p>
+ * Page 0 is the HashHeaderPage, with the global depth d of the directory; the
+ * directory has 2^d entries, spread over HashDirectoryPages, and entry i points to the
+ * bucket of the keys whose hash ends in the d bits of i. A bucket of local depth
+ * l &lt;= d is shared by the 2^(d-l) entries that agree in their l low bits. A full
+ * bucket is split in two on bit l, and the directory is doubled first if l == d; a
+ * bucket whose keys cannot be told apart by their hash grows a chain of overflow
+ * pages instead. Buckets are never merged: deletes only free slots, which later
+ * inserts reuse.
+ * <p>
+ * Like BTreeFile, every page is read and locked through the BufferPool, so inserts
+ * and deletes are undone with the rest of their transaction.
+ *
+ * 可扩展哈希：目录按hash低位找桶，桶满了就分裂，必要时目录翻倍
+ *
+ * @see HashHeaderPage#HashHeaderPage
+ * @see HashDirectoryPage#HashDirectoryPage
+ * @see HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash file
+	 * @param key - the field which the index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile, the hash code of the
+	 * absolute name of its file.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field this file is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		RandomAccessFile rf = null;
+		try {
+			rf = new RandomAccessFile(f, "r");
+			long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+			if (offset + BufferPool.getPageSize() > rf.length()) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			byte pageBuf[] = new byte[BufferPool.getPageSize()];
+			rf.seek(offset);
+			rf.readFully(pageBuf);
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			switch (id.pgcateg()) {
+				case HashPageId.HEADER:
+					return new HashHeaderPage(id, pageBuf);
+				case HashPageId.DIRECTORY:
+					return new HashDirectoryPage(id, pageBuf);
+				default:
+					return new HashBucketPage(id, pageBuf);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (rf != null)
+					rf.close();
+			} catch (IOException ioe) {
+				// Ignore failures closing the file
+			}
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		byte[] data = page.getPageData();
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			rf.write(data);
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile.
+	 */
+	public int numPages() {
+		// we only ever write full pages
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Hash pages always use the default page size of the BufferPool.
+	 */
+	public int getPageSize() {
+		return BufferPool.getPageSize();
+	}
+
+	/**
+	 * The hash of a key; its low bits select the directory entry. The hash codes of
+	 * IntFields are the values themselves, so they are mixed first (the finalizer of
+	 * MurmurHash3), or consecutive keys would fill the buckets one after another.
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * @return the largest global depth, i.e. the directory entries the header can
+	 *         point to are at least 2^depth
+	 */
+	static int maxGlobalDepth() {
+		long entries = (long) HashDirectoryPage.getNumEntries() * HashHeaderPage.getMaxDirectoryPages();
+		return Math.min(30, 63 - Long.numberOfLeadingZeros(entries));
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page, see
+	 * BTreeFile#getPage. Pages fetched with read-write permission are added to
+	 * dirtypages, pinned and latched exclusively until the operation ends; they
+	 * are marked dirty only where they are changed.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		BufferPool bp = Database.getBufferPool();
+		Page p;
+		try {
+			if(perm == Permissions.READ_WRITE) {
+				p = bp.pinPage(tid, pid, perm);
+			}
+			else {
+				return bp.getPage(tid, pid, perm);
+			}
+		} catch (InterruptedException e) {
+			throw new TransactionAbortedException();
+		}
+		bp.getLatch(pid).writeLock().lock();
+		dirtypages.put(pid, p);
+		return p;
+	}
+
+	/**
+	 * Get the header page of this file, locked READ_ONLY. Creates the header page,
+	 * the first directory page and the first, empty bucket if the file is empty.
+	 */
+	HashHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			if(f.length() == 0) {
+				// 深度为0：一个目录页，唯一的目录项指向第2页的空桶
+				byte[] header = HashPage.createEmptyPageData();
+				ByteBuffer.wrap(header).putInt(0, 0).putInt(HashPage.INDEX_SIZE, 1)
+						.putInt(2 * HashPage.INDEX_SIZE, 1);
+				byte[] directory = HashPage.createEmptyPageData();
+				ByteBuffer.wrap(directory).putInt(0, 2);
+				BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true));
+				bw.write(header);
+				bw.write(directory);
+				bw.write(HashPage.createEmptyPageData());
+				bw.close();
+			}
+		}
+		return (HashHeaderPage) getPage(tid, dirtypages, headerId(), Permissions.READ_ONLY);
+	}
+
+	private HashPageId headerId() {
+		return new HashPageId(tableid, 0, HashPageId.HEADER);
+	}
+
+	/**
+	 * @return the id of the bucket directory entry (h mod 2^global depth) points to
+	 */
+	private HashPageId bucketId(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashHeaderPage header, int h) throws DbException, TransactionAbortedException {
+		int i = h & ((1 << header.getGlobalDepth()) - 1);
+		int entries = HashDirectoryPage.getNumEntries();
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+				header.getDirectoryId(i / entries), Permissions.READ_ONLY);
+		return dir.getBucketId(i % entries);
+	}
+
+	/**
+	 * Point directory entry i to a bucket.
+	 */
+	private void setBucketId(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashHeaderPage header, int i, HashPageId bucket) throws DbException, TransactionAbortedException {
+		int entries = HashDirectoryPage.getNumEntries();
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+				header.getDirectoryId(i / entries), Permissions.READ_WRITE);
+		BTreeFile.markDirty(tid, dir);
+		dir.setBucketId(i % entries, bucket);
+	}
+
+	/**
+	 * Insert a tuple into the bucket of its key. If the bucket is full, it is split
+	 * (doubling the directory if needed) until the bucket of the key has room, or an
+	 * overflow page is added to it if its keys all have the same hash as the new one.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in insertTuple");
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		int h = hash(t.getField(keyField));
+		try {
+			while (true) {
+				HashHeaderPage header = getHeaderPage(tid, dirtypages);
+				HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages,
+						bucketId(tid, dirtypages, header, h), Permissions.READ_WRITE);
+				HashBucketPage page = pageWithRoom(tid, dirtypages, bucket);
+				if (page == null && bucket.getLocalDepth() < maxGlobalDepth()
+						&& splittable(tid, dirtypages, bucket, h)) {
+					splitBucket(tid, dirtypages, header, bucket, h);
+					continue;
+				}
+				addToBucket(tid, dirtypages, page != null ? page : bucket, t);
+				break;
+			}
+
+			// 只返回真正改过的页，链上只读过的溢出页不算
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			for (Page p : dirtypages.values())
+				if (p.isDirty() != null)
+					dirtyPagesArr.add(p);
+			return dirtyPagesArr;
+		} finally {
+			BTreeFile.releaseLatches(dirtypages);
+		}
+	}
+
+	/**
+	 * @return the first page of the bucket with an empty slot, or null if the
+	 *         bucket is full
+	 */
+	private HashBucketPage pageWithRoom(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashBucketPage bucket) throws DbException, TransactionAbortedException {
+		HashBucketPage p = bucket;
+		while (p.getNumEmptySlots() == 0) {
+			HashPageId next = p.getNextId();
+			if (next == null)
+				return null;
+			p = (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+		}
+		return p;
+	}
+
+	/**
+	 * @return true if splitting the bucket would separate some of its keys from
+	 *         a key with hash h, at some depth up to maxGlobalDepth()
+	 */
+	private boolean splittable(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashBucketPage bucket, int h) throws DbException, TransactionAbortedException {
+		int mask = (1 << maxGlobalDepth()) - 1;
+		HashBucketPage p = bucket;
+		while (true) {
+			Iterator<Tuple> it = p.iterator();
+			while (it.hasNext()) {
+				if (((hash(it.next().getField(keyField)) ^ h) & mask) != 0)
+					return true;
+			}
+			HashPageId next = p.getNextId();
+			if (next == null)
+				return false;
+			p = (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+		}
+	}
+
+	/**
+	 * Add a tuple to the first page of the bucket starting at page p with an empty
+	 * slot, appending an overflow page to the bucket if all are full.
+	 */
+	private void addToBucket(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashBucketPage p, Tuple t) throws DbException, IOException, TransactionAbortedException {
+		while (p.getNumEmptySlots() == 0) {
+			HashPageId next = p.getNextId();
+			if (next == null) {
+				HashBucketPage overflow = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+				BTreeFile.markDirty(tid, p);
+				p.setNextId(overflow.getId());
+				p = overflow;
+			}
+			else {
+				p = (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+			}
+		}
+		BTreeFile.markDirty(tid, p);
+		p.insertTuple(t);
+	}
+
+	/**
+	 * Split a bucket of local depth l in two on bit l of the hash: the directory
+	 * entries of the bucket with that bit set are pointed to a new bucket, and the
+	 * tuples of the bucket are redistributed between the two. The overflow pages
+	 * of the bucket stay in its chain and are reused.
+	 *
+	 * @param header - the header page, locked READ_ONLY at least
+	 * @param bucket - the first page of the bucket, locked READ_WRITE
+	 * @param h - the hash of a key of the bucket
+	 */
+	private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashHeaderPage header, HashBucketPage bucket, int h)
+			throws DbException, IOException, TransactionAbortedException {
+		int depth = bucket.getLocalDepth();
+		if (depth == header.getGlobalDepth())
+			header = doubleDirectory(tid, dirtypages, header);
+		int globalDepth = header.getGlobalDepth();
+
+		HashBucketPage sibling = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+		BTreeFile.markDirty(tid, bucket, sibling);
+		bucket.setLocalDepth(depth + 1);
+		sibling.setLocalDepth(depth + 1);
+
+		// 指向这个桶的目录项里，第depth位是1的改为指向新桶
+		int step = 1 << (depth + 1);
+		for (int i = (h & ((1 << depth) - 1)) | (1 << depth); i < (1 << globalDepth); i += step)
+			setBucketId(tid, dirtypages, header, i, sibling.getId());
+
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		HashBucketPage p = bucket;
+		while (p != null) {
+			List<Tuple> onPage = new ArrayList<Tuple>();
+			Iterator<Tuple> it = p.iterator();
+			while (it.hasNext())
+				onPage.add(it.next());
+			BTreeFile.markDirty(tid, p);
+			for (Tuple t : onPage)
+				p.deleteTuple(t);
+			tuples.addAll(onPage);
+			HashPageId next = p.getNextId();
+			p = next == null ? null : (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+		}
+		for (Tuple t : tuples) {
+			boolean high = ((hash(t.getField(keyField)) >>> depth) & 1) == 1;
+			addToBucket(tid, dirtypages, high ? sibling : bucket, t);
+		}
+	}
+
+	/**
+	 * Double the directory: entry i + 2^d points to the bucket of entry i, adding
+	 * directory pages if needed, and the global depth becomes d + 1.
+	 *
+	 * @return the header page, locked READ_WRITE
+	 */
+	private HashHeaderPage doubleDirectory(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashHeaderPage header) throws DbException, IOException, TransactionAbortedException {
+		header = (HashHeaderPage) getPage(tid, dirtypages, header.getId(), Permissions.READ_WRITE);
+		BTreeFile.markDirty(tid, header);
+		int depth = header.getGlobalDepth();
+		int size = 1 << depth;
+		int entries = HashDirectoryPage.getNumEntries();
+		while ((long) header.getNumDirectoryPages() * entries < 2L * size)
+			header.addDirectoryPage(((HashPage) getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY)).getId());
+		for (int i = 0; i < size; i++)
+			setBucketId(tid, dirtypages, header, size + i, bucketId(tid, dirtypages, header, i));
+		header.setGlobalDepth(depth + 1);
+		return header;
+	}
+
+	/**
+	 * Append an empty page to the file and return it, locked READ_WRITE. Pages are
+	 * never freed, so there are no empty pages to reuse.
+	 *
+	 * @param pgcateg - the HashPageId category of the new page, DIRECTORY or BUCKET
+	 */
+	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		int emptyPageNo;
+		synchronized(this) {
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			bw.write(HashPage.createEmptyPageData());
+			bw.close();
+			emptyPageNo = numPages() - 1;
+		}
+		HashPageId newPageId = new HashPageId(tableid, emptyPageNo, pgcateg);
+
+		// make sure the page is not in the buffer pool or in the local cache
+		Database.getBufferPool().discardPage(newPageId);
+		dirtypages.remove(newPageId);
+
+		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Delete a tuple from its bucket page. Empty pages stay in their bucket.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return the page the tuple was deleted from
+	 */
+	public Page deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if (rid.getPageId().getTableId() != tableid)
+			throw new DbException("tried to delete tuple of another table");
+		HashPageId pid = new HashPageId(tableid, rid.getPageId().getPageNumber(), HashPageId.BUCKET);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			BTreeFile.markDirty(tid, page);
+			page.deleteTuple(t);
+			return page;
+		} finally {
+			BTreeFile.releaseLatches(dirtypages);
+		}
+	}
+
+	/**
+	 * Get a read lock on the header page and the directory page of a key and find
+	 * its bucket. The locks stay until the transaction completes; the header and the
+	 * directory page are also latched while they are read, so a split that holds their
+	 * latches is never seen half done, and the directory page is latched before the
+	 * header is let go.
+	 *
+	 * @return the first page of the bucket of the key, locked READ_ONLY
+	 */
+	HashBucketPage findBucket(TransactionId tid, Field key)
+			throws DbException, TransactionAbortedException {
+		int entries = HashDirectoryPage.getNumEntries();
+		HashPageId headerId = headerId();
+		HashHeaderPage header = (HashHeaderPage) latchShared(tid, headerId);
+		int i;
+		HashPageId dirId;
+		HashDirectoryPage dir;
+		try {
+			i = hash(key) & ((1 << header.getGlobalDepth()) - 1);
+			dirId = header.getDirectoryId(i / entries);
+			dir = (HashDirectoryPage) latchShared(tid, dirId);
+		} finally {
+			unlatchShared(headerId);
+		}
+		try {
+			return (HashBucketPage) getPage(tid, new HashMap<PageId, Page>(), dir.getBucketId(i % entries),
+					Permissions.READ_ONLY);
+		} finally {
+			unlatchShared(dirId);
+		}
+	}
+
+	/**
+	 * Lock the page READ_ONLY, pin it and hold its latch shared.
+	 */
+	private static Page latchShared(TransactionId tid, PageId pid)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		Page p;
+		try {
+			p = bp.pinPage(tid, pid, Permissions.READ_ONLY);
+		} catch (InterruptedException e) {
+			throw new TransactionAbortedException();
+		}
+		bp.getLatch(pid).readLock().lock();
+		return p;
+	}
+
+	private static void unlatchShared(PageId pid) {
+		BufferPool bp = Database.getBufferPool();
+		bp.getLatch(pid).readLock().unlock();
+		bp.unpinPage(pid);
+	}
+
+	/**
+	 * Get a read lock on directory entry i and return its bucket.
+	 */
+	HashBucketPage bucketAt(TransactionId tid, HashHeaderPage header, int i)
+			throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		return (HashBucketPage) getPage(tid, dirtypages, bucketId(tid, dirtypages, header, i),
+				Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Get a read lock on the header page, or return null if the file is empty.
+	 */
+	HashHeaderPage headerPage(TransactionId tid) throws DbException, TransactionAbortedException {
+		if (numPages() == 0)
+			return null;
+		return (HashHeaderPage) getPage(tid, new HashMap<PageId, Page>(), headerId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Get a read lock on a page of a bucket chain.
+	 */
+	HashBucketPage bucketPage(TransactionId tid, HashPageId pid)
+			throws DbException, TransactionAbortedException {
+		return (HashBucketPage) getPage(tid, new HashMap<PageId, Page>(), pid, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Return an iterator over the tuples that satisfy the predicate on the key field.
+	 * An equality predicate reads only the bucket of its key; any other predicate
+	 * has to read every bucket, as the tuples are not in key order.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashFileIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, bucket by bucket.
+	 *
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid, null);
+	}
+
+}
+
+/**
+ * Helper class that implements the DbFileIterator for a HashFile: every bucket in the
+ * order of the directory, skipping the entries that share a bucket with an earlier one,
+ * or only the bucket of the key of an equality predicate.
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+
+	// 全表扫描时下一个目录项
+	int nextEntry;
+	HashHeaderPage header = null;
+
+	TransactionId tid;
+	HashFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for every tuple
+	 */
+	public HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the first bucket
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		header = null;
+		curp = null;
+		it = null;
+		nextEntry = 0;
+		if (f.numPages() == 0)
+			return;
+		if (ipred != null && ipred.getOp() == Op.EQUALS) {
+			curp = f.findBucket(tid, ipred.getField());
+		}
+		else {
+			header = f.headerPage(tid);
+			curp = nextBucket();
+		}
+		if (curp != null)
+			it = curp.iterator();
+	}
+
+	/**
+	 * @return the first page of the bucket of the next directory entry that is the
+	 *         first one pointing to its bucket, or null after the last entry
+	 */
+	private HashBucketPage nextBucket() throws DbException, TransactionAbortedException {
+		int size = 1 << header.getGlobalDepth();
+		while (nextEntry < size) {
+			int i = nextEntry++;
+			HashBucketPage bucket = f.bucketAt(tid, header, i);
+			// 一个局部深度为l的桶由 i mod 2^l 相同的目录项共享，只在第一项读它
+			if (i < (1 << bucket.getLocalDepth()))
+				return bucket;
+		}
+		return null;
+	}
+
+	/**
+	 * Read the next tuple of the current page, then of the rest of the bucket, then
+	 * of the next buckets unless the predicate is an equality.
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (curp != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+					return t;
+			}
+			HashPageId next = curp.getNextId();
+			if (next != null)
+				curp = f.bucketPage(tid, next);
+			else if (header != null)
+				curp = nextBucket();
+			else
+				curp = null;
+			if (curp != null)
+				it = curp.iterator();
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+		header = null;
+	}
+}
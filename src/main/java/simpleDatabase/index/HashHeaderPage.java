@@ -0,0 +1,97 @@
+package simpleDatabase.index;
+
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.exception.DbException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HashHeaderPage is the first page of a HashFile. It holds the global depth of the
+ * directory, i.e. the number of bits of the hash of a key that select its bucket, and
+ * the page numbers of the directory pages, in order.
+ *
+ * 全局深度 + 目录页的页号
+ *
+ * @see HashFile
+ */
+public class HashHeaderPage extends HashPage {
+
+	private int globalDepth;
+	private int numDirPages;
+	private final int[] dirPages;
+
+	/**
+	 * Create a HashHeaderPage from a set of bytes of data read from disk.
+	 * The format of a HashHeaderPage is the global depth, the number of directory
+	 * pages and the page numbers of the directory pages, all ints.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashHeaderPage(HashPageId id, byte[] data) {
+		super(id);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		this.globalDepth = buf.getInt(0);
+		this.numDirPages = buf.getInt(INDEX_SIZE);
+		this.dirPages = new int[getMaxDirectoryPages()];
+		for (int i=0; i<numDirPages; i++)
+			dirPages[i] = buf.getInt((i + 2) * INDEX_SIZE);
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of directory pages a header page can point to
+	 */
+	public static int getMaxDirectoryPages() {
+		return BufferPool.getPageSize() / INDEX_SIZE - 2;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashHeaderPage getBeforeImage() {
+		return new HashHeaderPage(pid, getBeforeImageData());
+	}
+
+	protected void writePageData(ByteBuffer buf) {
+		buf.putInt(0, globalDepth);
+		buf.putInt(INDEX_SIZE, numDirPages);
+		for (int i=0; i<numDirPages; i++)
+			buf.putInt((i + 2) * INDEX_SIZE, dirPages[i]);
+	}
+
+	/**
+	 * @return the global depth: the directory has 2^depth entries
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	public void setGlobalDepth(int depth) {
+		this.globalDepth = depth;
+	}
+
+	public int getNumDirectoryPages() {
+		return numDirPages;
+	}
+
+	/**
+	 * @return the id of the i-th directory page
+	 */
+	public HashPageId getDirectoryId(int i) {
+		if (i < 0 || i >= numDirPages)
+			throw new IllegalArgumentException("no directory page " + i);
+		return new HashPageId(pid.getTableId(), dirPages[i], HashPageId.DIRECTORY);
+	}
+
+	/**
+	 * Append a directory page to the directory.
+	 * @throws DbException if the header cannot point to another directory page
+	 */
+	public void addDirectoryPage(HashPageId id) throws DbException {
+		if (id.pgcateg() != HashPageId.DIRECTORY || id.getTableId() != pid.getTableId())
+			throw new DbException("not a directory page of this table");
+		if (numDirPages == dirPages.length)
+			throw new DbException("the directory of the hash file is full");
+		dirPages[numDirPages++] = id.getPageNumber();
+	}
+}
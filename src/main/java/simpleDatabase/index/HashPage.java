@@ -0,0 +1,111 @@
+package simpleDatabase.index;
+
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.tx.TransactionId;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Base class of the pages of a HashFile: the header page, the directory pages
+ * and the bucket pages. Every page has the default page size of the BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public abstract class HashPage implements Page {
+	protected volatile boolean dirty = false;
+	protected volatile TransactionId dirtier = null;
+
+	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	protected final HashPageId pid;
+
+	protected byte[] oldData;
+	protected final Object oldDataLock=new Object();
+
+	public HashPage(HashPageId id) {
+		this.pid = id;
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashPage, i.e. a header page of depth 0 without directory pages, a directory
+	 * page without buckets, or a bucket page without tuples.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		writePageData(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/**
+	 * Copy the current contents of this page into oldData.
+	 */
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null) oldData = new byte[BufferPool.getPageSize()];
+			else Arrays.fill(oldData, (byte) 0);
+			writePageData(ByteBuffer.wrap(oldData));
+		}
+	}
+
+	/**
+	 * @return a copy of the page data saved by the last {@link #setBeforeImage}
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData.clone();
+		}
+	}
+
+	/**
+	 * Write the page image into buf, starting at position 0. The bytes of buf
+	 * that are not part of the image are expected to be zero.
+	 */
+	protected abstract void writePageData(ByteBuffer buf);
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+}
@@ -0,0 +1,384 @@
+package simpleDatabase.index;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.LookupDbFile;
+import simpleDatabase.cache.RecordId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.IntField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate.Op;
+import simpleDatabase.others.AbstractDbFileIterator;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * SecondaryIndex is a B+ tree index on one field of a table stored in a HeapFile or
+ * PaxFile. The tuples of the table stay where they are; the index is a separate BTreeFile
+ * holding one entry (key, page number, slot) per tuple, keyed on the key, i.e. a mapping
+ * from the value of the field to the RecordIds of the tuples that have it.
+ *
+ * An index may also carry the values of some other fields of the table in its entries (the
+ * INCLUDE columns of CREATE INDEX). A query that reads only the key and the included fields
+ * can then be answered from the index alone by {@link #lookupCovering}, without reading the
+ * pages of the table.
+ *
+ * Indexes are registered in the Catalog and kept up to date by
+ * BufferPool.insertTuple/deleteTuple, in the same transaction as the change to the table,
+ * so they commit and abort with it.
+ *
+ * 二级索引：在堆表的某一列上建一棵B+树，叶子里存 (列值, 页号, slot, 附带的列...)
+ *
+ * @see simpleDatabase.basic.Catalog#createIndex
+ */
+public class SecondaryIndex {
+
+	private final int tableid;
+	private final int field;
+	private final int[] include;
+	private final BTreeFile file;
+
+	/**
+	 * Open the index on field of a table that is stored in indexFile. The index must
+	 * match the table, e.g. it was built by {@link #build}.
+	 *
+	 * @param tableid - the table the index is on
+	 * @param field - the index of the indexed field in the tuples of the table
+	 * @param indexFile - the file the entries of the index are stored in
+	 */
+	public SecondaryIndex(int tableid, int field, File indexFile) {
+		this(tableid, field, new int[0], indexFile);
+	}
+
+	/**
+	 * Open the index on field of a table, whose entries also carry the values of the
+	 * fields include of the tuples.
+	 *
+	 * @param tableid - the table the index is on
+	 * @param field - the index of the indexed field in the tuples of the table
+	 * @param include - the indexes of the fields included in the entries
+	 * @param indexFile - the file the entries of the index are stored in
+	 * @throws IllegalArgumentException if the table is not a HeapFile or PaxFile, or a field
+	 *         is not in the table, or a field is included twice or is the indexed field
+	 */
+	public SecondaryIndex(int tableid, int field, int[] include, File indexFile) {
+		DbFile table = Database.getCatalog().getDbFile(tableid);
+		if(!(table instanceof LookupDbFile)) {
+			throw new IllegalArgumentException("secondary indexes need a HeapFile or PaxFile table");
+		}
+		TupleDesc td = table.getTupleDesc();
+		if(field < 0 || field >= td.numFields()) {
+			throw new IllegalArgumentException("the table has no field " + field);
+		}
+		for(int i = 0; i < include.length; i++) {
+			int f = include[i];
+			if(f < 0 || f >= td.numFields() || f == field) {
+				throw new IllegalArgumentException("cannot include field " + f + " in the index on field " + field);
+			}
+			for(int j = 0; j < i; j++) {
+				if(include[j] == f) {
+					throw new IllegalArgumentException("field " + f + " is included twice");
+				}
+			}
+		}
+		this.tableid = tableid;
+		this.field = field;
+		this.include = include.clone();
+		this.file = new BTreeFile(indexFile, 0, entryDesc(td, field, this.include));
+	}
+
+	/**
+	 * Build the index from the tuples the table holds now, by sorting them and bulk
+	 * loading the B+ tree; whatever the index file held is overwritten. The index file
+	 * must already be in the Catalog, and the table must not change meanwhile.
+	 *
+	 * @see simpleDatabase.basic.Catalog#createIndex
+	 */
+	public void build() throws IOException, DbException, TransactionAbortedException {
+		TupleSorter sorter = BTreeFileEncoder.newSorter(file.getTupleDesc(), 0);
+		try {
+			TransactionId tid = new TransactionId();
+			DbFileIterator it = Database.getCatalog().getDbFile(tableid).iterator(tid);
+			try {
+				it.open();
+				while(it.hasNext()) {
+					sorter.add(entry(it.next()));
+				}
+				it.close();
+			} finally {
+				Database.getBufferPool().transactionComplete(tid);
+			}
+			BTreeFileEncoder.bulkLoad(file, sorter, BufferPool.getPageSize(),
+					BTreeFileEncoder.DEFAULT_FILL_FACTOR);
+		} finally {
+			sorter.close();
+		}
+	}
+
+	/**
+	 * Returns the tuple descriptor of the entries of an index on field of a table
+	 * with tuple descriptor td: the key, the page number and the slot of the tuple,
+	 * then the included fields.
+	 */
+	static TupleDesc entryDesc(TupleDesc td, int field, int[] include) {
+		Type[] types = new Type[3 + include.length];
+		String[] names = new String[3 + include.length];
+		types[0] = td.getFieldType(field);
+		names[0] = td.getFieldName(field);
+		types[1] = types[2] = Type.INT_TYPE;
+		names[1] = "page";
+		names[2] = "slot";
+		for(int i = 0; i < include.length; i++) {
+			types[3 + i] = td.getFieldType(include[i]);
+			names[3 + i] = td.getFieldName(include[i]);
+		}
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * @return the id of the table this index is on
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the index of the indexed field in the tuples of the table
+	 */
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * @return the indexes of the fields of the table included in the entries
+	 */
+	public int[] getIncludedFields() {
+		return include.clone();
+	}
+
+	/**
+	 * @param fields - indexes of fields of the table, or null for all of them
+	 * @return true if the key and the included fields are all of fields, i.e. a query
+	 *         reading only fields can use {@link #lookupCovering}
+	 */
+	public boolean covers(int[] fields) {
+		if(fields == null) {
+			return include.length + 1 == Database.getCatalog().getTupleDesc(tableid).numFields();
+		}
+		for(int f : fields) {
+			if(f == field) {
+				continue;
+			}
+			boolean found = false;
+			for(int i : include) {
+				found |= i == f;
+			}
+			if(!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the BTreeFile holding the entries of this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Add the entry of tuple t, which has just been inserted into the table.
+	 *
+	 * @param tid - the transaction inserting t
+	 * @param t - the tuple, with the RecordId it was stored at
+	 */
+	public void insert(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+	}
+
+	/**
+	 * Remove the entry of tuple t, which is about to be deleted from the table.
+	 *
+	 * @param tid - the transaction deleting t
+	 * @param t - the tuple, with its RecordId
+	 * @throws DbException if the index has no entry for t
+	 */
+	public void delete(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		Field key = t.getField(field);
+		if(key == null) {
+			// 投影过的元组可能没有这一列，从表里读回来
+			Tuple stored = ((LookupDbFile) Database.getCatalog().getDbFile(tableid)).getTuple(tid, rid);
+			if(stored == null) {
+				throw new DbException("tuple " + rid + " is not in the table");
+			}
+			key = stored.getField(field);
+		}
+
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple e = it.next();
+				if(((IntField) e.getField(1)).getValue() == rid.getPageId().getPageNumber()
+						&& ((IntField) e.getField(2)).getValue() == rid.getTupleNumber()) {
+					Database.getBufferPool().deleteTuple(tid, e);
+					return;
+				}
+			}
+		} finally {
+			it.close();
+		}
+		throw new DbException("index on field " + field + " of table " + tableid + " has no entry for " + rid);
+	}
+
+	/**
+	 * Returns an iterator over the tuples of the table whose indexed field satisfies ipred,
+	 * in the order of the index. Only the index pages on the way and the pages of the
+	 * matching tuples are read.
+	 *
+	 * @param tid - the transaction reading the tuples
+	 * @param ipred - the predicate on the indexed field, or null to read every tuple
+	 */
+	public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred) {
+		if(ipred == null) {
+			return new SecondaryIndexIterator(tid, file.iterator(tid));
+		}
+		return new SecondaryIndexIterator(tid, file.indexIterator(tid, ipred));
+	}
+
+	/**
+	 * Returns an iterator over the tuples of the table whose indexed field satisfies ipred,
+	 * in the order of the index, built from the entries of the index alone: only the key
+	 * and the included fields are set, the other fields are null. The tuples have the
+	 * RecordIds of the tuples of the table. Only the index pages are read.
+	 *
+	 * 只读索引就能回答查询，不回表
+	 *
+	 * @param tid - the transaction reading the tuples
+	 * @param ipred - the predicate on the indexed field, or null to read every tuple
+	 * @see #covers
+	 */
+	public DbFileIterator lookupCovering(TransactionId tid, IndexPredicate ipred) {
+		if(ipred == null) {
+			return new CoveringIterator(file.iterator(tid));
+		}
+		return new CoveringIterator(file.indexIterator(tid, ipred));
+	}
+
+	/**
+	 * Returns the entry of tuple t in this index.
+	 */
+	Tuple entry(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple e = new Tuple(file.getTupleDesc());
+		e.setField(0, t.getField(field));
+		e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(2, new IntField(rid.getTupleNumber()));
+		for(int i = 0; i < include.length; i++) {
+			e.setField(3 + i, t.getField(include[i]));
+		}
+		return e;
+	}
+
+	private RecordId recordId(Tuple e) {
+		return new RecordId(new HeapPageId(tableid, ((IntField) e.getField(1)).getValue()),
+				((IntField) e.getField(2)).getValue());
+	}
+
+	/**
+	 * Fetches the tuples the entries of an index iterator point to.
+	 */
+	private class SecondaryIndexIterator extends AbstractDbFileIterator {
+
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+		private final LookupDbFile table;
+
+		SecondaryIndexIterator(TransactionId tid, DbFileIterator entries) {
+			this.tid = tid;
+			this.entries = entries;
+			this.table = (LookupDbFile) Database.getCatalog().getDbFile(tableid);
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while(entries.hasNext()) {
+				Tuple t = table.getTuple(tid, recordId(entries.next()));
+				if(t != null) {
+					return t;
+				}
+			}
+			return null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+
+	/**
+	 * Turns the entries of an index iterator into tuples of the table holding the key
+	 * and the included fields.
+	 */
+	private class CoveringIterator extends AbstractDbFileIterator {
+
+		private final DbFileIterator entries;
+		private final TupleDesc td;
+
+		CoveringIterator(DbFileIterator entries) {
+			this.entries = entries;
+			this.td = Database.getCatalog().getTupleDesc(tableid);
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if(!entries.hasNext()) {
+				return null;
+			}
+			Tuple e = entries.next();
+			Tuple t = new Tuple(td);
+			t.setField(field, e.getField(0));
+			for(int i = 0; i < include.length; i++) {
+				t.setField(include[i], e.getField(3 + i));
+			}
+			t.setRecordId(recordId(e));
+			return t;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package simpleDatabase.index;
+
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * TupleSorter sorts a stream of tuples that may not fit in memory (an external merge sort).
+ * <p>
+ * Tuples are added with {@link #add}. Every runTuples tuples are sorted and written to a
+ * temporary run file by a pool of threads, while the caller goes on reading the next run.
+ * {@link #sort} then merges the runs, at most {@link #MAX_FAN_IN} at a time, and returns the
+ * tuples in order, reading every run sequentially. Only one run per thread and a buffer per
+ * merged run are in memory at any time.
+ *
+ * 外排序：分段并行排序写成有序的run文件，再多路归并
+ */
+class TupleSorter implements Closeable {
+
+	/** Number of runs merged at once; more runs are first merged into longer runs */
+	static final int MAX_FAN_IN = 64;
+
+	private static final int RUN_BUFFER_BYTES = 64 * 1024;
+
+	private final TupleDesc td;
+	private final Comparator<Tuple> comparator;
+	private final int runTuples;
+	private final ExecutorService pool;
+	private final int threads;
+
+	// runs being written, in the order they were started
+	private final List<Future<File>> pending = new ArrayList<Future<File>>();
+	private final List<File> runs = new ArrayList<File>();
+	private ArrayList<Tuple> current;
+	private long size = 0;
+
+	/**
+	 * @param td - the tuple descriptor of the tuples to sort
+	 * @param comparator - the order to sort the tuples in
+	 * @param runTuples - number of tuples sorted in memory at once by one thread
+	 * @param threads - number of threads sorting and merging runs
+	 */
+	TupleSorter(TupleDesc td, Comparator<Tuple> comparator, int runTuples, int threads) {
+		if(runTuples < 1 || threads < 1) {
+			throw new IllegalArgumentException("runTuples and threads must be positive");
+		}
+		this.td = td;
+		this.comparator = comparator;
+		this.runTuples = runTuples;
+		this.threads = threads;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.current = new ArrayList<Tuple>(runTuples);
+	}
+
+	/**
+	 * Add a tuple to sort. Blocks while every thread is busy with a run.
+	 */
+	void add(Tuple t) throws IOException {
+		current.add(t);
+		size++;
+		if(current.size() == runTuples) {
+			startRun();
+		}
+	}
+
+	/**
+	 * @return the number of tuples added
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Finish sorting.
+	 * @return the tuples added, in order; the stream must be read before this sorter is closed
+	 */
+	SortedStream sort() throws IOException {
+		if(!current.isEmpty()) {
+			startRun();
+		}
+		waitForRuns(0);
+
+		// 一次打开的run太多时，先分组归并成更长的run
+		while(runs.size() > MAX_FAN_IN) {
+			List<Future<File>> merges = new ArrayList<Future<File>>();
+			for(int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+				final List<File> group = new ArrayList<File>(runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size())));
+				merges.add(pool.submit(new Callable<File>() {
+					public File call() throws IOException {
+						return mergeRuns(group);
+					}
+				}));
+			}
+			runs.clear();
+			for(Future<File> f : merges) {
+				runs.add(get(f));
+			}
+		}
+		return new SortedStream(runs);
+	}
+
+	/**
+	 * Delete the run files and stop the threads.
+	 */
+	public void close() {
+		pool.shutdownNow();
+		for(File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+	}
+
+	private void startRun() throws IOException {
+		// 最多同时排 threads 个run，控制内存
+		waitForRuns(threads - 1);
+		final ArrayList<Tuple> run = current;
+		current = new ArrayList<Tuple>(runTuples);
+		pending.add(pool.submit(new Callable<File>() {
+			public File call() throws IOException {
+				Collections.sort(run, comparator);
+				File f = newRunFile();
+				DataOutputStream dos = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(f), RUN_BUFFER_BYTES));
+				try {
+					for(Tuple t : run) {
+						writeTuple(dos, t);
+					}
+				} finally {
+					dos.close();
+				}
+				return f;
+			}
+		}));
+	}
+
+	private void waitForRuns(int maxPending) throws IOException {
+		while(pending.size() > maxPending) {
+			runs.add(get(pending.remove(0)));
+		}
+	}
+
+	private File mergeRuns(List<File> group) throws IOException {
+		File f = newRunFile();
+		DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f), RUN_BUFFER_BYTES));
+		SortedStream in = new SortedStream(group);
+		try {
+			while(in.hasNext()) {
+				writeTuple(dos, in.next());
+			}
+		} finally {
+			in.close();
+			dos.close();
+		}
+		for(File r : group) {
+			r.delete();
+		}
+		return f;
+	}
+
+	private static File newRunFile() throws IOException {
+		File f = File.createTempFile("sortRun", ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	private static File get(Future<File> f) throws IOException {
+		try {
+			return f.get();
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException("interrupted while sorting");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+		for(int j = 0; j < td.numFields(); j++) {
+			t.getField(j).serialize(dos);
+		}
+	}
+
+	private Tuple readTuple(DataInputStream dis) throws IOException {
+		Tuple t = new Tuple(td);
+		try {
+			for(int j = 0; j < td.numFields(); j++) {
+				t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch(ParseException e) {
+			throw new IOException("corrupt sort run", e);
+		}
+		return t;
+	}
+
+	/**
+	 * The tuples of a set of sorted runs, merged in order. Ties are broken by run, so tuples
+	 * with equal keys come out in the order they were added.
+	 */
+	class SortedStream implements Closeable {
+
+		private final PriorityQueue<Run> heap;
+		private final List<Run> open = new ArrayList<Run>();
+
+		private SortedStream(List<File> files) throws IOException {
+			heap = new PriorityQueue<Run>(Math.max(1, files.size()), new Comparator<Run>() {
+				public int compare(Run r1, Run r2) {
+					int cmp = comparator.compare(r1.head, r2.head);
+					return cmp != 0 ? cmp : r1.index - r2.index;
+				}
+			});
+			for(int i = 0; i < files.size(); i++) {
+				Run r = new Run(files.get(i), i);
+				open.add(r);
+				if(r.advance()) {
+					heap.add(r);
+				}
+			}
+		}
+
+		boolean hasNext() {
+			return !heap.isEmpty();
+		}
+
+		Tuple next() throws IOException {
+			Run r = heap.poll();
+			if(r == null) {
+				throw new NoSuchElementException();
+			}
+			Tuple t = r.head;
+			if(r.advance()) {
+				heap.add(r);
+			}
+			return t;
+		}
+
+		public void close() throws IOException {
+			for(Run r : open) {
+				r.in.close();
+			}
+		}
+	}
+
+	private class Run {
+		final DataInputStream in;
+		final int index;
+		Tuple head;
+
+		Run(File f, int index) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), RUN_BUFFER_BYTES));
+			this.index = index;
+		}
+
+		boolean advance() throws IOException {
+			in.mark(1);
+			if(in.read() < 0) {
+				head = null;
+				return false;
+			}
+			in.reset();
+			head = readTuple(in);
+			return true;
+		}
+	}
+}
@@ -4,10 +4,15 @@ import simpleDatabase.basic.Type;
 import simpleDatabase.exception.DbException;
 import simpleDatabase.exception.TransactionAbortedException;
 import simpleDatabase.basic.Database;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.PushdownDbFile;
+import simpleDatabase.operator.Predicate;
 import simpleDatabase.tx.TransactionId;
 import simpleDatabase.cache.Tuple;
 import simpleDatabase.cache.TupleDesc;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -27,6 +32,12 @@ public class SeqScan implements OpIterator {
 
     private DbFileIterator tupleIterator;
 
+    /* 下推到扫描里的过滤条件 */
+    private List<Predicate> filters = new ArrayList<>();
+
+    /* 上层用到的列，null表示全部 */
+    private int[] fields;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -49,7 +60,38 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
         this.tableid = tableid;
         // 获取整张表的迭代器
-        tupleIterator = Database.getCatalog().getDbFile(tableid).iterator(tid);
+        tupleIterator = createIterator();
+    }
+
+    private DbFileIterator createIterator() {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (file instanceof PushdownDbFile && (!filters.isEmpty() || fields != null))
+            return ((PushdownDbFile) file).iterator(tid, filters, fields);
+        return file.iterator(tid);
+    }
+
+    /**
+     * Let the underlying file evaluate p while it scans, if it supports it (see
+     * {@link PushdownDbFile}). Files that don't may still return tuples that fail
+     * p, so the plan should keep its Filter on top of this scan. Must be called
+     * before {@link #open}.
+     *
+     * @param p a predicate on the fields of {@link #getTupleDesc}
+     */
+    public void pushDown(Predicate p) {
+        filters.add(p);
+        tupleIterator = createIterator();
+    }
+
+    /**
+     * Tell the scan which fields the operators above it read. Other fields may be
+     * left null in the returned tuples. Must be called before {@link #open}.
+     *
+     * @param fields indexes into {@link #getTupleDesc}, or null for all fields
+     */
+    public void setReferencedFields(int[] fields) {
+        this.fields = fields == null ? null : fields.clone();
+        tupleIterator = createIterator();
     }
 
     /**
@@ -85,6 +127,9 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.filters = new ArrayList<>();
+        this.fields = null;
+        this.tupleIterator = createIterator();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
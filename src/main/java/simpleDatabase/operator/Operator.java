@@ -107,7 +107,7 @@ public abstract class Operator implements OpIterator {
      *            The estimated cardinality of this operator Will only be used
      *            in lab7
      * */
-    protected void setEstimatedCardinality(int card) {
+    public void setEstimatedCardinality(int card) {
         this.estimatedCardinality = card;
     }
 
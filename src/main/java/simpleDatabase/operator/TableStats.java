@@ -2,13 +2,15 @@ package simpleDatabase.operator;
 
 import simpleDatabase.basic.Database;
 import simpleDatabase.basic.Type;
-import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
 import simpleDatabase.cache.Tuple;
 import simpleDatabase.cache.TupleDesc;
 import simpleDatabase.field.IntField;
 import simpleDatabase.field.StringField;
 import simpleDatabase.iterator.DbFileIterator;
 import simpleDatabase.field.Field;
+import simpleDatabase.index.BTreeFile;
 import simpleDatabase.tx.Transaction;
 
 import java.util.HashMap;
@@ -88,7 +90,7 @@ public class TableStats {
     /* 名字和histogram的映射 */
     private HashMap<String, Object> name2Histogram;
 
-    private HeapFile table;
+    private DbFile table;
 
     /* tuples 的数量 */
     private int tuplesNum;
@@ -180,7 +182,7 @@ public class TableStats {
      */
     public TableStats(int tableid, int ioCostPerPage) {
         this.ioCostPerPage = ioCostPerPage;
-        table = (HeapFile) Database.getCatalog().getDbFile(tableid);
+        table = Database.getCatalog().getDbFile(tableid);
         td = table.getTupleDesc();
         minMaxMap = new HashMap<>();
         name2Histogram = new HashMap<>();
@@ -208,6 +210,43 @@ public class TableStats {
         return table.numPages() * ioCostPerPage;
     }
 
+    /**
+     * 估计走B+树索引读出满足条件的元组的io开销：从根走到叶子，再顺着叶子读满足条件的那部分；
+     * 二级索引的叶子里只有RecordId，每个元组还要再去表里读一页
+     * Estimates the cost of reading the tuples that satisfy a predicate on the key
+     * of a B+ tree index, under the same assumptions as {@link #estimateScanCost()}.
+     * The index is descended from the root to the first matching leaf, and the
+     * matching fraction of the leaves is read from there. If the index is a
+     * secondary index, every matching tuple then costs one more page read from the
+     * table, since the tuples are not stored in the order of the index.
+     *
+     * @param index
+     *            the B+ tree: the table itself if it is stored in a BTreeFile, or
+     *            the BTreeFile of a secondary index on the table
+     * @param secondary
+     *            true if index is a secondary index
+     * @param selectivity
+     *            the selectivity of the predicate on the key of the index
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(BTreeFile index, boolean secondary, double selectivity) {
+        TupleDesc itd = index.getTupleDesc();
+        /* 内部节点的每个 entry 是一个 key 加一个子页指针，组合键是各列长度之和 */
+        int keySize = 0;
+        for (int f : index.keyFields())
+            keySize += itd.getFieldType(f).getLen();
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keySize + Type.INT_TYPE.getLen()));
+        int pages = Math.max(1, index.numPages());
+        /* 树高：fanout^height 个叶子 */
+        int height = 1;
+        for (long leaves = fanout; leaves < pages; leaves *= fanout)
+            ++height;
+        double cost = (height + Math.ceil(pages * selectivity)) * ioCostPerPage;
+        if (secondary)
+            cost += Math.ceil(totalTuples() * selectivity) * ioCostPerPage;
+        return cost;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -0,0 +1,279 @@
+package simpleDatabase.operator.join;
+
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.Field;
+import simpleDatabase.index.BTreeScan;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.iterator.OpIterator;
+import simpleDatabase.operator.Filter;
+import simpleDatabase.operator.Operator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 索引嵌套循环join：内表在join列上有B+树时，不再每块外表元组都扫一遍内表，
+ * 而是拿外表元组的join列的值去查B+树，只读匹配的那部分
+ *
+ * The IndexNestedLoopJoin operator joins its outer child with a table that has a
+ * B+ tree on the join field, by probing the tree with the join field of every outer
+ * tuple instead of rescanning the inner table.
+ * <p>
+ * The inner child must be a {@link BTreeScan} of the table on the join field, either
+ * of a BTreeFile or through a secondary index, possibly under Filters; the tree is
+ * probed through {@link BTreeScan#probe}, and the predicates of the Filters are
+ * applied to the tuples found.
+ * <p>
+ * The outer tuples are read in batches and every batch is sorted on the join field,
+ * so consecutive probes go to the same or neighbouring leaves, which are still in
+ * the buffer pool, and equal keys are probed only once. A batch of one tuple probes
+ * per outer tuple, in the order of the outer child.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate joinPredicate;
+
+    private TupleDesc td;
+
+    private OpIterator child1, child2;
+
+    /* 一批读多少个外表元组 */
+    private int batchSize;
+
+    /* 内表最底下的 BTreeScan，和它上面的 Filter 的条件 */
+    private transient BTreeScan inner;
+    private transient List<Predicate> innerPredicates;
+
+    /* outer op inner 等价于 inner probeOp outer */
+    private Predicate.Op probeOp;
+
+    /* 当前这批外表元组，按join列排好序 */
+    private transient List<Tuple> batch;
+    private transient int outerPos;
+    /* batch.get(outerPos) 的 key 在内表里匹配的元组 */
+    private transient List<Tuple> matches;
+    private transient int matchPos;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on; the outer tuples are read in batches of the size of the buffer of the
+     * block nested-loop {@link Join}.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join, a BTreeScan on
+     *            the join field, possibly under Filters
+     * @throws IllegalArgumentException if child2 cannot be probed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2,
+                Math.max(1, Join.blockNestedJoinBufferSize / child1.getTupleDesc().getSize()));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join, a BTreeScan on
+     *            the join field, possibly under Filters
+     * @param batchSize
+     *            the number of outer tuples sorted and probed together; 1 probes
+     *            once per outer tuple
+     * @throws IllegalArgumentException if child2 cannot be probed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.joinPredicate = p;
+        this.batchSize = batchSize;
+        this.probeOp = probeOp(p.getOperator());
+        setChildren(new OpIterator[]{child1, child2});
+    }
+
+    /* 把 outer op inner 翻过来，变成对内表 key 的条件 */
+    private static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+                return Predicate.Op.EQUALS;
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                throw new IllegalArgumentException("cannot probe a B+ tree with " + op);
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return joinPredicate;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(joinPredicate.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(joinPredicate.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+        batch = null;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        batch = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        batch = null;
+        matches = null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        int f1 = joinPredicate.getField1();
+        while (true) {
+            if (batch != null && outerPos < batch.size()) {
+                if (matchPos < matches.size())
+                    return mergeTuples(batch.get(outerPos), matches.get(matchPos++));
+                ++outerPos;
+                matchPos = 0;
+                /* 和上一个外表元组的key相同，直接用上一次probe的结果 */
+                if (outerPos < batch.size()
+                        && !batch.get(outerPos).getField(f1).equals(batch.get(outerPos - 1).getField(f1)))
+                    matches = probe(batch.get(outerPos).getField(f1));
+                continue;
+            }
+            if (!readBatch())
+                return null;
+        }
+    }
+
+    /* 读下一批外表元组，按join列排序，probe第一个key */
+    private boolean readBatch() throws TransactionAbortedException, DbException {
+        final int f1 = joinPredicate.getField1();
+        batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && child1.hasNext())
+            batch.add(child1.next());
+        if (batch.isEmpty())
+            return false;
+        if (batch.size() > 1) {
+            Collections.sort(batch, new Comparator<Tuple>() {
+                public int compare(Tuple t1, Tuple t2) {
+                    Field k1 = t1.getField(f1);
+                    Field k2 = t2.getField(f1);
+                    if (k1.compare(Predicate.Op.LESS_THAN, k2))
+                        return -1;
+                    return k1.equals(k2) ? 0 : 1;
+                }
+            });
+        }
+        outerPos = 0;
+        matchPos = 0;
+        matches = probe(batch.get(0).getField(f1));
+        return true;
+    }
+
+    /* 查B+树，返回内表中满足 join 条件和 Filter 条件的元组 */
+    private List<Tuple> probe(Field key) throws TransactionAbortedException, DbException {
+        List<Tuple> found = new ArrayList<>();
+        DbFileIterator it = inner.probe(new IndexPredicate(probeOp, key));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                boolean pass = true;
+                for (Predicate p : innerPredicates) {
+                    if (!p.filter(t)) {
+                        pass = false;
+                        break;
+                    }
+                }
+                if (pass)
+                    found.add(t);
+            }
+        } finally {
+            it.close();
+        }
+        return found;
+    }
+
+    private Tuple mergeTuples(Tuple left, Tuple right) {
+        Tuple result = new Tuple(td);
+        int len1 = child1.getTupleDesc().numFields();
+        for (int i = 0; i < len1; i++)
+            result.setField(i, left.getField(i));
+        for (int i = 0; i < child2.getTupleDesc().numFields(); i++)
+            result.setField(i + len1, right.getField(i));
+        return result;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        /* 剥掉内表上的 Filter，找到下面的 BTreeScan */
+        List<Predicate> preds = new ArrayList<>();
+        OpIterator o = children[1];
+        while (o instanceof Filter) {
+            preds.add(((Filter) o).getPredicate());
+            o = ((Filter) o).getChildren()[0];
+        }
+        if (!(o instanceof BTreeScan) || ((BTreeScan) o).getKeyField() != joinPredicate.getField2())
+            throw new IllegalArgumentException("the inner child is not a B+ tree scan on the join field");
+        this.child1 = children[0];
+        this.child2 = children[1];
+        this.inner = (BTreeScan) o;
+        /* probe 不用 scan 自己的索引条件，当成一个普通条件来检查 */
+        IndexPredicate ipred = inner.getIndexPredicate();
+        if (ipred != null)
+            preds.add(new Predicate(inner.getKeyField(), ipred.getOp(), ipred.getField()));
+        this.innerPredicates = preds;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
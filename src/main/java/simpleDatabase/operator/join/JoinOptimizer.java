@@ -1,8 +1,11 @@
 package simpleDatabase.operator.join;
 
 import simpleDatabase.basic.Database;
+import simpleDatabase.cache.DbFile;
 import simpleDatabase.cache.TupleDesc;
 import simpleDatabase.exception.ParsingException;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.SecondaryIndex;
 import simpleDatabase.iterator.OpIterator;
 import simpleDatabase.operator.PlanCache;
 import simpleDatabase.operator.Predicate;
@@ -78,7 +81,11 @@ public class JoinOptimizer {
         }
 
         JoinPredicate p = new JoinPredicate(t1id, lj.op, t2id);
-        j = new Join(p, plan1, plan2);
+        /* 内表已经换成了join列上的 BTreeScan，见 LogicalPlan#physicalPlan */
+        if (lj.indexJoin)
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        else
+            j = new Join(p, plan1, plan2);
         return j;
     }
 
@@ -129,6 +136,69 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * 估计 index nested-loop join 的开销：读一遍外表，每个外表元组查一次内表的B+树
+     * Estimate the cost of doing a join as an {@link IndexNestedLoopJoin}: the
+     * left-hand side is read once, and for every tuple of it the B+ tree of the
+     * right-hand table on its join field is probed, which costs what reading the
+     * matching fraction of the table through the tree costs
+     * ({@link TableStats#estimateIndexScanCost}). The right-hand side must be a
+     * base table, not the result of a join.
+     *
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand table, after its filters
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @return An estimate of the cost of the join, or Double.MAX_VALUE if the
+     *         right-hand table has no B+ tree on its join field or the join
+     *         predicate cannot be looked up in one
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, Map<String, TableStats> stats) {
+        if (j instanceof LogicalSubplanJoinNode || j.t1Alias == null || j.t2Alias == null
+                || j.op == Predicate.Op.LIKE || j.op == Predicate.Op.NOT_EQUALS)
+            return Double.MAX_VALUE;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return Double.MAX_VALUE;
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        int field;
+        try {
+            field = file.getTupleDesc().fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.MAX_VALUE;
+        }
+        BTreeFile tree;
+        boolean secondary;
+        if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field) {
+            tree = (BTreeFile) file;
+            secondary = false;
+        } else {
+            SecondaryIndex index = Database.getCatalog().getIndex(tableId, field);
+            if (index == null)
+                return Double.MAX_VALUE;
+            tree = index.getFile();
+            secondary = true;
+        }
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return Double.MAX_VALUE;
+
+        /* 每次 probe 匹配到内表的比例 */
+        int card = estimateTableJoinCardinality(j.op, j.t1Alias, j.t2Alias, j.f1PureName,
+                j.f2PureName, card1, card2, false, isPkey(j.t2Alias, j.f2PureName),
+                stats, p.getTableAliasToIdMapping());
+        double sel = Math.min(1.0, card / ((double) Math.max(1, card1) * Math.max(1, card2)));
+        return cost1 + card1 * s.estimateIndexScanCost(tree, secondary, sel) + card;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -270,6 +340,8 @@ public class JoinOptimizer {
         // 11. return optjoin(j)
 
         int numJoinNodes = joins.size();
+        /* 单表查询没有join，不用排 */
+        if (numJoinNodes == 0) return new Vector<LogicalJoinNode>();
         PlanCache pc = new PlanCache();
         Set<LogicalJoinNode> wholeSet = null;
         for (int i = 1; i <= numJoinNodes; ++i) {
@@ -420,17 +492,37 @@ public class JoinOptimizer {
 
         // case where prevbest is left
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        /* 内表是基本表的话，还可以用内表join列上的B+树做 index nested-loop join */
+        boolean indexJoin1 = false;
+        if (news.isEmpty() || doesJoin(prevBest, table1Alias)) {
+            double cost = estimateIndexJoinCost(j, t1card, t2card, t1cost, stats);
+            if (cost < cost1) {
+                cost1 = cost;
+                indexJoin1 = true;
+            }
+        }
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        boolean indexJoin2 = false;
+        if (news.isEmpty() || doesJoin(prevBest, table2Alias)) {
+            double cost = estimateIndexJoinCost(j2, t2card, t1card, t2cost, stats);
+            if (cost < cost2) {
+                cost2 = cost;
+                indexJoin2 = true;
+            }
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            indexJoin1 = indexJoin2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
+        if (indexJoin1)
+            j = j.asIndexJoin();
         if (cost1 >= bestCostSoFar)
             return null;
 
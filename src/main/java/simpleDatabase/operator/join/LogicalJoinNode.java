@@ -30,6 +30,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op op;
 
+    /** Whether the join probes a B+ tree of t2 on f2 for every tuple of t1 ({@link IndexNestedLoopJoin})
+     * instead of rescanning t2. Set by the {@link JoinOptimizer}. */
+    public boolean indexJoin = false;
+
     public LogicalJoinNode() {
     }
 
@@ -70,6 +74,16 @@ public class LogicalJoinNode {
         return j2;
     }
 
+    /**
+     * 返回一个一样的、但用 index nested-loop join 的 LogicalJoinNode
+     */
+    /** Return a new LogicalJoinNode for the same join, done as an index nested-loop join. */
+    public LogicalJoinNode asIndexJoin() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, op);
+        j2.indexJoin = true;
+        return j2;
+    }
+
     @Override
     public boolean equals(Object o) {
         LogicalJoinNode j2 = (LogicalJoinNode) o;
@@ -3,19 +3,25 @@ package simpleDatabase.operator.join;
 import simpleDatabase.basic.Catalog;
 import simpleDatabase.basic.Database;
 import simpleDatabase.basic.Type;
+import simpleDatabase.cache.DbFile;
 import simpleDatabase.cache.HeapFile;
 import simpleDatabase.cache.Tuple;
 import simpleDatabase.cache.TupleDesc;
 import simpleDatabase.exception.ParsingException;
+import simpleDatabase.field.CompositeField;
 import simpleDatabase.field.Field;
 import simpleDatabase.field.IntField;
 import simpleDatabase.field.StringField;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeScan;
+import simpleDatabase.index.SecondaryIndex;
 import simpleDatabase.iterator.OpIterator;
 import simpleDatabase.operator.*;
 import simpleDatabase.iterator.SeqScan;
 import simpleDatabase.operator.aggregate.Aggregate;
 import simpleDatabase.operator.aggregate.Aggregator;
 import simpleDatabase.operator.TableStats;
+import simpleDatabase.others.IndexPredicate;
 import simpleDatabase.tx.TransactionId;
 
 import javax.xml.crypto.Data;
@@ -311,6 +317,215 @@ public class LogicalPlan {
         throw new IllegalArgumentException();
     }
 
+    /**
+     * 查询中这张表用到的列
+     * @return the indexes in td of the fields of the table with this alias that
+     *   the query reads, or null if it reads all of them (e.g. SELECT *)
+     */
+    private int[] referencedFields(String alias, TupleDesc td) {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*") || si.fname.equals(alias + ".*"))
+                return null;
+            names.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        if (aggField != null) names.add(aggField);
+        if (groupByField != null) names.add(groupByField);
+        if (oByField != null) names.add(oByField);
+
+        ArrayList<Integer> used = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++)
+            if (names.contains(td.getFieldName(i)))
+                used.add(i);
+        if (used.size() == td.numFields())
+            return null;
+        int[] fields = new int[used.size()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = used.get(i);
+        return fields;
+    }
+
+    /**
+     * 为一张表选择访问路径：顺序扫描，或者用一个过滤条件走B+树索引，选估计io开销最小的
+     * Choose how the tuples of a table are read: by the sequential scan ss, or
+     * through a B+ tree on the field of one of the predicates over the table,
+     * either the table itself if it is stored in a BTreeFile or a secondary index
+     * on it. If the BTreeFile is keyed on several fields, EQUALS predicates on its
+     * leading key fields and a range predicate on the next one are combined into
+     * one prefix of the key, which the tree is searched with. A secondary index
+     * that includes every field the query reads from the table is read without
+     * touching the table (an index-only scan), also with no predicate on its field. The access path with the lowest I/O cost estimated
+     * by the {@link TableStats} of the table is chosen.
+     *
+     * The predicates are all still applied by Filters above the returned operator;
+     * if the sequential scan is chosen, they are also pushed down into it.
+     *
+     *  @param t the transaction the plan runs as a part of
+     *  @param table the table to read
+     *  @param ss the sequential scan of the table
+     *  @param preds the predicates over the table
+     *  @param s the statistics of the table, or null if there are none
+     *  @param explain whether to print the access path chosen
+     *  @return ss, or a {@link BTreeScan} of the tuples matching one predicate or
+     *          a key prefix, or of all tuples from a covering index
+     */
+    private OpIterator chooseAccessPath(TransactionId t, LogicalScanNode table, SeqScan ss,
+                                        List<Predicate> preds, TableStats s, boolean explain) {
+        DbFile file = Database.getCatalog().getDbFile(table.t);
+        Predicate best = null;
+        SecondaryIndex bestIndex = null;
+        boolean indexOnly = false;
+        /* 组合键前缀的查询条件，和 best 不会同时选中 */
+        IndexPredicate bestPrefix = null;
+        String prefixCond = null;
+        double scanCost = s == null ? 0 : s.estimateScanCost();
+        double bestCost = scanCost;
+        int[] used = referencedFields(table.alias, ss.getTupleDesc());
+        if (s != null) {
+            for (Predicate p : preds) {
+                /* B+树只支持这几种比较 */
+                if (p.getOp() == Predicate.Op.LIKE || p.getOp() == Predicate.Op.NOT_EQUALS)
+                    continue;
+                double sel = s.estimateSelectivity(p.getIdx(), p.getOp(), p.getOperand());
+                if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == p.getIdx()) {
+                    double cost = s.estimateIndexScanCost((BTreeFile) file, false, sel);
+                    if (cost < bestCost) {
+                        best = p;
+                        bestIndex = null;
+                        bestCost = cost;
+                    }
+                }
+                SecondaryIndex index = Database.getCatalog().getIndex(table.t, p.getIdx());
+                if (index != null) {
+                    boolean covering = index.covers(used);
+                    double cost = s.estimateIndexScanCost(index.getFile(), !covering, sel);
+                    if (cost < bestCost) {
+                        best = p;
+                        bestIndex = index;
+                        indexOnly = covering;
+                        bestCost = cost;
+                    }
+                }
+            }
+            /* 组合键：前面几列的等值条件加下一列的一个范围条件，拼成一个前缀去查B+树 */
+            if (file instanceof BTreeFile && ((BTreeFile) file).keyFields().length > 1) {
+                List<Field> prefix = new ArrayList<Field>();
+                Predicate.Op op = Predicate.Op.EQUALS;
+                double sel = 1.0;
+                String cond = "";
+                for (int k : ((BTreeFile) file).keyFields()) {
+                    Predicate eq = null, range = null;
+                    for (Predicate p : preds) {
+                        if (p.getIdx() != k)
+                            continue;
+                        if (p.getOp() == Predicate.Op.EQUALS)
+                            eq = p;
+                        else if (range == null && p.getOp() != Predicate.Op.LIKE
+                                && p.getOp() != Predicate.Op.NOT_EQUALS)
+                            range = p;
+                    }
+                    Predicate p = eq != null ? eq : range;
+                    if (p == null)
+                        break;
+                    prefix.add(p.getOperand());
+                    sel *= s.estimateSelectivity(p.getIdx(), p.getOp(), p.getOperand());
+                    cond += (cond.isEmpty() ? "" : " and ")
+                            + ss.getTupleDesc().getFieldName(p.getIdx()) + p.getOp() + p.getOperand();
+                    /* 范围条件之后的列在树里不再有序 */
+                    if (p != eq) {
+                        op = p.getOp();
+                        break;
+                    }
+                }
+                if (prefix.size() > 1) {
+                    double cost = s.estimateIndexScanCost((BTreeFile) file, false, sel);
+                    if (cost < bestCost) {
+                        best = null;
+                        bestIndex = null;
+                        bestPrefix = new IndexPredicate(op, new CompositeField(prefix.toArray(new Field[0])));
+                        prefixCond = cond;
+                        bestCost = cost;
+                    }
+                }
+            }
+            /* 覆盖索引比表小，没有条件也可以只读索引代替顺序扫描 */
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                if (!index.covers(used))
+                    continue;
+                double cost = s.estimateIndexScanCost(index.getFile(), false, 1.0);
+                if (cost < bestCost) {
+                    best = null;
+                    bestIndex = index;
+                    indexOnly = true;
+                    bestPrefix = null;
+                    bestCost = cost;
+                }
+            }
+        }
+
+        if (best == null && bestIndex == null && bestPrefix == null) {
+            if (explain)
+                System.out.println("Access path of " + table.alias + ": scan, cost " + scanCost);
+            // 扫描时就把不满足条件的行过滤掉，Filter保留着以防DbFile不支持下推
+            for (Predicate p : preds)
+                ss.pushDown(p);
+            return ss;
+        }
+
+        String cond = bestPrefix != null ? prefixCond
+                : best == null ? ss.getTupleDesc().getFieldName(bestIndex.getField())
+                : ss.getTupleDesc().getFieldName(best.getIdx()) + best.getOp() + best.getOperand();
+        if (explain)
+            System.out.println("Access path of " + table.alias + ": "
+                    + (bestIndex == null ? "index scan" : indexOnly ? "index-only scan" : "secondary index scan")
+                    + " on " + cond + ", cost " + bestCost + " (scan " + scanCost + ")");
+        IndexPredicate ipred = bestPrefix != null ? bestPrefix
+                : best == null ? null : new IndexPredicate(best.getOp(), best.getOperand());
+        if (bestIndex != null)
+            return new BTreeScan(t, bestIndex, table.alias, ipred, indexOnly);
+        return new BTreeScan(t, table.t, table.alias, ipred);
+    }
+
+    /**
+     * 内表改成用join列上的B+树读，Filter保留
+     * Rebuild the plan of the inner table of an index nested-loop join, so that
+     * the table is read by a {@link BTreeScan} on the join field, which the
+     * {@link IndexNestedLoopJoin} probes, under the same Filters as before.
+     *
+     *  @param t the transaction the plan runs as a part of
+     *  @param lj the join; lj.t2Alias is the inner table
+     *  @param plan the plan of the inner table, a scan under Filters
+     *  @throws ParsingException if the inner table has no B+ tree on the join field
+     */
+    private OpIterator indexedInner(TransactionId t, LogicalJoinNode lj, OpIterator plan) throws ParsingException {
+        List<Predicate> preds = new ArrayList<Predicate>();
+        while (plan instanceof Filter) {
+            preds.add(((Filter) plan).getPredicate());
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        int tableId = getTableId(lj.t2Alias);
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        int field = file.getTupleDesc().fieldNameToIndex(lj.f2PureName);
+        if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field) {
+            plan = new BTreeScan(t, tableId, lj.t2Alias, null);
+        } else {
+            SecondaryIndex index = Database.getCatalog().getIndex(tableId, field);
+            if (index == null)
+                throw new ParsingException("No index on " + lj.f2QuantifiedName);
+            plan = new BTreeScan(t, index, lj.t2Alias, null);
+        }
+        for (int i = preds.size() - 1; i >= 0; i--)
+            plan = new Filter(preds.get(i), plan);
+        return plan;
+    }
+
     /**
      * 把逻辑查询转化成物理查询，通过 OpIterator
      * Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
@@ -331,6 +546,9 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scanMap = new HashMap<String,SeqScan>();
+        /* 每张表上的过滤条件，选好访问路径后再套上 Filter */
+        HashMap<String,List<Predicate>> tablePredicates = new HashMap<String,List<Predicate>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -340,11 +558,15 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
+            // 只解码查询用到的列
+            ss.setReferencedFields(referencedFields(table.alias, ss.getTupleDesc()));
+
             subplanMap.put(table.alias,ss);
+            scanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
+            tablePredicates.put(table.alias, new ArrayList<Predicate>());
 
         }
 
@@ -368,7 +590,7 @@ public class LogicalPlan {
             if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
             else
-                f = new StringField(lf.c, Type.STRING_LEN);
+                f = new StringField(lf.c);
 
             Predicate p = null;
             try {
@@ -376,7 +598,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            tablePredicates.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -385,6 +607,15 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        for (LogicalScanNode table : tables) {
+            List<Predicate> preds = tablePredicates.get(table.alias);
+            OpIterator subplan = chooseAccessPath(t, table, scanMap.get(table.alias), preds,
+                    statsMap.get(Database.getCatalog().getTableName(table.t)), explain);
+            for (Predicate p : preds)
+                subplan = new Filter(p, subplan);
+            subplanMap.put(table.alias, subplan);
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -423,6 +654,9 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            if (lj.indexJoin)
+                plan2 = indexedInner(t, lj, plan2);
+
             OpIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
             subplanMap.put(t1name, j);
@@ -1,12 +1,20 @@
 package simpleDatabase.others;
 
 //import java.util.HashMap;
+import simpleDatabase.basic.Database;
+import simpleDatabase.operator.Predicate;
 import simpleDatabase.operator.TableStats;
 import simpleDatabase.operator.aggregate.Aggregate;
 import simpleDatabase.operator.aggregate.Aggregator;
 import simpleDatabase.operator.Filter;
+import simpleDatabase.operator.Operator;
+import simpleDatabase.operator.join.HashEquiJoin;
+import simpleDatabase.operator.join.IndexNestedLoopJoin;
 import simpleDatabase.operator.join.Join;
+import simpleDatabase.operator.join.JoinOptimizer;
 import simpleDatabase.iterator.SeqScan;
+import simpleDatabase.index.BTreeScan;
+import simpleDatabase.iterator.OpIterator;
 
 import java.util.Map;
 
@@ -36,6 +44,9 @@ public class OperatorCardinality {
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            return updateIndexJoinCardinality((IndexNestedLoopJoin) o,
+                    tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -48,9 +59,9 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
+                } else if (scannedTable(children[0]) != null) {
                     childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
+                            scannedTable(children[0]))
                             .estimateTableCardinality(1.0);
                 }
             }
@@ -64,7 +75,7 @@ public class OperatorCardinality {
             Map<String, TableStats> tableStats) {
         OpIterator child = f.getChildren()[0];
         Predicate pred = f.getPredicate();
-        String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
+        String[] tmp = child.getTupleDesc().getFieldName(pred.getIdx())
                 .split("[.]");
         String tableAlias = tmp[0];
         String pureFieldName = tmp[1];
@@ -84,9 +95,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
+            } else if (scannedTable(child) != null) {
                 f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
+                        scannedTable(child))
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
             }
@@ -127,9 +138,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child1) != null) {
+            child1Card = (int) (tableStats.get(scannedTable(child1)).estimateTableCardinality(1.0));
         }
 
         if (child2 instanceof Operator) {
@@ -139,9 +149,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child2) != null) {
+            child2Card = (int) (tableStats.get(scannedTable(child2)).estimateTableCardinality(1.0));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -184,9 +193,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child1) != null) {
+            child1Card = (int) (tableStats.get(scannedTable(child1)).estimateTableCardinality(1.0));
         }
 
         if (child2 instanceof Operator) {
@@ -196,9 +204,60 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child2) != null) {
+            child2Card = (int) (tableStats.get(scannedTable(child2)).estimateTableCardinality(1.0));
+        }
+
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
+                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+                pureFieldName1, pureFieldName2, child1Card, child2Card,
+                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
+        return child1HasJoinPK || child2HasJoinPK;
+    }
+
+    private static boolean updateIndexJoinCardinality(IndexNestedLoopJoin j,
+                                                      Map<String, Integer> tableAliasToId,
+                                                      Map<String, TableStats> tableStats) {
+        OpIterator[] children = j.getChildren();
+        OpIterator child1 = children[0];
+        OpIterator child2 = children[1];
+        int child1Card = 1;
+        int child2Card = 1;
+
+        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String tableAlias1 = tmp1[0];
+        String pureFieldName1 = tmp1[1];
+        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String tableAlias2 = tmp2[0];
+        String pureFieldName2 = tmp2[1];
+
+        boolean child1HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(tableAliasToId.get(tableAlias1))
+                .equals(pureFieldName1);
+        boolean child2HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(tableAliasToId.get(tableAlias2))
+                .equals(pureFieldName2);
+
+        if (child1 instanceof Operator) {
+            Operator child1O = (Operator) child1;
+            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
+                    tableStats);
+            child1HasJoinPK = pk || child1HasJoinPK;
+            child1Card = child1O.getEstimatedCardinality();
+            child1Card = child1Card > 0 ? child1Card : 1;
+        } else if (scannedTable(child1) != null) {
+            child1Card = (int) (tableStats.get(scannedTable(child1)).estimateTableCardinality(1.0));
+        }
+
+        if (child2 instanceof Operator) {
+            Operator child2O = (Operator) child2;
+            boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
+                    tableStats);
+            child2HasJoinPK = pk || child2HasJoinPK;
+            child2Card = child2O.getEstimatedCardinality();
+            child2Card = child2Card > 0 ? child2Card : 1;
+        } else if (scannedTable(child2) != null) {
+            child2Card = (int) (tableStats.get(scannedTable(child2)).estimateTableCardinality(1.0));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -226,8 +285,8 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
+        if (scannedTable(child) != null) {
+            childCard = (int) (tableStats.get(scannedTable(child))
                     .estimateTableCardinality(1.0));
         }
 
@@ -251,4 +310,16 @@ public class OperatorCardinality {
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    /**
+     * @return the name of the table o scans, if o is a SeqScan or a BTreeScan;
+     *         null otherwise
+     */
+    private static String scannedTable(OpIterator o) {
+        if (o instanceof SeqScan)
+            return ((SeqScan) o).getTableName();
+        if (o instanceof BTreeScan)
+            return ((BTreeScan) o).getTableName();
+        return null;
+    }
 }
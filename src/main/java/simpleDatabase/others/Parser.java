@@ -3,6 +3,7 @@ package simpleDatabase.others;
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
 import jline.SimpleCompletor;
+import simpleDatabase.cache.PageWarmer;
 import simpleDatabase.operator.TableStats;
 import simpleDatabase.operator.join.LogicalPlan;
 import simpleDatabase.tx.Transaction;
@@ -373,8 +374,7 @@ public class Parser {
                                 + zc.getValue()
                                 + " is a string, expected an integer.");
                     }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
+                    StringField f = new StringField(zc.getValue());
                     t.setField(i, f);
                 } else {
                     throw new ParsingException(
@@ -601,7 +601,19 @@ public class Parser {
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
+    /* 每隔多久把缓冲池中的页号写到dump文件 */
+    static final long WARMUP_DUMP_INTERVAL = 60 * 1000;
+
+    private PageWarmer warmer;
+
     protected void shutdown() {
+        if (warmer != null) {
+            try {
+                warmer.stop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("Bye");
     }
 
@@ -611,6 +623,9 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        // 在后台把上次退出时缓存的页读回缓冲池
+        warmer = new PageWarmer(Database.getBufferPool(), new File(argv[0] + ".warm"));
+        warmer.start(WARMUP_DUMP_INTERVAL);
 
         String queryFile = null;
 
@@ -238,6 +238,16 @@ public class LockManager {
      */
     public synchronized boolean isWaiting(
             TransactionId tid, List<PageId> pids /* 前一个事务拥有的pages */, TransactionId toDelete) {
+        return isWaiting(tid, pids, toDelete, new HashSet<TransactionId>());
+    }
+
+    /**
+     * @param visited 已经检查过的事务；等待图中不经过toDelete的环(例如事务在升级自己持有读锁的page)
+     *                会让递归绕圈，每个事务只检查一次
+     */
+    private boolean isWaiting(TransactionId tid, List<PageId> pids, TransactionId toDelete,
+                              Set<TransactionId> visited) {
+        if (!visited.add(tid)) return false;
         PageId waitPage = waitList.get(tid); /* 获取tid所需要的正在等待的资源；即tid想加锁却加不上的page */
         if (waitPage == null) return false;
         for (PageId pid : pids)
@@ -250,7 +260,7 @@ public class LockManager {
             TransactionId owner = ls.getTid();
             /* 待检查的事务 toDelete和他拥有的资源pids；每次都检查是否间接造成死锁 */
             if (!owner.equals(toDelete))
-                if (isWaiting(owner, pids, toDelete)) return true;
+                if (isWaiting(owner, pids, toDelete, visited)) return true;
         }
         return false; /* 表明没有事务直接或者间接等待资源 */
     }
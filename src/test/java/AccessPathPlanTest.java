@@ -0,0 +1,233 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeFileEncoder;
+import simpleDatabase.index.BTreeScan;
+import simpleDatabase.index.SecondaryIndex;
+import simpleDatabase.iterator.OpIterator;
+import simpleDatabase.iterator.SeqScan;
+import simpleDatabase.operator.Operator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.operator.TableStats;
+import simpleDatabase.operator.join.LogicalPlan;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Planner choice between a sequential scan and a B+ tree index scan of a single
+ * table, and what EXPLAIN prints about it. The same rows are stored in a
+ * HeapFile with a secondary index on id and in a BTreeFile keyed on id.
+ *
+ * An equality on the indexed field must be read through the secondary index,
+ * and a predicate that matches most of the table by a sequential scan; so must
+ * a range of a thousand rows, since every row found through a secondary index
+ * costs a page read of the table. The same range on the key of the BTreeFile
+ * must be read through the tree, and a predicate that matches most of it by a
+ * sequential scan. EXPLAIN must name the access path chosen, with the cost
+ * TableStats estimates for it and for the sequential scan, and the scan the
+ * plan reads the table with must return every row matching its predicate once;
+ * an index scan must return no other row.
+ *
+ * Throws on the first plan, EXPLAIN line or row that is not as expected.
+ *
+ * usage: java AccessPathPlanTest
+ */
+public class AccessPathPlanTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "id", "v" });
+
+    static final int ROWS = 20000;
+
+    static final int IO_COST = 1000;
+
+    public static void main(String[] argv) throws Exception {
+        Database.resetBufferPool(1000);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<>();
+        for (int id = 0; id < ROWS; id++) rows.add(new ArrayList<>(Arrays.asList(id, -id)));
+        HeapFile heap = heapTable("heap", rows);
+        SecondaryIndex index = Database.getCatalog().createIndex("heap", "id", tempFile("heap_id"));
+        BTreeFile keyed = btreeTable("keyed", rows);
+
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("heap", new TableStats(heap.getId(), IO_COST));
+        stats.put("keyed", new TableStats(keyed.getId(), IO_COST));
+        TableStats hs = stats.get("heap");
+        TableStats ks = stats.get("keyed");
+        checkIndexScanCost(ks, keyed);
+
+        // 等值条件只匹配一行，走二级索引
+        Plan p = new Plan("heap", "id", Predicate.Op.EQUALS, 1234, stats);
+        double sel = hs.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1234));
+        p.expectIndexScan("secondary index scan", Predicate.Op.EQUALS, hs.estimateIndexScanCost(index.getFile(), true, sel),
+                hs.estimateScanCost());
+        p.check(1234, 1235);
+
+        // 几乎整张表都匹配，顺序扫描
+        p = new Plan("heap", "id", Predicate.Op.GREATER_THAN, 10, stats);
+        p.expectSeqScan(hs.estimateScanCost());
+        p.check(11, ROWS);
+
+        // 一千行也太多：二级索引找到的每一行都要再读一页表
+        p = new Plan("heap", "id", Predicate.Op.LESS_THAN, 1000, stats);
+        p.expectSeqScan(hs.estimateScanCost());
+        p.check(0, 1000);
+
+        // 同样的范围在B+树的键上，只读树里的几页
+        p = new Plan("keyed", "id", Predicate.Op.LESS_THAN, 1000, stats);
+        sel = ks.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(1000));
+        p.expectIndexScan("index scan", Predicate.Op.LESS_THAN, ks.estimateIndexScanCost(keyed, false, sel),
+                ks.estimateScanCost());
+        p.check(0, 1000);
+
+        // 树里也要读几乎所有的叶子，不如顺序扫描
+        p = new Plan("keyed", "id", Predicate.Op.GREATER_THAN, 0, stats);
+        p.expectSeqScan(ks.estimateScanCost());
+        p.check(1, ROWS);
+
+        // 没有索引的列只能顺序扫描
+        p = new Plan("keyed", "v", Predicate.Op.EQUALS, -1234, stats);
+        p.expectSeqScan(ks.estimateScanCost());
+        p.check(1234, 1235);
+        System.out.println("ok");
+    }
+
+    /* 代价随选择率增长，二级索引每个元组多读一页 */
+    static void checkIndexScanCost(TableStats s, BTreeFile tree) {
+        double none = s.estimateIndexScanCost(tree, false, 0.0);
+        double all = s.estimateIndexScanCost(tree, false, 1.0);
+        if (none < IO_COST || none >= s.estimateIndexScanCost(tree, false, 0.01) || all < tree.numPages() * IO_COST)
+            throw new RuntimeException("index scan costs " + none + " for nothing and " + all + " for everything");
+        double secondary = s.estimateIndexScanCost(tree, true, 0.01) - s.estimateIndexScanCost(tree, false, 0.01);
+        if (secondary != s.estimateTableCardinality(0.01) * IO_COST)
+            throw new RuntimeException("a secondary index scan of 1% of the table costs " + secondary + " more");
+    }
+
+    /* SELECT t.id, t.v FROM table t WHERE t.field op value，EXPLAIN 打印的那一行也留下来 */
+    static class Plan {
+
+        final String table;
+
+        final OpIterator plan;
+
+        final Predicate pred;
+
+        final String explain;
+
+        Plan(String table, String field, Predicate.Op op, int value, Map<String, TableStats> stats) throws Exception {
+            this.table = table;
+            this.pred = new Predicate(TD.fieldNameToIndex(field), op, new IntField(value));
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(Database.getCatalog().getTableId(table), "t");
+            lp.addFilter("t." + field, op, String.valueOf(value));
+            lp.addProjectField("t.id", null);
+            lp.addProjectField("t.v", null);
+            PrintStream out = System.out;
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(buf, true, "UTF-8"));
+            try {
+                plan = lp.physicalPlan(new TransactionId(), stats, true);
+            } finally {
+                System.setOut(out);
+            }
+            String line = null;
+            for (String l : buf.toString("UTF-8").split("\n"))
+                if (l.startsWith("Access path of t: ")) line = l.substring("Access path of t: ".length()).trim();
+            if (line == null) throw new RuntimeException("EXPLAIN of " + table + " printed no access path: " + buf);
+            explain = line;
+        }
+
+        void expectSeqScan(double scanCost) {
+            if (find(plan, BTreeScan.class) != null || find(plan, SeqScan.class) == null)
+                throw new RuntimeException(table + ": expected a sequential scan, EXPLAIN says " + explain);
+            if (!explain.equals("scan, cost " + scanCost))
+                throw new RuntimeException(table + ": EXPLAIN says " + explain + ", expected scan, cost " + scanCost);
+        }
+
+        void expectIndexScan(String path, Predicate.Op op, double cost, double scanCost) {
+            BTreeScan scan = (BTreeScan) find(plan, BTreeScan.class);
+            if (scan == null || find(plan, SeqScan.class) != null)
+                throw new RuntimeException(table + ": expected an index scan, EXPLAIN says " + explain);
+            if (scan.getIndexPredicate() == null || scan.getIndexPredicate().getOp() != op)
+                throw new RuntimeException(table + ": index scan on " + scan.getIndexPredicate());
+            if (!explain.startsWith(path + " on t.id" + op) || !explain.endsWith(", cost " + cost + " (scan " + scanCost + ")"))
+                throw new RuntimeException(table + ": EXPLAIN says " + explain + ", expected " + path + " on t.id" + op
+                        + "..., cost " + cost + " (scan " + scanCost + ")");
+            if (cost >= scanCost) throw new RuntimeException(table + ": index scan chosen at cost " + cost);
+        }
+
+        /*
+         * 读选中的访问路径，按条件过滤后正好是 id 在 [from, to) 里的行，每行一次。
+         * 索引扫描本身就只返回这些行
+         */
+        void check(int from, int to) throws Exception {
+            OpIterator scan = find(plan, BTreeScan.class);
+            boolean exact = scan != null;
+            if (scan == null) scan = find(plan, SeqScan.class);
+            boolean[] seen = new boolean[ROWS];
+            int n = 0;
+            scan.open();
+            while (scan.hasNext()) {
+                Tuple t = scan.next();
+                int id = ((IntField) t.getField(0)).getValue();
+                if (!pred.filter(t)) {
+                    if (exact) throw new RuntimeException(table + ": index scan returned " + t);
+                    continue;
+                }
+                if (id < from || id >= to || seen[id] || ((IntField) t.getField(1)).getValue() != -id)
+                    throw new RuntimeException(table + ": bad row " + t);
+                seen[id] = true;
+                n++;
+            }
+            scan.close();
+            if (n != to - from) throw new RuntimeException(table + ": " + n + " rows, expected " + (to - from));
+        }
+    }
+
+    static OpIterator find(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan)) return plan;
+        if (!(plan instanceof Operator)) return null;
+        for (OpIterator child : ((Operator) plan).getChildren()) {
+            OpIterator found = child == null ? null : find(child, c);
+            if (found != null) return found;
+        }
+        return null;
+    }
+
+    static HeapFile heapTable(String name, ArrayList<ArrayList<Integer>> rows) throws Exception {
+        File f = tempFile(name);
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 2);
+        HeapFile table = new HeapFile(f, TD);
+        Database.getCatalog().addTable(table, name, "id");
+        return table;
+    }
+
+    /* 按 id 批量装进B+树 */
+    static BTreeFile btreeTable(String name, ArrayList<ArrayList<Integer>> rows) throws Exception {
+        File f = tempFile(name);
+        BTreeFileEncoder.convert(rows, tempFile(name + "_heap"), f, BufferPool.getPageSize(), 2,
+                new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, ',', 0);
+        BTreeFile table = new BTreeFile(f, 0, TD);
+        Database.getCatalog().addTable(table, name, "id");
+        return table;
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
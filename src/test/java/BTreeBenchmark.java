@@ -0,0 +1,126 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeUtility;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded insert/lookup benchmark of BTreeFile.
+ *
+ * For every thread count, a new B+ tree is loaded with some keys, then every
+ * thread runs its share of the operations, each in its own transaction:
+ * a lookup of a random key, or with probability insertPercent an insert of a
+ * random key. Transactions aborted by the deadlock detector are retried.
+ *
+ * usage: java BTreeBenchmark [operations] [insertPercent] [initialKeys]
+ */
+public class BTreeBenchmark {
+
+    static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    static final int MAX_KEY = 1 << 24;
+
+    public static void main(String[] argv) throws Exception {
+        final int operations = argv.length > 0 ? Integer.parseInt(argv[0]) : 20000;
+        final int insertPercent = argv.length > 1 ? Integer.parseInt(argv[1]) : 50;
+        int initialKeys = argv.length > 2 ? Integer.parseInt(argv[2]) : 100000;
+
+        System.out.println("operations " + operations + ", inserts " + insertPercent + "%, initial keys " + initialKeys);
+        System.out.println("threads\tops/s\taborts");
+        for (int threads : THREADS) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 100);
+            File f = File.createTempFile("btree-bench", ".dat");
+            f.delete();
+            f.deleteOnExit();
+            final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getPath(), 2, 0);
+            load(bf, initialKeys);
+
+            final AtomicLong aborts = new AtomicLong();
+            final int perThread = operations / threads;
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final Random rand = new Random(i);
+                workers.add(new Thread() {
+                    @Override
+                    public void run() {
+                        for (int n = 0; n < perThread; n++) {
+                            boolean insert = rand.nextInt(100) < insertPercent;
+                            int key = rand.nextInt(MAX_KEY);
+                            while (true) {
+                                TransactionId tid = new TransactionId();
+                                try {
+                                    if (insert) {
+                                        Database.getBufferPool().insertTuple(tid, bf.getId(),
+                                                BTreeUtility.getBTreeTuple(new int[]{key, n}));
+                                    } else {
+                                        lookup(bf, tid, key);
+                                    }
+                                    Database.getBufferPool().transactionComplete(tid);
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    aborts.incrementAndGet();
+                                    complete(tid, false);
+                                } catch (Exception e) {
+                                    complete(tid, false);
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+
+            long start = System.nanoTime();
+            for (Thread t : workers) t.start();
+            for (Thread t : workers) t.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d\t%.0f\t%d%n", threads, perThread * threads / seconds, aborts.get());
+        }
+    }
+
+    private static void load(BTreeFile bf, int keys) throws Exception {
+        Random rand = new Random(-1);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < keys; i++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[]{rand.nextInt(MAX_KEY), i}));
+            if (i % 1000 == 999) { // 控制一个事务里的脏页数
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int lookup(BTreeFile bf, TransactionId tid, int key) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            it.next();
+            found++;
+        }
+        it.close();
+        return found;
+    }
+
+    private static void complete(TransactionId tid, boolean commit) {
+        try {
+            Database.getBufferPool().transactionComplete(tid, commit);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
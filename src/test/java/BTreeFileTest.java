@@ -0,0 +1,203 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.CompositeField;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.index.BTreeChecker;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeInternalPage;
+import simpleDatabase.index.BTreePageId;
+import simpleDatabase.index.BTreeRootPtrPage;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits and merges of BTreeFiles with a string key and with a composite key
+ * (string, int), on small pages so that the trees grow a few levels. Rows are
+ * inserted in random order until the tree is at least three levels high, then
+ * all but one row in a hundred are deleted in random order, which must make the
+ * tree shorter. After each phase the tree must pass BTreeChecker, a scan must return
+ * exactly the rows inserted and not deleted, in key order, and index scans with
+ * every operator must return what a filtered scan returns.
+ *
+ * Throws on the first difference.
+ *
+ * usage: java BTreeFileTest
+ */
+public class BTreeFileTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE },
+            new String[]{ "s", "a", "id" });
+
+    static final Predicate.Op[] OPS = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    public static void main(String[] argv) throws Exception {
+        BufferPool.setPageSize(1024);
+        try {
+            for (int[] keys : new int[][]{ { 0 }, { 0, 1 } }) {
+                Database.resetBufferPool(5000);
+                File f = File.createTempFile("btree", ".dat");
+                f.deleteOnExit();
+                BTreeFile tree = new BTreeFile(f, keys, TD);
+                Database.getCatalog().addTable(tree, f.getName());
+                Random rnd = new Random(keys.length);
+
+                List<String> rows = new ArrayList<>();
+                TransactionId tid = new TransactionId();
+                for (int i = 0; i < 6000; i++) {
+                    String s = key(rnd);
+                    int a = rnd.nextInt(5);
+                    Database.getBufferPool().insertTuple(tid, tree.getId(), tuple(s, a, i));
+                    rows.add(row(s, a, i));
+                    if (i % 500 == 499) {
+                        Database.getBufferPool().transactionComplete(tid);
+                        tid = new TransactionId();
+                    }
+                }
+                Database.getBufferPool().transactionComplete(tid);
+                int height = height(tree);
+                if (height < 3) throw new RuntimeException("tree of " + rows.size() + " rows is " + height + " levels high");
+                check(tree, rows, rnd);
+
+                // 乱序删到只剩百分之一，页合并或者从兄弟页借元组，树变矮
+                tid = new TransactionId();
+                List<Tuple> deleted = new ArrayList<>();
+                DbFileIterator it = tree.iterator(tid);
+                it.open();
+                for (int n = 0; it.hasNext(); n++) {
+                    Tuple t = it.next();
+                    if (n % 100 != 0) deleted.add(t);
+                }
+                it.close();
+                Database.getBufferPool().transactionComplete(tid);
+                Collections.shuffle(deleted, rnd);
+                tid = new TransactionId();
+                for (int i = 0; i < deleted.size(); i++) {
+                    Tuple t = deleted.get(i);
+                    Database.getBufferPool().deleteTuple(tid, t);
+                    rows.remove(row(t));
+                    if (i % 500 == 499) {
+                        Database.getBufferPool().transactionComplete(tid);
+                        tid = new TransactionId();
+                    }
+                }
+                Database.getBufferPool().transactionComplete(tid);
+                if (height(tree) >= height)
+                    throw new RuntimeException("tree of " + rows.size() + " rows is still " + height + " levels high");
+                check(tree, rows, rnd);
+            }
+        } finally {
+            BufferPool.resetPageSize();
+        }
+
+        System.out.println("ok");
+    }
+
+    /**
+     * Check the structure of the tree, that a scan returns rows in key order, and that
+     * index scans return the rows a filtered scan returns.
+     */
+    static void check(BTreeFile tree, List<String> rows, Random rnd) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(tree, tid, new HashMap<PageId, Page>(), true);
+        List<Tuple> all = new ArrayList<>();
+        DbFileIterator it = tree.iterator(tid);
+        it.open();
+        while (it.hasNext()) all.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        List<String> scanned = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            if (i > 0 && tree.keyOf(all.get(i - 1)).compare(Predicate.Op.GREATER_THAN, tree.keyOf(all.get(i))))
+                throw new RuntimeException("scan returned " + row(all.get(i - 1)) + " before " + row(all.get(i)));
+            scanned.add(row(all.get(i)));
+        }
+        List<String> expected = new ArrayList<>(rows);
+        Collections.sort(scanned);
+        Collections.sort(expected);
+        if (!scanned.equals(expected))
+            throw new RuntimeException("scan returned " + scanned.size() + " rows, expected " + expected.size());
+
+        for (int j = 0; j < 100; j++) {
+            // 一半查已有的键，一半查随机的键
+            Tuple probe = rnd.nextBoolean() ? all.get(rnd.nextInt(all.size())) : tuple(key(rnd), rnd.nextInt(5), 0);
+            Field key = tree.keyOf(probe);
+            Predicate.Op op = OPS[rnd.nextInt(OPS.length)];
+            List<String> found = new ArrayList<>();
+            tid = new TransactionId();
+            it = tree.indexIterator(tid, new IndexPredicate(op, key));
+            it.open();
+            while (it.hasNext()) found.add(row(it.next()));
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+
+            List<String> filtered = new ArrayList<>();
+            for (Tuple t : all) {
+                // 复合键：前面的列相等，最后一列按op比较
+                if (key instanceof CompositeField && !t.getField(0).equals(probe.getField(0))) continue;
+                if (tree.keyOf(t).compare(op, key)) filtered.add(row(t));
+            }
+            Collections.sort(found);
+            Collections.sort(filtered);
+            if (!found.equals(filtered))
+                throw new RuntimeException(op + " " + key + ": index scan returned " + found.size()
+                        + " rows, expected " + filtered.size());
+        }
+    }
+
+    /** The number of levels of the tree, leaves included. */
+    static int height(BTreeFile tree) throws Exception {
+        TransactionId tid = new TransactionId();
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId pid = ((BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(tree.getId()),
+                Permissions.READ_ONLY)).getRootId();
+        int height = 1;
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            pid = page.iterator().next().getLeftChild();
+            height++;
+        }
+        bp.transactionComplete(tid);
+        return height;
+    }
+
+    /** Keys share a long prefix, so that pages split on keys of different lengths. */
+    static String key(Random rnd) {
+        return "customer-" + (char) ('a' + rnd.nextInt(3)) + "-" + rnd.nextInt(1 << rnd.nextInt(20));
+    }
+
+    static Tuple tuple(String s, int a, int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new StringField(s, Type.STRING_LEN));
+        t.setField(1, new IntField(a));
+        t.setField(2, new IntField(id));
+        return t;
+    }
+
+    static String row(String s, int a, int id) {
+        return s + "/" + a + "/" + id;
+    }
+
+    static String row(Tuple t) {
+        return row(((StringField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue(),
+                ((IntField) t.getField(2)).getValue());
+    }
+}
@@ -0,0 +1,254 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.BTreeChecker;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeInternalPage;
+import simpleDatabase.index.BTreePageId;
+import simpleDatabase.index.BTreeRootPtrPage;
+import simpleDatabase.index.BTreeUtility;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Inserts into a BTreeFile that run at the same time, on small pages so that
+ * leaves, internal pages and the root split often.
+ *
+ * A transaction that inserted a row and is still open must not hold up a root
+ * split by another transaction: the insert only locks the leaf it changed, not
+ * the root pointer. Then writer threads insert disjoint keys in small
+ * transactions, retried when they abort, while reader threads look up keys that
+ * were committed before. Every lookup must find its key exactly once, and in the
+ * end the tree must pass BTreeChecker and hold every key inserted.
+ *
+ * Throws on the first lookup or key that is not as expected, or if the root
+ * split does not finish.
+ *
+ * usage: java BTreeLatchTest
+ */
+public class BTreeLatchTest {
+
+    static final int WRITERS = 4;
+
+    static final int READERS = 2;
+
+    static final int KEYS_PER_WRITER = 1000;
+
+    /* 种子键是STRIDE的倍数，写线程的键不是 */
+    static final int STRIDE = KEYS_PER_WRITER + 1;
+
+    public static void main(String[] argv) throws Exception {
+        BufferPool.setPageSize(512);
+        try {
+            Database.resetBufferPool(5000);
+            checkRootSplit();
+            Database.resetBufferPool(5000);
+            checkConcurrentInserts();
+        } finally {
+            BufferPool.resetPageSize();
+        }
+        System.out.println("ok");
+    }
+
+    /* 没提交的插入只锁它改的叶子，别的事务照样能分裂根 */
+    static void checkRootSplit() throws Exception {
+        final BTreeFile tree = tree("rootsplit");
+        int next = 0;
+        do {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 100; i++, next += 10) insert(tid, tree, next);
+            Database.getBufferPool().transactionComplete(tid);
+        } while (height(tree) < 2);
+        final int height = height(tree);
+
+        // 最左边的叶子里插一行，不分裂，也不提交
+        TransactionId open = new TransactionId();
+        int pages = tree.numPages();
+        insert(open, tree, 1);
+        if (tree.numPages() != pages) throw new RuntimeException("the open insert split a page");
+
+        final int first = next;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread splitter = new Thread() {
+            public void run() {
+                try {
+                    // 一直往最右边插，直到根分裂
+                    int key = first;
+                    while (height(tree) == height) {
+                        TransactionId t = new TransactionId();
+                        for (int i = 0; i < 100; i++, key += 10) insert(t, tree, key);
+                        Database.getBufferPool().transactionComplete(t);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        splitter.setDaemon(true);
+        splitter.start();
+        splitter.join(60000);
+        if (splitter.isAlive()) throw new RuntimeException("root split waited for the open insert");
+        if (error.get() != null) throw new RuntimeException(error.get());
+        Database.getBufferPool().transactionComplete(open);
+
+        checkRep(tree);
+        List<Integer> keys = keys(tree);
+        if (Collections.frequency(keys, 1) != 1) throw new RuntimeException("open insert lost");
+    }
+
+    /* 多个写线程同时插入，读线程同时查已提交的键 */
+    static void checkConcurrentInserts() throws Exception {
+        final BTreeFile tree = tree("concurrent");
+        final List<Integer> seeded = new ArrayList<>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2000; i++) {
+            insert(tid, tree, i * WRITERS * STRIDE);
+            seeded.add(i * WRITERS * STRIDE);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers.add(new Thread() {
+                public void run() {
+                    try {
+                        Random rnd = new Random(writer);
+                        List<Integer> mine = new ArrayList<>();
+                        // 键不和别的写线程以及种子重复
+                        for (int i = 0; i < KEYS_PER_WRITER; i++)
+                            mine.add((rnd.nextInt(2000) * WRITERS + writer) * STRIDE + i + 1);
+                        for (int i = 0; i < mine.size(); i += 5) {
+                            while (true) {
+                                TransactionId t = new TransactionId();
+                                try {
+                                    for (int j = i; j < i + 5; j++) insert(t, tree, mine.get(j));
+                                    Database.getBufferPool().transactionComplete(t);
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    Database.getBufferPool().transactionComplete(t, false);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            readers.add(new Thread() {
+                public void run() {
+                    try {
+                        Random rnd = new Random(100 + reader);
+                        while (!done.get() && error.get() == null) {
+                            int key = seeded.get(rnd.nextInt(seeded.size()));
+                            TransactionId t = new TransactionId();
+                            try {
+                                int n = lookup(t, tree, key);
+                                Database.getBufferPool().transactionComplete(t);
+                                if (n != 1) throw new RuntimeException("lookup of " + key + " found " + n + " rows");
+                            } catch (TransactionAbortedException e) {
+                                Database.getBufferPool().transactionComplete(t, false);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : writers) t.start();
+        for (Thread t : readers) t.start();
+        for (Thread t : writers) t.join();
+        done.set(true);
+        for (Thread t : readers) t.join();
+        if (error.get() != null) throw new RuntimeException(error.get());
+
+        checkRep(tree);
+        List<Integer> keys = keys(tree);
+        if (keys.size() != seeded.size() + WRITERS * KEYS_PER_WRITER)
+            throw new RuntimeException("tree holds " + keys.size() + " keys");
+        List<Integer> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted);
+        if (!sorted.equals(keys)) throw new RuntimeException("scan not in key order");
+        for (int i = 1; i < keys.size(); i++)
+            if (keys.get(i).equals(keys.get(i - 1))) throw new RuntimeException("key " + keys.get(i) + " twice");
+    }
+
+    static BTreeFile tree(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return BTreeUtility.createEmptyBTreeFile(f.getPath(), 2, 0);
+    }
+
+    static void insert(TransactionId tid, BTreeFile tree, int key) throws Exception {
+        Database.getBufferPool().insertTuple(tid, tree.getId(), BTreeUtility.getBTreeTuple(new int[]{ key, -key }));
+    }
+
+    static int lookup(TransactionId tid, BTreeFile tree, int key) throws Exception {
+        DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(1)).getValue() != -key)
+                throw new RuntimeException("lookup of " + key + " returned another row");
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    static List<Integer> keys(BTreeFile tree) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = tree.iterator(tid);
+        it.open();
+        List<Integer> keys = new ArrayList<>();
+        while (it.hasNext()) keys.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return keys;
+    }
+
+    static void checkRep(BTreeFile tree) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(tree, tid, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The number of levels of the tree, leaves included. */
+    static int height(BTreeFile tree) throws Exception {
+        TransactionId tid = new TransactionId();
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId pid = ((BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(tree.getId()),
+                Permissions.READ_ONLY)).getRootId();
+        int height = 1;
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            pid = page.iterator().next().getLeftChild();
+            height++;
+        }
+        bp.transactionComplete(tid);
+        return height;
+    }
+}
@@ -0,0 +1,253 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.BTreeChecker;
+import simpleDatabase.index.BTreeEntry;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeInternalPage;
+import simpleDatabase.index.BTreePageId;
+import simpleDatabase.index.BTreeRootPtrPage;
+import simpleDatabase.index.BTreeUtility;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lookups through the optimistic descent of a BTreeFile, on small pages so that
+ * the tree has internal pages after a few hundred keys.
+ *
+ * A lookup must find its row and lock only the leaf it reads, not the root
+ * pointer or an internal page, so it must not wait for a transaction that holds
+ * an internal page exclusively without changing it. When an open transaction
+ * has split a leaf, the internal page it changed is dirty, and a lookup through
+ * it must give up the optimistic descent and wait for its lock instead of
+ * reading the uncommitted page. After a split that is aborted, every committed
+ * key must still be found and none of the aborted ones.
+ *
+ * Throws on the first lookup or lock that is not as expected, or if a lookup
+ * does not finish.
+ *
+ * usage: java BTreeOptimisticTest
+ */
+public class BTreeOptimisticTest {
+
+    /* 种子键是STRIDE的倍数，别的事务插的键不是 */
+    static final int STRIDE = 10;
+
+    public static void main(String[] argv) throws Exception {
+        BufferPool.setPageSize(512);
+        try {
+            Database.resetBufferPool(5000);
+            BTreeFile tree = tree("optimistic");
+            int seeded = seed(tree);
+            checkNoInternalLocks(tree, seeded);
+            checkExclusiveInternalPage(tree, seeded);
+            checkDirtyInternalPage(tree, seeded);
+            checkAbortedSplit(tree, seeded);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+        System.out.println("ok");
+    }
+
+    /* 一直插到根是内部页，返回种子键的个数 */
+    static int seed(BTreeFile tree) throws Exception {
+        int n = 0;
+        do {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 100; i++, n++) insert(tid, tree, n * STRIDE);
+            Database.getBufferPool().transactionComplete(tid);
+        } while (internalPages(tree).isEmpty());
+        return n;
+    }
+
+    /* 查到的每一行都对，只锁了叶子 */
+    static void checkNoInternalLocks(BTreeFile tree, int seeded) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        List<BTreePageId> internal = internalPages(tree);
+        for (int i = 0; i < seeded; i++) {
+            TransactionId tid = new TransactionId();
+            int found = lookup(tid, tree, i * STRIDE);
+            if (found != 1) throw new RuntimeException("lookup of " + i * STRIDE + " found " + found + " rows");
+            if (bp.holdsLock(tid, BTreeRootPtrPage.getId(tree.getId())))
+                throw new RuntimeException("lookup locked the root pointer");
+            for (BTreePageId pid : internal)
+                if (bp.holdsLock(tid, pid)) throw new RuntimeException("lookup locked internal page " + pid);
+            bp.transactionComplete(tid);
+        }
+        TransactionId tid = new TransactionId();
+        if (lookup(tid, tree, STRIDE / 2) != 0) throw new RuntimeException("lookup found a key never inserted");
+        bp.transactionComplete(tid);
+    }
+
+    /* 别的事务拿着根的写锁但没改它，查找不用等 */
+    static void checkExclusiveInternalPage(BTreeFile tree, int seeded) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId holder = new TransactionId();
+        bp.getPage(holder, root(tree), Permissions.READ_WRITE);
+        Lookup lookup = new Lookup(tree, (seeded - 1) * STRIDE);
+        lookup.join(10000);
+        if (lookup.isAlive()) throw new RuntimeException("lookup waited for the lock on a clean root");
+        lookup.check(1);
+        bp.transactionComplete(holder);
+    }
+
+    /* 没提交的分裂改了根，查找退回加锁的下降，等它提交再读 */
+    static void checkDirtyInternalPage(BTreeFile tree, int seeded) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId root = root(tree);
+        TransactionId writer = new TransactionId();
+        int pages = tree.numPages();
+        // 往最左边的叶子插，直到它分裂；根的层数不变
+        for (int key = 1; tree.numPages() == pages; key++)
+            if (key % STRIDE != 0) insert(writer, tree, key);
+        if (!root.equals(root(tree)) || bp.getPage(writer, root, Permissions.READ_ONLY).isDirty() == null)
+            throw new RuntimeException("the split did not change the root");
+
+        // 查最右边的键，和分裂的叶子不在一起，但要经过根
+        Lookup lookup = new Lookup(tree, (seeded - 1) * STRIDE);
+        lookup.join(500);
+        if (!lookup.isAlive()) {
+            lookup.check(1);
+            throw new RuntimeException("lookup read through a root changed by an open transaction");
+        }
+        bp.transactionComplete(writer);
+        lookup.join(10000);
+        if (lookup.isAlive()) throw new RuntimeException("lookup did not finish after the commit");
+        lookup.check(1);
+        checkRep(tree);
+    }
+
+    /* 分裂回滚以后，提交过的键都还能查到，回滚的查不到 */
+    static void checkAbortedSplit(BTreeFile tree, int seeded) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId writer = new TransactionId();
+        int pages = tree.numPages();
+        int first = seeded * STRIDE / 2 + 3;
+        int key = first;
+        for (; tree.numPages() == pages; key += STRIDE) insert(writer, tree, key);
+        bp.transactionComplete(writer, false);
+
+        for (int i = 0; i < seeded; i++) {
+            TransactionId tid = new TransactionId();
+            int found = lookup(tid, tree, i * STRIDE);
+            bp.transactionComplete(tid);
+            if (found != 1) throw new RuntimeException("lookup of " + i * STRIDE + " after an abort found " + found + " rows");
+        }
+        for (int k = first; k < key; k += STRIDE) {
+            TransactionId tid = new TransactionId();
+            int found = lookup(tid, tree, k);
+            bp.transactionComplete(tid);
+            if (found != 0) throw new RuntimeException("aborted key " + k + " found");
+        }
+        checkRep(tree);
+    }
+
+    /* 另开一个线程查一个键，可能要等锁 */
+    static class Lookup extends Thread {
+
+        final BTreeFile tree;
+
+        final int key;
+
+        final AtomicInteger found = new AtomicInteger(-1);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Lookup(BTreeFile tree, int key) {
+            this.tree = tree;
+            this.key = key;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                TransactionId tid = new TransactionId();
+                found.set(lookup(tid, tree, key));
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        }
+
+        void check(int expected) {
+            if (error.get() != null) throw new RuntimeException(error.get());
+            if (found.get() != expected)
+                throw new RuntimeException("lookup of " + key + " found " + found.get() + " rows");
+        }
+    }
+
+    static BTreeFile tree(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return BTreeUtility.createEmptyBTreeFile(f.getPath(), 2, 0);
+    }
+
+    static void insert(TransactionId tid, BTreeFile tree, int key) throws Exception {
+        Database.getBufferPool().insertTuple(tid, tree.getId(), BTreeUtility.getBTreeTuple(new int[]{ key, -key }));
+    }
+
+    static int lookup(TransactionId tid, BTreeFile tree, int key) throws Exception {
+        DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(1)).getValue() != -key)
+                throw new RuntimeException("lookup of " + key + " returned another row");
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    static BTreePageId root(BTreeFile tree) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreePageId root = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(tree.getId()), Permissions.READ_ONLY)).getRootId();
+        Database.getBufferPool().transactionComplete(tid);
+        return root;
+    }
+
+    /* 所有的内部页，一层一层往下找 */
+    static List<BTreePageId> internalPages(BTreeFile tree) throws Exception {
+        List<BTreePageId> internal = new ArrayList<>();
+        List<BTreePageId> level = new ArrayList<>();
+        level.add(root(tree));
+        TransactionId tid = new TransactionId();
+        while (level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+            internal.addAll(level);
+            List<BTreePageId> below = new ArrayList<>();
+            for (BTreePageId pid : level) {
+                BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                Iterator<BTreeEntry> entries = page.iterator();
+                BTreeEntry e = entries.next();
+                below.add(e.getLeftChild());
+                below.add(e.getRightChild());
+                while (entries.hasNext()) below.add(entries.next().getRightChild());
+            }
+            level = below;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return internal;
+    }
+
+    static void checkRep(BTreeFile tree) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(tree, tid, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
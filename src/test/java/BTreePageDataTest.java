@@ -0,0 +1,141 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.Field;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.index.BTreeEntry;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeInternalPage;
+import simpleDatabase.index.BTreeLeafPage;
+import simpleDatabase.index.BTreePage;
+import simpleDatabase.index.BTreePageId;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trips of B+ tree leaf and internal pages through getPageData, with an int
+ * key and with a string key, whose internal pages are compressed. The bytes of a
+ * page must be as long as the pages of its table and give the same bytes again when
+ * parsed. Every call must return a new array that later changes to the page do not
+ * touch, and setBeforeImage must save what the page holds at that time, whether
+ * getPageData was called just before or not.
+ *
+ * Throws on the first difference.
+ *
+ * usage: java BTreePageDataTest
+ */
+public class BTreePageDataTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.STRING_TYPE, Type.INT_TYPE },
+            new String[]{ "s", "a" });
+
+    public static void main(String[] argv) throws Exception {
+        BufferPool.setPageSize(1024);
+        try {
+            for (int key : new int[]{ 1, 0 }) {
+                Database.resetBufferPool(100);
+                File f = File.createTempFile("btree", ".dat");
+                f.deleteOnExit();
+                BTreeFile tree = new BTreeFile(f, key, TD);
+                Database.getCatalog().addTable(tree, f.getName());
+                checkLeaf(tree, key, new Random(key));
+                checkInternal(tree, key, new Random(key));
+            }
+        } finally {
+            BufferPool.resetPageSize();
+        }
+        System.out.println("ok");
+    }
+
+    static void checkLeaf(BTreeFile tree, int key, Random rnd) throws Exception {
+        BTreePageId pid = new BTreePageId(tree.getId(), 1, BTreePageId.LEAF);
+        BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), key);
+        while (page.getNumEmptySlots() > 1) page.insertTuple(tuple(rnd));
+
+        byte[] data = check(tree, page, new BTreeLeafPage(pid, page.getPageData(), key));
+        TransactionId tid = new TransactionId();
+        page.markDirty(true, tid);
+        page.insertTuple(tuple(rnd));
+        checkChanged(page, data);
+
+        // 没有先调 getPageData，setBeforeImage 也要存下页现在的内容
+        page.markDirty(true, tid);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(false, null);
+        page.setBeforeImage();
+        same(page.getBeforeImage().getPageData(), page.getPageData(), "leaf before image");
+    }
+
+    static void checkInternal(BTreeFile tree, int key, Random rnd) throws Exception {
+        BTreePageId pid = new BTreePageId(tree.getId(), 2, BTreePageId.INTERNAL);
+        BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), key);
+        // key 从小到大，相邻的 entry 共用中间那个孩子
+        int child = 3;
+        Field last = null;
+        while (page.getNumEmptySlots() > 1 && page.getFreeBytes() > 2 * page.getMaxEntrySize()) {
+            last = key == 0 ? new StringField(String.format("key%06d", child), Type.STRING_LEN) : new IntField(child);
+            page.insertEntry(entry(tree, last, child));
+            child++;
+        }
+
+        byte[] data = check(tree, page, new BTreeInternalPage(pid, page.getPageData(), key));
+        TransactionId tid = new TransactionId();
+        page.markDirty(true, tid);
+        Field next = key == 0 ? new StringField(String.format("key%06d", child), Type.STRING_LEN) : new IntField(child);
+        page.insertEntry(entry(tree, next, child));
+        checkChanged(page, data);
+
+        page.markDirty(true, tid);
+        page.deleteKeyAndRightChild(page.reverseIterator().next());
+        page.markDirty(false, null);
+        page.setBeforeImage();
+        same(page.getBeforeImage().getPageData(), page.getPageData(), "internal before image");
+    }
+
+    /* 读回来的页序列化出来的字节和原来一样 */
+    static byte[] check(BTreeFile tree, BTreePage page, BTreePage parsed) {
+        byte[] data = page.getPageData();
+        if (data.length != Database.getCatalog().getPageSize(tree.getId()))
+            throw new RuntimeException("page data is " + data.length + " bytes");
+        same(parsed.getPageData(), data, "parsed page");
+        if (page.getPageData() == data)
+            throw new RuntimeException("getPageData returned the same array twice");
+        return data;
+    }
+
+    /* 页改了之后，之前拿到的数组不变；提交时先写页再存 before image */
+    static void checkChanged(BTreePage page, byte[] before) {
+        byte[] saved = before.clone();
+        byte[] after = page.getPageData();
+        same(before, saved, "array returned before the change");
+        if (Arrays.equals(before, after))
+            throw new RuntimeException("change not in the page data");
+        page.markDirty(false, null);
+        page.setBeforeImage();
+        same(((Page) page.getBeforeImage()).getPageData(), after, "before image after a write");
+    }
+
+    static BTreeEntry entry(BTreeFile tree, Field key, int child) {
+        return new BTreeEntry(key, new BTreePageId(tree.getId(), child, BTreePageId.LEAF),
+                new BTreePageId(tree.getId(), child + 1, BTreePageId.LEAF));
+    }
+
+    static Tuple tuple(Random rnd) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new StringField("s" + rnd.nextInt(100000), Type.STRING_LEN));
+        t.setField(1, new IntField(rnd.nextInt(100000)));
+        return t;
+    }
+
+    static void same(byte[] actual, byte[] expected, String what) {
+        if (!Arrays.equals(actual, expected))
+            throw new RuntimeException(what + " differs");
+    }
+}
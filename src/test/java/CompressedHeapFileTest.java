@@ -0,0 +1,172 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.PageCompressor;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Read-back of compressed HeapFiles, in both page formats. Rows with strings that
+ * compress well are inserted through the buffer pool; then three quarters of them
+ * are deleted and half of those inserted again with random strings, so pages grow
+ * and move in the data file. After every step the files are copied and opened as a
+ * new HeapFile, which finds its pages through the .map file alone. PageCompressor
+ * is checked on its own first.
+ *
+ * Throws on the first value that does not come back whole.
+ *
+ * usage: java CompressedHeapFileTest
+ */
+public class CompressedHeapFileTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.STRING_TYPE },
+            new String[]{ "id", "s" });
+
+    public static void main(String[] argv) throws Exception {
+        Random rnd = new Random(33);
+        checkCodec(rnd);
+
+        for (HeapFile.PageFormat format : HeapFile.PageFormat.values()) {
+            Database.resetBufferPool(500);
+            Map<Integer, String> rows = new HashMap<>();
+            for (int i = 0; i < 3000; i++) rows.put(i, "row-" + (i % 10) + "-" + repeat('x', i % 60));
+
+            File f = tempFile("compressed");
+            HeapFile table = new HeapFile(f, TD, format, true);
+            Database.getCatalog().addTable(table, "compressed-" + format);
+            TransactionId tid = new TransactionId();
+            for (Map.Entry<Integer, String> row : rows.entrySet())
+                Database.getBufferPool().insertTuple(tid, table.getId(), tuple(row.getKey(), row.getValue()));
+            Database.getBufferPool().transactionComplete(tid);
+            check(reopen(table, format), rows);
+            long raw = (long) table.numPages() * BufferPool.getPageSize();
+            if (f.length() >= raw)
+                throw new RuntimeException(format + ": " + f.length() + " bytes on disk for " + raw + " bytes of pages");
+
+            // 删掉四分之三，其中一半换成压不动的随机串插回去，页变大以后要挪位置
+            tid = new TransactionId();
+            List<Tuple> deleted = new ArrayList<>();
+            DbFileIterator it = table.iterator(tid);
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(0)).getValue() % 4 != 3) deleted.add(t);
+            }
+            it.close();
+            for (Tuple t : deleted) Database.getBufferPool().deleteTuple(tid, t);
+            Database.getBufferPool().transactionComplete(tid);
+            for (Tuple t : deleted) rows.remove(((IntField) t.getField(0)).getValue());
+            check(reopen(table, format), rows);
+
+            tid = new TransactionId();
+            for (Tuple t : deleted) {
+                int id = ((IntField) t.getField(0)).getValue();
+                if (id % 2 == 0) continue;
+                String s = randomString(rnd, rnd.nextInt(Type.STRING_LEN + 1));
+                Database.getBufferPool().insertTuple(tid, table.getId(), tuple(id, s));
+                rows.put(id, s);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            check(reopen(table, format), rows);
+        }
+
+        System.out.println("ok");
+    }
+
+    static void checkCodec(Random rnd) throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            byte[] page = new byte[rnd.nextInt(9000)];
+            for (int j = 0; j < page.length; j++) {
+                // 随机、字母表很小、大部分是0三种数据轮流来
+                page[j] = i % 3 == 0 ? (byte) rnd.nextInt() : i % 3 == 1 ? (byte) rnd.nextInt(4)
+                        : (byte) (j % 37 < 5 ? rnd.nextInt(3) : 0);
+            }
+            byte[] compressed = PageCompressor.compress(page, page.length);
+            byte[] back = new byte[page.length];
+            int n = PageCompressor.decompress(compressed, compressed.length, back);
+            if (n != page.length || !Arrays.equals(page, back))
+                throw new RuntimeException("page " + i + " of " + page.length + " bytes did not come back");
+        }
+    }
+
+    static void check(HeapFile table, Map<Integer, String> rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        Set<Integer> seen = new HashSet<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            String s = ((StringField) t.getField(1)).getValue();
+            if (!s.equals(rows.get(id)))
+                throw new RuntimeException("row " + id + ": read \"" + s + "\", wrote \"" + rows.get(id) + "\"");
+            if (!seen.add(id)) throw new RuntimeException("row " + id + " read twice");
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (seen.size() != rows.size()) throw new RuntimeException("read " + seen.size() + " rows, wrote " + rows.size());
+    }
+
+    /**
+     * Flush table, copy its data file and its .map file and open the copy as a new
+     * HeapFile, with an empty buffer pool.
+     */
+    static HeapFile reopen(HeapFile table, HeapFile.PageFormat format) throws Exception {
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(500);
+        File copy = tempFile("compressed-copy");
+        for (String suffix : new String[]{ "", ".map", ".ovf" }) {
+            File from = new File(table.getFile().getPath() + suffix);
+            if (!from.exists()) continue;
+            File to = new File(copy.getPath() + suffix);
+            to.deleteOnExit();
+            Files.copy(from.toPath(), to.toPath());
+        }
+        HeapFile reopened = new HeapFile(copy, TD, format, true);
+        Database.getCatalog().addTable(reopened, copy.getName());
+        return reopened;
+    }
+
+    static Tuple tuple(int id, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static String randomString(Random rnd, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) sb.append((char) ('!' + rnd.nextInt(94)));
+        return sb.toString();
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".map").deleteOnExit();
+        return f;
+    }
+}
@@ -0,0 +1,183 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeScan;
+import simpleDatabase.index.SecondaryIndex;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Index-only scans through a secondary index with INCLUDE columns. Scans of the
+ * index that only need the indexed and the included fields must return what a
+ * filtered scan of the table returns, with the record ids of the table, without
+ * reading or locking any page of the table. This must still hold after rows are
+ * inserted and deleted through the BufferPool, and after rows found by an
+ * index-only scan are deleted. Column lists that do not fit the table must be
+ * rejected with an IllegalArgumentException.
+ *
+ * Throws on the first row or column list that is not as expected.
+ *
+ * usage: java CoveringIndexTest
+ */
+public class CoveringIndexTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE },
+            new String[]{ "id", "k", "v", "w" });
+
+    static final Predicate.Op[] OPS = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    public static void main(String[] argv) throws Exception {
+        Database.resetBufferPool(2000);
+        Random rnd = new Random(48);
+        HeapFile table = new HeapFile(tempFile("covered"), TD);
+        Database.getCatalog().addTable(table, "covered");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 5000; i++) Database.getBufferPool().insertTuple(tid, table.getId(), tuple(i, rnd));
+        Database.getBufferPool().transactionComplete(tid);
+
+        SecondaryIndex index = Database.getCatalog().createIndex("covered", "k", new String[]{ "v" }, tempFile("idx"));
+        if (!index.covers(new int[]{ 1, 2 }) || index.covers(new int[]{ 1, 3 }) || index.covers(new int[]{ 0 }))
+            throw new RuntimeException("wrong covered fields");
+        check(table, index, rnd);
+
+        // 经过 BufferPool 插入和删除，索引跟着更新
+        tid = new TransactionId();
+        for (int i = 5000; i < 6000; i++) Database.getBufferPool().insertTuple(tid, table.getId(), tuple(i, rnd));
+        List<Tuple> deleted = new ArrayList<>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        for (int n = 0; it.hasNext(); n++) {
+            Tuple t = it.next();
+            if (n % 3 == 0) deleted.add(t);
+        }
+        it.close();
+        for (Tuple t : deleted) Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        check(table, index, rnd);
+
+        // 只从索引拿到的元组也能删
+        tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, index, "covered", new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(10)), true);
+        scan.open();
+        deleted.clear();
+        while (scan.hasNext()) deleted.add(scan.next());
+        scan.close();
+        for (Tuple t : deleted) Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        if (deleted.isEmpty()) throw new RuntimeException("index-only scan found nothing to delete");
+        check(table, index, rnd);
+        if (!expected(table, Predicate.Op.LESS_THAN, 10).isEmpty())
+            throw new RuntimeException("rows deleted through index-only tuples are still there");
+
+        checkRejected(table);
+        System.out.println("ok");
+    }
+
+    /* 只扫索引，和过滤整张表的结果一样，而且不碰表的页 */
+    static void check(HeapFile table, SecondaryIndex index, Random rnd) throws Exception {
+        for (int q = 0; q < 30; q++) {
+            Predicate.Op op = OPS[rnd.nextInt(OPS.length)];
+            int k = rnd.nextInt(220);
+            List<String> want = expected(table, op, k);
+
+            // 表的页都不在缓冲池里，扫完以后也不能在
+            Database.getBufferPool().flushAllPages();
+            Database.resetBufferPool(2000);
+            TransactionId tid = new TransactionId();
+            BTreeScan scan = new BTreeScan(tid, index, "covered", new IndexPredicate(op, new IntField(k)), true);
+            scan.open();
+            List<String> got = new ArrayList<>();
+            while (scan.hasNext()) {
+                Tuple t = scan.next();
+                if (t.getField(0) != null || t.getField(3) != null)
+                    throw new RuntimeException("index-only tuple has a field the index does not hold: " + t);
+                got.add(row(t));
+            }
+            scan.close();
+            for (PageId pid : Database.getBufferPool().getResidentPageIds())
+                if (pid.getTableId() == table.getId())
+                    throw new RuntimeException("index-only scan read page " + pid.getPageNumber() + " of the table");
+            for (int p = 0; p < table.numPages(); p++)
+                if (Database.getBufferPool().holdsLock(tid, new HeapPageId(table.getId(), p)))
+                    throw new RuntimeException("index-only scan locked page " + p + " of the table");
+            Database.getBufferPool().transactionComplete(tid);
+
+            Collections.sort(got);
+            if (!got.equals(want))
+                throw new RuntimeException(op + " " + k + ": index-only scan returned " + got.size()
+                        + " rows, expected " + want.size());
+        }
+    }
+
+    /* 索引列、INCLUDE 列和表对不上时抛 IllegalArgumentException */
+    static void checkRejected(HeapFile table) throws Exception {
+        int[][] includes = { { 1 }, { 4 }, { -1 }, { 2, 2 } };
+        for (int[] include : includes) rejected(table.getId(), 1, include);
+        rejected(table.getId(), 4, new int[0]);
+
+        BTreeFile tree = new BTreeFile(tempFile("tree"), 0, TD);
+        Database.getCatalog().addTable(tree, "tree");
+        rejected(tree.getId(), 1, new int[0]);
+    }
+
+    static void rejected(int tableId, int field, int[] include) throws Exception {
+        try {
+            new SecondaryIndex(tableId, field, include, tempFile("bad"));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new RuntimeException("index on field " + field + " including " + Arrays.toString(include)
+                + " was accepted");
+    }
+
+    static List<String> expected(HeapFile table, Predicate.Op op, int k) throws Exception {
+        List<String> rows = new ArrayList<>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getField(1).compare(op, new IntField(k))) rows.add(row(t));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(rows);
+        return rows;
+    }
+
+    static String row(Tuple t) {
+        return t.getField(1) + "," + t.getField(2) + "@" + t.getRecordId().getPageId().getPageNumber()
+                + "/" + t.getRecordId().getTupleNumber();
+    }
+
+    static Tuple tuple(int id, Random rnd) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(rnd.nextInt(200)));
+        t.setField(2, new IntField(rnd.nextInt()));
+        t.setField(3, new IntField(-id));
+        return t;
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
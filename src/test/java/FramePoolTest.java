@@ -0,0 +1,161 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.FramePool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.PaxFile;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TuplePage;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Off-heap frames of a small buffer pool under eviction, for a HeapFile and a
+ * PaxFile much larger than the pool. Repeated scans must reuse the frames of
+ * evicted pages: the pool never has more frames in use than it has pages, and
+ * reserves no more direct memory after the first scan. A page object held on to
+ * after its eviction must still read its tuples. An aborted delete must leave
+ * the pages as they were, and a committed one must become the before image.
+ *
+ * Throws on the first frame count or tuple that is not as expected.
+ *
+ * usage: java FramePoolTest
+ */
+public class FramePoolTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.STRING_TYPE },
+            new String[]{ "id", "s" });
+
+    static final int POOL_PAGES = 20;
+
+    static final int ROWS = 5000;
+
+    public static void main(String[] argv) throws Exception {
+        for (int kind = 0; kind < 2; kind++) {
+            Database.resetBufferPool(1000);
+            File f = tempFile("frames");
+            DbFile table = kind == 0 ? new HeapFile(f, TD) : new PaxFile(f, TD);
+            Database.getCatalog().addTable(table, "frames" + kind);
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < ROWS; i++) Database.getBufferPool().insertTuple(tid, table.getId(), tuple(i));
+            Database.getBufferPool().transactionComplete(tid);
+            if (table.numPages() < 5 * POOL_PAGES)
+                throw new RuntimeException("table too small: " + table.numPages() + " pages");
+
+            BufferPool bp = Database.resetBufferPool(POOL_PAGES, true);
+            checkReuse(bp, table);
+            checkEvictedPage(bp, table);
+            checkAbort(bp, table);
+        }
+        System.out.println("ok");
+    }
+
+    /* 每次扫描都把整个池子换一遍，帧只能复用，不能再多占 */
+    static void checkReuse(BufferPool bp, DbFile table) throws Exception {
+        FramePool frames = bp.getFramePool();
+        long reserved = -1;
+        for (int rep = 0; rep < 3; rep++) {
+            TransactionId tid = new TransactionId();
+            if (count(tid, table) != ROWS) throw new RuntimeException("scan lost tuples");
+            bp.transactionComplete(tid);
+            if (frames.numFramesInUse() > POOL_PAGES)
+                throw new RuntimeException(frames.numFramesInUse() + " frames in use");
+            if (frames.getReservedBytes() > (long) POOL_PAGES * BufferPool.getPageSize())
+                throw new RuntimeException(frames.getReservedBytes() + " bytes reserved");
+            if (rep > 0 && frames.getReservedBytes() != reserved)
+                throw new RuntimeException("frames not reused, reserved " + frames.getReservedBytes());
+            reserved = frames.getReservedBytes();
+        }
+    }
+
+    /* 页被换出去之后帧交给了别的页，留着的页对象还要能读 */
+    static void checkEvictedPage(BufferPool bp, DbFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        TuplePage page = (TuplePage) bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        List<Tuple> before = tuples(page);
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        count(tid, table);
+        bp.transactionComplete(tid);
+        if (bp.isResident(page)) throw new RuntimeException("page 0 not evicted");
+        List<Tuple> after = tuples(page);
+        if (!after.toString().equals(before.toString()))
+            throw new RuntimeException("evicted page reads " + after + " instead of " + before);
+    }
+
+    /* 回滚的删除不留痕迹，提交以后的内容成为新的 before image */
+    static void checkAbort(BufferPool bp, DbFile table) throws Exception {
+        HeapPageId pid = new HeapPageId(table.getId(), 1);
+        TransactionId tid = new TransactionId();
+        TuplePage page = (TuplePage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        List<Tuple> all = tuples(page);
+        if (!Arrays.equals(page.getBeforeImage().getPageData(), page.getPageData()))
+            throw new RuntimeException("before image of a clean page differs");
+        bp.deleteTuple(tid, all.get(0));
+        bp.deleteTuple(tid, all.get(1));
+        if (tuples((TuplePage) page.getBeforeImage()).size() != all.size())
+            throw new RuntimeException("before image changed with the page");
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        page = (TuplePage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        if (!tuples(page).toString().equals(all.toString()))
+            throw new RuntimeException("abort did not restore the page");
+        bp.deleteTuple(tid, tuples(page).get(0));
+        bp.transactionComplete(tid);
+        if (tuples((TuplePage) page.getBeforeImage()).size() != all.size() - 1)
+            throw new RuntimeException("committed delete not in the before image");
+
+        tid = new TransactionId();
+        if (count(tid, table) != ROWS - 1) throw new RuntimeException("committed delete lost");
+        bp.transactionComplete(tid);
+    }
+
+    static int count(TransactionId tid, DbFile table) throws Exception {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            if (!((StringField) t.getField(1)).getValue().equals("s" + id))
+                throw new RuntimeException("bad tuple " + t);
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    static List<Tuple> tuples(TuplePage page) {
+        List<Tuple> l = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) l.add(it.next());
+        return l;
+    }
+
+    static Tuple tuple(int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField("s" + id, Type.STRING_LEN));
+        return t;
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
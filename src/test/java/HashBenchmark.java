@@ -0,0 +1,169 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeUtility;
+import simpleDatabase.index.HashFile;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * YCSB-style point lookup benchmark (workload C, read only) of HashFile against BTreeFile.
+ *
+ * Both files are loaded with the same records, keys 0..records-1 in random order, then
+ * every lookup reads the record of a key drawn uniformly or from a zipfian distribution
+ * (theta 0.99, the popular keys scattered over the key space, as in YCSB). The lookups
+ * run with a buffer pool of bufferPages pages, so most of them have to read pages from
+ * disk; the page reads of every file are counted.
+ *
+ * usage: java HashBenchmark [records] [lookups] [uniform|zipfian] [bufferPages]
+ */
+public class HashBenchmark {
+
+    static final double ZIPFIAN_THETA = 0.99;
+
+    public static void main(String[] argv) throws Exception {
+        int records = argv.length > 0 ? Integer.parseInt(argv[0]) : 200000;
+        int lookups = argv.length > 1 ? Integer.parseInt(argv[1]) : 100000;
+        boolean zipfian = argv.length > 2 && argv[2].equals("zipfian");
+        int bufferPages = argv.length > 3 ? Integer.parseInt(argv[3]) : 100;
+
+        final AtomicLong hashReads = new AtomicLong();
+        final AtomicLong btreeReads = new AtomicLong();
+        TupleDesc td = BTreeUtility.getBTreeTuple(new int[]{0, 0}).getTupleDesc();
+        File hf = File.createTempFile("hash-bench", ".dat");
+        hf.delete();
+        hf.deleteOnExit();
+        File bf = File.createTempFile("btree-bench", ".dat");
+        bf.delete();
+        bf.deleteOnExit();
+        HashFile hash = new HashFile(hf, 0, td) {
+            @Override
+            public Page readPage(PageId pid) {
+                hashReads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        BTreeFile btree = new BTreeFile(bf, 0, td) {
+            @Override
+            public Page readPage(PageId pid) {
+                btreeReads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(hash, "hash");
+        Database.getCatalog().addTable(btree, "btree");
+
+        // 两个文件装入同样的记录，key 为 0..records-1 的随机排列
+        int[] keys = new int[records];
+        for (int i = 0; i < records; i++) keys[i] = i;
+        shuffle(keys, new Random(-1));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 100);
+        load(hash, keys);
+        load(btree, keys);
+        System.out.println("records " + records + ", lookups " + lookups + ", "
+                + (zipfian ? "zipfian" : "uniform") + ", buffer pool " + bufferPages + " pages");
+        System.out.println("file\tpages\tops/s\treads/op");
+        run("hash", hash, keys, lookups, zipfian, bufferPages, hashReads);
+        run("btree", btree, keys, lookups, zipfian, bufferPages, btreeReads);
+    }
+
+    private static void run(String name, DbFile file, int[] keys, int lookups, boolean zipfian,
+                            int bufferPages, AtomicLong reads) throws Exception {
+        Database.resetBufferPool(bufferPages);
+        Random rand = new Random(42);
+        Zipfian zipf = zipfian ? new Zipfian(keys.length, ZIPFIAN_THETA) : null;
+        reads.set(0);
+        long start = System.nanoTime();
+        for (int n = 0; n < lookups; n++) {
+            // 热门的排名映射到打乱后的 key 上，热点不会挤在同一个桶或叶子里
+            int rank = zipf != null ? zipf.next(rand) : rand.nextInt(keys.length);
+            TransactionId tid = new TransactionId();
+            if (lookup(file, tid, keys[rank]) != 1)
+                throw new IllegalStateException("key " + keys[rank] + " not found in " + name);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s\t%d\t%.0f\t%.2f%n", name, file.numPages(), lookups / seconds,
+                (double) reads.get() / lookups);
+    }
+
+    private static void load(DbFile file, int[] keys) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < keys.length; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(),
+                    BTreeUtility.getBTreeTuple(new int[]{keys[i], i}));
+            if (i % 1000 == 999) { // 控制一个事务里的脏页数
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+    }
+
+    private static int lookup(DbFile file, TransactionId tid, int key) throws Exception {
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(key));
+        DbFileIterator it = file instanceof HashFile
+                ? ((HashFile) file).indexIterator(tid, ipred)
+                : ((BTreeFile) file).indexIterator(tid, ipred);
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            it.next();
+            found++;
+        }
+        it.close();
+        return found;
+    }
+
+    private static void shuffle(int[] a, Random rand) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    /**
+     * Zipfian ranks in [0, items), rank 0 the most popular, by the method of Gray et al.,
+     * "Quickly Generating Billion-Record Synthetic Databases", as used by YCSB.
+     */
+    static class Zipfian {
+        private final int items;
+        private final double theta, alpha, zetan, eta;
+
+        Zipfian(int items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            this.zetan = zeta(items, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) sum += 1 / Math.pow(i, theta);
+            return sum;
+        }
+
+        int next(Random rand) {
+            double u = rand.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) return 0;
+            if (uz < 1.0 + Math.pow(0.5, theta)) return 1;
+            return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
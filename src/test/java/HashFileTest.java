@@ -0,0 +1,189 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.HashFile;
+import simpleDatabase.index.HashHeaderPage;
+import simpleDatabase.index.HashPageId;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.others.IndexPredicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Bucket splits and overflow chains of a HashFile, on small pages. Random keys
+ * are inserted until the directory has doubled a few times, together with one key
+ * repeated too often for a single bucket, which must grow a chain of overflow
+ * pages. Then that key and a third of the other rows are deleted, and a
+ * transaction that inserts many rows is aborted. After each step, and after the
+ * pages went to disk, a scan must return exactly the rows inserted and not
+ * deleted, and index scans with every operator must return what a filtered scan
+ * returns.
+ *
+ * Throws on the first difference.
+ *
+ * usage: java HashFileTest
+ */
+public class HashFileTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "k", "id" });
+
+    static final int DUPLICATE = 7;
+
+    static final Predicate.Op[] OPS = { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS, Predicate.Op.LESS_THAN,
+            Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    public static void main(String[] argv) throws Exception {
+        BufferPool.setPageSize(256);
+        try {
+            Database.resetBufferPool(5000);
+            File f = File.createTempFile("hash", ".dat");
+            f.delete();
+            f.deleteOnExit();
+            HashFile table = new HashFile(f, 0, TD);
+            Database.getCatalog().addTable(table, f.getName());
+            Random rnd = new Random(47);
+
+            Map<Integer, Integer> rows = new HashMap<>();
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 5000; i++) {
+                // 前200行同一个键，一个桶放不下，也分裂不开
+                int k = i < 200 ? DUPLICATE : rnd.nextInt(100000);
+                Database.getBufferPool().insertTuple(tid, table.getId(), tuple(k, i));
+                rows.put(i, k);
+                if (i % 500 == 499) {
+                    Database.getBufferPool().transactionComplete(tid);
+                    tid = new TransactionId();
+                }
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            int depth = globalDepth(table);
+            if (depth < 4) throw new RuntimeException("directory of " + rows.size() + " rows has global depth " + depth);
+            int chain = pagesOf(table, DUPLICATE);
+            if (chain < 2) throw new RuntimeException("key " + DUPLICATE + " is in " + chain + " page");
+            check(table, rows, rnd);
+
+            // 删掉重复的键和三分之一的其它行
+            tid = new TransactionId();
+            List<Tuple> deleted = new ArrayList<>();
+            DbFileIterator it = table.iterator(tid);
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (key(t) == DUPLICATE || id(t) % 3 == 0) deleted.add(t);
+            }
+            it.close();
+            for (Tuple t : deleted) Database.getBufferPool().deleteTuple(tid, t);
+            Database.getBufferPool().transactionComplete(tid);
+            for (Tuple t : deleted) rows.remove(id(t));
+            check(table, rows, rnd);
+
+            // 回滚的插入不能留下元组，分出来的桶也要撤销
+            tid = new TransactionId();
+            for (int i = 0; i < 3000; i++)
+                Database.getBufferPool().insertTuple(tid, table.getId(), tuple(rnd.nextInt(), 5000 + i));
+            Database.getBufferPool().transactionComplete(tid, false);
+            if (globalDepth(table) != depth)
+                throw new RuntimeException("global depth is " + globalDepth(table) + " after an abort, was " + depth);
+            check(table, rows, rnd);
+
+            Database.getBufferPool().flushAllPages();
+            Database.resetBufferPool(5000);
+            check(table, rows, rnd);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+
+        System.out.println("ok");
+    }
+
+    /**
+     * Check that a scan returns the rows, and that index scans return the rows a
+     * filtered scan returns, for the keys of some rows and for random keys.
+     */
+    static void check(HashFile table, Map<Integer, Integer> rows, Random rnd) throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Tuple> all = scan(table.iterator(tid));
+        Set<Integer> seen = new HashSet<>();
+        for (Tuple t : all) {
+            Integer k = rows.get(id(t));
+            if (k == null || k != key(t))
+                throw new RuntimeException("read row " + id(t) + " with key " + key(t) + ", wrote key " + k);
+            if (!seen.add(id(t))) throw new RuntimeException("row " + id(t) + " read twice");
+        }
+        if (seen.size() != rows.size()) throw new RuntimeException("read " + seen.size() + " rows, wrote " + rows.size());
+
+        List<Integer> keys = new ArrayList<>(rows.values());
+        for (int j = 0; j < 200; j++) {
+            int k = j == 0 ? DUPLICATE : rnd.nextBoolean() ? keys.get(rnd.nextInt(keys.size())) : rnd.nextInt(100000);
+            // 等值查询只读一个桶，其它操作符要扫所有桶
+            Predicate.Op op = j % 2 == 0 ? Predicate.Op.EQUALS : OPS[rnd.nextInt(OPS.length)];
+            IntField field = new IntField(k);
+            List<Integer> found = new ArrayList<>();
+            for (Tuple t : scan(table.indexIterator(tid, new IndexPredicate(op, field)))) found.add(id(t));
+            List<Integer> filtered = new ArrayList<>();
+            for (Tuple t : all) if (t.getField(0).compare(op, field)) filtered.add(id(t));
+            Collections.sort(found);
+            Collections.sort(filtered);
+            if (!found.equals(filtered))
+                throw new RuntimeException(op + " " + k + ": index scan returned " + found.size()
+                        + " rows, expected " + filtered.size());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    static List<Tuple> scan(DbFileIterator it) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
+    static int globalDepth(HashFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        HashHeaderPage header = (HashHeaderPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(table.getId(), 0, HashPageId.HEADER), Permissions.READ_ONLY);
+        int depth = header.getGlobalDepth();
+        Database.getBufferPool().transactionComplete(tid);
+        return depth;
+    }
+
+    /** The number of pages that hold the rows with key k. */
+    static int pagesOf(HashFile table, int k) throws Exception {
+        TransactionId tid = new TransactionId();
+        Set<Integer> pages = new HashSet<>();
+        for (Tuple t : scan(table.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(k)))))
+            pages.add(t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(tid);
+        return pages.size();
+    }
+
+    static Tuple tuple(int k, int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(k));
+        t.setField(1, new IntField(id));
+        return t;
+    }
+
+    static int key(Tuple t) {
+        return ((IntField) t.getField(0)).getValue();
+    }
+
+    static int id(Tuple t) {
+        return ((IntField) t.getField(1)).getValue();
+    }
+}
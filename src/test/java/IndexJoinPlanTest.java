@@ -0,0 +1,140 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.iterator.OpIterator;
+import simpleDatabase.operator.Operator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.operator.TableStats;
+import simpleDatabase.operator.join.IndexNestedLoopJoin;
+import simpleDatabase.operator.join.Join;
+import simpleDatabase.operator.join.LogicalPlan;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Planner choice of the index nested-loop join: a small table is joined with a
+ * large one on the large table's primary key id, once when the large table has a
+ * secondary index on id and once when an identical copy of it has none. The first plan must
+ * be an IndexNestedLoopJoin, the second a plain Join, and both must return the
+ * same rows.
+ *
+ * Throws on the first plan or row that is not as expected.
+ *
+ * usage: java IndexJoinPlanTest
+ */
+public class IndexJoinPlanTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "id", "k" });
+
+    static final int OUTER_ROWS = 40;
+
+    static final int INNER_ROWS = 20000;
+
+    public static void main(String[] argv) throws Exception {
+        Database.resetBufferPool(1000);
+        Random rnd = new Random(46);
+        HeapFile outer = table("outer", "");
+        HeapFile indexed = table("indexed", "id");
+        HeapFile plain = table("plain", "id");
+
+        TransactionId tid = new TransactionId();
+        int[] keys = new int[OUTER_ROWS];
+        for (int i = 0; i < OUTER_ROWS; i++) {
+            keys[i] = rnd.nextInt(INNER_ROWS);
+            Database.getBufferPool().insertTuple(tid, outer.getId(), tuple(i, keys[i]));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // 两张内表内容一样，一张有索引一张没有
+        for (int i = 0; i < INNER_ROWS; i += 1000) {
+            tid = new TransactionId();
+            for (int j = i; j < i + 1000; j++) {
+                Database.getBufferPool().insertTuple(tid, indexed.getId(), tuple(j, -j));
+                Database.getBufferPool().insertTuple(tid, plain.getId(), tuple(j, -j));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        Database.getCatalog().createIndex("indexed", "id", tempFile("idx"));
+
+        Map<String, TableStats> stats = new HashMap<>();
+        for (HeapFile f : new HeapFile[]{ outer, indexed, plain })
+            stats.put(Database.getCatalog().getTableName(f.getId()), new TableStats(f.getId(), 1000));
+
+        OpIterator withIndex = plan("indexed", stats);
+        if (find(withIndex, IndexNestedLoopJoin.class) == null)
+            throw new RuntimeException("no index nested-loop join on the indexed table");
+        check(withIndex, keys);
+
+        OpIterator withoutIndex = plan("plain", stats);
+        if (find(withoutIndex, IndexNestedLoopJoin.class) != null || find(withoutIndex, Join.class) == null)
+            throw new RuntimeException("expected a nested-loop join on the table without an index");
+        check(withoutIndex, keys);
+        System.out.println("ok");
+    }
+
+    /* SELECT * FROM outer o, inner i WHERE o.k = i.id */
+    static OpIterator plan(String inner, Map<String, TableStats> stats) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(Database.getCatalog().getTableId("outer"), "o");
+        lp.addScan(Database.getCatalog().getTableId(inner), "i");
+        lp.addJoin("o.k", "i.id", Predicate.Op.EQUALS);
+        lp.addProjectField("*", null);
+        return lp.physicalPlan(new TransactionId(), stats, false);
+    }
+
+    /* 每个外表元组正好匹配内表里 id 等于它的 k 的那一行 */
+    static void check(OpIterator plan, int[] keys) throws Exception {
+        int[] seen = new int[OUTER_ROWS];
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int id = value(t, 0), k = value(t, 1), innerId = value(t, 2), v = value(t, 3);
+            if (keys[id] != k || innerId != k || v != -k)
+                throw new RuntimeException("bad row " + t);
+            seen[id]++;
+        }
+        plan.close();
+        for (int i = 0; i < OUTER_ROWS; i++)
+            if (seen[i] != 1) throw new RuntimeException("outer row " + i + " joined " + seen[i] + " times");
+    }
+
+    static OpIterator find(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan)) return plan;
+        if (!(plan instanceof Operator)) return null;
+        for (OpIterator child : ((Operator) plan).getChildren()) {
+            OpIterator found = child == null ? null : find(child, c);
+            if (found != null) return found;
+        }
+        return null;
+    }
+
+    static HeapFile table(String name, String pkey) throws Exception {
+        HeapFile f = new HeapFile(tempFile(name), TD);
+        Database.getCatalog().addTable(f, name, pkey);
+        return f;
+    }
+
+    static Tuple tuple(int id, int k) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(k));
+        return t;
+    }
+
+    static int value(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
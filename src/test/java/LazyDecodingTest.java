@@ -0,0 +1,197 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.cache.TuplePage;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.iterator.SeqScan;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Lazy decoding of heap pages, for the FIXED and the SLOTTED page format. A page
+ * scanned with filters and a projection must return exactly the rows of a full
+ * scan that pass the filters, with the same record ids, the requested and the
+ * filtered fields set to the values of the full scan and every other field left
+ * null. getTuple must decode the same tuple as the full scan. Inserts and deletes
+ * must reach the page bytes, so the pages read back from disk hold them, and a
+ * SeqScan with pushed down predicates and referenced fields must return the same
+ * rows as filtering a full scan.
+ *
+ * Throws on the first row or field that is not as expected.
+ *
+ * usage: java LazyDecodingTest
+ */
+public class LazyDecodingTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[]{ "id", "k", "s", "w" });
+
+    static final int ROWS = 3000;
+
+    public static void main(String[] argv) throws Exception {
+        for (HeapFile.PageFormat format : HeapFile.PageFormat.values()) {
+            Database.resetBufferPool(1000);
+            Random rnd = new Random(28);
+            HeapFile table = new HeapFile(tempFile("lazy"), TD, format);
+            Database.getCatalog().addTable(table, "lazy_" + format);
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < ROWS; i++) Database.getBufferPool().insertTuple(tid, table.getId(), tuple(i, rnd));
+            Database.getBufferPool().transactionComplete(tid);
+
+            // 删掉一部分，让页里有空的slot
+            tid = new TransactionId();
+            for (Tuple t : scan(tid, table)) {
+                if (((IntField) t.getField(0)).getValue() % 7 == 0) Database.getBufferPool().deleteTuple(tid, t);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            reopen();
+
+            List<Predicate> filters = Arrays.asList(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30)),
+                    new Predicate(2, Predicate.Op.GREATER_THAN, new StringField("s1", Type.STRING_LEN)));
+            checkPages(table, filters, new int[]{ 0 });
+            checkPages(table, filters, new int[0]);
+            checkPages(table, new ArrayList<Predicate>(), new int[]{ 3 });
+            checkPages(table, null, null);
+            checkSeqScan(table, filters, new int[]{ 0 });
+
+            // 插入和删除都写进页的字节里，从磁盘读回来还在
+            tid = new TransactionId();
+            List<Tuple> all = scan(tid, table);
+            Database.getBufferPool().deleteTuple(tid, all.get(0));
+            Database.getBufferPool().insertTuple(tid, table.getId(), tuple(ROWS, rnd));
+            Database.getBufferPool().transactionComplete(tid);
+            reopen();
+            tid = new TransactionId();
+            List<Integer> ids = new ArrayList<>();
+            for (Tuple t : scan(tid, table)) ids.add(((IntField) t.getField(0)).getValue());
+            Database.getBufferPool().transactionComplete(tid);
+            if (ids.size() != all.size() || ids.contains(((IntField) all.get(0).getField(0)).getValue())
+                    || !ids.contains(ROWS))
+                throw new RuntimeException(format + ": insert or delete not on the page read back");
+            checkPages(table, filters, new int[]{ 0 });
+        }
+        System.out.println("ok");
+    }
+
+    /* 每一页：带过滤和投影的扫描 = 全量扫描过滤后的结果，只是没要的列是null */
+    static void checkPages(HeapFile table, List<Predicate> filters, int[] fields) throws Exception {
+        TransactionId tid = new TransactionId();
+        int rows = 0;
+        for (int p = 0; p < table.numPages(); p++) {
+            TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, new HeapPageId(table.getId(), p),
+                    Permissions.READ_ONLY);
+            List<Tuple> want = new ArrayList<>();
+            Iterator<Tuple> full = page.iterator();
+            while (full.hasNext()) {
+                Tuple t = full.next();
+                Tuple single = page.getTuple(t.getRecordId().getTupleNumber());
+                if (!single.toString().equals(t.toString()))
+                    throw new RuntimeException("getTuple decoded " + single + " instead of " + t);
+                if (passes(t, filters)) want.add(t);
+            }
+            Iterator<Tuple> lazy = page.iterator(filters, fields);
+            for (Tuple w : want) {
+                if (!lazy.hasNext()) throw new RuntimeException("page " + p + " lost " + w);
+                Tuple t = lazy.next();
+                if (!t.getRecordId().equals(w.getRecordId()))
+                    throw new RuntimeException("page " + p + " returned " + t.getRecordId() + " instead of "
+                            + w.getRecordId());
+                for (int i = 0; i < TD.numFields(); i++) {
+                    boolean decoded = fields == null || contains(fields, i) || usedBy(filters, i);
+                    if (decoded ? !w.getField(i).equals(t.getField(i)) : t.getField(i) != null)
+                        throw new RuntimeException("field " + i + " of " + t.getRecordId() + " is " + t.getField(i));
+                }
+                rows++;
+            }
+            if (lazy.hasNext()) throw new RuntimeException("page " + p + " returned filtered row " + lazy.next());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        if (rows == 0) throw new RuntimeException("no row passed the filters");
+    }
+
+    /* SeqScan 下推过滤条件和列，结果和过滤全表一样 */
+    static void checkSeqScan(HeapFile table, List<Predicate> filters, int[] fields) throws Exception {
+        TransactionId tid = new TransactionId();
+        List<String> want = new ArrayList<>();
+        for (Tuple t : scan(tid, table))
+            if (passes(t, filters)) want.add(t.getField(0) + "," + t.getField(1) + "," + t.getField(2));
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        for (Predicate p : filters) scan.pushDown(p);
+        scan.setReferencedFields(fields);
+        scan.open();
+        List<String> got = new ArrayList<>();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (t.getField(3) != null) throw new RuntimeException("unreferenced field decoded in " + t);
+            got.add(t.getField(0) + "," + t.getField(1) + "," + t.getField(2));
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (!got.equals(want))
+            throw new RuntimeException("SeqScan returned " + got.size() + " rows, expected " + want.size());
+    }
+
+    static boolean passes(Tuple t, List<Predicate> filters) {
+        if (filters == null) return true;
+        for (Predicate p : filters)
+            if (!p.filter(t)) return false;
+        return true;
+    }
+
+    static boolean usedBy(List<Predicate> filters, int field) {
+        if (filters == null) return false;
+        for (Predicate p : filters)
+            if (p.getIdx() == field) return true;
+        return false;
+    }
+
+    static boolean contains(int[] fields, int field) {
+        for (int f : fields)
+            if (f == field) return true;
+        return false;
+    }
+
+    static List<Tuple> scan(TransactionId tid, HeapFile table) throws Exception {
+        List<Tuple> l = new ArrayList<>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) l.add(it.next());
+        it.close();
+        return l;
+    }
+
+    /* 写回磁盘，换一个空的缓冲池，页都从磁盘读 */
+    static void reopen() throws Exception {
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+    }
+
+    static Tuple tuple(int id, Random rnd) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(rnd.nextInt(100)));
+        t.setField(2, new StringField("s" + rnd.nextInt(1000), Type.STRING_LEN));
+        t.setField(3, new IntField(-id));
+        return t;
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
@@ -0,0 +1,128 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+
+/**
+ * Tables with different page sizes in one BufferPool: a fixed layout table with
+ * 1 KB pages, a slotted one with 8 KB pages, a PAX one with 32 KB pages and one
+ * with the default size, loaded from a catalog file with "pagesize=N". Every
+ * table must read back the rows written to it after its pages went to disk. A
+ * scan must never leave more bytes of pages in the pool than its capacity, and
+ * the pool must hold more small pages than it has pages of the default size.
+ *
+ * Throws on the first row or page count that is not as expected.
+ *
+ * usage: java PageSizeTest
+ */
+public class PageSizeTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.STRING_TYPE },
+            new String[]{ "id", "s" });
+
+    static final String[] TABLES = { "small", "slotted", "large", "plain" };
+
+    static final int[] PAGE_SIZES = { 1024, 8192, 32768, BufferPool.getPageSize() };
+
+    static final int ROWS = 3000;
+
+    static final int POOL_PAGES = 64;
+
+    public static void main(String[] argv) throws Exception {
+        File dir = File.createTempFile("pagesize", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File catalog = new File(dir, "catalog.txt");
+        catalog.deleteOnExit();
+        FileWriter w = new FileWriter(catalog);
+        w.write("small (id int, s string) pagesize=1024\n");
+        w.write("slotted (id int, s string) slotted pagesize=8192\n");
+        w.write("large (id int, s string) pax pagesize=32768\n");
+        w.write("plain (id int, s string)\n");
+        w.close();
+        for (String name : TABLES) new File(dir, name + ".dat").deleteOnExit();
+        new File(dir, "slotted.dat.ovf").deleteOnExit();
+        Database.getCatalog().loadSchema(catalog.getPath());
+
+        Database.resetBufferPool(POOL_PAGES);
+        for (int i = 0; i < TABLES.length; i++) {
+            int id = Database.getCatalog().getTableId(TABLES[i]);
+            if (Database.getCatalog().getPageSize(id) != PAGE_SIZES[i])
+                throw new RuntimeException(TABLES[i] + " has pages of " + Database.getCatalog().getPageSize(id) + " bytes");
+            for (int start = 0; start < ROWS; start += 500) {
+                TransactionId tid = new TransactionId();
+                for (int j = start; j < start + 500; j++) Database.getBufferPool().insertTuple(tid, id, tuple(j));
+                Database.getBufferPool().transactionComplete(tid);
+                checkCapacity();
+            }
+        }
+
+        // 换一个空的缓冲池，页都从磁盘读
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(POOL_PAGES);
+        for (String name : TABLES) {
+            DbFile file = Database.getCatalog().getDbFile(Database.getCatalog().getTableId(name));
+            check(file);
+            checkCapacity();
+        }
+
+        // 1 KB 的页，缓冲池能放下的页数比默认大小的页多
+        check(Database.getCatalog().getDbFile(Database.getCatalog().getTableId("small")));
+        int small = 0;
+        for (PageId pid : Database.getBufferPool().getResidentPageIds())
+            if (Database.getCatalog().getPageSize(pid.getTableId()) == 1024) small++;
+        if (small <= POOL_PAGES)
+            throw new RuntimeException("only " + small + " pages of 1 KB in a pool of " + POOL_PAGES + " pages");
+        System.out.println("ok");
+    }
+
+    /* 缓存的页按各自表的页大小算，加起来不超过缓冲池的容量 */
+    static void checkCapacity() {
+        long bytes = 0;
+        for (PageId pid : Database.getBufferPool().getResidentPageIds())
+            bytes += Database.getCatalog().getPageSize(pid.getTableId());
+        if (bytes > Database.getBufferPool().getCapacityBytes())
+            throw new RuntimeException(bytes + " bytes of pages in a pool of "
+                    + Database.getBufferPool().getCapacityBytes());
+    }
+
+    static void check(DbFile file) throws Exception {
+        boolean[] seen = new boolean[ROWS];
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            if (seen[id] || !((StringField) t.getField(1)).getValue().equals(value(id)))
+                throw new RuntimeException("bad row " + t);
+            seen[id] = true;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        for (int id = 0; id < ROWS; id++)
+            if (!seen[id]) throw new RuntimeException("row " + id + " lost");
+    }
+
+    static Tuple tuple(int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(value(id), Type.STRING_LEN));
+        return t;
+    }
+
+    static String value(int id) {
+        return "row-" + id;
+    }
+}
@@ -0,0 +1,131 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.PageWarmer;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Warm-up of a BufferPool from a dump of its resident pages. The pages a pool
+ * held are dumped most recently used first, and loaded into a new pool of the
+ * same size: every dumped page must be resident again, read with a few large
+ * sequential reads, and reading them afterwards must not touch the disk. A
+ * smaller pool must only load the hottest pages that fit and stop at its
+ * capacity, and a pool that already serves queries must keep the pages they
+ * read and only be filled up to its capacity.
+ *
+ * Throws on the first page or read count that is not as expected.
+ *
+ * usage: java PageWarmerTest
+ */
+public class PageWarmerTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "id", "v" });
+
+    static final int POOL_PAGES = 40;
+
+    static final int TABLE_PAGES = 100;
+
+    /* 数一下从磁盘读了多少页，几次顺序读 */
+    static class CountingHeapFile extends HeapFile {
+
+        int reads;
+
+        int bulkReads;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+
+        @Override
+        public Page[] readPages(int firstPgNo, int count) {
+            bulkReads++;
+            return super.readPages(firstPgNo, count);
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        CountingHeapFile table = table("warm");
+        File dump = File.createTempFile("warm", ".dump");
+        dump.deleteOnExit();
+
+        // 读后面40页，再读一遍其中最后20页，它们最热
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        read(pool, table, TABLE_PAGES - POOL_PAGES, TABLE_PAGES);
+        read(pool, table, TABLE_PAGES - POOL_PAGES / 2, TABLE_PAGES);
+        new PageWarmer(pool, dump).dump();
+        List<PageId> dumped = PageWarmer.readDump(dump);
+        if (!new HashSet<>(dumped).equals(new HashSet<>(pool.getResidentPageIds())) || dumped.size() != POOL_PAGES)
+            throw new RuntimeException("dump holds " + dumped);
+        if (dumped.get(0).getPageNumber() != TABLE_PAGES - 1)
+            throw new RuntimeException("dump starts with page " + dumped.get(0).getPageNumber());
+
+        // 同样大的缓冲池全部读回来，之后不用再读盘
+        pool = Database.resetBufferPool(POOL_PAGES);
+        table.reads = table.bulkReads = 0;
+        PageWarmer warmer = new PageWarmer(pool, dump);
+        warmer.load();
+        if (warmer.getPagesLoaded() != POOL_PAGES || !new HashSet<>(pool.getResidentPageIds()).equals(new HashSet<>(dumped)))
+            throw new RuntimeException("warmed " + pool.getResidentPageIds());
+        if (table.bulkReads > 2 || table.reads != 0)
+            throw new RuntimeException(table.bulkReads + " bulk reads and " + table.reads + " page reads to warm 40 pages");
+        read(pool, table, TABLE_PAGES - POOL_PAGES, TABLE_PAGES);
+        if (table.reads != 0) throw new RuntimeException("warmed pages read " + table.reads + " times from disk");
+
+        // 小一些的缓冲池只读最热的那些，满了就停
+        pool = Database.resetBufferPool(POOL_PAGES / 4);
+        warmer = new PageWarmer(pool, dump);
+        warmer.load();
+        if (warmer.getPagesLoaded() != POOL_PAGES / 4
+                || !new HashSet<>(pool.getResidentPageIds()).equals(new HashSet<>(dumped.subList(0, POOL_PAGES / 4))))
+            throw new RuntimeException("small pool warmed " + pool.getResidentPageIds());
+
+        // 已经在用的缓冲池，查询读过的页不会被挤出去
+        pool = Database.resetBufferPool(POOL_PAGES);
+        read(pool, table, 0, 10);
+        warmer = new PageWarmer(pool, dump);
+        warmer.load();
+        List<PageId> resident = pool.getResidentPageIds();
+        if (warmer.getPagesLoaded() != POOL_PAGES - 10 || resident.size() != POOL_PAGES)
+            throw new RuntimeException("warmed " + warmer.getPagesLoaded() + " pages into a pool of " + resident.size());
+        for (int p = 0; p < 10; p++)
+            if (!resident.contains(new HeapPageId(table.getId(), p))) throw new RuntimeException("page " + p + " pushed out");
+        System.out.println("ok");
+    }
+
+    static void read(BufferPool pool, HeapFile table, int from, int to) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int p = from; p < to; p++) pool.getPage(tid, new HeapPageId(table.getId(), p), Permissions.READ_ONLY);
+        pool.transactionComplete(tid);
+    }
+
+    static CountingHeapFile table(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        int perPage = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<>();
+        for (int id = 0; id < TABLE_PAGES * perPage; id++) rows.add(new ArrayList<>(Arrays.asList(id, -id)));
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 2);
+        CountingHeapFile table = new CountingHeapFile(f, TD);
+        Database.getCatalog().addTable(table, name);
+        return table;
+    }
+}
@@ -0,0 +1,201 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.PaxFile;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Round trips through PaxFile: rows with strings of every length up to
+ * Type.STRING_LEN are inserted through the buffer pool and read back after the
+ * pages went to disk, by full scans, by scans that only decode some columns and
+ * filter on another one, and one by one through their RecordId. A third of the
+ * rows is deleted and inserted again, which must reuse the freed slots. The same
+ * rows also go through HeapFileEncoder.convertToPax.
+ *
+ * Throws on the first value that does not come back whole.
+ *
+ * usage: java PaxFileTest
+ */
+public class PaxFileTest {
+
+    static final Type[] TYPES = new Type[]{ Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+
+    static final TupleDesc TD = new TupleDesc(TYPES, new String[]{ "id", "s", "v" });
+
+    public static void main(String[] argv) throws Exception {
+        Database.resetBufferPool(500);
+        Random rnd = new Random(26);
+        Map<Integer, String> rows = new HashMap<>();
+        for (int i = 0; i < 2000; i++) rows.put(i, randomString(rnd, rnd.nextInt(Type.STRING_LEN + 1)));
+
+        File f = tempFile("pax");
+        PaxFile table = new PaxFile(f, TD);
+        Database.getCatalog().addTable(table, "pax");
+
+        TransactionId tid = new TransactionId();
+        for (Map.Entry<Integer, String> row : rows.entrySet())
+            Database.getBufferPool().insertTuple(tid, table.getId(), tuple(row.getKey(), row.getValue()));
+        Database.getBufferPool().transactionComplete(tid);
+        reopen();
+        check(table, rows);
+        checkProjected(table, rows, 3);
+        checkLookups(table, rows);
+
+        // 删掉三分之一再插回去，空出来的槽位被复用
+        int pages = table.numPages();
+        tid = new TransactionId();
+        List<Tuple> deleted = new ArrayList<>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 3 == 0) deleted.add(t);
+        }
+        it.close();
+        for (Tuple t : deleted) Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        reopen();
+        Map<Integer, String> left = new HashMap<>(rows);
+        for (Tuple t : deleted) left.remove(((IntField) t.getField(0)).getValue());
+        check(table, left);
+
+        tid = new TransactionId();
+        for (Tuple t : deleted) {
+            int id = ((IntField) t.getField(0)).getValue();
+            Database.getBufferPool().insertTuple(tid, table.getId(), tuple(id, rows.get(id)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        reopen();
+        check(table, rows);
+        checkProjected(table, rows, 5);
+        if (table.numPages() != pages)
+            throw new RuntimeException("file grew from " + pages + " to " + table.numPages()
+                    + " pages, freed slots were not reused");
+
+        // 同样的数据用 convertToPax 生成
+        File txt = tempFile("pax-txt");
+        FileWriter w = new FileWriter(txt);
+        for (Map.Entry<Integer, String> row : rows.entrySet())
+            w.write(row.getKey() + "," + row.getValue() + "," + v(row.getKey()) + "\n");
+        w.close();
+        File converted = tempFile("pax-converted");
+        HeapFileEncoder.convertToPax(txt, converted, 4096, 3, TYPES, ',');
+        PaxFile loaded = new PaxFile(converted, TD);
+        Database.getCatalog().addTable(loaded, "converted");
+        check(loaded, rows);
+
+        System.out.println("ok");
+    }
+
+    static void check(PaxFile table, Map<Integer, String> rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        Set<Integer> seen = new HashSet<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            checkRow(t, id, rows);
+            if (((IntField) t.getField(2)).getValue() != v(id))
+                throw new RuntimeException("row " + id + ": read v " + t.getField(2) + ", wrote " + v(id));
+            if (!seen.add(id)) throw new RuntimeException("row " + id + " read twice");
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (seen.size() != rows.size()) throw new RuntimeException("read " + seen.size() + " rows, wrote " + rows.size());
+    }
+
+    /** Scan the rows whose v is value, decoding only id and s. */
+    static void checkProjected(PaxFile table, Map<Integer, String> rows, int value) throws Exception {
+        List<Integer> expected = new ArrayList<>();
+        for (int id : rows.keySet()) if (v(id) == value) expected.add(id);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid,
+                Collections.singletonList(new Predicate(2, Predicate.Op.EQUALS, new IntField(value))), new int[]{ 0, 1 });
+        it.open();
+        List<Integer> found = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            checkRow(t, id, rows);
+            found.add(id);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(expected);
+        Collections.sort(found);
+        if (!found.equals(expected))
+            throw new RuntimeException("v = " + value + ": found " + found.size() + " rows, expected " + expected.size());
+    }
+
+    /** Read every row again through its RecordId. */
+    static void checkLookups(PaxFile table, Map<Integer, String> rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Tuple u = table.getTuple(tid, t.getRecordId());
+            checkRow(u, ((IntField) t.getField(0)).getValue(), rows);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    static void checkRow(Tuple t, int id, Map<Integer, String> rows) {
+        if (((IntField) t.getField(0)).getValue() != id)
+            throw new RuntimeException("read row " + t.getField(0) + ", expected row " + id);
+        String s = ((StringField) t.getField(1)).getValue();
+        if (!s.equals(rows.get(id)))
+            throw new RuntimeException("row " + id + ": read \"" + s + "\", wrote \"" + rows.get(id) + "\"");
+    }
+
+    /** Drop the cached pages, so that the next scan reads them from disk. */
+    static void reopen() throws Exception {
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(500);
+    }
+
+    static int v(int id) {
+        return id % 7;
+    }
+
+    static Tuple tuple(int id, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        t.setField(2, new IntField(v(id)));
+        return t;
+    }
+
+    static String randomString(Random rnd, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) sb.append((char) ('a' + rnd.nextInt(26)));
+        return sb.toString();
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
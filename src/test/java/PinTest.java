@@ -0,0 +1,126 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.CacheException;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Pins of BufferPool frames under eviction pressure, from scans of a table five
+ * times as large as the pool. A pinned page must stay resident, as the same
+ * object with the same latch, and keep its pin count; a page pinned twice must
+ * survive one unpin, and be evicted like any other page once its last pin is
+ * released. When every frame is pinned, reading another page must throw a
+ * CacheException instead of evicting a pinned one, and must work again after
+ * an unpin. Unpinning a page that is not pinned, or asking for its latch, must
+ * throw an IllegalStateException.
+ *
+ * Throws on the first page that is not as expected.
+ *
+ * usage: java PinTest
+ */
+public class PinTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "id", "v" });
+
+    static final int POOL_PAGES = 20;
+
+    public static void main(String[] argv) throws Exception {
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        HeapFile table = table("pins", 5 * POOL_PAGES);
+        HeapPageId first = new HeapPageId(table.getId(), 0);
+
+        // pin住的页扛得住整表扫描，还是原来的对象和latch
+        TransactionId tid = new TransactionId();
+        Page page = pool.pinPage(tid, first, Permissions.READ_ONLY);
+        pool.pinPage(tid, first, Permissions.READ_ONLY);
+        ReadWriteLock latch = pool.getLatch(first);
+        scan(table);
+        if (!pool.isResident(page) || pool.getLatch(first) != latch || pool.getPinCount(first) != 2)
+            throw new RuntimeException("pinned page evicted");
+        pool.unpinPage(first);
+        scan(table);
+        if (!pool.isResident(page) || pool.getPinCount(first) != 1)
+            throw new RuntimeException("page pinned twice evicted after one unpin");
+
+        // 最后一个pin放掉以后和别的页一样被换出
+        pool.unpinPage(first);
+        scan(table);
+        if (pool.isResident(page) || pool.getPinCount(first) != 0)
+            throw new RuntimeException("unpinned page not evicted");
+        unpinned(pool, first);
+        pool.transactionComplete(tid);
+
+        // 所有的帧都pin住了，再读一页只能失败
+        Database.resetBufferPool(POOL_PAGES);
+        pool = Database.getBufferPool();
+        tid = new TransactionId();
+        for (int p = 0; p < POOL_PAGES; p++) pool.pinPage(tid, new HeapPageId(table.getId(), p), Permissions.READ_ONLY);
+        HeapPageId next = new HeapPageId(table.getId(), POOL_PAGES);
+        try {
+            pool.getPage(tid, next, Permissions.READ_ONLY);
+            throw new RuntimeException("page read into a pool whose frames are all pinned");
+        } catch (CacheException e) {
+            // 没有能换出的页
+        }
+        for (int p = 0; p < POOL_PAGES; p++)
+            if (pool.getPinCount(new HeapPageId(table.getId(), p)) != 1) throw new RuntimeException("page " + p + " lost its pin");
+
+        // 放掉一个pin，就能换出它读新的页
+        pool.unpinPage(first);
+        pool.getPage(tid, next, Permissions.READ_ONLY);
+        if (pool.getPinCount(first) != 0 || pool.getResidentPageIds().contains(first))
+            throw new RuntimeException("the unpinned page was not the one evicted");
+        for (int p = 1; p < POOL_PAGES; p++) pool.unpinPage(new HeapPageId(table.getId(), p));
+        pool.transactionComplete(tid);
+        System.out.println("ok");
+    }
+
+    /* 没有pin的页不能unpin，也拿不到latch */
+    static void unpinned(BufferPool pool, HeapPageId pid) {
+        try {
+            pool.unpinPage(pid);
+            throw new RuntimeException("unpinned a page that is not pinned");
+        } catch (IllegalStateException e) {
+            // 应该的
+        }
+        try {
+            pool.getLatch(pid);
+            throw new RuntimeException("latch of a page that is not pinned");
+        } catch (IllegalStateException e) {
+            // 应该的
+        }
+    }
+
+    static void scan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) it.next();
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    static HeapFile table(String name, int numPages) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        int perPage = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<>();
+        for (int id = 0; id < numPages * perPage; id++) rows.add(new ArrayList<>(Arrays.asList(id, -id)));
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 2);
+        HeapFile table = new HeapFile(f, TD);
+        Database.getCatalog().addTable(table, name);
+        return table;
+    }
+}
@@ -0,0 +1,163 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.DbException;
+import simpleDatabase.field.IntField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Online resizing of a full BufferPool. One transaction has changed 50 pages and
+ * another has 10 pages pinned when the pool is shrunk to 20 pages, below the
+ * number of dirty pages. The background shrink must evict every clean, unpinned
+ * page and keep the dirty and the pinned ones, and meanwhile the pool must not
+ * grow past what it holds. Once the transaction commits and the pins are
+ * released, the pool must shrink to its new size. Nothing may be lost: the
+ * committed deletes must be on disk and every other row still there. Growing
+ * the pool again must let the whole table be cached.
+ *
+ * Throws on the first page or row that is not as expected, or if the pool does
+ * not reach its size within 10 seconds.
+ *
+ * usage: java ResizeTest
+ */
+public class ResizeTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "id", "v" });
+
+    static final int POOL_PAGES = 200;
+
+    static final int TABLE_PAGES = 300;
+
+    static final int DIRTY = 50;
+
+    static final int PINNED = 10;
+
+    public static void main(String[] argv) throws Exception {
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        HeapFile table = table("resize");
+        int perPage = rowsPerPage();
+
+        // 一个事务改了前50页，另一个事务pin住10页，其余的页把缓冲池填满
+        TransactionId writer = new TransactionId();
+        DbFileIterator it = table.iterator(writer);
+        it.open();
+        Set<Integer> deleted = new HashSet<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getRecordId().getPageId().getPageNumber() >= DIRTY) break;
+            int id = ((IntField) t.getField(0)).getValue();
+            if (id % perPage == 0) {
+                pool.deleteTuple(writer, t);
+                deleted.add(id);
+            }
+        }
+        it.close();
+        TransactionId reader = new TransactionId();
+        List<PageId> pinned = new ArrayList<>();
+        for (int p = DIRTY; p < DIRTY + PINNED; p++) {
+            pinned.add(new HeapPageId(table.getId(), p));
+            pool.pinPage(reader, pinned.get(pinned.size() - 1), Permissions.READ_ONLY);
+        }
+        for (int p = DIRTY + PINNED; p < POOL_PAGES; p++)
+            pool.getPage(reader, new HeapPageId(table.getId(), p), Permissions.READ_ONLY);
+        if (pool.getResidentPageIds().size() != POOL_PAGES)
+            throw new RuntimeException(pool.getResidentPageIds().size() + " pages in a full pool");
+
+        // 缩到比脏页还少，只能换出干净且没pin的页
+        pool.resize(20);
+        waitForPages(pool, DIRTY + PINNED);
+        Set<PageId> resident = new HashSet<>(pool.getResidentPageIds());
+        for (int p = 0; p < DIRTY; p++)
+            if (!resident.contains(new HeapPageId(table.getId(), p))) throw new RuntimeException("dirty page " + p + " evicted");
+        if (!resident.containsAll(pinned)) throw new RuntimeException("pinned page evicted");
+        if (pool.getCapacityBytes() != 20L * BufferPool.getPageSize())
+            throw new RuntimeException("capacity is " + pool.getCapacityBytes() + " bytes");
+
+        // 缩的过程中缓冲池不能再变大
+        try {
+            pool.getPage(reader, new HeapPageId(table.getId(), POOL_PAGES), Permissions.READ_ONLY);
+            throw new RuntimeException("pool grew while shrinking");
+        } catch (DbException e) {
+            // 所有的页不是脏的就是pin住的
+        }
+
+        // 提交、放掉pin以后缩到新的大小
+        pool.transactionComplete(writer);
+        for (PageId pid : pinned) pool.unpinPage(pid);
+        pool.transactionComplete(reader);
+        waitForPages(pool, 20);
+
+        // 提交的删除在磁盘上，其余的行都还在
+        Database.resetBufferPool(POOL_PAGES);
+        check(table, deleted, TABLE_PAGES * perPage);
+
+        // 再变大，整张表都能缓存
+        pool = Database.getBufferPool();
+        pool.resize(TABLE_PAGES);
+        check(table, deleted, TABLE_PAGES * perPage);
+        if (pool.getResidentPageIds().size() != TABLE_PAGES)
+            throw new RuntimeException(pool.getResidentPageIds().size() + " pages cached after growing");
+        System.out.println("ok");
+    }
+
+    /* 后台线程一批一批地换出，等它缩到n页 */
+    static void waitForPages(BufferPool pool, int n) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getResidentPageIds().size() != n) {
+            if (System.currentTimeMillis() > deadline)
+                throw new RuntimeException(pool.getResidentPageIds().size() + " pages cached, expected " + n);
+            Thread.sleep(10);
+        }
+        // 不能换出更多
+        Thread.sleep(50);
+        if (pool.getResidentPageIds().size() != n)
+            throw new RuntimeException(pool.getResidentPageIds().size() + " pages cached, expected " + n);
+    }
+
+    static void check(HeapFile table, Set<Integer> deleted, int rows) throws Exception {
+        boolean[] seen = new boolean[rows];
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            int id = ((IntField) it.next().getField(0)).getValue();
+            if (seen[id] || deleted.contains(id)) throw new RuntimeException("row " + id + " read back");
+            seen[id] = true;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        for (int id = 0; id < rows; id++)
+            if (!seen[id] && !deleted.contains(id)) throw new RuntimeException("row " + id + " lost");
+    }
+
+    static int rowsPerPage() {
+        return BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+    }
+
+    /* 行号从0开始连续，正好写满TABLE_PAGES页 */
+    static HeapFile table(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<>();
+        for (int id = 0; id < TABLE_PAGES * rowsPerPage(); id++) rows.add(new ArrayList<>(Arrays.asList(id, -id)));
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 2);
+        HeapFile table = new HeapFile(f, TD);
+        Database.getCatalog().addTable(table, name);
+        return table;
+    }
+}
@@ -0,0 +1,188 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.DbFile;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.PaxFile;
+import simpleDatabase.cache.SegmentedFile;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Read-back of tables spread over many segment files. The segment size is set
+ * to a little more than five pages, so the segments also have to round it down
+ * to whole pages. Rows are inserted through the buffer pool into a FIXED and a
+ * SLOTTED HeapFile and a PaxFile; the SLOTTED file also gets strings of a few KB,
+ * which go to its segmented overflow file. The segments are then copied and
+ * opened as a new file, and read back with an empty buffer pool. Files written
+ * by HeapFileEncoder.convert and convertToPax are read back the same way.
+ *
+ * Throws on the first value that does not come back whole.
+ *
+ * usage: java SegmentedFileTest
+ */
+public class SegmentedFileTest {
+
+    static final int PAGES_PER_SEGMENT = 5;
+
+    static final Type[] TYPES = new Type[]{ Type.INT_TYPE, Type.STRING_TYPE };
+
+    static final TupleDesc TD = new TupleDesc(TYPES, new String[]{ "id", "s" });
+
+    public static void main(String[] argv) throws Exception {
+        SegmentedFile.setSegmentSize(PAGES_PER_SEGMENT * BufferPool.getPageSize() + 100);
+        try {
+            for (int kind = 0; kind < 3; kind++) {
+                Database.resetBufferPool(500);
+                Random rnd = new Random(35);
+                Map<Integer, String> rows = new HashMap<>();
+                for (int i = 0; i < 2000; i++) {
+                    // slotted页放得下任意长的串，多出来的部分进溢出文件
+                    int len = kind == 1 && i % 10 == 0 ? 3000 : rnd.nextInt(Type.STRING_LEN + 1);
+                    rows.put(i, randomString(rnd, len));
+                }
+
+                File f = tempFile("segmented");
+                DbFile table = open(kind, f);
+                Database.getCatalog().addTable(table, f.getName());
+                TransactionId tid = new TransactionId();
+                for (Map.Entry<Integer, String> row : rows.entrySet()) {
+                    Database.getBufferPool().insertTuple(tid, table.getId(), tuple(row.getKey(), row.getValue()));
+                    if (row.getKey() % 100 == 99) {
+                        Database.getBufferPool().transactionComplete(tid);
+                        tid = new TransactionId();
+                    }
+                }
+                Database.getBufferPool().transactionComplete(tid);
+                Database.getBufferPool().flushAllPages();
+                deleteSegmentsOnExit(f);
+
+                int segments = countSegments(f);
+                int expected = (table.numPages() + PAGES_PER_SEGMENT - 1) / PAGES_PER_SEGMENT;
+                if (segments != expected)
+                    throw new RuntimeException(table.getClass().getSimpleName() + ": " + table.numPages()
+                            + " pages in " + segments + " segments, expected " + expected);
+                if (kind == 1 && countSegments(new File(f.getPath() + ".ovf")) < 2)
+                    throw new RuntimeException("the overflow file of the slotted table has a single segment");
+
+                check(reopen(kind, f), rows);
+            }
+
+            // convert 和 convertToPax 写出的文件同样分段
+            Database.resetBufferPool(500);
+            Random rnd = new Random(36);
+            Map<Integer, String> rows = new HashMap<>();
+            for (int i = 0; i < 2000; i++) rows.put(i, randomString(rnd, rnd.nextInt(Type.STRING_LEN + 1)));
+            File txt = tempFile("segmented-txt");
+            FileWriter w = new FileWriter(txt);
+            for (Map.Entry<Integer, String> row : rows.entrySet()) w.write(row.getKey() + "," + row.getValue() + "\n");
+            w.close();
+            for (int kind = 0; kind < 3; kind += 2) {
+                File out = tempFile("segmented-converted");
+                if (kind == 0) HeapFileEncoder.convert(txt, out, BufferPool.getPageSize(), 2, TYPES, ',');
+                else HeapFileEncoder.convertToPax(txt, out, BufferPool.getPageSize(), 2, TYPES, ',');
+                deleteSegmentsOnExit(out);
+                if (countSegments(out) < 2) throw new RuntimeException(out + " has a single segment");
+                check(reopen(kind, out), rows);
+            }
+        } finally {
+            SegmentedFile.setSegmentSize(SegmentedFile.DEFAULT_SEGMENT_SIZE);
+        }
+
+        System.out.println("ok");
+    }
+
+    /** kind 0 is a FIXED HeapFile, 1 a SLOTTED HeapFile and 2 a PaxFile. */
+    static DbFile open(int kind, File f) {
+        if (kind == 0) return new HeapFile(f, TD);
+        if (kind == 1) return new HeapFile(f, TD, HeapFile.PageFormat.SLOTTED);
+        return new PaxFile(f, TD);
+    }
+
+    /** Copy every segment of f, and of its overflow file, and open the copy with an empty buffer pool. */
+    static DbFile reopen(int kind, File f) throws Exception {
+        Database.resetBufferPool(500);
+        File copy = tempFile("segmented-copy");
+        for (String file : new String[]{ "", ".ovf" }) {
+            for (int i = 0; ; i++) {
+                String suffix = file + (i == 0 ? "" : "." + i);
+                File from = new File(f.getPath() + suffix);
+                if (!from.exists()) break;
+                Files.copy(from.toPath(), new File(copy.getPath() + suffix).toPath());
+            }
+        }
+        deleteSegmentsOnExit(copy);
+        DbFile table = open(kind, copy);
+        Database.getCatalog().addTable(table, copy.getName());
+        return table;
+    }
+
+    static void check(DbFile table, Map<Integer, String> rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        Set<Integer> seen = new HashSet<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            String s = ((StringField) t.getField(1)).getValue();
+            if (!s.equals(rows.get(id)))
+                throw new RuntimeException(table.getClass().getSimpleName() + " row " + id + ": read "
+                        + s.length() + " characters, wrote " + rows.get(id).length());
+            if (!seen.add(id)) throw new RuntimeException("row " + id + " read twice");
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (seen.size() != rows.size())
+            throw new RuntimeException(table.getClass().getSimpleName() + ": read " + seen.size()
+                    + " rows, wrote " + rows.size());
+    }
+
+    static int countSegments(File f) {
+        int n = 0;
+        while (new File(f.getPath() + (n == 0 ? "" : "." + n)).exists()) n++;
+        return n;
+    }
+
+    static void deleteSegmentsOnExit(File f) {
+        for (String file : new String[]{ "", ".ovf" }) {
+            File first = new File(f.getPath() + file);
+            for (int i = countSegments(first) - 1; i >= 0; i--)
+                new File(first.getPath() + (i == 0 ? "" : "." + i)).deleteOnExit();
+        }
+    }
+
+    static Tuple tuple(int id, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(s, Math.max(s.length(), Type.STRING_LEN)));
+        return t;
+    }
+
+    static String randomString(Random rnd, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) sb.append((char) ('a' + rnd.nextInt(26)));
+        return sb.toString();
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
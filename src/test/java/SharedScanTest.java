@@ -0,0 +1,166 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shared scans of a HeapFile twice as large as the buffer pool. A second scan
+ * that opens while the first one is half way must start at the page the first
+ * one reached, read to the end of the file together with it, then wrap around to
+ * page 0 and stop before its start page: every page exactly once, every row
+ * exactly once. The file counts its disk reads, and the pages both scans read
+ * together must only be read once. A scan closed half way must leave the group,
+ * and a scan of a table that fits in the pool must still start at page 0.
+ *
+ * Throws on the first page or row that is not as expected.
+ *
+ * usage: java SharedScanTest
+ */
+public class SharedScanTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "id", "v" });
+
+    static final int POOL_PAGES = 100;
+
+    /* 数一下从磁盘读了多少页 */
+    static class CountingHeapFile extends HeapFile {
+
+        int reads;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    /* 一个扫描按顺序读到的页号和行 */
+    static class Scan {
+
+        final TransactionId tid = new TransactionId();
+
+        final DbFileIterator it;
+
+        final List<Integer> pages = new ArrayList<>();
+
+        final List<Integer> rows = new ArrayList<>();
+
+        Scan(HeapFile table) throws Exception {
+            it = table.iterator(tid);
+            it.open();
+        }
+
+        /* 读一行，读完了返回false */
+        boolean step() throws Exception {
+            if (!it.hasNext()) return false;
+            Tuple t = it.next();
+            int pgNo = t.getRecordId().getPageId().getPageNumber();
+            if (pages.isEmpty() || pages.get(pages.size() - 1) != pgNo) pages.add(pgNo);
+            rows.add(((IntField) t.getField(0)).getValue());
+            return true;
+        }
+
+        void close() throws Exception {
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        CountingHeapFile large = table("large", 2 * POOL_PAGES);
+        CountingHeapFile small = table("small", POOL_PAGES / 8);
+
+        Database.resetBufferPool(POOL_PAGES);
+        large.reads = 0;
+        Scan first = new Scan(large);
+        while (first.pages.size() <= POOL_PAGES) first.step();
+        int start = first.pages.get(first.pages.size() - 1);
+
+        // 中途打开的扫描从第一个扫描所在的页开始，两个一起往后读
+        Scan second = new Scan(large);
+        boolean more = true;
+        while (more) {
+            more = first.step();
+            more |= second.step();
+        }
+        first.close();
+        second.close();
+        checkAllOnce("first scan", first, large.numPages(), 0);
+        checkAllOnce("second scan", second, large.numPages(), start);
+        // 一起读的页只从磁盘读一次，只有第二个扫描绕回去的页要再读
+        if (large.reads > large.numPages() + start + 1)
+            throw new RuntimeException("two scans read " + large.reads + " pages of " + large.numPages());
+
+        // 中途关掉的扫描离开扫描组，之后单独的扫描从第0页开始
+        Scan closed = new Scan(large);
+        for (int i = 0; i < 1000; i++) closed.step();
+        closed.close();
+        Scan alone = new Scan(large);
+        while (alone.step()) {
+        }
+        alone.close();
+        checkAllOnce("scan after a closed one", alone, large.numPages(), 0);
+
+        // 小表不参与共享扫描，总是从第0页开始，按页的顺序返回
+        Scan a = new Scan(small);
+        for (int i = 0; i < 300; i++) a.step();
+        Scan b = new Scan(small);
+        more = true;
+        while (more) {
+            more = a.step();
+            more |= b.step();
+        }
+        a.close();
+        b.close();
+        checkAllOnce("first scan of the small table", a, small.numPages(), 0);
+        checkAllOnce("second scan of the small table", b, small.numPages(), 0);
+        System.out.println("ok");
+    }
+
+    /* 从start页读到末尾，再从第0页读到start前一页；每一行正好一次 */
+    static void checkAllOnce(String what, Scan scan, int numPages, int start) {
+        List<Integer> want = new ArrayList<>();
+        for (int p = start; p < numPages; p++) want.add(p);
+        for (int p = 0; p < start; p++) want.add(p);
+        if (!scan.pages.equals(want))
+            throw new RuntimeException(what + " read pages " + scan.pages + ", expected " + start + ".." + (numPages - 1)
+                    + " then 0.." + (start - 1));
+        List<Integer> rows = new ArrayList<>(scan.rows);
+        Collections.sort(rows);
+        for (int i = 0; i < rows.size(); i++)
+            if (rows.get(i) != i) throw new RuntimeException(what + " returned row " + rows.get(i) + " at " + i);
+    }
+
+    /* 行号从0开始连续，正好写满numPages页 */
+    static CountingHeapFile table(String name, int numPages) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        int perPage = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<>();
+        for (int id = 0; id < numPages * perPage; id++) rows.add(new ArrayList<>(Arrays.asList(id, -id)));
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 2);
+        CountingHeapFile table = new CountingHeapFile(f, TD);
+        Database.getCatalog().addTable(table, name);
+        if (table.numPages() != numPages) throw new RuntimeException(name + " has " + table.numPages() + " pages");
+        return table;
+    }
+}
@@ -0,0 +1,220 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapPage;
+import simpleDatabase.cache.HeapPageId;
+import simpleDatabase.cache.SlotBitmap;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.index.BTreeFile;
+import simpleDatabase.index.BTreeLeafPage;
+import simpleDatabase.index.BTreePageId;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Slot headers kept in long-word bitmaps. SlotBitmap is checked against a
+ * java.util.BitSet under random changes, for sizes around the word boundaries:
+ * the count of used slots, the next and previous used and empty slot from every
+ * position, and the header bytes it loads and stores. Then random inserts and
+ * deletes on a HeapPage and on a BTreeLeafPage, with many equal keys, must keep
+ * the count of empty slots right, the leaf records sorted, and the record ids
+ * pointing at used slots, also after the page is parsed again from its bytes.
+ *
+ * Throws on the first slot or tuple that is not as expected.
+ *
+ * usage: java SlotBitmapTest
+ */
+public class SlotBitmapTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "k", "v" });
+
+    public static void main(String[] argv) throws Exception {
+        Random rnd = new Random(30);
+        for (int n : new int[]{ 1, 7, 8, 63, 64, 65, 127, 128, 200, 513 }) checkBitmap(n, rnd);
+
+        BufferPool.setPageSize(1024);
+        try {
+            Database.resetBufferPool(100);
+            checkHeapPage(rnd);
+            checkLeafPage(rnd);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+        System.out.println("ok");
+    }
+
+    /* 随机改位图，每一步都和BitSet对一遍 */
+    static void checkBitmap(int n, Random rnd) {
+        SlotBitmap bitmap = new SlotBitmap(n);
+        BitSet oracle = new BitSet(n);
+        for (int step = 0; step < 4 * n; step++) {
+            int i = rnd.nextInt(n);
+            boolean value = rnd.nextInt(3) != 0;
+            bitmap.set(i, value);
+            oracle.set(i, value);
+            if (step % 7 == 0 || step == 4 * n - 1) same(n, bitmap, oracle);
+        }
+        // 全满和全空
+        for (int i = 0; i < n; i++) {
+            bitmap.set(i, true);
+            oracle.set(i);
+        }
+        same(n, bitmap, oracle);
+        for (int i = 0; i < n; i++) {
+            bitmap.set(i, false);
+            oracle.clear(i);
+        }
+        same(n, bitmap, oracle);
+    }
+
+    static void same(int n, SlotBitmap bitmap, BitSet oracle) {
+        if (bitmap.cardinality() != oracle.cardinality())
+            throw new RuntimeException(n + " slots: " + bitmap.cardinality() + " used, expected " + oracle.cardinality());
+        for (int i = 0; i < n; i++) {
+            if (bitmap.get(i) != oracle.get(i)) throw new RuntimeException(n + " slots: bit " + i + " differs");
+            expect(n, "nextSetBit", i, bitmap.nextSetBit(i), oracle.nextSetBit(i));
+            int clear = oracle.nextClearBit(i);
+            expect(n, "nextClearBit", i, bitmap.nextClearBit(i), clear < n ? clear : -1);
+            expect(n, "previousSetBit", i, bitmap.previousSetBit(i), oracle.previousSetBit(i));
+            expect(n, "previousClearBit", i, bitmap.previousClearBit(i), oracle.previousClearBit(i));
+        }
+
+        // 存成页头的字节：第i个slot是第i/8个字节的第i%8位
+        ByteBuffer buf = ByteBuffer.allocate(SlotBitmap.byteSize(n) + 2);
+        bitmap.store(buf, 1);
+        for (int i = 0; i < n; i++)
+            if (((buf.get(1 + i / 8) >> (i % 8)) & 1) != (oracle.get(i) ? 1 : 0))
+                throw new RuntimeException(n + " slots: header bit " + i + " differs");
+        // 最后一个字节里超出n的位是垃圾，读回来不能算成已使用
+        if (n % 8 != 0) buf.put(SlotBitmap.byteSize(n), (byte) (buf.get(SlotBitmap.byteSize(n)) | (0xFF << (n % 8))));
+        SlotBitmap loaded = new SlotBitmap(n);
+        loaded.load(buf, 1);
+        if (loaded.cardinality() != oracle.cardinality())
+            throw new RuntimeException(n + " slots: loaded " + loaded.cardinality() + " used slots");
+        for (int i = 0; i < n; i++)
+            if (loaded.get(i) != oracle.get(i)) throw new RuntimeException(n + " slots: loaded bit " + i + " differs");
+        expect(n, "loaded nextClearBit", n - 1, loaded.nextClearBit(n - 1), oracle.get(n - 1) ? -1 : n - 1);
+    }
+
+    static void expect(int n, String what, int from, int got, int want) {
+        if (got != want) throw new RuntimeException(n + " slots: " + what + "(" + from + ") is " + got + ", expected " + want);
+    }
+
+    /* HeapPage：随机插入删除，空slot数和迭代器对得上 */
+    static void checkHeapPage(Random rnd) throws Exception {
+        HeapFile table = new HeapFile(tempFile("slots"), TD);
+        Database.getCatalog().addTable(table, "slots");
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int capacity = page.getNumEmptySlots();
+        List<Tuple> stored = new ArrayList<>();
+        for (int step = 0; step < 20 * capacity; step++) {
+            if (page.getNumEmptySlots() > 0 && (stored.isEmpty() || rnd.nextInt(5) < 3)) {
+                Tuple t = tuple(rnd.nextInt(50), step);
+                page.insertTuple(t);
+                if (!page.isSlotUsed(t.getRecordId().getTupleNumber()))
+                    throw new RuntimeException("inserted into a slot marked empty");
+                stored.add(t);
+            } else {
+                Tuple t = stored.remove(rnd.nextInt(stored.size()));
+                int slot = t.getRecordId().getTupleNumber();
+                page.deleteTuple(t);
+                if (page.isSlotUsed(slot))
+                    throw new RuntimeException("deleted slot still marked used");
+            }
+            if (page.getNumEmptySlots() != capacity - stored.size())
+                throw new RuntimeException(page.getNumEmptySlots() + " empty slots, expected " + (capacity - stored.size()));
+            if (step % 50 == 0) page = new HeapPage(pid, page.getPageData());
+            checkHeapTuples(page, stored);
+        }
+    }
+
+    static void checkHeapTuples(HeapPage page, List<Tuple> stored) {
+        List<String> want = new ArrayList<>();
+        for (Tuple t : stored) want.add(t.getRecordId().getTupleNumber() + ":" + t.getField(1));
+        List<String> got = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            got.add(t.getRecordId().getTupleNumber() + ":" + t.getField(1));
+        }
+        Collections.sort(want);
+        Collections.sort(got);
+        if (!got.equals(want)) throw new RuntimeException("heap page holds " + got + ", expected " + want);
+    }
+
+    /* BTreeLeafPage：二分查找插入位置，记录保持有序，重复键也一样 */
+    static void checkLeafPage(Random rnd) throws Exception {
+        BTreeFile tree = new BTreeFile(tempFile("leaf"), 0, TD);
+        Database.getCatalog().addTable(tree, "leaf");
+        BTreePageId pid = new BTreePageId(tree.getId(), 1, BTreePageId.LEAF);
+        BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+        int capacity = page.getMaxTuples();
+        List<Integer> keys = new ArrayList<>();
+        for (int step = 0; step < 20 * capacity; step++) {
+            if (page.getNumEmptySlots() > 0 && (keys.isEmpty() || rnd.nextInt(5) < 3)) {
+                int k = rnd.nextInt(30);
+                page.insertTuple(tuple(k, step));
+                keys.add(k);
+            } else {
+                // 删掉迭代器拿到的随便一个元组，记录号必须还对
+                List<Tuple> tuples = tuples(page);
+                Tuple t = tuples.get(rnd.nextInt(tuples.size()));
+                page.deleteTuple(t);
+                keys.remove((Integer) ((IntField) t.getField(0)).getValue());
+            }
+            if (page.getNumEmptySlots() != capacity - keys.size() || page.getNumTuples() != keys.size())
+                throw new RuntimeException(page.getNumEmptySlots() + " empty slots, expected " + (capacity - keys.size()));
+            if (step % 50 == 0) page = new BTreeLeafPage(pid, page.getPageData(), 0);
+            checkLeafTuples(page, keys);
+        }
+    }
+
+    static void checkLeafTuples(BTreeLeafPage page, List<Integer> keys) {
+        List<Integer> want = new ArrayList<>(keys);
+        Collections.sort(want);
+        List<Integer> got = new ArrayList<>();
+        for (Tuple t : tuples(page)) {
+            if (!page.isSlotUsed(t.getRecordId().getTupleNumber()))
+                throw new RuntimeException("record id of " + t + " points at an empty slot");
+            got.add(((IntField) t.getField(0)).getValue());
+        }
+        if (!got.equals(want)) throw new RuntimeException("leaf holds " + got + ", expected " + want);
+        List<Integer> reverse = new ArrayList<>();
+        Iterator<Tuple> it = page.reverseIterator();
+        while (it.hasNext()) reverse.add(((IntField) it.next().getField(0)).getValue());
+        Collections.reverse(reverse);
+        if (!reverse.equals(want)) throw new RuntimeException("reverse iterator returns " + reverse);
+    }
+
+    static List<Tuple> tuples(BTreeLeafPage page) {
+        List<Tuple> l = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) l.add(it.next());
+        return l;
+    }
+
+    static Tuple tuple(int k, int v) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(k));
+        t.setField(1, new IntField(v));
+        return t;
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+}
@@ -0,0 +1,191 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.HeapFileEncoder;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.exception.TransactionAbortedException;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Round trips through SLOTTED heap files: strings of every length, from empty to
+ * 10 KB, are inserted through the buffer pool, read back after the pages went to
+ * disk, deleted and inserted again so that the overflow pages are reused. The same
+ * strings also go through HeapFileEncoder.convertToSlotted, which must not add a
+ * table to the Catalog. Threads that insert long strings at the same time must
+ * each get overflow pages of their own.
+ *
+ * Throws on the first value that does not come back whole.
+ *
+ * usage: java SlottedHeapFileTest
+ */
+public class SlottedHeapFileTest {
+
+    static final Type[] TYPES = new Type[]{ Type.INT_TYPE, Type.STRING_TYPE };
+
+    static final TupleDesc TD = new TupleDesc(TYPES, new String[]{ "id", "s" });
+
+    public static void main(String[] argv) throws Exception {
+        Database.resetBufferPool(500);
+        Random rnd = new Random(27);
+        Map<Integer, String> rows = new HashMap<>();
+        for (int i = 0; i < 200; i++) rows.put(i, randomString(rnd, i == 0 ? 10 * 1024 : rnd.nextInt(700)));
+
+        File f = tempFile("slotted");
+        HeapFile table = new HeapFile(f, TD, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(table, "slotted");
+
+        TransactionId tid = new TransactionId();
+        for (Map.Entry<Integer, String> row : rows.entrySet())
+            Database.getBufferPool().insertTuple(tid, table.getId(), tuple(row.getKey(), row.getValue()));
+        Database.getBufferPool().transactionComplete(tid);
+        reopen();
+        check(table, rows);
+
+        // 删掉一半再插回去，溢出页从空闲链表里复用
+        int overflowBytes = new File(f.getPath() + ".ovf").exists() ? (int) new File(f.getPath() + ".ovf").length() : 0;
+        tid = new TransactionId();
+        List<Tuple> deleted = new ArrayList<>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 2 == 0) deleted.add(t);
+        }
+        it.close();
+        for (Tuple t : deleted) Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        for (Tuple t : deleted) {
+            int id = ((IntField) t.getField(0)).getValue();
+            Database.getBufferPool().insertTuple(tid, table.getId(), tuple(id, rows.get(id)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        reopen();
+        check(table, rows);
+        if (new File(f.getPath() + ".ovf").length() != overflowBytes)
+            throw new RuntimeException("overflow file grew from " + overflowBytes + " to "
+                    + new File(f.getPath() + ".ovf").length() + " bytes, freed pages were not reused");
+
+        // 同样的数据用 convertToSlotted 生成
+        File txt = tempFile("slotted-txt");
+        FileWriter w = new FileWriter(txt);
+        for (Map.Entry<Integer, String> row : rows.entrySet())
+            w.write(row.getKey() + "," + row.getValue() + "\n");
+        w.close();
+        File converted = tempFile("slotted-converted");
+        int tables = numTables();
+        HeapFileEncoder.convertToSlotted(txt, converted, 4096, 2, TYPES, ',');
+        if (numTables() != tables) throw new RuntimeException("convertToSlotted added a table to the Catalog");
+        HeapFile loaded = new HeapFile(converted, TD, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(loaded, "converted");
+        check(loaded, rows);
+
+        checkConcurrentInserts(rnd);
+        System.out.println("ok");
+    }
+
+    /* 几个线程同时插长字符串，溢出页不能被两条链共用 */
+    static void checkConcurrentInserts(Random rnd) throws Exception {
+        final HeapFile table = new HeapFile(tempFile("slotted-concurrent"), TD, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(table, "concurrent");
+        final Map<Integer, String> rows = new HashMap<>();
+        for (int i = 0; i < 200; i++) rows.put(i, randomString(rnd, 500 + rnd.nextInt(5000)));
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            final int writer = w;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int id = writer; id < rows.size(); id += 4) {
+                            while (true) {
+                                TransactionId tid = new TransactionId();
+                                try {
+                                    Database.getBufferPool().insertTuple(tid, table.getId(), tuple(id, rows.get(id)));
+                                    Database.getBufferPool().transactionComplete(tid);
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    Database.getBufferPool().transactionComplete(tid, false);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        if (error.get() != null) throw new RuntimeException(error.get());
+        reopen();
+        check(table, rows);
+    }
+
+    static int numTables() {
+        int n = 0;
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next()) n++;
+        return n;
+    }
+
+    static void check(HeapFile table, Map<Integer, String> rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            String s = ((StringField) t.getField(1)).getValue();
+            if (!s.equals(rows.get(id)))
+                throw new RuntimeException("row " + id + ": read " + s.length() + " characters, wrote "
+                        + rows.get(id).length());
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (n != rows.size()) throw new RuntimeException("read " + n + " rows, wrote " + rows.size());
+    }
+
+    /** Drop the cached pages, so that the next scan reads them from disk. */
+    static void reopen() throws Exception {
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(500);
+    }
+
+    static Tuple tuple(int id, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(s));
+        return t;
+    }
+
+    static String randomString(Random rnd, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) sb.append((char) ('a' + rnd.nextInt(26)));
+        return sb.toString();
+    }
+
+    static File tempFile(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".ovf").deleteOnExit();
+        return f;
+    }
+}
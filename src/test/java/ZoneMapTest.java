@@ -0,0 +1,147 @@
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.HeapFile;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.field.StringField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.iterator.SeqScan;
+import simpleDatabase.operator.Predicate;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Filtered scans of a HeapFile that skip pages by their zone maps. The table is
+ * loaded in id order, so every page holds one range of ids. The file counts the
+ * pages it reads from disk. A file that was just opened knows no ranges yet and
+ * must read every page; once the pages were read, a scan on the id must only
+ * read the pages whose range can match, and a scan on a string, which has no
+ * zone map, must still read them all. A row inserted later into the last page
+ * must be found, by its own transaction before it commits and by others after.
+ * Every scan must return what filtering a full scan returns.
+ *
+ * Throws on the first row or page count that is not as expected.
+ *
+ * usage: java ZoneMapTest
+ */
+public class ZoneMapTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE },
+            new String[]{ "id", "k", "s" });
+
+    static final int ROWS = 10000;
+
+    /* 数一下从磁盘读了多少页 */
+    static class CountingHeapFile extends HeapFile {
+
+        int reads;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        File f = File.createTempFile("zonemap", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        Database.resetBufferPool(1000);
+        HeapFile loader = new HeapFile(f, TD);
+        Database.getCatalog().addTable(loader, "zones");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++) Database.getBufferPool().insertTuple(tid, loader.getId(), tuple(i, "s" + i));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        // 重新打开文件，还不知道任何页的范围
+        CountingHeapFile table = new CountingHeapFile(f, TD);
+        Database.getCatalog().addTable(table, "zones_reopened");
+        int pages = table.numPages();
+        int perPage = (ROWS + pages - 1) / pages;
+        Predicate firstIds = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(perPage / 2));
+        expectReads(table, firstIds, pages);
+
+        // 每页的范围都知道了，只读可能满足条件的页
+        expectReads(table, firstIds, 1);
+        expectReads(table, new Predicate(0, Predicate.Op.EQUALS, new IntField(ROWS / 2)), 1);
+        expectReads(table, new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField((pages - 2) * perPage)), 2);
+        expectReads(table, new Predicate(0, Predicate.Op.LESS_THAN, new IntField(-1)), 0);
+        expectReads(table, new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(3)), pages);
+        // string列没有范围，一页都不能跳
+        expectReads(table, new Predicate(2, Predicate.Op.EQUALS, new StringField("s7", Type.STRING_LEN)), pages);
+
+        // 往最后一页插一个小id，没提交时自己能看到，提交以后别人也能看到
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, table.getId(), tuple(1, "late"));
+        if (scan(tid, table, firstIds).size() != perPage / 2 + 1)
+            throw new RuntimeException("own uncommitted row skipped");
+        Database.getBufferPool().transactionComplete(tid);
+        expectReads(table, firstIds, 2);
+        System.out.println("ok");
+    }
+
+    /* 换一个空的缓冲池，过滤扫描读的页数和结果都要对；先扫，全表扫描会把范围都算出来 */
+    static void expectReads(CountingHeapFile table, Predicate p, int pages) throws Exception {
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+        table.reads = 0;
+        TransactionId tid = new TransactionId();
+        List<String> got = new ArrayList<>();
+        for (Tuple t : scan(tid, table, p)) got.add(row(t));
+        Database.getBufferPool().transactionComplete(tid);
+        if (table.reads != pages)
+            throw new RuntimeException("scan for " + p + " read " + table.reads + " pages, expected " + pages);
+
+        tid = new TransactionId();
+        List<String> want = new ArrayList<>();
+        for (Tuple t : scan(tid, table, null))
+            if (p.filter(t)) want.add(row(t));
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(want);
+        Collections.sort(got);
+        if (!got.equals(want))
+            throw new RuntimeException("scan for " + p + " returned " + got.size() + " rows, expected " + want.size());
+    }
+
+    static List<Tuple> scan(TransactionId tid, HeapFile table, Predicate p) throws Exception {
+        List<Tuple> l = new ArrayList<>();
+        if (p == null) {
+            DbFileIterator it = table.iterator(tid);
+            it.open();
+            while (it.hasNext()) l.add(it.next());
+            it.close();
+            return l;
+        }
+        SeqScan scan = new SeqScan(tid, table.getId(), "z");
+        scan.pushDown(p);
+        scan.open();
+        while (scan.hasNext()) l.add(scan.next());
+        scan.close();
+        return l;
+    }
+
+    static String row(Tuple t) {
+        return t.getField(0) + "," + t.getField(1) + "," + t.getField(2) + "@" + t.getRecordId().getPageId().getPageNumber();
+    }
+
+    static Tuple tuple(int id, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(id % 17));
+        t.setField(2, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+}
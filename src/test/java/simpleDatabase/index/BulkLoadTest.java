@@ -0,0 +1,186 @@
+package simpleDatabase.index;
+
+import simpleDatabase.basic.Database;
+import simpleDatabase.basic.Permissions;
+import simpleDatabase.basic.Type;
+import simpleDatabase.cache.BufferPool;
+import simpleDatabase.cache.Page;
+import simpleDatabase.cache.PageId;
+import simpleDatabase.cache.Tuple;
+import simpleDatabase.cache.TupleDesc;
+import simpleDatabase.field.IntField;
+import simpleDatabase.iterator.DbFileIterator;
+import simpleDatabase.tx.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The external sort and the bulk load of BTreeFileEncoder, with runs so short
+ * that there are more than {@link TupleSorter#MAX_FAN_IN} of them and they have
+ * to be merged in more than one pass. In this package because the sorter and
+ * bulkLoad are package-private.
+ * <p>
+ * The sorted stream must hold every tuple once, in key order, with equal keys in
+ * the order they were added, and closing the sorter must delete its run files.
+ * Trees loaded with fill factors 1.0, 0.75 and 0.5 must pass BTreeChecker and
+ * hold the same tuples in the same order. On every level every page but the
+ * last two must hold the requested fraction of what it has room for, and the
+ * last two at least half; only the root may hold less.
+ *
+ * Throws on the first tuple or page that is not as expected.
+ *
+ * usage: java simpleDatabase.index.BulkLoadTest
+ */
+public class BulkLoadTest {
+
+    static final TupleDesc TD = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, new String[]{ "k", "v" });
+
+    static final int RUN_TUPLES = 50;
+
+    static final int ROWS = 3 * TupleSorter.MAX_FAN_IN * RUN_TUPLES + 17;
+
+    static final int PAGE_SIZE = 512;
+
+    public static void main(String[] argv) throws Exception {
+        Random rnd = new Random(43);
+        List<Tuple> input = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) input.add(tuple(rnd.nextInt(ROWS / 4), i));
+        // 稳定排序，相同的key按加入的顺序
+        List<Tuple> sorted = new ArrayList<>(input);
+        Collections.sort(sorted, new BTreeFileEncoder.TupleComparator(0));
+
+        checkSort(input, sorted);
+        BufferPool.setPageSize(PAGE_SIZE);
+        try {
+            for (double fillFactor : new double[]{ 1.0, 0.75, 0.5 }) checkBulkLoad(input, sorted, fillFactor);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+        System.out.println("ok");
+    }
+
+    /* run比归并的路数多，要归并两遍 */
+    static void checkSort(List<Tuple> input, List<Tuple> sorted) throws Exception {
+        int runFiles = runFiles();
+        TupleSorter sorter = sorter(input);
+        if (sorter.size() != ROWS) throw new RuntimeException("sorter holds " + sorter.size() + " tuples");
+        TupleSorter.SortedStream stream = sorter.sort();
+        try {
+            for (Tuple want : sorted) {
+                if (!stream.hasNext()) throw new RuntimeException("sorted stream lost " + want);
+                Tuple t = stream.next();
+                if (!same(t, want)) throw new RuntimeException("sorted stream returned " + t + " instead of " + want);
+            }
+            if (stream.hasNext()) throw new RuntimeException("sorted stream returned " + stream.next() + " too many");
+        } finally {
+            stream.close();
+            sorter.close();
+        }
+        if (runFiles() != runFiles) throw new RuntimeException((runFiles() - runFiles) + " run files left behind");
+    }
+
+    static void checkBulkLoad(List<Tuple> input, List<Tuple> sorted, double fillFactor) throws Exception {
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        BTreeFile tree = new BTreeFile(f, 0, TD);
+        Database.getCatalog().addTable(tree, "bulk" + fillFactor);
+        TupleSorter sorter = sorter(input);
+        try {
+            BTreeFileEncoder.bulkLoad(tree, sorter, PAGE_SIZE, fillFactor);
+        } finally {
+            sorter.close();
+        }
+
+        Database.resetBufferPool(5000);
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(tree, tid, new HashMap<PageId, Page>(), true);
+        DbFileIterator it = tree.iterator(tid);
+        it.open();
+        for (Tuple want : sorted) {
+            if (!it.hasNext()) throw new RuntimeException("tree lost " + want);
+            Tuple t = it.next();
+            if (!same(t, want)) throw new RuntimeException("tree returned " + t + " instead of " + want);
+        }
+        if (it.hasNext()) throw new RuntimeException("tree returned " + it.next() + " too many");
+        it.close();
+
+        // 一层一层地看每页放了多少
+        BTreePageId root = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(tree.getId()), Permissions.READ_ONLY)).getRootId();
+        List<BTreePageId> level = Collections.singletonList(root);
+        int levels = 0;
+        while (true) {
+            levels++;
+            List<Integer> sizes = new ArrayList<>();
+            List<BTreePageId> below = new ArrayList<>();
+            int capacity = 0;
+            for (BTreePageId pid : level) {
+                Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                if (page instanceof BTreeLeafPage) {
+                    BTreeLeafPage leaf = (BTreeLeafPage) page;
+                    capacity = leaf.getMaxTuples();
+                    sizes.add(leaf.getNumTuples());
+                } else {
+                    BTreeInternalPage internal = (BTreeInternalPage) page;
+                    capacity = internal.getMaxEntries() + 1;
+                    Iterator<BTreeEntry> entries = internal.iterator();
+                    BTreeEntry e = entries.next();
+                    below.add(e.getLeftChild());
+                    below.add(e.getRightChild());
+                    while (entries.hasNext()) below.add(entries.next().getRightChild());
+                    sizes.add(internal.getNumEntries() + 1);
+                }
+            }
+            checkFill(fillFactor, levels, capacity, sizes);
+            if (below.isEmpty()) break;
+            level = below;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        if (levels < 3) throw new RuntimeException("tree of " + levels + " levels is too small to check");
+    }
+
+    /* 除了最后两页，每页都放到fillFactor；最后两页至少半满。根不算 */
+    static void checkFill(double fillFactor, int level, int capacity, List<Integer> sizes) {
+        if (sizes.size() == 1) return;
+        int target = Math.max((capacity + 1) / 2, (int) (capacity * fillFactor));
+        for (int i = 0; i < sizes.size(); i++) {
+            int n = sizes.get(i);
+            boolean tail = i >= sizes.size() - 2;
+            if (tail ? n < capacity / 2 || n > capacity : n != target)
+                throw new RuntimeException("fill factor " + fillFactor + ": page " + i + " of level " + level
+                        + " holds " + n + " of " + capacity + ", expected " + (tail ? "at least half" : target));
+        }
+    }
+
+    static TupleSorter sorter(List<Tuple> input) throws Exception {
+        TupleSorter sorter = new TupleSorter(TD, new BTreeFileEncoder.TupleComparator(0), RUN_TUPLES, 4);
+        for (Tuple t : input) sorter.add(t);
+        return sorter;
+    }
+
+    /* 临时目录里排序用的run文件个数 */
+    static int runFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list();
+        int n = 0;
+        for (String name : names)
+            if (name.startsWith("sortRun")) n++;
+        return n;
+    }
+
+    static boolean same(Tuple a, Tuple b) {
+        return a.getField(0).equals(b.getField(0)) && a.getField(1).equals(b.getField(1));
+    }
+
+    static Tuple tuple(int k, int v) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(k));
+        t.setField(1, new IntField(v));
+        return t;
+    }
+}